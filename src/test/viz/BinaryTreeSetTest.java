@@ -0,0 +1,181 @@
+package test.viz;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import viz.BinaryTreeSet;
+import viz.Node;
+import viz.ParallelGZIPInputStream;
+import viz.TreeFileParser;
+
+/** trees loaded from a tree file, its gzip and BGZF compressed versions and its binary tree set should be the same **/
+public class BinaryTreeSetTest {
+	final static String TREES = "examples/ape.trees";
+	/** small blocks, so the BGZF file has many of them **/
+	final static int BGZF_BLOCK_SIZE = 4096;
+
+	byte [] m_bytes;
+	File m_gzFile;
+	File m_bgzfFile;
+	File m_dtbFile;
+
+	@Before
+	public void setUp() throws Exception {
+		m_bytes = Files.readAllBytes(new File(TREES).toPath());
+		m_gzFile = File.createTempFile("ape", ".trees.gz");
+		try (OutputStream out = new GZIPOutputStream(new FileOutputStream(m_gzFile))) {
+			out.write(m_bytes);
+		}
+		m_bgzfFile = File.createTempFile("ape", ".trees.bgz");
+		writeBGZF(m_bytes, m_bgzfFile);
+		m_dtbFile = File.createTempFile("ape", "." + BinaryTreeSet.EXTENSION);
+		BinaryTreeSet.main(new String[]{TREES, m_dtbFile.getPath()});
+	}
+
+	@After
+	public void tearDown() {
+		m_gzFile.delete();
+		m_bgzfFile.delete();
+		m_dtbFile.delete();
+	}
+
+	@Test
+	public void testFormats() throws Exception {
+		assertTrue(ParallelGZIPInputStream.isGZIP(m_gzFile));
+		assertTrue(!ParallelGZIPInputStream.isBGZF(m_gzFile));
+		assertTrue(ParallelGZIPInputStream.isBGZF(m_bgzfFile));
+		assertTrue(BinaryTreeSet.isBinaryTreeSet(m_dtbFile));
+		assertTrue(!BinaryTreeSet.isBinaryTreeSet(new File(TREES)));
+	}
+
+	@Test
+	public void testDecompression() throws Exception {
+		assertEquals(new String(m_bytes), new String(readAll(m_gzFile)));
+		assertEquals(new String(m_bytes), new String(readAll(m_bgzfFile)));
+	}
+
+	@Test
+	public void testCorruptBGZF() throws Exception {
+		byte [] bytes = Files.readAllBytes(m_bgzfFile.toPath());
+		// flip a bit in the CRC of the first block
+		int nBlockSize = ((bytes[16] & 0xff) | ((bytes[17] & 0xff) << 8)) + 1;
+		bytes[nBlockSize - 8] ^= 1;
+		Files.write(m_bgzfFile.toPath(), bytes);
+		try {
+			readAll(m_bgzfFile);
+			fail("CRC error not detected");
+		} catch (IOException e) {
+			// expected
+		}
+	}
+
+	@Test
+	public void testLoadEquivalence() throws Exception {
+		int [][] settings = {
+			// burn-in, 1 if burn-in is a percentage, thinning
+			{0, 1, 1},
+			{10, 1, 1},
+			{4, 1, 3},
+			{10, 1, 3},
+			{7, 0, 3},
+			{25, 0, 2}
+		};
+		for (int [] setting : settings) {
+			String sExpected = load(new File(TREES), setting);
+			assertTrue(sExpected.length() > 0);
+			String sMessage = "burn-in " + setting[0] + (setting[1] == 1 ? "%" : "") + " thin " + setting[2];
+			assertEquals(sMessage, sExpected, load(m_gzFile, setting));
+			assertEquals(sMessage, sExpected, load(m_bgzfFile, setting));
+			assertEquals(sMessage, sExpected, load(m_dtbFile, setting));
+		}
+	}
+
+	@Test
+	public void testBurnInAndThinning() throws Exception {
+		// 101 trees, 10% burn-in leaves trees 10..100, every 3rd of these is kept
+		int nTrees = load(new File(TREES), new int[]{10, 1, 3}).split("\n").length;
+		assertEquals(91 / 3, nTrees);
+	}
+
+	/** load trees, and return labels and trees as string **/
+	String load(File file, int [] setting) throws Exception {
+		Vector<String> sLabels = new Vector<String>();
+		TreeFileParser parser = new TreeFileParser(sLabels, new Vector<Float>(), new Vector<Float>(), setting[0]);
+		parser.m_bBurnInIsPercentage = (setting[1] == 1);
+		parser.m_nThin = setting[2];
+		Node [] trees = parser.parseFile(file.getPath());
+		StringBuilder buf = new StringBuilder();
+		for (Node tree : trees) {
+			buf.append(tree.toString(sLabels, false)).append('\n');
+		}
+		return buf.toString();
+	}
+
+	byte [] readAll(File file) throws IOException {
+		try (InputStream in = ParallelGZIPInputStream.open(file)) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte [] buf = new byte[1000];
+			int n;
+			while ((n = in.read(buf)) > 0) {
+				out.write(buf, 0, n);
+			}
+			return out.toByteArray();
+		}
+	}
+
+	/** write bytes as BGZF file: gzip members with a BC extra field holding the block size, followed by an empty block **/
+	void writeBGZF(byte [] bytes, File file) throws IOException {
+		try (OutputStream out = new FileOutputStream(file)) {
+			for (int i = 0; i < bytes.length; i += BGZF_BLOCK_SIZE) {
+				writeBGZFBlock(out, bytes, i, Math.min(BGZF_BLOCK_SIZE, bytes.length - i));
+			}
+			writeBGZFBlock(out, bytes, 0, 0);
+		}
+	}
+
+	void writeBGZFBlock(OutputStream out, byte [] bytes, int iStart, int nLength) throws IOException {
+		Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+		deflater.setInput(bytes, iStart, nLength);
+		deflater.finish();
+		byte [] data = new byte[nLength + 1024];
+		int nData = 0;
+		while (!deflater.finished()) {
+			nData += deflater.deflate(data, nData, data.length - nData);
+		}
+		deflater.end();
+		CRC32 crc = new CRC32();
+		crc.update(bytes, iStart, nLength);
+		int nBlockSize = 18 + nData + 8;
+		byte [] header = {0x1f, (byte) 0x8b, 8, 4, 0, 0, 0, 0, 0, (byte) 0xff, 6, 0, 'B', 'C', 2, 0,
+				(byte) ((nBlockSize - 1) & 0xff), (byte) ((nBlockSize - 1) >> 8)};
+		out.write(header);
+		out.write(data, 0, nData);
+		writeInt(out, (int) crc.getValue());
+		writeInt(out, nLength);
+	}
+
+	void writeInt(OutputStream out, int n) throws IOException {
+		out.write(n & 0xff);
+		out.write((n >> 8) & 0xff);
+		out.write((n >> 16) & 0xff);
+		out.write((n >> 24) & 0xff);
+	}
+
+}
@@ -0,0 +1,189 @@
+package test.viz;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Vector;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import viz.Node;
+import viz.TreeFileParser;
+import viz.ccd.AbstractCCD;
+import viz.ccd.CCD0;
+import viz.ccd.CCD1;
+import viz.ccd.CCDGraphFile;
+import viz.ccd.Clade;
+import viz.ccd.CladePartition;
+import viz.ccd.HeightSettingStrategy;
+import viz.ccd.Tree;
+
+public class CCDGraphFileTest {
+	final static String KEY = "examples/ape.trees:0";
+
+	List<Tree> m_trees;
+	int m_nNrOfLabels;
+	File m_file;
+
+	@Before
+	public void setUp() throws Exception {
+		Vector<String> sLabels = new Vector<String>();
+		TreeFileParser parser = new TreeFileParser(sLabels, new Vector<Float>(), new Vector<Float>(), 0);
+		Node [] trees = parser.parseFile("examples/ape.trees");
+		m_trees = new ArrayList<Tree>();
+		for (Node tree : trees) {
+			m_trees.add(new Tree(tree));
+		}
+		m_nNrOfLabels = sLabels.size();
+		m_file = File.createTempFile("ccdgraph", ".bin");
+	}
+
+	@After
+	public void tearDown() {
+		m_file.delete();
+	}
+
+	@Test
+	public void testCCD0Unexpanded() throws Exception {
+		CCD0 ccd = new CCD0(m_nNrOfLabels, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		// written before anything triggers the expand step
+		CCDGraphFile.write(ccd, KEY, m_file);
+		AbstractCCD ccd2 = CCDGraphFile.read(m_file, KEY, m_trees.get(0));
+		assertNotNull(ccd2);
+		assertSame(CCD0.class, ccd2.getClass());
+		assertEqualCCDs(ccd, ccd2);
+	}
+
+	@Test
+	public void testCCD0Expanded() throws Exception {
+		CCD0 ccd = new CCD0(m_nNrOfLabels, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		ccd.initialize();
+		CCDGraphFile.write(ccd, KEY, m_file);
+		AbstractCCD ccd2 = CCDGraphFile.read(m_file, KEY, m_trees.get(0));
+		assertNotNull(ccd2);
+		assertSame(CCD0.class, ccd2.getClass());
+		assertEquals(ccd.getNumberOfCladePartitions(), ccd2.getNumberOfCladePartitions());
+		assertEqualCCDs(ccd, ccd2);
+	}
+
+	@Test
+	public void testCCD0ExpandedWithNewPartitions() throws Exception {
+		// on the few taxa of ape.trees expansion adds nothing, so use random trees on more taxa
+		Random random = new Random(42);
+		List<Tree> trees = new ArrayList<Tree>();
+		for (int i = 0; i < 300; i++) {
+			trees.add(new Tree(CladifyInParallelTest.randomTree(random, 12)));
+		}
+		CCD0 ccd = new CCD0(12, false);
+		for (Tree tree : trees) {
+			ccd.addTree(tree);
+		}
+		int nPartitions = ccd.getNumberOfCladePartitions();
+		ccd.initialize();
+		assertTrue(ccd.getNumberOfCladePartitions() > nPartitions);
+
+		CCDGraphFile.write(ccd, KEY, m_file);
+		AbstractCCD ccd2 = CCDGraphFile.read(m_file, KEY, trees.get(0));
+		assertNotNull(ccd2);
+		assertSame(CCD0.class, ccd2.getClass());
+		assertEqualCCDs(ccd, ccd2);
+		assertEqualClades(ccd.getRootClade(), ccd2.getRootClade(), new IdentityHashMap<Clade, Clade>());
+
+		// writing the restored graph again gives the same file, so partition heights survive as well
+		File file2 = File.createTempFile("ccdgraph", ".bin");
+		try {
+			CCDGraphFile.write(ccd2, KEY, file2);
+			assertArrayEquals(Files.readAllBytes(m_file.toPath()), Files.readAllBytes(file2.toPath()));
+		} finally {
+			file2.delete();
+		}
+	}
+
+	@Test
+	public void testCCD1() throws Exception {
+		CCD1 ccd = new CCD1(m_nNrOfLabels, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		CCDGraphFile.write(ccd, KEY, m_file);
+		AbstractCCD ccd2 = CCDGraphFile.read(m_file, KEY, m_trees.get(0));
+		assertNotNull(ccd2);
+		assertSame(CCD1.class, ccd2.getClass());
+		assertEqualCCDs(ccd, ccd2);
+	}
+
+	@Test
+	public void testWrongKey() throws Exception {
+		CCD1 ccd = new CCD1(m_nNrOfLabels, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		CCDGraphFile.write(ccd, KEY, m_file);
+		assertNull(CCDGraphFile.read(m_file, KEY + "0", m_trees.get(0)));
+	}
+
+	void assertEqualCCDs(AbstractCCD ccd, AbstractCCD ccd2) {
+		assertEquals(ccd.getNumberOfClades(), ccd2.getNumberOfClades());
+		assertEquals(ccd.getNumberOfCladePartitions(), ccd2.getNumberOfCladePartitions());
+		assertEquals(ccd.getEntropy(), ccd2.getEntropy(), 1e-10);
+		assertEquals(ccd.getMaxLogTreeProbability(), ccd2.getMaxLogTreeProbability(), 1e-10);
+		String sMAP = ccd.getMAPTree(HeightSettingStrategy.MeanOccurredHeights, null).toString();
+		String sMAP2 = ccd2.getMAPTree(HeightSettingStrategy.MeanOccurredHeights, null).toString();
+		assertEquals(sMAP, sMAP2);
+	}
+
+	/** walk both graphs from the root and compare counts, heights and CCPs of clades and partitions **/
+	void assertEqualClades(Clade clade, Clade clade2, Map<Clade, Clade> visited) {
+		if (visited.containsKey(clade)) {
+			assertSame(visited.get(clade), clade2);
+			return;
+		}
+		visited.put(clade, clade2);
+		assertEquals(clade.getCladeInBits(), clade2.getCladeInBits());
+		assertEquals(clade.getNumberOfOccurrences(), clade2.getNumberOfOccurrences());
+		assertEquals(clade.getMeanOccurredHeight(), clade2.getMeanOccurredHeight(), 0);
+		assertEquals(clade.getNumberOfPartitions(), clade2.getNumberOfPartitions());
+		for (CladePartition partition : clade.getPartitions()) {
+			Clade [] children = partition.getChildClades();
+			CladePartition partition2 = clade2.getCladePartition(
+					findChild(clade2, children[0]), findChild(clade2, children[1]));
+			assertNotNull(partition2);
+			assertEquals(partition.getNumberOfOccurrences(), partition2.getNumberOfOccurrences());
+			assertEquals(partition.getCCP(), partition2.getCCP(), 1e-12);
+			Clade [] children2 = partition2.getChildClades();
+			for (int k = 0; k < 2; k++) {
+				assertEqualClades(children[k], children2[k].equals(children[k].getCladeInBits()) ? children2[k] : children2[1 - k], visited);
+			}
+		}
+	}
+
+	/** child clade of the given parent with the same taxa as the given clade **/
+	Clade findChild(Clade parent, Clade child) {
+		for (Clade clade : parent.getChildClades()) {
+			if (clade.equals(child.getCladeInBits())) {
+				return clade;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,152 @@
+package test.viz;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import viz.Node;
+import viz.ccd.AbstractCCD;
+import viz.ccd.CCD0;
+import viz.ccd.CCD1;
+import viz.ccd.CCD2;
+import viz.ccd.Clade;
+import viz.ccd.CladePartition;
+import viz.ccd.Tree;
+
+/** CCD graphs built from batches of trees in parallel should be identical to the ones built tree by tree **/
+public class CladifyInParallelTest {
+	final static int TAXA = 10;
+	/** several batches of at least 250 trees **/
+	final static int TREES = 1100;
+
+	List<Tree> m_trees;
+
+	@Before
+	public void setUp() throws Exception {
+		Random random = new Random(123);
+		m_trees = new ArrayList<Tree>();
+		for (int i = 0; i < TREES; i++) {
+			m_trees.add(new Tree(randomTree(random, TAXA)));
+		}
+	}
+
+	@Test
+	public void testCCD0() throws Exception {
+		CCD0 ccd = new CCD0(TAXA, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		CCD0 parallel = new CCD0(TAXA, false) {
+			{
+				setNumBaseTrees(m_trees.size());
+				cladifyTreesInParallel(m_trees);
+			}
+		};
+		assertEqualGraphs(ccd, parallel);
+	}
+
+	@Test
+	public void testCCD1() throws Exception {
+		CCD1 ccd = new CCD1(TAXA, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		CCD1 parallel = new CCD1(TAXA, false) {
+			{
+				setNumBaseTrees(m_trees.size());
+				cladifyTreesInParallel(m_trees);
+			}
+		};
+		assertEqualGraphs(ccd, parallel);
+	}
+
+	@Test
+	public void testCCD2() throws Exception {
+		CCD2 ccd = new CCD2(TAXA, false);
+		for (Tree tree : m_trees) {
+			ccd.addTree(tree);
+		}
+		CCD2 parallel = new CCD2(TAXA, false) {
+			{
+				setNumBaseTrees(m_trees.size());
+				cladifyTreesInParallel(m_trees);
+			}
+		};
+		assertEqualGraphs(ccd, parallel);
+	}
+
+	/** walk both graphs from the root, with partitions in graph order, and compare them **/
+	void assertEqualGraphs(AbstractCCD ccd, AbstractCCD parallel) {
+		assertEquals(ccd.getNumberOfClades(), parallel.getNumberOfClades());
+		assertEquals(ccd.getNumberOfCladePartitions(), parallel.getNumberOfCladePartitions());
+		Map<Clade, Clade> visited = new IdentityHashMap<Clade, Clade>();
+		assertEqualClades(ccd.getRootClade(), parallel.getRootClade(), visited);
+		assertEquals(ccd.getEntropyLewis(), parallel.getEntropyLewis(), 0);
+		assertEquals(ccd.getMaxLogTreeProbability(), parallel.getMaxLogTreeProbability(), 0);
+	}
+
+	void assertEqualClades(Clade clade, Clade other, Map<Clade, Clade> visited) {
+		Clade visitedOther = visited.get(clade);
+		if (visitedOther != null) {
+			assertTrue(visitedOther == other);
+			return;
+		}
+		visited.put(clade, other);
+		assertEquals(clade.getCladeInBits(), other.getCladeInBits());
+		assertEquals(clade.getNumberOfOccurrences(), other.getNumberOfOccurrences());
+		// bit-identical mean heights
+		assertEquals(clade.getMeanOccurredHeight(), other.getMeanOccurredHeight(), 0);
+		List<CladePartition> partitions = clade.getPartitions();
+		List<CladePartition> otherPartitions = other.getPartitions();
+		assertEquals(partitions.size(), otherPartitions.size());
+		for (int i = 0; i < partitions.size(); i++) {
+			CladePartition partition = partitions.get(i);
+			CladePartition otherPartition = otherPartitions.get(i);
+			assertEquals(partition.getNumberOfOccurrences(), otherPartition.getNumberOfOccurrences());
+			assertEquals(partition.getCCP(), otherPartition.getCCP(), 0);
+			for (int k = 0; k < 2; k++) {
+				assertEqualClades(partition.getChildClades()[k], otherPartition.getChildClades()[k], visited);
+			}
+		}
+	}
+
+	/** random tree on nTaxa taxa, joining random pairs of subtrees at increasing heights **/
+	static Node randomTree(Random random, int nTaxa) {
+		List<Node> nodes = new ArrayList<Node>();
+		for (int i = 0; i < nTaxa; i++) {
+			Node leaf = new Node();
+			leaf.m_iLabel = i;
+			nodes.add(leaf);
+		}
+		double fHeight = 0;
+		while (nodes.size() > 1) {
+			// prefer joining neighbours, so clades are shared between trees
+			int i = random.nextInt(nodes.size() - 1);
+			int j = (random.nextInt(4) == 0) ? random.nextInt(nodes.size()) : i + 1;
+			if (i == j) {
+				j = i + 1;
+			}
+			Node left = nodes.get(Math.min(i, j));
+			Node right = nodes.get(Math.max(i, j));
+			Node parent = new Node();
+			parent.m_left = left;
+			parent.m_right = right;
+			left.setParent(parent);
+			right.setParent(parent);
+			fHeight += random.nextDouble();
+			parent.setHeight(fHeight);
+			nodes.remove(right);
+			nodes.set(nodes.indexOf(left), parent);
+		}
+		return nodes.get(0);
+	}
+
+}
@@ -0,0 +1,522 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package viz;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary representation of a tree set, so that large tree files only need
+ * to be parsed once. Convert a tree file with
+ *
+ * java -cp DensiTree.jar viz.BinaryTreeSet file.trees [file.dtb]
+ *
+ * and load the .dtb file like any other tree file: TreeFileParser recognises
+ * the format by its magic bytes.
+ *
+ * Layout of the file:
+ * magic "DTBT", version
+ * taxa table: nr of taxa, labels, optional latitude/longitude columns
+ * chunks of CHUNK_SIZE trees, each consisting of three deflated blocks:
+ *   topology (per tree nr of nodes, then parent index and label per node in post-order)
+ *   branch lengths (float per node)
+ *   metadata (per node length of UTF-8 string, -1 for none, followed by the bytes)
+ * chunk index: for every chunk file offset, length and nr of trees
+ * trailer: total nr of trees, nr of chunks, offset of chunk index
+ *
+ * Chunks are memory mapped and decoded in parallel when reading.
+ */
+public class BinaryTreeSet {
+	final static byte [] MAGIC = {'D', 'T', 'B', 'T'};
+	final static int VERSION = 1;
+	final static int CHUNK_SIZE = 1000;
+	/** size of trailer at the end of the file **/
+	final static int TRAILER_SIZE = 4 + 4 + 8;
+
+	/** file extension used for binary tree sets **/
+	public final static String EXTENSION = "dtb";
+
+	/** check whether the file starts with the magic bytes of the binary format **/
+	public static boolean isBinaryTreeSet(File file) {
+		if (!file.isFile() || file.length() < MAGIC.length + TRAILER_SIZE) {
+			return false;
+		}
+		try (FileInputStream in = new FileInputStream(file)) {
+			byte [] magic = new byte[MAGIC.length];
+			if (in.read(magic) != magic.length) {
+				return false;
+			}
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (magic[i] != MAGIC[i]) {
+					return false;
+				}
+			}
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * write tree set to sFile in binary format
+	 * @param trees tree set, labels of leaf nodes are indices into sLabels
+	 * @param sLabels taxon labels
+	 * @param fLatitude latitudes of taxa, or null or empty if there is no geographic information
+	 * @param fLongitude longitudes of taxa
+	 * @param fGeoBounds minimum latitude, maximum latitude, minimum longitude, maximum longitude
+	 */
+	public static void write(Node [] trees, List<String> sLabels, List<Float> fLatitude, List<Float> fLongitude, float [] fGeoBounds, String sFile) throws IOException {
+		try (Writer writer = new Writer(sLabels, fLatitude, fLongitude, fGeoBounds, sFile)) {
+			for (Node tree : trees) {
+				writer.add(tree);
+			}
+		}
+	} // write
+
+	/**
+	 * writes a tree set in binary format one tree at a time, so only 
+	 * the trees of the current chunk need to be kept in memory.
+	 * The taxa table is written when the writer is created, the chunk 
+	 * index and trailer when it is closed.
+	 */
+	public static class Writer implements Closeable {
+		DataOutputStream m_out;
+		long m_nOffset;
+		/** file offset, length and nr of trees of every chunk written so far **/
+		List<long[]> m_index = new ArrayList<>();
+		Deflater m_deflater = new Deflater(Deflater.BEST_SPEED);
+		int m_nTrees = 0;
+
+		/** trees of current chunk **/
+		int m_nChunkTrees = 0;
+		ByteArrayOutputStream m_topologyBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream m_lengthBytes = new ByteArrayOutputStream();
+		ByteArrayOutputStream m_metaDataBytes = new ByteArrayOutputStream();
+		DataOutputStream m_topology = new DataOutputStream(m_topologyBytes);
+		DataOutputStream m_lengths = new DataOutputStream(m_lengthBytes);
+		DataOutputStream m_metaData = new DataOutputStream(m_metaDataBytes);
+		List<Node> m_nodes = new ArrayList<>();
+
+		/** arguments as for BinaryTreeSet.write **/
+		public Writer(List<String> sLabels, List<Float> fLatitude, List<Float> fLongitude, float [] fGeoBounds, String sFile) throws IOException {
+			m_out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(sFile), 1 << 16));
+			m_out.write(MAGIC);
+			m_out.writeInt(VERSION);
+			m_out.writeInt(sLabels.size());
+			for (String sLabel : sLabels) {
+				m_out.writeUTF(sLabel);
+			}
+			boolean bHasGeo = fLatitude != null && fLatitude.size() > 0;
+			m_out.writeBoolean(bHasGeo);
+			if (bHasGeo) {
+				for (float f : fGeoBounds) {
+					m_out.writeFloat(f);
+				}
+				for (int i = 0; i < sLabels.size(); i++) {
+					m_out.writeFloat(i < fLatitude.size() ? fLatitude.get(i) : 0f);
+					m_out.writeFloat(i < fLongitude.size() ? fLongitude.get(i) : 0f);
+				}
+			}
+			m_nOffset = m_out.size();
+		}
+
+		/** add tree to the current chunk, and write the chunk once it is full **/
+		public void add(Node tree) throws IOException {
+			m_nodes.clear();
+			collectPostOrder(tree, m_nodes);
+			m_topology.writeInt(m_nodes.size());
+			for (int j = 0; j < m_nodes.size(); j++) {
+				Node node = m_nodes.get(j);
+				m_topology.writeInt(node.isRoot() ? -1 : (Integer) node.getParent().m_data);
+				m_topology.writeInt(node.m_iLabel);
+				m_lengths.writeFloat(node.m_fLength);
+				String sMetaData = node.getMetaData();
+				if (sMetaData == null) {
+					m_metaData.writeInt(-1);
+				} else {
+					byte [] bytes = sMetaData.getBytes(StandardCharsets.UTF_8);
+					m_metaData.writeInt(bytes.length);
+					m_metaData.write(bytes);
+				}
+			}
+			for (Node node : m_nodes) {
+				node.m_data = null;
+			}
+			m_nChunkTrees++;
+			m_nTrees++;
+			if (m_nChunkTrees == CHUNK_SIZE) {
+				flushChunk();
+			}
+		}
+
+		/** nr of trees added so far **/
+		public int getTreeCount() {
+			return m_nTrees;
+		}
+
+		void flushChunk() throws IOException {
+			long nChunkStart = m_nOffset;
+			m_out.writeInt(m_nChunkTrees);
+			m_nOffset += 4;
+			m_nOffset += writeBlock(m_out, m_topologyBytes.toByteArray(), m_deflater);
+			m_nOffset += writeBlock(m_out, m_lengthBytes.toByteArray(), m_deflater);
+			m_nOffset += writeBlock(m_out, m_metaDataBytes.toByteArray(), m_deflater);
+			m_index.add(new long[]{nChunkStart, m_nOffset - nChunkStart, m_nChunkTrees});
+			m_topologyBytes.reset();
+			m_lengthBytes.reset();
+			m_metaDataBytes.reset();
+			m_nChunkTrees = 0;
+		}
+
+		/** write last partial chunk, chunk index and trailer **/
+		@Override
+		public void close() throws IOException {
+			if (m_out == null) {
+				return;
+			}
+			try {
+				if (m_nChunkTrees > 0) {
+					flushChunk();
+				}
+				long nIndexOffset = m_nOffset;
+				for (long [] chunk : m_index) {
+					m_out.writeLong(chunk[0]);
+					m_out.writeLong(chunk[1]);
+					m_out.writeInt((int) chunk[2]);
+				}
+				m_out.writeInt(m_nTrees);
+				m_out.writeInt(m_index.size());
+				m_out.writeLong(nIndexOffset);
+			} finally {
+				m_deflater.end();
+				m_out.close();
+				m_out = null;
+			}
+		}
+	} // class Writer
+
+	/** label nodes in post-order and store them in list, node nr is kept in m_data **/
+	private static void collectPostOrder(Node node, List<Node> nodes) {
+		if (node.m_left != null) {
+			collectPostOrder(node.m_left, nodes);
+		}
+		if (node.m_right != null) {
+			collectPostOrder(node.m_right, nodes);
+		}
+		node.m_data = nodes.size();
+		nodes.add(node);
+	}
+
+	private static int writeBlock(DataOutputStream out, byte [] bytes, Deflater deflater) throws IOException {
+		deflater.reset();
+		deflater.setInput(bytes);
+		deflater.finish();
+		ByteArrayOutputStream compressed = new ByteArrayOutputStream(bytes.length / 4 + 16);
+		byte [] buf = new byte[1 << 16];
+		while (!deflater.finished()) {
+			int n = deflater.deflate(buf);
+			compressed.write(buf, 0, n);
+		}
+		out.writeInt(bytes.length);
+		out.writeInt(compressed.size());
+		compressed.writeTo(out);
+		return 8 + compressed.size();
+	}
+
+
+	/**
+	 * read tree set in binary format, using burn-in, thinning and labels of the parser.
+	 * If the parser already has labels (as for mirror sets), taxa are mapped onto these labels.
+	 */
+	static Node [] read(String sFile, TreeFileParser parser) throws Exception {
+		try (RandomAccessFile raf = new RandomAccessFile(sFile, "r")) {
+			FileChannel channel = raf.getChannel();
+			long nFileSize = channel.size();
+
+			// trailer
+			ByteBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, nFileSize - TRAILER_SIZE, TRAILER_SIZE);
+			int nTrees = trailer.getInt();
+			int nChunks = trailer.getInt();
+			long nIndexOffset = trailer.getLong();
+
+			// header
+			MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(nIndexOffset, Integer.MAX_VALUE));
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (header.get() != MAGIC[i]) {
+					throw new IOException("Not a binary tree set: " + sFile);
+				}
+			}
+			int nVersion = header.getInt();
+			if (nVersion != VERSION) {
+				throw new IOException("Unsupported binary tree set version " + nVersion + " in " + sFile);
+			}
+			int nLabels = header.getInt();
+			String [] sLabels = new String[nLabels];
+			for (int i = 0; i < nLabels; i++) {
+				sLabels[i] = readUTF(header);
+			}
+			boolean bHasGeo = header.get() != 0;
+			float [] fGeoBounds = new float[4];
+			float [] fLatitude = null, fLongitude = null;
+			if (bHasGeo) {
+				for (int i = 0; i < 4; i++) {
+					fGeoBounds[i] = header.getFloat();
+				}
+				fLatitude = new float[nLabels];
+				fLongitude = new float[nLabels];
+				for (int i = 0; i < nLabels; i++) {
+					fLatitude[i] = header.getFloat();
+					fLongitude[i] = header.getFloat();
+				}
+			}
+
+			// map taxa onto labels
+			int [] iLabelMap = new int[nLabels];
+			if (parser.m_sLabels.size() == 0) {
+				for (int i = 0; i < nLabels; i++) {
+					parser.m_sLabels.add(sLabels[i]);
+					iLabelMap[i] = i;
+				}
+				if (bHasGeo) {
+					parser.m_fMinLat = fGeoBounds[0];
+					parser.m_fMaxLat = fGeoBounds[1];
+					parser.m_fMinLong = fGeoBounds[2];
+					parser.m_fMaxLong = fGeoBounds[3];
+					if (parser.m_fLatitude != null) {
+						for (int i = 0; i < nLabels; i++) {
+							parser.m_fLatitude.add(fLatitude[i]);
+							parser.m_fLongitude.add(fLongitude[i]);
+						}
+					}
+				}
+			} else {
+				parser.m_labelTable.sync(parser.m_sLabels);
+				for (int i = 0; i < nLabels; i++) {
+					iLabelMap[i] = parser.m_labelTable.indexOf(sLabels[i]);
+					if (iLabelMap[i] < 0) {
+						throw new IllegalArgumentException("Taxon " + sLabels[i] + " found in mirror set that was not in original set");
+					}
+				}
+			}
+			parser.m_nNrOfLabels = parser.m_sLabels.size();
+			parser.m_iLabelMap = iLabelMap;
+
+			// burn in is known exactly, since the nr of trees is stored
+			int nBurnIn = parser.m_nBurnIn;
+			if (parser.m_bBurnInIsPercentage) {
+				nBurnIn = (int) ((long) parser.m_nBurnIn * nTrees / 100);
+			}
+			if (nBurnIn >= nTrees && nTrees > 0) {
+				System.err.println("WARNING: Burn-in too large, resetting burn-in to default");
+				parser.m_nBurnIn = parser.m_bBurnInIsPercentage ? 10 : 0;
+				return read(sFile, parser);
+			}
+
+			// chunk index
+			ByteBuffer index = channel.map(FileChannel.MapMode.READ_ONLY, nIndexOffset, nChunks * 20L);
+			ExecutorService exec = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+			try {
+				List<Future<Node[]>> futures = new ArrayList<>();
+				int iFirstTree = 0;
+				int iThin = Math.max(parser.m_nThin, 1);
+				for (int i = 0; i < nChunks; i++) {
+					final long nChunkOffset = index.getLong();
+					final long nChunkLength = index.getLong();
+					final int nChunkTrees = index.getInt();
+					final int iChunkStart = iFirstTree;
+					iFirstTree += nChunkTrees;
+					if (iFirstTree <= nBurnIn) {
+						// all trees in chunk are burn-in
+						continue;
+					}
+					final int nChunkBurnIn = nBurnIn;
+					final MappedByteBuffer chunk = channel.map(FileChannel.MapMode.READ_ONLY, nChunkOffset, nChunkLength);
+					futures.add(exec.submit(() -> decodeChunk(chunk, iChunkStart, nChunkBurnIn, iThin, iLabelMap, parser.m_nNrOfLabels)));
+				}
+				List<Node> trees = new ArrayList<>();
+				for (Future<Node[]> future : futures) {
+					for (Node tree : future.get()) {
+						trees.add(tree);
+					}
+				}
+				return trees.toArray(new Node[1]);
+			} finally {
+				exec.shutdown();
+			}
+		}
+	} // read
+
+	/** decode trees in a chunk, skipping those that are burn-in or thinned out **/
+	private static Node [] decodeChunk(ByteBuffer chunk, int iChunkStart, int nBurnIn, int nThin, int [] iLabelMap, int nLabels) throws DataFormatException {
+		boolean bRelabel = !isIdentity(iLabelMap);
+		int nTrees = chunk.getInt();
+		ByteBuffer topology = inflate(chunk);
+		ByteBuffer lengths = inflate(chunk);
+		ByteBuffer metaData = inflate(chunk);
+		List<Node> trees = new ArrayList<>();
+		for (int k = 0; k < nTrees; k++) {
+			int iTree = iChunkStart + k;
+			int nNodes = topology.getInt();
+			// same thinning as TreeFileParser: keep every nThin-th tree after burn-in
+			boolean bKeep = iTree >= nBurnIn && (iTree - nBurnIn) % nThin == nThin - 1;
+			if (!bKeep) {
+				// skip tree
+				topology.position(topology.position() + nNodes * 8);
+				lengths.position(lengths.position() + nNodes * 4);
+				for (int i = 0; i < nNodes; i++) {
+					int n = metaData.getInt();
+					if (n > 0) {
+						metaData.position(metaData.position() + n);
+					}
+				}
+				continue;
+			}
+			Node [] nodes = new Node[nNodes];
+			int [] iParent = new int[nNodes];
+			for (int i = 0; i < nNodes; i++) {
+				Node node = new Node();
+				iParent[i] = topology.getInt();
+				int iLabel = topology.getInt();
+				node.m_iLabel = iLabel < iLabelMap.length ? iLabelMap[iLabel] : iLabel;
+				node.m_fLength = lengths.getFloat();
+				int n = metaData.getInt();
+				if (n >= 0) {
+					node.setMetaData(new String(metaData.array(), metaData.position(), n, StandardCharsets.UTF_8));
+					metaData.position(metaData.position() + n);
+				}
+				nodes[i] = node;
+			}
+			Node root = null;
+			for (int i = 0; i < nNodes; i++) {
+				if (iParent[i] < 0) {
+					root = nodes[i];
+				} else {
+					Node parent = nodes[iParent[i]];
+					if (parent.m_left == null) {
+						parent.m_left = nodes[i];
+					} else {
+						parent.m_right = nodes[i];
+					}
+					nodes[i].m_Parent = parent;
+				}
+			}
+			if (bRelabel) {
+				// taxa were mapped onto different labels, so restore internal node labels and order
+				root.sort();
+				root.labelInternalNodes(nLabels);
+			}
+			trees.add(root);
+		}
+		return trees.toArray(new Node[0]);
+	} // decodeChunk
+
+	private static boolean isIdentity(int [] iLabelMap) {
+		for (int i = 0; i < iLabelMap.length; i++) {
+			if (iLabelMap[i] != i) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static ByteBuffer inflate(ByteBuffer chunk) throws DataFormatException {
+		int nRaw = chunk.getInt();
+		int nCompressed = chunk.getInt();
+		byte [] compressed = new byte[nCompressed];
+		chunk.get(compressed);
+		Inflater inflater = new Inflater();
+		inflater.setInput(compressed);
+		byte [] raw = new byte[nRaw];
+		int n = 0;
+		while (n < nRaw && !inflater.finished()) {
+			n += inflater.inflate(raw, n, nRaw - n);
+		}
+		inflater.end();
+		return ByteBuffer.wrap(raw);
+	}
+
+	private static String readUTF(ByteBuffer buf) {
+		int n = buf.getShort() & 0xffff;
+		byte [] bytes = new byte[n];
+		buf.get(bytes);
+		// labels are written with writeUTF, which is standard UTF-8 for all but the zero character
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+
+	/** convert tree file into binary tree set **/
+	public static void main(String[] args) throws Exception {
+		if (args.length < 1) {
+			System.err.println("Usage: java -cp DensiTree.jar viz.BinaryTreeSet <tree file> [<output file>]");
+			System.err.println("Converts a Nexus or Newick tree file into a binary tree set that loads faster in DensiTree.");
+			System.err.println("Burn-in is not removed, so it can still be set when loading the binary tree set.");
+			return;
+		}
+		String sIn = args[0];
+		String sOut = args.length > 1 ? args[1] : (sIn.replaceAll("\\.[^.\\\\/]*$", "") + "." + EXTENSION);
+
+		Vector<String> sLabels = new Vector<>();
+		Vector<Float> fLongitude = new Vector<>();
+		Vector<Float> fLatitude = new Vector<>();
+		TreeFileParser parser = new TreeFileParser(sLabels, fLongitude, fLatitude, 0);
+		long nStart = System.currentTimeMillis();
+		// trees are passed on to the writer as they are parsed, so the tree set 
+		// does not need to fit in memory. The taxa table is only complete 
+		// once the first tree is parsed, so the writer is created then.
+		Writer [] writer = new Writer[1];
+		try {
+			parser.parseFile(sIn, tree -> {
+				if (writer[0] == null) {
+					writer[0] = new Writer(sLabels, fLatitude, fLongitude, 
+							new float[]{parser.m_fMinLat, parser.m_fMaxLat, parser.m_fMinLong, parser.m_fMaxLong}, sOut);
+				}
+				writer[0].add(tree);
+			});
+			if (writer[0] == null) {
+				writer[0] = new Writer(sLabels, fLatitude, fLongitude, 
+						new float[]{parser.m_fMinLat, parser.m_fMaxLat, parser.m_fMinLong, parser.m_fMaxLong}, sOut);
+			}
+		} finally {
+			if (writer[0] != null) {
+				writer[0].close();
+			}
+		}
+		System.err.println();
+		System.err.println("Converted " + writer[0].getTreeCount() + " trees with " + sLabels.size() + " taxa in " + (System.currentTimeMillis() - nStart) + " ms");
+		System.err.println("Written to " + sOut + " (" + new File(sOut).length() + " bytes)");
+	} // main
+
+} // class BinaryTreeSet
@@ -6,6 +6,7 @@ import java.awt.Color;
 import java.awt.Font;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.text.DecimalFormat;
@@ -71,6 +72,10 @@ public class CladeDrawer {
 		formatter.setMaximumFractionDigits(m_nSignificantDigits);
 		DecimalFormat supportFormatter = new DecimalFormat(format);//"##.#");
 		Set<Integer> m_cladeSelection = treeData.getCladeSelection();
+		// only draw clades in the visible part of the panel; reversed text is drawn in another transform, so cannot be culled
+		Rectangle clip = reverseText ? null : g.getClipBounds();
+		int nMargin = 12 * g.getFontMetrics().charWidth('0') + g.getFont().getSize();
+		boolean bVisible;
 		for (int i = 0/* m_dt.m_sLabels.size() */; i < treeData.m_cladeHeight.size(); i++) {
 			if (treeData.m_cladeWeight.get(i) > m_dt.m_settings.m_smallestCladeSupport && (
 					(m_dt.m_settings.m_Xmode == 1 && (treeData.m_clades.get(i).length > 1 || m_dt.m_bLeafCladeSelection)) 
@@ -78,35 +83,38 @@ public class CladeDrawer {
 				if (!m_dt.m_treeDrawer.m_bRootAtTop) {
 					x = (int) ((treeData.m_cladeHeight.get(i) - m_dt.m_fTreeOffset) * fScaleX * m_dt.m_fTreeScale);
 					y = (int) (treeData.m_cladePosition[i] * fScaleY);
-					if (m_bDrawMean && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					bVisible = isVisible(clip, x, y, 0, 0, nMargin);
+					if (m_bDrawMean && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						g.drawLine(x, y- 3, x, y+6);
 					}
-					if (m_bTextMean && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					if (m_bTextMean && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						drawString(g, formatter.format((m_dt.m_gridDrawer.m_fGridOrigin + m_dt.m_fHeight - treeData.m_cladeHeight.get(i)) * m_dt.m_fUserScale), x, y - 1, reverseText);
 					}
-					if (m_bTextSupport && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					if (m_bTextSupport && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						drawString(g, supportFormatter.format(100*treeData.m_cladeWeight.get(i)), x, y + g.getFont().getSize() + 1, reverseText);
 					}
 				} else {
 					x = (int) (treeData.m_cladePosition[i] * fScaleX);
 					y = /*nHeight -*/ (int) ((treeData.m_cladeHeight.get(i) - m_dt.m_fTreeOffset) * fScaleY * m_dt.m_fTreeScale);
-					if (m_bDrawMean && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					bVisible = isVisible(clip, x, y, 0, 0, nMargin);
+					if (m_bDrawMean && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						g.drawLine(x -3, y, x + 3, y);
 					}
-					if (m_bTextMean && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					if (m_bTextMean && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						drawString(g, formatter.format((m_dt.m_gridDrawer.m_fGridOrigin + m_dt.m_fHeight - treeData.m_cladeHeight.get(i)) * m_dt.m_fUserScale), x, y - 1, reverseText);
 					}
-					if (m_bTextSupport && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+					if (m_bTextSupport && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 						drawString(g, supportFormatter.format(100*treeData.m_cladeWeight.get(i)), x, y + g.getFont().getSize() + 1, reverseText);
 					}
 				}
 			} else {
 				x = -100;
 				y = -100;
+				bVisible = false;
 			}
 			w = (int)(10 +  treeData.m_cladeWeight.get(i)*10);
 			h = w;
-			if (m_bDrawSupport && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+			if (m_bDrawSupport && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 				g.drawOval(x- w / 2, y- h / 2, w, h);
 			}
 			//g.drawImage(m_dt.m_rotate, x - w / 2, y - h / 2, x + h / 2, y + w / 2, 0, 0, h, w, null);
@@ -123,7 +131,8 @@ public class CladeDrawer {
 				//y = (int) (m_dt.m_cladePosition[i] * fScaleY);
 				w = - x + (int) ((treeData.m_cladeHeight95HPDup.get(i) - m_dt.m_fTreeOffset) * fScaleX * m_dt.m_fTreeScale);
 				h = 3;
-				if (m_bText95HPD && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+				bVisible = isVisible(clip, x, y, w, h, nMargin);
+				if (m_bText95HPD && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 					drawString(g, formatter.format((treeData.m_cladeHeight95HPDup.get(i) - treeData.m_cladeHeight95HPDdown.get(i)) * m_dt.m_fUserScale), x, y- 1, reverseText);
 				}
 			} else {
@@ -131,11 +140,12 @@ public class CladeDrawer {
 				y = (int) ((treeData.m_cladeHeight95HPDdown.get(i) - m_dt.m_fTreeOffset) * fScaleY * m_dt.m_fTreeScale);
 				w = 3;
 				h = - y + (int) ((treeData.m_cladeHeight95HPDup.get(i) - m_dt.m_fTreeOffset) * fScaleY * m_dt.m_fTreeScale);
-				if (m_bText95HPD && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+				bVisible = isVisible(clip, x, y, w, h, nMargin);
+				if (m_bText95HPD && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 					drawString(g, formatter.format((treeData.m_cladeHeight95HPDup.get(i) - treeData.m_cladeHeight95HPDdown.get(i)) * m_dt.m_fUserScale), x, y- 1, reverseText);
 				}
 			}
-			if (m_bDraw95HPD && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
+			if (m_bDraw95HPD && bVisible && (!m_bSelectedOnly || m_cladeSelection.contains(i))) {
 				g.drawRect(x, y, w, h);
 			}
 			
@@ -163,7 +173,9 @@ public class CladeDrawer {
 				}
 				w = (int)(10 +  treeData.m_cladeWeight.get(i)*10);
 				h = w;
-				g.drawOval(x- w / 2, y- h / 2, w, h);
+				if (isVisible(clip, x - w / 2, y - h / 2, w, h, 2)) {
+					g.drawOval(x- w / 2, y- h / 2, w, h);
+				}
 				
 //				if (m_dt.treeData2 != null) {
 //					TreeData treeData2 = m_dt.treeData2;
@@ -189,6 +201,15 @@ public class CladeDrawer {
 	
 	}
 	
+	/** whether box (x, y, w, h) extended by nMargin on all sides overlaps the clip; w and h may be negative **/
+	private boolean isVisible(Rectangle clip, int x, int y, int w, int h, int nMargin) {
+		if (clip == null) {
+			return true;
+		}
+		return clip.intersects(Math.min(x, x + w) - nMargin, Math.min(y, y + h) - nMargin,
+				Math.abs(w) + 2 * nMargin, Math.abs(h) + 2 * nMargin);
+	}
+
 	void drawString(Graphics g, String str, int x, int y, boolean reverseText) {
 		if (reverseText) {
 			AffineTransform org = ((Graphics2D)g).getTransform();
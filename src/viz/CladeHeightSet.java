@@ -0,0 +1,69 @@
+package viz;
+
+import java.util.Arrays;
+
+/**
+ * Heights of the bottom and top of the branch above a clade, one pair for
+ * every tree containing the clade. Heights are kept in growable primitive
+ * columns, instead of lists of boxed Doubles, since there is a pair for
+ * every node of every tree.
+ **/
+public class CladeHeightSet {
+	double [] m_fBottom;
+	double [] m_fTop;
+	int m_nSize;
+
+	public CladeHeightSet() {
+		m_fBottom = new double[4];
+		m_fTop = new double[4];
+	}
+
+	public void add(double fBottom, double fTop) {
+		if (m_nSize == m_fBottom.length) {
+			int nCapacity = m_nSize + (m_nSize >> 1) + 1;
+			m_fBottom = Arrays.copyOf(m_fBottom, nCapacity);
+			m_fTop = Arrays.copyOf(m_fTop, nCapacity);
+		}
+		m_fBottom[m_nSize] = fBottom;
+		m_fTop[m_nSize] = fTop;
+		m_nSize++;
+	}
+
+	public int size() {
+		return m_nSize;
+	}
+
+	public double getBottom(int i) {
+		return m_fBottom[i];
+	}
+
+	public double getTop(int i) {
+		return m_fTop[i];
+	}
+
+	/** bottom heights in increasing order **/
+	public double [] getSortedBottoms() {
+		double [] fHeights = Arrays.copyOf(m_fBottom, m_nSize);
+		Arrays.sort(fHeights);
+		return fHeights;
+	}
+
+	/** branch lengths, i.e. bottom minus top height, in order of addition **/
+	public float [] getBranchLengths() {
+		float [] fLengths = new float[m_nSize];
+		for (int i = 0; i < m_nSize; i++) {
+			fLengths[i] = (float)(m_fBottom[i] - m_fTop[i]);
+		}
+		return fLengths;
+	}
+
+	/** sum of branch lengths **/
+	public double getBranchLengthSum() {
+		double fSum = 0;
+		for (int i = 0; i < m_nSize; i++) {
+			fSum += m_fBottom[i] - m_fTop[i];
+		}
+		return fSum;
+	}
+
+} // class CladeHeightSet
@@ -239,10 +239,12 @@ public class CladeSetComparisonPanel extends JPanel implements MouseListener {
 		int x = e.getX();
 		int y = e.getY();
 		
+		updateIndex();
+
 		// find closest clade by clade support (red dots)
 		int closestClade = -1;
 		double closestDistance = Integer.MAX_VALUE;
-		for (int i = 0; i < m_dt.m_treeData.m_cladeHeight.size(); i++) {
+		for (int i : m_supportIndex.query(x, y)) {
 			double support1 = m_dt.m_treeData.m_cladeWeight.get(i);
 			int [] clade = m_dt.m_treeData.m_clades.get(i);
 			//Integer j = map.get(Arrays.toString(clade));
@@ -261,7 +263,7 @@ public class CladeSetComparisonPanel extends JPanel implements MouseListener {
 			// find closest clade by clade height (blue dots)
 			double maxHeight = m_dt.m_fHeight;
 //			int [] bestClade = null;
-			for (int i = 0; i < m_dt.m_treeData.m_cladeHeight.size(); i++) {
+			for (int i : m_heightIndex.query(x, y)) {
 				double height1 = 1.0-m_dt.m_treeData.m_cladeHeight.get(i)/maxHeight;
 //				int [] clade = m_dt.m_treeData.m_clades.get(i);
 				//Integer j = map.get(Arrays.toString(clade));
@@ -314,6 +316,55 @@ public class CladeSetComparisonPanel extends JPanel implements MouseListener {
 
 	}
 
+	/**
+	 * Indices of the positions of clades by clade support (red dots) and by clade height (blue dots),
+	 * with boxes around each dot as large as the distance within which a click selects the clade.
+	 * Positions only change when the panel is resized or clades are recalculated, so indices are
+	 * rebuilt only then.
+	 */
+	private ScreenIndex m_supportIndex, m_heightIndex;
+	private int m_nIndexW, m_nIndexH, m_nIndexOff;
+	private float m_fIndexHeight;
+	private Object m_indexCladeHeight, m_indexCladeHeight2, m_indexCladeToIDMap;
+
+	private void updateIndex() {
+		if (m_supportIndex != null && w == m_nIndexW && h == m_nIndexH && off == m_nIndexOff && m_dt.m_fHeight == m_fIndexHeight
+				&& m_dt.m_treeData.m_cladeHeight == m_indexCladeHeight
+				&& m_dt.m_treeData2.m_cladeHeight == m_indexCladeHeight2
+				&& m_dt.m_cladeToIDMap == m_indexCladeToIDMap) {
+			return;
+		}
+		int n = m_dt.m_treeData.m_cladeHeight.size();
+		int [] supportX = new int[n], supportY = new int[n];
+		int [] heightX = new int[n], heightY = new int[n];
+		int [] supportSize = new int[n], heightSize = new int[n];
+		double maxHeight = m_dt.m_fHeight;
+		for (int i = 0; i < n; i++) {
+			int j = m_dt.m_cladeToIDMap[i];
+			// squared distance to red dots has to be below 100
+			double support1 = m_dt.m_treeData.m_cladeWeight.get(i);
+			double support2 = j >= 0 ? m_dt.m_treeData2.m_cladeWeight.get(j) : 0;
+			supportX[i] = (int) Math.floor(off   + (w-2*off) * support1) - 10;
+			supportY[i] = (int) Math.floor(h-off - (h-2*off) * support2) - 10;
+			supportSize[i] = 22;
+			// distance to blue dots as sum of absolute differences has to be below 100
+			double height1 = 1.0-m_dt.m_treeData.m_cladeHeight.get(i)/maxHeight;
+			double height2 = j >= 0 ? 1.0-m_dt.m_treeData2.m_cladeHeight.get(j)/maxHeight : 1.0;
+			heightX[i] = (int) Math.floor(off   + (w-2*off) * height1) - 100;
+			heightY[i] = (int) Math.floor(h-off - (h-2*off) * height2) - 100;
+			heightSize[i] = 202;
+		}
+		m_supportIndex = new ScreenIndex(supportX, supportY, supportSize, supportSize);
+		m_heightIndex = new ScreenIndex(heightX, heightY, heightSize, heightSize);
+		m_nIndexW = w;
+		m_nIndexH = h;
+		m_nIndexOff = off;
+		m_fIndexHeight = m_dt.m_fHeight;
+		m_indexCladeHeight = m_dt.m_treeData.m_cladeHeight;
+		m_indexCladeHeight2 = m_dt.m_treeData2.m_cladeHeight;
+		m_indexCladeToIDMap = m_dt.m_cladeToIDMap;
+	}
+
 //	private void compare(int[] clade, int[] clade2) {
 //		if (clade.length != clade2.length) {
 //			int h = 4;
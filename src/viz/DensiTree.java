@@ -55,6 +55,8 @@ import java.io.*;
 import java.net.URL;
 import java.util.*;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Consumer;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.ZipEntry;
@@ -62,6 +64,7 @@ import java.util.zip.ZipFile;
 
 import javax.imageio.ImageIO;
 import javax.swing.*;
+import javax.swing.Timer;
 import javax.swing.border.EmptyBorder;
 import javax.swing.event.ChangeListener;
 import javax.swing.event.ListSelectionEvent;
@@ -174,6 +177,9 @@ public class DensiTree extends JPanel implements ComponentListener {
 	Rectangle[] m_bLabelRectangle;
 	/** rectangles with geographic locations on screen **/
 	Rectangle[] m_bGeoRectangle;
+	/** indices of label and geographic rectangles for picking, null when a rectangle moved since they were built **/
+	ScreenIndex m_labelIndex;
+	ScreenIndex m_geoIndex;
 	/** selection rectangle drawn through dragging with left mouse button */
 	Rectangle m_nSelectedRect = null;
 
@@ -234,8 +240,10 @@ public class DensiTree extends JPanel implements ComponentListener {
 	/** for storing the PDF file name from CLI **/
 	String m_asPDF = null, m_cladeComparisonAsPDF = null;
 	
-	/** thread for processing meta data **/
-	Thread thread = null;
+	/** runs background work, like processing meta data, drawing and exporting **/
+	public final TaskScheduler m_scheduler = new TaskScheduler();
+	/** last task processing clades, node order and meta data of a tree set, null if none was started **/
+	TaskScheduler.Task m_metaDataTask = null;
 	
 
 	private boolean isExporting = false;
@@ -243,12 +251,21 @@ public class DensiTree extends JPanel implements ComponentListener {
 		return isExporting;
 	}
 
+	/** show the wait cursor; background tasks may call this as well, the cursor is changed on the event dispatch thread **/
 	public void setWaitCursor() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(this::setWaitCursor);
+			return;
+		}
 		if (frame != null && frame.getCursor().getType() != Cursor.WAIT_CURSOR) {
 			frame.setCursor(new Cursor(Cursor.WAIT_CURSOR));
 		}
 	}
 	public void setDefaultCursor() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			SwingUtilities.invokeLater(this::setDefaultCursor);
+			return;
+		}
 		if (frame != null && frame.getCursor().getType() != Cursor.DEFAULT_CURSOR) {
 			frame.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 		}
@@ -258,6 +275,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 	public DensiTree() {
 		m_gridDrawer = new GridDrawer(this);
 		m_cladeDrawer = new CladeDrawer(this);
+		m_scheduler.setProgressListener((task, sMessage) -> SwingUtilities.invokeLater(() -> m_jStatusBar.setText(sMessage)));
 		instances++;
 	}
 
@@ -503,6 +521,9 @@ public class DensiTree extends JPanel implements ComponentListener {
 					} else if (args[i].equals("-singlechild")) {
 						m_settings.m_bAllowSingleChild = Boolean.parseBoolean(args[i + 1]);
 						i += 2;
+					} else if (args[i].equals("-nocache")) {
+						m_settings.m_bUseSessionCache = false;
+						i++;
 					} else if (args[i].equals("-rotatetext")) {
 						m_settings.m_bRotateTextWhenRootAtTop = true;
 						i++;
@@ -576,55 +597,24 @@ public class DensiTree extends JPanel implements ComponentListener {
 				}
 			}
 			if (m_cladeSetComparisonPanel != null && m_cladeSetComparisonPanel.isVisible()) {
-				new Thread() {
-					public void run() {
-						Container c = m_cladeSetComparisonPanel.getParent();
-						while (c == null) {
-							try {
-								Thread.sleep(500);
-							} catch (Exception e) {
-								e.printStackTrace();
+				// split the window evenly once the comparison panel is put in a split pane
+				if (m_cladeSetComparisonPanel.getParent() instanceof JSplitPane) {
+					((JSplitPane) m_cladeSetComparisonPanel.getParent()).setDividerLocation(0.5);
+				} else {
+					m_cladeSetComparisonPanel.addHierarchyListener(new HierarchyListener() {
+						@Override
+						public void hierarchyChanged(HierarchyEvent e) {
+							if ((e.getChangeFlags() & HierarchyEvent.PARENT_CHANGED) != 0
+									&& m_cladeSetComparisonPanel.getParent() instanceof JSplitPane) {
+								m_cladeSetComparisonPanel.removeHierarchyListener(this);
+								((JSplitPane) m_cladeSetComparisonPanel.getParent()).setDividerLocation(0.5);
 							}
-							c = m_cladeSetComparisonPanel.getParent();
-						}
-						if (c instanceof JSplitPane) {
-							((JSplitPane)c).setDividerLocation(0.5);
 						}
-					};
-				}.start();
+					});
+				}
 			}
 			if (m_asPDF != null || m_cladeComparisonAsPDF != null) {
-				new Thread() {
-					@Override
-					public void run() {
-						try {
-							Thread.sleep(5000);
-						} catch (Exception e) {
-							e.printStackTrace();
-						}
-						while (!m_treeData.m_bMetaDataReady) {
-							try {
-								Thread.sleep(100);
-							} catch (Exception e) {
-								e.printStackTrace();
-							}
-						}
-						if (m_cladeComparisonAsPDF != null) {
-							while (!m_treeData2.m_bMetaDataReady) {
-								try {
-									Thread.sleep(100);
-								} catch (Exception e) {
-									e.printStackTrace();
-								}
-							}
-	                    	exportPDF(m_cladeComparisonAsPDF, m_cladeSetComparisonPanel);
-						}
-						if (m_asPDF != null) {
-							exportPDF(m_asPDF, m_Panel);
-						}
-						System.exit(0);
-					};
-				}.start();
+				submitPDFExport();
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
@@ -633,6 +623,42 @@ public class DensiTree extends JPanel implements ComponentListener {
 		}
 	} // parseArgs
 
+	/**
+	 * export PDFs given on the command line and exit, once meta data of all tree sets
+	 * is processed, the panels are on screen and drawing is done
+	 **/
+	void submitPDFExport() {
+		final CountDownLatch showing = new CountDownLatch(1);
+		m_Panel.addHierarchyListener(e -> {
+			if (m_Panel.isShowing()) {
+				showing.countDown();
+			}
+		});
+		if (m_Panel.isShowing()) {
+			showing.countDown();
+		}
+		m_scheduler.submit(TaskScheduler.Stage.EXPORT, "Exporting PDF", task -> {
+			showing.await();
+			// let pending layout and repaint events run, so processing of a mirror set and
+			// drawing of the final image is started
+			do {
+				SwingUtilities.invokeAndWait(() -> {});
+				m_scheduler.await(TaskScheduler.Stage.CLADES, TaskScheduler.Stage.ORDER, TaskScheduler.Stage.LOAD);
+				SwingUtilities.invokeAndWait(() -> {});
+			} while (m_scheduler.isBusy(TaskScheduler.Stage.CLADES, TaskScheduler.Stage.ORDER, TaskScheduler.Stage.LOAD));
+			m_scheduler.await(TaskScheduler.Stage.DRAW);
+			SwingUtilities.invokeAndWait(() -> {
+				if (m_cladeComparisonAsPDF != null) {
+					exportPDF(m_cladeComparisonAsPDF, m_cladeSetComparisonPanel);
+				}
+				if (m_asPDF != null) {
+					exportPDF(m_asPDF, m_Panel);
+				}
+			});
+			System.exit(0);
+		}, m_metaDataTask);
+	} // submitPDFExport
+
 	/** print some useful info to stdout **/
 	String banner() {
 		return "DensiTree - Tree Set Visualizer\nVersion " + VERSION + "\n\n" + "Remco Bouckaert\n"
@@ -674,19 +700,33 @@ public class DensiTree extends JPanel implements ComponentListener {
 	}
 
 	
-	class MetaDataThread extends Thread {
+	/**
+	 * start processing clades, node order and meta data of a tree set in the background,
+	 * as a chain of tasks; returns the last task of the chain
+	 **/
+	TaskScheduler.Task startMetaDataTasks(TreeData treeData) {
+		MetaDataWork work = new MetaDataWork(treeData, this);
+		TaskScheduler.Task cladesTask = m_scheduler.submit(TaskScheduler.Stage.CLADES, "Calculating clades", work::calcClades);
+		TaskScheduler.Task orderTask = m_scheduler.submit(TaskScheduler.Stage.ORDER, "Optimising node order", work::calcOrder, cladesTask);
+		return m_scheduler.submit(TaskScheduler.Stage.LOAD, "Parsing metadata", work::parseMetaData, orderTask);
+	}
+
+	/** background processing of a tree set after loading; every step returns early when its task is cancelled **/
+	class MetaDataWork {
 		TreeData treeData;
 		DensiTree m_dt;
 		
-		MetaDataThread(TreeData treeData, DensiTree dt) {
+		MetaDataWork(TreeData treeData, DensiTree dt) {
 			this.treeData = treeData;
 			this.m_dt = dt;
 		}
 		
-		@Override
-		public void run() {
-			m_jStatusBar.setText("Calculating clades");
-			treeData.calcClades();
+		void calcClades(TaskScheduler.Task task) {
+			task.progress("Calculating clades");
+			treeData.calcClades(task);
+			if (task.isCancelled()) {
+				return;
+			}
 			treeData.m_bCladesReady = true;
 			
 			if (treeData.drawMode == TreeData.MODE_RIGHT) {
@@ -705,11 +745,16 @@ public class DensiTree extends JPanel implements ComponentListener {
 				
 				
 			}
-			
-			m_jStatusBar.setText("Optimising node order");
+		}
+		
+		void calcOrder(TaskScheduler.Task task) {
+			task.progress("Optimising node order");
 			int [] oldOrder = m_settings.m_nOrder.clone();
 			if (!m_settings.m_bAllowSingleChild && treeData.drawMode != TreeData.MODE_RIGHT) {
-				reshuffle(NodeOrderer.SORT_BY_ROOT_CANAL_LENGTH);
+				reshuffle(NodeOrderer.SORT_BY_ROOT_CANAL_LENGTH, task::progress);
+			}
+			if (task.isCancelled()) {
+				return;
 			}
 			if (!m_settings.m_bAllowSingleChild) {
 				calcPositions();
@@ -720,12 +765,21 @@ public class DensiTree extends JPanel implements ComponentListener {
 					makeDirty();
 				}
 			}
+			if (treeData.m_sessionCache != null && !treeData.m_sessionCache.isLoaded()) {
+				treeData.m_sessionCache.save(treeData);
+			}
+		}
+		
+		void parseMetaData(TaskScheduler.Task task) {
 			String statusMsg = "Parsing metadata";
 			for (int k = 0; k < treeData.m_trees.length; k++) {
+				if (task.isCancelled()) {
+					return;
+				}
 				parseMetaData(treeData.m_trees[k]);
 				if (k % 100 == 0) {
 					statusMsg += ".";
-					m_jStatusBar.setText(statusMsg);
+					task.progress(statusMsg);
 					setWaitCursor();
 //					if (getCursor().getType() != Cursor.WAIT_CURSOR) {
 //						setCursor(new Cursor(Cursor.WAIT_CURSOR));
@@ -744,9 +798,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 			}
 			treeData.m_bMetaDataReady = true;			
 			notifyChangeListeners();
-			m_jStatusBar.setText("Done parsing metadata");
-			
-			thread = null;
+			task.progress("Done parsing metadata");
 		}
 
 		private void parseMetaData(Node node) {
@@ -768,7 +820,6 @@ public class DensiTree extends JPanel implements ComponentListener {
 	 * 
 	 * @throws Exception
 	 **/
-	@SuppressWarnings("deprecation")
 	public void init(String sFile) throws Exception {
 		if (m_Panel != null) {
 			setWaitCursor();
@@ -800,18 +851,20 @@ public class DensiTree extends JPanel implements ComponentListener {
 		m_doActions = new Vector<DoAction>();
 		m_iUndo = 0;
 		m_settings.m_random = new Random();
-		m_Panel.m_drawThread = new Thread[2][m_Panel.m_nDrawThreads];
+		m_Panel.m_drawTasks = new TaskScheduler.Task[2][m_Panel.m_nDrawThreads];
 
 		m_treeData.m_rootcanaltree = null;
 		
 		try {
-			if (thread != null) {
-				try {
-					thread.stop();
-				} catch (Exception e) {
-					// ignore
-				}
-			}
+			// stop processing the previous tree set, and wait till it no longer touches the settings;
+			// every step checks for cancellation regularly, so this does not take long
+			if (m_recalcTimer != null) {
+				m_recalcTimer.stop();
+			}
+			m_nPendingRecalc = RECALC_REDRAW;
+			m_scheduler.cancelAll();
+			m_scheduler.await(TaskScheduler.Stage.CLADES, TaskScheduler.Stage.ORDER, TaskScheduler.Stage.LOAD,
+					TaskScheduler.Stage.LINES, TaskScheduler.Stage.COLOURS);
 			/** contains strings with tree in Newick format **/
 			m_settings.m_sLabels = new Vector<String>();
 			m_settings.m_fLongitude = new Vector<Float>();
@@ -858,8 +911,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 			calcPositions();
 			
 			m_treeData.m_bMetaDataReady = false;			
-			thread = new MetaDataThread(m_treeData, this);
-			thread.start();
+			m_metaDataTask = startMetaDataTasks(m_treeData);
 			
 			m_settings.m_metaDataTags = new ArrayList<String>();
 			m_settings.m_metaDataTypes = new ArrayList<MetaDataType>();
@@ -867,12 +919,15 @@ public class DensiTree extends JPanel implements ComponentListener {
 			notifyChangeListeners();
 
 			if (orgLineColorMode != LineColorMode.DEFAULT) {
-				while (!m_treeData.m_bMetaDataReady) {
-					Thread.sleep(100);
-				}
-				m_settings.m_lineColorMode = orgLineColorMode;
-				calcColors(false);
-				makeDirty();
+				// colouring may depend on meta data, so restore the colour mode once these are parsed
+				m_scheduler.submit(TaskScheduler.Stage.COLOURS, "Restoring line colours", task -> {
+					SwingUtilities.invokeLater(() -> {
+						if (!task.isCancelled() && m_treeData.m_bMetaDataReady) {
+							m_settings.m_lineColorMode = orgLineColorMode;
+							requestRecalc(RECALC_COLORS);
+						}
+					});
+				}, m_metaDataTask);
 			}
 
 		} catch (OutOfMemoryError e) {
@@ -916,7 +971,9 @@ public class DensiTree extends JPanel implements ComponentListener {
 		return m_treeData.positionHeight(node, fOffSet);
 	}
 	
+	/** the calc* methods below recalculate synchronously when called from the event dispatch thread, see stopRecalc **/
 	public void calcLines() {
+		stopRecalc();
 		m_treeData.calcLines();
 		if (m_treeData2 != null) {
 			m_treeData2.calcLines();
@@ -924,6 +981,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 	}
 	
 	public void calcColors(boolean forceRecalc) {
+		stopRecalc();
 		m_treeData.calcColors(forceRecalc);
 		if (m_treeData2 != null) {
 			m_treeData2.calcColors(forceRecalc);
@@ -931,6 +989,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 	}
 	
 	public void calcPositions() {
+		stopRecalc();
 		m_treeData.calcPositions();
 		if (m_treeData2 != null) {
 			m_treeData2.calcPositions();
@@ -938,6 +997,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 	}
 	
 	public void calcLineWidths(boolean forceRecalc) {
+		stopRecalc();
 		m_treeData.calcLineWidths(forceRecalc);
 		if (m_treeData2 != null) {
 			m_treeData2.calcLineWidths(forceRecalc);
@@ -1275,6 +1335,8 @@ public class DensiTree extends JPanel implements ComponentListener {
 		// m_fTLinesY = null;
 		m_treeData.m_fCLinesX = null;
 		m_treeData.m_fCLinesY = null;
+		m_treeData.m_fLinesBounds = null;
+		m_treeData.m_fCLinesBounds = null;
 		// m_fCTLinesX = null;
 		// m_fCTLinesY = null;
 		m_bInitializing = false;
@@ -1285,6 +1347,11 @@ public class DensiTree extends JPanel implements ComponentListener {
 	 * investigation of some of the tree set features
 	 */
 	void reshuffle(int nMethod) {
+		reshuffle(nMethod, null);
+	}
+
+	/** as reshuffle(nMethod), reporting progress of slow orderings to progress, if not null **/
+	void reshuffle(int nMethod, Consumer<String> progress) {
 		int [] oldOrder = m_settings.m_nOrder.clone();
 		m_settings.m_nShuffleMode = nMethod;
 		setWaitCursor();
@@ -1354,13 +1421,11 @@ public class DensiTree extends JPanel implements ComponentListener {
 				}
 				int[] nOrder = new int[m_settings.m_nOrder.length];
 				int[] nRevOrder = new int[m_settings.m_nRevOrder.length];
+				LabelTable labelTable = m_settings.getLabelTable();
 				for (int i = 0; i < sIndex.length; i++) {
-					int j = 0;
 					String sTarget = sIndex[i];
-					while ((j < m_settings.m_sLabels.size()) && !(m_settings.m_sLabels.elementAt(j).equals(sTarget))) {
-						j++;
-					}
-					if (j == m_settings.m_sLabels.size()) {
+					int j = labelTable.indexOf(sTarget);
+					if (j < 0) {
 						System.err.println("Label \"" + sTarget + "\" not found among labels");
 						return;
 					}
@@ -1381,11 +1446,18 @@ public class DensiTree extends JPanel implements ComponentListener {
 				break;
 			default:
 				// otherwise, use one of the distance based methods
-				NodeOrderer h = new NodeOrderer(nMethod);
-				int[] nOrder = h.calcOrder(m_settings.m_nNrOfLabels, m_treeData.m_trees, m_treeData.m_cTrees, m_treeData.m_rootcanaltree, m_treeData.m_fTreeWeight/*
+				SessionCache cache = (nMethod == NodeOrderer.SORT_BY_ROOT_CANAL_LENGTH ? m_treeData.m_sessionCache : null);
+				int[] nOrder = (cache != null ? cache.getOrder(nMethod) : null);
+				if (nOrder == null) {
+					NodeOrderer h = new NodeOrderer(nMethod, progress);
+					nOrder = h.calcOrder(m_settings.m_nNrOfLabels, m_treeData.m_trees, m_treeData.m_cTrees, m_treeData.m_rootcanaltree, m_treeData.m_fTreeWeight/*
 																						 * ,
 																						 * m_nOrder
 																						 */, m_treeData.m_clades, m_treeData.m_cladeWeight);
+					if (cache != null) {
+						cache.setOrder(nMethod, nOrder);
+					}
+				}
 				m_settings.m_nOrder = nOrder;
 				for (int i = 0; i < m_settings.m_nNrOfLabels; i++) {
 					m_settings.m_nRevOrder[m_settings.m_nOrder[i]] = i;
@@ -1507,6 +1579,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 						fXs[i] *= fScale;
 					}
 				}
+				m_treeData.calcLineBounds();
 			}
 				break;
 			}
@@ -1632,7 +1705,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 
 	public enum LineWidthMode {BY_METADATA_PATTERN, BY_METADATA_NUMBER, DEFAULT, BY_METADATA_TAG};
 
-	public enum LineColorMode {COLOR_BY_CLADE, BY_METADATA_PATTERN, DEFAULT, COLOR_BY_METADATA_TAG};
+	public enum LineColorMode {COLOR_BY_CLADE, BY_METADATA_PATTERN, DEFAULT, COLOR_BY_METADATA_TAG, COLOR_BY_RUN};
 	public enum MetaDataType {NUMERIC, STRING, SET};
 	
 
@@ -1834,11 +1907,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 					g.drawString(m_settings.m_sLabels.elementAt(node.m_iLabel), 0, 0);
 					g.translate(-y, x);
 					g.rotate(-Math.PI / 2.0);
-					Rectangle r = m_bLabelRectangle[node.m_iLabel];
-					r.x = x;
-					r.y = y - 10;
-					r.height = 10;
-					r.width = m_settings.m_nLabelWidth;
+					setLabelRectangle(node.m_iLabel, x, y - 10);
 					drawImage(g, x, y, node.m_iLabel);
 				} else {
 					String sLabel = m_settings.m_sLabels.elementAt(node.m_iLabel);
@@ -1847,11 +1916,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 					int y = getPosY(((m_bAlignLabels ?m_fHeight:node.m_fPosY) + m_settings.m_fLabelIndent - m_fTreeOffset) * m_fTreeScale)
 							+ g.getFontMetrics().getHeight() + 2;
 					g.drawString(sLabel, x, y);
-					Rectangle r = m_bLabelRectangle[node.m_iLabel];
-					r.x = x;
-					r.y = y - 10;
-					r.height = 10;
-					r.width = m_settings.m_nLabelWidth;
+					setLabelRectangle(node.m_iLabel, x, y - 10);
 					drawImage(g, x, y, node.m_iLabel);
 				}
 			} else {
@@ -1875,11 +1940,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 							// suppress label
 					}
 				}
-				Rectangle r = m_bLabelRectangle[node.m_iLabel];
-				r.x = x;
-				r.y = y - 10;
-				r.height = 10;
-				r.width = m_settings.m_nLabelWidth;
+				setLabelRectangle(node.m_iLabel, x, y - 10);
 				drawImage(g, x, y, node.m_iLabel);
 				if (m_settings.m_fLabelIndent > 0 && x > m_bgImage.getWidth()) {
 					System.err.println("label outside image: try reducing the indent");
@@ -1893,6 +1954,31 @@ public class DensiTree extends JPanel implements ComponentListener {
 		}
 	}
 
+	/** labels are redrawn on every repaint, so only invalidate the label index when a label moved **/
+	private void setLabelRectangle(int iLabel, int x, int y) {
+		Rectangle r = m_bLabelRectangle[iLabel];
+		if (r.x != x || r.y != y || r.width != m_settings.m_nLabelWidth || r.height != 10) {
+			r.setBounds(x, y, m_settings.m_nLabelWidth, 10);
+			m_labelIndex = null;
+		}
+	}
+
+	/** index of label rectangles, rebuilt when labels moved **/
+	ScreenIndex getLabelIndex() {
+		if (m_labelIndex == null) {
+			m_labelIndex = ScreenIndex.of(m_bLabelRectangle);
+		}
+		return m_labelIndex;
+	}
+
+	/** index of geographic rectangles, rebuilt when they moved **/
+	ScreenIndex getGeoIndex() {
+		if (m_geoIndex == null) {
+			m_geoIndex = ScreenIndex.of(m_bGeoRectangle);
+		}
+		return m_geoIndex;
+	}
+
 	private void drawImage(Graphics g, int x, int y, int iLabel) {
 		if (m_settings.m_LabelImages != null && m_settings.m_LabelImages[iLabel] != null) {
 			BufferedImage img = m_settings.m_LabelImages[iLabel];
@@ -1927,10 +2013,10 @@ public class DensiTree extends JPanel implements ComponentListener {
 					g.drawOval(gx - 1, gy - 1, 3, 3);
 				}
 				Rectangle r = m_bGeoRectangle[node.m_iLabel];
-				r.x = gx - 2;
-				r.y = gy - 2;
-				r.width = 5;
-				r.height = 5;
+				if (r.x != gx - 2 || r.y != gy - 2 || r.width != 5 || r.height != 5) {
+					r.setBounds(gx - 2, gy - 2, 5, 5);
+					m_geoIndex = null;
+				}
 			}
 		} else {
 			drawGeo(node.m_left, g);
@@ -2198,6 +2284,146 @@ public class DensiTree extends JPanel implements ComponentListener {
 
 	ViewMode m_viewMode = ViewMode.DRAW;
 
+	/** recalculations a settings change can request, see requestRecalc; RECALC_REDRAW only redraws **/
+	public final static int RECALC_REDRAW = 0, RECALC_LINES = 1, RECALC_POSITIONS = 2, RECALC_COLORS = 4, RECALC_LINE_WIDTHS = 8;
+	/** time in milliseconds settings have to be left alone before recalculation starts **/
+	final static int RECALC_DELAY = 100;
+	/** version of the settings, incremented by every change that requests recalculation **/
+	volatile long m_nSettingsVersion = 0;
+	/** RECALC_* flags requested since the last recalculation started **/
+	int m_nPendingRecalc = RECALC_REDRAW;
+	/** RECALC_* flags of the last recalculation started **/
+	int m_nRunningRecalc = RECALC_REDRAW;
+	/** starts recalculation once settings stop changing **/
+	Timer m_recalcTimer;
+	/** recalculation running in the background, null if none was started **/
+	TaskScheduler.Task m_recalcTask = null;
+
+	/**
+	 * Request recalculation and redrawing after a change of settings, e.g. by dragging a
+	 * spinner or holding down a key. Requests are coalesced: recalculation starts once
+	 * settings did not change for RECALC_DELAY milliseconds, and is done only for the latest
+	 * version of the settings. A recalculation that becomes stale while running stops at
+	 * its next step, and its results are not shown. Call from the event dispatch thread.
+	 * @param nRecalc combination of RECALC_* flags
+	 */
+	public void requestRecalc(int nRecalc) {
+		m_nSettingsVersion++;
+		m_nPendingRecalc |= nRecalc;
+		if (isRecalculating()) {
+			// the running recalculation is stale, it is done again with the latest settings
+			m_recalcTask.cancel();
+			m_nPendingRecalc |= m_nRunningRecalc;
+		}
+		if (m_recalcTimer == null) {
+			m_recalcTimer = new Timer(RECALC_DELAY, e -> startRecalc());
+			m_recalcTimer.setRepeats(false);
+		}
+		m_recalcTimer.restart();
+	} // requestRecalc
+
+	/**
+	 * start recalculation for the current version of the settings. Lines, positions and colours
+	 * are rewritten in place, so drawing is stopped first, the recalculation starts once the
+	 * drawing tasks are done, and painting only shows the images drawn before till it is done.
+	 * A cancelled recalculation leaves lines partly updated and colours as they were, and is
+	 * requested again, so painting waits for the next one to finish.
+	 **/
+	void startRecalc() {
+		if (isRecalculating()) {
+			// the stale recalculation still runs, try again once it stopped
+			m_recalcTimer.restart();
+			return;
+		}
+		final int nRecalc = m_nPendingRecalc;
+		final long nVersion = m_nSettingsVersion;
+		m_nPendingRecalc = RECALC_REDRAW;
+		if (nRecalc == RECALC_REDRAW) {
+			makeDirty();
+			return;
+		}
+		m_nRunningRecalc = nRecalc;
+		setWaitCursor();
+		m_Panel.stopDrawThreads();
+		TaskScheduler.Stage stage = (nRecalc == RECALC_COLORS ? TaskScheduler.Stage.COLOURS : TaskScheduler.Stage.LINES);
+		m_recalcTask = m_scheduler.submitAfter(stage, "Recalculating", task -> {
+			// the calc* loops stop early once cancelled
+			m_treeData.setCancelled(task::isCancelled);
+			if (m_treeData2 != null) {
+				m_treeData2.setCancelled(task::isCancelled);
+			}
+			try {
+				if ((nRecalc & RECALC_LINE_WIDTHS) != 0) {
+					// recalculates positions and lines as well
+					calcLineWidths(true);
+				} else if ((nRecalc & RECALC_POSITIONS) != 0) {
+					calcPositions();
+					if (!task.isCancelled()) {
+						calcLines();
+					}
+				} else if ((nRecalc & RECALC_LINES) != 0) {
+					calcLines();
+				}
+				if ((nRecalc & RECALC_COLORS) != 0 && !task.isCancelled()) {
+					calcColors(true);
+				}
+			} finally {
+				m_treeData.setCancelled(null);
+				if (m_treeData2 != null) {
+					m_treeData2.setCancelled(null);
+				}
+			}
+			SwingUtilities.invokeLater(() -> {
+				if (task.isCancelled() || nVersion != m_nSettingsVersion) {
+					// stale: settings changed while recalculating, so do it again with the latest settings
+					m_nPendingRecalc |= nRecalc;
+					m_recalcTimer.restart();
+				} else {
+					makeDirty();
+				}
+			});
+		}, m_scheduler.getTasks(TaskScheduler.Stage.DRAW));
+	} // startRecalc
+
+	/** true while lines, positions or colours are recalculated in the background **/
+	boolean isRecalculating() {
+		return m_recalcTask != null && !m_recalcTask.isDone();
+	}
+
+	/**
+	 * true while a recalculation runs or is requested but not started yet, e.g. because the
+	 * previous one was cancelled half way; lines, positions and colours may not match till it is done
+	 **/
+	boolean isRecalcOutstanding() {
+		return isRecalculating() || m_nPendingRecalc != RECALC_REDRAW;
+	}
+
+	/**
+	 * make way for a synchronous recalculation from the event dispatch thread, e.g. when zooming:
+	 * a background recalculation is cancelled and awaited, so the two do not rewrite lines and
+	 * positions at the same time, and the part of its work that got cancelled is requested again.
+	 * The settings version is incremented, so a background recalculation that finished in the
+	 * meantime is not taken to be up to date. Does nothing when called from other threads, in
+	 * particular from the background recalculation itself.
+	 **/
+	void stopRecalc() {
+		if (!SwingUtilities.isEventDispatchThread()) {
+			return;
+		}
+		m_nSettingsVersion++;
+		if (isRecalculating()) {
+			m_recalcTask.cancel();
+			try {
+				// the calc* loops check for cancellation regularly, so this does not take long
+				m_recalcTask.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			m_nPendingRecalc |= m_nRunningRecalc;
+			m_recalcTimer.restart();
+		}
+	} // stopRecalc
+
 	public void makeDirty() {
 		m_treeData.m_rotationPoints = null;
 		if (m_treeData2 != null) {
@@ -2344,63 +2570,63 @@ public class DensiTree extends JPanel implements ComponentListener {
 			if (m_sName.equals("Jitter+")) {
 				m_settings.m_nJitter++;
 				if (m_settings.m_nJitter >= 0) {
-					makeDirty();
+					requestRecalc(RECALC_REDRAW);
 				}
 			}
 			if (m_sName.equals("Jitter-")) {
 				m_settings.m_nJitter--;
 				if (m_settings.m_nJitter >= 0) {
-					makeDirty();
+					requestRecalc(RECALC_REDRAW);
 				}
 			}
 			if (m_sName.equals("Intensity+")) {
 				m_settings.m_fTreeIntensity *= 1.1;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Intensity-")) {
 				m_settings.m_fTreeIntensity /= 1.1;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Consensus Intensity+")) {
 				m_settings.m_fCTreeIntensity *= 1.1;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Consensus Intensity-")) {
 				m_settings.m_fCTreeIntensity /= 1.1;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Consensus Tree Width+")) {
 				m_settings.m_nCTreeWidth++;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Consensus Tree Width-")) {
 				m_settings.m_nCTreeWidth--;
 				if (m_settings.m_nCTreeWidth <= 1) {
 					m_settings.m_nCTreeWidth = 1;
 				}
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Tree Width+")) {
 				m_settings.m_nTreeWidth++;
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Tree Width-")) {
 				m_settings.m_nTreeWidth--;
 				if (m_settings.m_nTreeWidth <= 1) {
 					m_settings.m_nTreeWidth = 1;
 				}
-				makeDirty();
+				requestRecalc(RECALC_REDRAW);
 			}
 			if (m_sName.equals("Drawing Threads+")) {
-				m_Panel.stopDrawThreads();
+				m_Panel.clearImage();
 				m_Panel.m_nDrawThreads++;
-				m_Panel.m_drawThread = new Thread[2][m_Panel.m_nDrawThreads];
+				m_Panel.m_drawTasks = new TaskScheduler.Task[2][m_Panel.m_nDrawThreads];
 			}
 			if (m_sName.equals("Drawing Threads-")) {
 				if (m_Panel.m_nDrawThreads > 1) {
-					m_Panel.stopDrawThreads();
+					m_Panel.clearImage();
 					m_Panel.m_nDrawThreads--;
-					m_Panel.m_drawThread = new Thread[2][m_Panel.m_nDrawThreads];
+					m_Panel.m_drawTasks = new TaskScheduler.Task[2][m_Panel.m_nDrawThreads];
 				}
 			}
 			if (m_sName.equals("Animation Speed-")) {
@@ -2417,16 +2643,12 @@ public class DensiTree extends JPanel implements ComponentListener {
 					m_settings.m_fAngleCorrectionThresHold = 0.999;
 				}
 				System.err.println("Angle Correction ThresHold = " + m_settings.m_fAngleCorrectionThresHold);
-				calcPositions();
-				calcLines();
-				makeDirty();
+				requestRecalc(RECALC_POSITIONS);
 			}
 			if (m_sName.equals("Angle Correction-")) {
 				m_settings.m_fAngleCorrectionThresHold /= 1.1;
 				System.err.println("Angle Correction ThresHold = " + m_settings.m_fAngleCorrectionThresHold);
-				calcPositions();
-				calcLines();
-				makeDirty();
+				requestRecalc(RECALC_POSITIONS);
 			}
 			repaint();
 			System.err.print(getStatus());
@@ -2771,9 +2993,14 @@ public class DensiTree extends JPanel implements ComponentListener {
 
 		@Override
 		public void actionPerformed(ActionEvent ae) {
-			File [] files = Util.getFile("Load Tree Set", true, new File(m_settings.m_sDir), false, "Nexus trees files", "trees","tre","nex","t","tree","nwk","txt");
+			File [] files = Util.getFile("Load Tree Set", true, new File(m_settings.m_sDir), true, "Nexus trees files", "trees","tre","nex","t","tree","nwk","txt","gz",BinaryTreeSet.EXTENSION);
 			if (files != null && files.length > 0) {
-				doOpen(files[0].getPath());
+				// multiple files are loaded as separate runs of the same analysis
+				String sFiles = files[0].getPath();
+				for (int i = 1; i < files.length; i++) {
+					sFiles += File.pathSeparator + files[i].getPath();
+				}
+				doOpen(sFiles);
 			}
 		}
 	}; // class ActionLoad
@@ -2803,7 +3030,7 @@ public class DensiTree extends JPanel implements ComponentListener {
 
 		@Override
 		public void actionPerformed(ActionEvent ae) {
-			File [] files = Util.getFile("Load Mirror Tree Set", true, new File(m_settings.m_sDir), false, "Nexus trees files", "trees","tre","nex","t","tree");
+			File [] files = Util.getFile("Load Mirror Tree Set", true, new File(m_settings.m_sDir), false, "Nexus trees files", "trees","tre","nex","t","tree","gz",BinaryTreeSet.EXTENSION);
 			if (files != null && files.length > 0) {
 				doOpenMirror(files[0].getPath());
 			}
@@ -2814,35 +3041,30 @@ public class DensiTree extends JPanel implements ComponentListener {
 		if (sFileName.lastIndexOf('/') > 0) {
 			m_settings.m_sDir = sFileName.substring(0, sFileName.lastIndexOf('/'));
 		}
-		try {
-			while (thread != null) {
-				try {
-					new Thread().sleep(100);
-				} catch (Exception e) {
-					// ignore
+		// the mirror clade maps are calculated from the clades of the tree set loaded before,
+		// so load the mirror set once processing of that tree set is done; loading changes
+		// settings used for painting, so it is done on the event dispatch thread
+		List<TaskScheduler.Task> tasks = m_scheduler.getTasks(TaskScheduler.Stage.CLADES, TaskScheduler.Stage.ORDER, TaskScheduler.Stage.LOAD);
+		m_jStatusBar.setText("Loading " + sFileName);
+		m_metaDataTask = m_scheduler.submitAfter(TaskScheduler.Stage.LOAD, "Loading mirror set", task -> {
+			SwingUtilities.invokeLater(() -> {
+				if (task.isCancelled()) {
+					return;
 				}
-			}
-
-			m_treeData2 = new TreeData(this, this.m_settings);
-			if (!m_treeData2.loadFromFile(sFileName, false)) {
-				m_treeData2 = null;
-				return;
-			}
-			m_sFileName2 = sFileName;
-			m_treeData.drawMode = TreeData.MODE_LEFT;
-			m_treeData2.drawMode = TreeData.MODE_RIGHT;
+				TreeData treeData2 = new TreeData(this, this.m_settings);
+				if (!treeData2.loadFromFile(sFileName, false)) {
+					return;
+				}
+				m_treeData2 = treeData2;
+				m_sFileName2 = sFileName;
+				m_treeData.drawMode = TreeData.MODE_LEFT;
+				m_treeData2.drawMode = TreeData.MODE_RIGHT;
 
-			thread = new MetaDataThread(m_treeData2, this);
-			thread.start();
-			
-		} catch (Exception e) {
-			e.printStackTrace();
-			JOptionPane.showMessageDialog(null, "Error loading file: " + e.getMessage(), "File load error",
-					JOptionPane.PLAIN_MESSAGE);
-			return;
-		}
-		m_jStatusBar.setText("Loaded " + sFileName);
-		fitToScreen();
+				m_metaDataTask = startMetaDataTasks(m_treeData2);
+				m_jStatusBar.setText("Loaded " + sFileName);
+				fitToScreen();
+			});
+		}, tasks);
 	}
 
 	public Action a_loadkml = new MyAction("Load locations", "Load geographic locations of taxa", "geo", -1) {
@@ -0,0 +1,176 @@
+package viz;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Symbol table for taxon labels. Maps a label, given either as String or as
+ * a span of characters in a Newick string, to its index in the label list
+ * in constant time without allocating.
+ *
+ * Both the label as it appears in the list, and its quoted/unquoted
+ * alternatives are registered, so 'Homo sapiens' in a tree matches
+ * Homo sapiens in a translate block and vice versa. Exact matches always
+ * take precedence over quote aliases.
+ **/
+public class LabelTable {
+	/** list of labels the table was built from **/
+	List<String> m_sLabels;
+	/** nr of labels of m_sLabels registered so far **/
+	int m_nLabels;
+	/** last label registered, to detect the list changed underneath us **/
+	String m_sLastLabel;
+
+	/** open addressing hash table: entry nr + 1 for every slot, 0 if empty **/
+	int [] m_iSlot;
+	/** character representation of entries **/
+	char [][] m_entry;
+	/** label index of entries **/
+	int [] m_iLabel;
+	/** whether the entry is a quote alias instead of the label itself **/
+	boolean [] m_bAlias;
+	int m_nEntries;
+
+	public LabelTable() {
+		this(null);
+	}
+
+	public LabelTable(List<String> sLabels) {
+		m_iSlot = new int[64];
+		m_entry = new char[16][];
+		m_iLabel = new int[16];
+		m_bAlias = new boolean[16];
+		sync(sLabels);
+	}
+
+	/** make sure all labels in sLabels are registered. If labels were removed or
+	 * a different list is passed, the table is rebuilt.
+	 */
+	public void sync(List<String> sLabels) {
+		if (sLabels != m_sLabels || sLabels == null || sLabels.size() < m_nLabels ||
+				(m_nLabels > 0 && !sLabels.get(m_nLabels - 1).equals(m_sLastLabel))) {
+			clear();
+			m_sLabels = sLabels;
+		}
+		if (sLabels == null) {
+			return;
+		}
+		while (m_nLabels < sLabels.size()) {
+			m_sLastLabel = sLabels.get(m_nLabels);
+			add(m_sLastLabel, m_nLabels);
+			m_nLabels++;
+		}
+	}
+
+	public void clear() {
+		m_sLabels = null;
+		m_nLabels = 0;
+		m_sLastLabel = null;
+		m_nEntries = 0;
+		m_iSlot = new int[64];
+	}
+
+	/** nr of labels in the table **/
+	public int size() {
+		return m_nLabels;
+	}
+
+	private void add(String sLabel, int iLabel) {
+		put(sLabel.toCharArray(), iLabel, false);
+		int n = sLabel.length();
+		if (n >= 2 && (sLabel.charAt(0) == '\'' && sLabel.charAt(n - 1) == '\'' ||
+				sLabel.charAt(0) == '\"' && sLabel.charAt(n - 1) == '\"')) {
+			put(sLabel.substring(1, n - 1).toCharArray(), iLabel, true);
+		} else {
+			put(("'" + sLabel + "'").toCharArray(), iLabel, true);
+			put(("\"" + sLabel + "\"").toCharArray(), iLabel, true);
+		}
+	}
+
+	/** register chars as representation of label iLabel.
+	 * The first exact match wins, and an exact match overrides an alias **/
+	private void put(char [] chars, int iLabel, boolean bAlias) {
+		if ((m_nEntries + 1) * 2 > m_iSlot.length) {
+			rehash(m_iSlot.length * 2);
+		}
+		int mask = m_iSlot.length - 1;
+		int i = hash(chars, 0, chars.length) & mask;
+		while (m_iSlot[i] != 0) {
+			int iEntry = m_iSlot[i] - 1;
+			if (equals(m_entry[iEntry], chars, 0, chars.length)) {
+				if (m_bAlias[iEntry] && !bAlias) {
+					m_iLabel[iEntry] = iLabel;
+					m_bAlias[iEntry] = false;
+				}
+				return;
+			}
+			i = (i + 1) & mask;
+		}
+		if (m_nEntries == m_entry.length) {
+			int nNew = m_entry.length * 2;
+			m_entry = Arrays.copyOf(m_entry, nNew);
+			m_iLabel = Arrays.copyOf(m_iLabel, nNew);
+			m_bAlias = Arrays.copyOf(m_bAlias, nNew);
+		}
+		m_entry[m_nEntries] = chars;
+		m_iLabel[m_nEntries] = iLabel;
+		m_bAlias[m_nEntries] = bAlias;
+		m_nEntries++;
+		m_iSlot[i] = m_nEntries;
+	}
+
+	private void rehash(int nSize) {
+		m_iSlot = new int[nSize];
+		int mask = nSize - 1;
+		for (int iEntry = 0; iEntry < m_nEntries; iEntry++) {
+			char [] chars = m_entry[iEntry];
+			int i = hash(chars, 0, chars.length) & mask;
+			while (m_iSlot[i] != 0) {
+				i = (i + 1) & mask;
+			}
+			m_iSlot[i] = iEntry + 1;
+		}
+	}
+
+	/** return index of label, or -1 if it cannot be found **/
+	public int indexOf(String sLabel) {
+		char [] chars = sLabel.toCharArray();
+		return indexOf(chars, 0, chars.length);
+	}
+
+	/** return index of label represented by chars[iStart]...chars[iEnd-1],
+	 * or -1 if it cannot be found **/
+	public int indexOf(char [] chars, int iStart, int iEnd) {
+		int mask = m_iSlot.length - 1;
+		int i = hash(chars, iStart, iEnd) & mask;
+		while (m_iSlot[i] != 0) {
+			int iEntry = m_iSlot[i] - 1;
+			if (equals(m_entry[iEntry], chars, iStart, iEnd)) {
+				return m_iLabel[iEntry];
+			}
+			i = (i + 1) & mask;
+		}
+		return -1;
+	}
+
+	private static int hash(char [] chars, int iStart, int iEnd) {
+		int h = 0;
+		for (int i = iStart; i < iEnd; i++) {
+			h = 31 * h + chars[i];
+		}
+		// spread bits, since the table size is a power of 2
+		return h ^ (h >>> 16);
+	}
+
+	private static boolean equals(char [] entry, char [] chars, int iStart, int iEnd) {
+		if (entry.length != iEnd - iStart) {
+			return false;
+		}
+		for (int i = 0; i < entry.length; i++) {
+			if (entry[i] != chars[iStart + i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+} // class LabelTable
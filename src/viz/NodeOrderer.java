@@ -56,15 +56,17 @@ package viz;
 
 
 import java.util.Arrays;
-import java.util.Comparator;
-import java.util.PriorityQueue;
 import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import viz.process.spq.CladeConstrainor;
 import viz.process.spq.Util;
 
 import java.util.List;
 import java.util.ArrayList;
+import java.util.function.Consumer;
 
 
 public class NodeOrderer {
@@ -86,6 +88,14 @@ public class NodeOrderer {
 	public final static int SORT_BY_ROOT_CANAL_LENGTH = 8;
 	public final static int SPQ = 9;
 
+	/** nr of moves every chain makes when optimising the root canal order: per taxon, and at least **/
+	final static long OPTIMISE_MOVES_PER_TAXON = 100;
+	final static long MIN_OPTIMISE_MOVES = 100000;
+	/** safety cap on the time in milliseconds spent on optimising the root canal order **/
+	final static long MAX_OPTIMISE_TIME = 3000;
+	/** maximum time in milliseconds spent on constraining SPQ trees by clades **/
+	final static long MAX_SPQ_TIME = 10000;
+
 	
 	
 	
@@ -103,10 +113,18 @@ public class NodeOrderer {
 	 */
 	int m_nLinkType = SINGLE;
 
+	/** receives progress messages of slow orderings, or null for no reporting **/
+	Consumer<String> m_progress = null;
+
 	public NodeOrderer(int nLinkType) {
 		m_nLinkType = nLinkType;
 	} // c'tor
 
+	public NodeOrderer(int nLinkType, Consumer<String> progress) {
+		m_nLinkType = nLinkType;
+		m_progress = progress;
+	} // c'tor
+
 	
 	/** method for calculating a 'good' order of nodes for a set of trees.
 	 * 
@@ -121,19 +139,12 @@ public class NodeOrderer {
 	public int [] calcOrder(int nNrOfLabels, Node [] trees, Node [] cTrees, Node rootCanalTree, float [] fTreeWeight, /*, int [] nOrder*/
 			List<int[]> clades, List<Double> cladeWeights) throws Exception {
 		if (m_nLinkType == SPQ) {
-			return orderBySPQTrees(trees);
+			return orderBySPQTrees(trees, clades, cladeWeights);
 		}
 		
 		
 		//double [][] fDist = new double[nNrOfLabels][nNrOfLabels];
-		double [] fDist = new double[nNrOfLabels*nNrOfLabels];
-		Vector<Integer> iLabel = new Vector<>();
-        Vector<Float> fLength = new Vector<>();
-        for (int i = 0; i < cTrees.length; i++) {
-                iLabel.clear();
-                fLength.clear();
-                calcDistance(cTrees[i]/*, nOrder*/, fDist, nNrOfLabels, fTreeWeight[i], iLabel, fLength);
-        }
+		double [] fDist = calcDistanceMatrix(cTrees, fTreeWeight, nNrOfLabels);
 		//print dist matrix (Denise):
 //		System.out.println("Distance matrix:");
 //		for (int i = 0; i < nNrOfLabels ; i++){
@@ -149,7 +160,8 @@ public class NodeOrderer {
 			nRevOrder = closestOutsideFirst(fDist, nNrOfLabels);
 		} else if (m_nLinkType == CLOSEST_FIRST) {
 			nRevOrder = closestFirst(fDist, nNrOfLabels);
-		} else {
+		} else if (m_nLinkType != OPTIMISE && m_nLinkType != SORT_BY_ROOT_CANAL_LENGTH) {
+			// these orders are determined by the root canal tree below
 			nOrder = buildClusterer(fDist, nNrOfLabels);
 		}
 		if (m_nLinkType == OPTIMISE) {
@@ -159,6 +171,10 @@ public class NodeOrderer {
 			int [] cladeCount = new int[nNrOfLabels * 2];
 			countCladeSize(rootCanalTree, cladeCount);
 			traverse(rootCanalTree, nRevOrder, 0, cladeCount, 0);
+			// improve root canal order by rotating and reversing clades, which minimises the
+			// score truncated to nearby pairs (see OrderOptimiser) rather than score() itself
+			long nMoves = Math.max(MIN_OPTIMISE_MOVES, OPTIMISE_MOVES_PER_TAXON * nNrOfLabels);
+			nRevOrder = new OrderOptimiser(fDist, nNrOfLabels, clades, cladeWeights).optimise(nRevOrder, nMoves, MAX_OPTIMISE_TIME);
 		}
 		if (m_nLinkType == SORT_BY_ROOT_CANAL_LENGTH) {
 			nRevOrder = new int[nNrOfLabels];
@@ -256,24 +272,23 @@ public class NodeOrderer {
 		return i;
 	}
 
-	int [] orderBySPQTrees(Node [] trees) {
-		CladeConstrainor constrainor = new CladeConstrainor(trees);
+	int [] orderBySPQTrees(Node [] trees, List<int[]> clades, List<Double> cladeWeights) {
+		int n = Util.getLeafNodeCount(trees[0]);
+		CladeConstrainor constrainor;
+		if (clades != null) {
+			// reuse the clades already calculated for the tree set
+			constrainor = new CladeConstrainor(clades, cladeWeights, n);
+		} else {
+			constrainor = new CladeConstrainor(trees);
+		}
 		//TreeConstrainor constrainor = new TreeConstrainor(trees2);
+		constrainor.setBudget(MAX_SPQ_TIME, Integer.MAX_VALUE);
+		constrainor.setProgress(m_progress);
 		constrainor.run();
 	
-		String seq = constrainor.getPossibleSequence();
-		// System.out.println("Possible sequence:" + seq);
+		// System.out.println("Possible sequence:" + constrainor.getPossibleSequence());
 		System.out.println("Possible sequences:" + constrainor.getPossibleSequences());
-		// System.out.print("Possible sequence:");
-		String [] strs = seq.split("\\s");
-		int n = Util.getLeafNodeCount(trees[0]);
-		int [] nRevOrder = new int[n];
-		for (int i = strs.length - 1; i >= 0; i--) {
-			String str = strs[i];
-			int j = Integer.parseInt(str);
-			//System.out.print(taxa[j] + " ");
-			nRevOrder[i] = j;
-		}
+		int [] nRevOrder = constrainor.getPossibleOrder();
 		
 		int [] nOrder = new int[n];
 	    for (int i = 0; i < n ; i++) {
@@ -343,35 +358,6 @@ public class NodeOrderer {
 //		System.out.println("End score: " + fScore + " " + fScore2);
 //	}
 
-	/** used for priority queue for efficient retrieval of pair of clusters to merge**/
-	class Tuple {
-		public Tuple(double d, int i, int j, int nSize1, int nSize2) {
-			m_fDist = d;
-			m_iCluster1 = i;
-			m_iCluster2 = j;
-			m_nClusterSize1 = nSize1;
-			m_nClusterSize2 = nSize2;
-		}
-		double m_fDist;
-		int m_iCluster1;
-		int m_iCluster2;
-		int m_nClusterSize1;
-		int m_nClusterSize2;
-	}
-
-	/** comparator used by priority queue**/
-	class TupleComparator implements Comparator<Tuple> {
-		@Override
-		public int compare(Tuple o1, Tuple o2) {
-			if (o1.m_fDist < o2.m_fDist) {
-				return -1;
-			} else if (o1.m_fDist == o2.m_fDist) {
-				return 0;
-			}
-			return 1;
-		}
-	} // class TupleComparator
-
 	/** class representing node in cluster hierarchy **/
 	class TreeNode {
 		TreeNode m_left;
@@ -605,6 +591,118 @@ public class NodeOrderer {
 
 
 	
+	/** minimum of nr of consensus trees times nr of leaf pairs to calculate the distance matrix with multiple threads **/
+	final static long PARALLEL_DISTANCE_THRESHOLD = 1 << 22;
+
+	/** calculate the distance matrix between leafs, summed over the consensus trees weighted
+	 * by their relative frequency, as calcDistance does. The consensus trees are split into 
+	 * consecutive ranges, one per thread, which accumulate a lower triangular matrix each. 
+	 * These are added in the order of the ranges, so the result does not depend on thread 
+	 * scheduling, and with a single range it is the same as calling calcDistance for all trees.
+	 * @return distance matrix as nNrOfLabels x nNrOfLabels array
+	 */
+	double [] calcDistanceMatrix(Node [] cTrees, float [] fTreeWeight, int nNrOfLabels) throws Exception {
+		long nWork = (long) cTrees.length * nNrOfLabels * (nNrOfLabels - 1) / 2;
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		if (nWork < PARALLEL_DISTANCE_THRESHOLD) {
+			nThreads = 1;
+		}
+		nThreads = Math.max(1, Math.min(nThreads, cTrees.length));
+
+		List<double[]> partialDist = new ArrayList<>();
+		if (nThreads == 1) {
+			partialDist.add(new DistanceAccumulator(nNrOfLabels).add(cTrees, fTreeWeight, 0, cTrees.length));
+		} else {
+			ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+			try {
+				List<Future<double[]>> futures = new ArrayList<>();
+				for (int i = 0; i < nThreads; i++) {
+					final int iStart = (int) ((long) cTrees.length * i / nThreads);
+					final int iEnd = (int) ((long) cTrees.length * (i + 1) / nThreads);
+					futures.add(exec.submit(() -> new DistanceAccumulator(nNrOfLabels).add(cTrees, fTreeWeight, iStart, iEnd)));
+				}
+				for (Future<double[]> future : futures) {
+					partialDist.add(future.get());
+				}
+			} finally {
+				exec.shutdown();
+			}
+		}
+
+		double [] fDist = new double[nNrOfLabels * nNrOfLabels];
+		for (int i = 1; i < nNrOfLabels; i++) {
+			int iTri = i * (i - 1) / 2;
+			for (int j = 0; j < i; j++) {
+				double f = partialDist.get(0)[iTri + j];
+				for (int k = 1; k < partialDist.size(); k++) {
+					f += partialDist.get(k)[iTri + j];
+				}
+				fDist[i * nNrOfLabels + j] = f;
+				fDist[j * nNrOfLabels + i] = f;
+			}
+		}
+		return fDist;
+	} // calcDistanceMatrix
+
+	/** accumulates leaf distances over consensus trees in a lower triangular matrix, 
+	 * using arrays that are allocated once instead of lists per node **/
+	static class DistanceAccumulator {
+		/** lower triangular distance matrix, entry (i,j) with i > j at i*(i-1)/2+j **/
+		double [] m_fDist;
+		/** leafs below the current node in traversal order, so every subtree forms a range **/
+		int [] m_iLeaf;
+		/** path lengths from the leafs in m_iLeaf up to the current node, +1 per branch, and weighted **/
+		float [] m_fLength;
+		double [] m_fWeightedLength;
+		
+		DistanceAccumulator(int nNrOfLabels) {
+			m_fDist = new double[nNrOfLabels * (nNrOfLabels - 1) / 2];
+			m_iLeaf = new int[nNrOfLabels];
+			m_fLength = new float[nNrOfLabels];
+			m_fWeightedLength = new double[nNrOfLabels];
+		}
+		
+		/** add distances of trees iStart,...,iEnd-1 **/
+		double [] add(Node [] cTrees, float [] fTreeWeight, int iStart, int iEnd) {
+			for (int i = iStart; i < iEnd; i++) {
+				add(cTrees[i], 0, fTreeWeight[i]);
+			}
+			return m_fDist;
+		}
+
+		/** traverse subtree with its leafs placed from iStart onwards, and return the end of its range of leafs **/
+		private int add(Node node, int iStart, double fWeight) {
+			if (node.isLeaf()) {
+				m_iLeaf[iStart] = node.getNr();
+				m_fLength[iStart] = node.m_fLength + 1.0f;
+				return iStart + 1;
+			}
+			int iMid = add(node.m_left, iStart, fWeight);
+			int iEnd = (node.m_right != null ? add(node.m_right, iMid, fWeight) : iMid);
+			for (int i = iStart; i < iEnd; i++) {
+				m_fWeightedLength[i] = fWeight * m_fLength[i];
+			}
+			// every pair of leafs is separated at exactly one node
+			for (int i = iStart; i < iMid; i++) {
+				int i1 = m_iLeaf[i];
+				double f = m_fWeightedLength[i];
+				for (int j = iMid; j < iEnd; j++) {
+					int i2 = m_iLeaf[j];
+					double f2 = f + m_fWeightedLength[j];
+					if (i1 > i2) {
+						m_fDist[i1 * (i1 - 1) / 2 + i2] += f2;
+					} else {
+						m_fDist[i2 * (i2 - 1) / 2 + i1] += f2;
+					}
+				}
+			}
+			for (int i = iStart; i < iEnd; i++) {
+				m_fLength[i] = m_fLength[i] + node.m_fLength + 1.0f;
+			}
+			return iEnd;
+		}
+	} // class DistanceAccumulator
+
 	/** calculate the distance between leafs in a consensus tree
 	 * and update the distance matrix weighted with the relative
 	 * frequency of the tree
@@ -664,67 +762,19 @@ public class NodeOrderer {
 	 */
 	@SuppressWarnings("unchecked")
 	public int [] buildClusterer(double [] fDistance0, int nNrOfLabels) throws Exception {
-		// use array of integer vectors to store cluster indices,
-		// starting with one cluster per instance
-		Vector<Integer> [] nClusterID = new Vector[nNrOfLabels];
-		for (int i = 0; i < nNrOfLabels; i++) {
-			nClusterID[i] = new Vector<Integer>();
-			nClusterID[i].add(i);
-		}
-		// calculate distance matrix
-		int nClusters = nNrOfLabels;
-		PriorityQueue<Tuple> queue = new PriorityQueue<Tuple>(nClusters*nClusters/2, new TupleComparator());
-		for (int i = 0; i < nClusters; i++) {
-			for (int j = i+1; j < nClusters; j++) {
-				queue.add(new Tuple(fDistance0[i*nNrOfLabels+j], i, j, 1, 1));
-			}
-		}
-
 		int nInstances = nNrOfLabels;
+		ClusterDistances distances = new ClusterDistances(fDistance0, nNrOfLabels);
 		
 		// used for keeping track of hierarchy
 		TreeNode [] clusterNodes = new TreeNode[nInstances];
 		
-		while (nClusters > 1) {
+		for (int nClusters = nNrOfLabels; nClusters > 1; nClusters--) {
 			// find closest two clusters
-			/* simple but inefficient implementation
-			double fMinDistance = Double.MAX_VALUE;
-			int iMin1 = -1;
-			int iMin2 = -1;
-			for (int i = 0; i < nInstances; i++) {
-				if (nClusterID[i] != null) {
-					for (int j = i+1; j < nInstances; j++) {
-						if (nClusterID[j] != null) {
-							double fDist = fDistance[i][j];
-							if (fDist < fMinDistance) {
-								fMinDistance = fDist;
-								iMin1 = i;
-								iMin2 = j;
-							}
-						}
-					}
-				}
-			}
-			*/
-			// use priority queue to find next best pair to cluster
-			Tuple t = null;
-			do {
-				t = queue.poll();
-			} while (t!=null && (nClusterID[t.m_iCluster1].size()!=t.m_nClusterSize1 || nClusterID[t.m_iCluster2].size()!=t.m_nClusterSize2));
-			int iMin1 = t.m_iCluster1;
-			int iMin2 = t.m_iCluster2;
+			int iMin1 = distances.closestCluster();
+			int iMin2 = distances.m_iNearest[iMin1];
 			
 			// merge  clusters
-			nClusterID[iMin1].addAll(nClusterID[iMin2]);
-			nClusterID[iMin2].removeAllElements();
-			for (int i = 0; i < nInstances; i++) {
-				if (i != iMin1 && nClusterID[i].size() > 0) {
-					int i1 = Math.min(iMin1,i);
-					int i2 = Math.max(iMin1,i);
-					double fDistance = getDistance(fDistance0, nNrOfLabels, nClusterID[i1], nClusterID[i2]);
-					queue.add(new Tuple(fDistance, i1, i2, nClusterID[i1].size(), nClusterID[i2].size()));
-				}
-			}
+			distances.merge(iMin1, iMin2);
 			
 			// track hierarchy
 			TreeNode node = new TreeNode();
@@ -745,17 +795,13 @@ public class NodeOrderer {
 				node.m_height = Math.max(clusterNodes[iMin2].m_height + 1, node.m_height); 
 			}
 			clusterNodes[iMin1] = node;
-			
-			nClusters--;
 		}
 		
 		//  collect hierarchy
 		TreeNode cluster = null;
-		//int iRoot = -1;
 		for (int i = 0; i < nInstances; i++) {
-			if (nClusterID[i].size() > 0) {
+			if (distances.m_nSize[i] > 0) {
 				cluster = clusterNodes[i];
-				//iRoot = i;
 				break;
 			}
 		}
@@ -948,6 +994,145 @@ public class NodeOrderer {
 	}
 
 
+	/** Distances between clusters for hierarchical clustering, kept in a condensed matrix
+	 * of primitives and updated when clusters merge (Lance-Williams style), so no object 
+	 * per pair of clusters is needed. For every link type, the distance between clusters
+	 * is the same as that of getDistance, calculated from what is stored per pair:
+	 * the minimum (SINGLE), maximum (COMPLETE, ADJCOMLPETE) or sum (AVERAGE, MEAN) of 
+	 * distances between members, and per cluster the sum and maximum of distances
+	 * within the cluster. Link types without distance return Double.MAX_VALUE, and
+	 * pairs of single instances use the original distance, as before.
+	 * 
+	 * Every cluster caches its nearest cluster with a higher index, so finding the closest 
+	 * pair is linear in the nr of clusters, and after a merge only rows that referred to 
+	 * the merged clusters need to be recalculated. Ties are broken by lowest indices.
+	 */
+	class ClusterDistances {
+		/** pair value of clusters i < j at j*(j-1)/2+i **/
+		double [] m_fPair;
+		/** nr of instances in cluster, 0 if merged into another cluster **/
+		int [] m_nSize;
+		/** sum and maximum of distances between instances in a cluster **/
+		double [] m_fWithinSum;
+		double [] m_fWithinMax;
+		/** nearest cluster with higher index, -1 if none, and its distance **/
+		int [] m_iNearest;
+		double [] m_fNearest;
+		int m_nInstances;
+		
+		ClusterDistances(double [] fDistance0, int nNrOfLabels) {
+			m_nInstances = nNrOfLabels;
+			m_fPair = new double[nNrOfLabels * (nNrOfLabels - 1) / 2];
+			for (int j = 1; j < nNrOfLabels; j++) {
+				for (int i = 0; i < j; i++) {
+					m_fPair[j * (j - 1) / 2 + i] = fDistance0[i * nNrOfLabels + j];
+				}
+			}
+			m_nSize = new int[nNrOfLabels];
+			Arrays.fill(m_nSize, 1);
+			m_fWithinSum = new double[nNrOfLabels];
+			m_fWithinMax = new double[nNrOfLabels];
+			m_iNearest = new int[nNrOfLabels];
+			m_fNearest = new double[nNrOfLabels];
+			for (int i = 0; i < nNrOfLabels; i++) {
+				updateNearest(i);
+			}
+		}
+		
+		/** distance between clusters i < j according to the link type **/
+		double distance(int i, int j) {
+			double fPair = m_fPair[j * (j - 1) / 2 + i];
+			if (m_nSize[i] == 1 && m_nSize[j] == 1) {
+				return fPair;
+			}
+			switch (m_nLinkType) {
+			case SINGLE:
+			case COMPLETE:
+				return fPair;
+			case ADJCOMLPETE:
+				return fPair - Math.max(m_fWithinMax[i], m_fWithinMax[j]);
+			case AVERAGE:
+				return fPair / (m_nSize[i] * m_nSize[j]);
+			case MEAN:
+				int n = m_nSize[i] + m_nSize[j];
+				return (m_fWithinSum[i] + m_fWithinSum[j] + fPair) / (n * (n - 1.0) / 2.0);
+			default:
+				return Double.MAX_VALUE;
+			}
+		}
+		
+		private void updateNearest(int i) {
+			m_iNearest[i] = -1;
+			if (m_nSize[i] == 0) {
+				return;
+			}
+			for (int j = i + 1; j < m_nInstances; j++) {
+				if (m_nSize[j] > 0) {
+					double fDist = distance(i, j);
+					if (m_iNearest[i] < 0 || fDist < m_fNearest[i]) {
+						m_iNearest[i] = j;
+						m_fNearest[i] = fDist;
+					}
+				}
+			}
+		}
+		
+		/** @return cluster that is closest to its nearest cluster m_iNearest **/
+		int closestCluster() {
+			int iBest = -1;
+			for (int i = 0; i < m_nInstances; i++) {
+				if (m_iNearest[i] >= 0 && (iBest < 0 || m_fNearest[i] < m_fNearest[iBest])) {
+					iBest = i;
+				}
+			}
+			return iBest;
+		}
+		
+		/** merge cluster j into cluster i < j **/
+		void merge(int i, int j) {
+			double fPairIJ = m_fPair[j * (j - 1) / 2 + i];
+			for (int k = 0; k < m_nInstances; k++) {
+				if (k != i && k != j && m_nSize[k] > 0) {
+					int iKI = (k < i ? i * (i - 1) / 2 + k : k * (k - 1) / 2 + i);
+					int iKJ = (k < j ? j * (j - 1) / 2 + k : k * (k - 1) / 2 + j);
+					switch (m_nLinkType) {
+					case SINGLE:
+						m_fPair[iKI] = Math.min(m_fPair[iKI], m_fPair[iKJ]);
+						break;
+					case COMPLETE:
+					case ADJCOMLPETE:
+						m_fPair[iKI] = Math.max(m_fPair[iKI], m_fPair[iKJ]);
+						break;
+					default:
+						m_fPair[iKI] += m_fPair[iKJ];
+					}
+				}
+			}
+			m_fWithinSum[i] += m_fWithinSum[j] + fPairIJ;
+			m_fWithinMax[i] = Math.max(Math.max(m_fWithinMax[i], m_fWithinMax[j]), fPairIJ);
+			m_nSize[i] += m_nSize[j];
+			m_nSize[j] = 0;
+			m_iNearest[j] = -1;
+			
+			// only distances to cluster i changed
+			updateNearest(i);
+			for (int k = 0; k < j; k++) {
+				if (k == i || m_iNearest[k] < 0) {
+					continue;
+				}
+				if (m_iNearest[k] == i || m_iNearest[k] == j) {
+					updateNearest(k);
+				} else if (k < i) {
+					double fDist = distance(k, i);
+					if (fDist < m_fNearest[k] || (fDist == m_fNearest[k] && i < m_iNearest[k])) {
+						m_iNearest[k] = i;
+						m_fNearest[k] = fDist;
+					}
+				}
+			}
+		}
+	} // class ClusterDistances
+
 	/** calculate the distance between two clusters 
 	 * @param cluster1 list of indices of instances in the first cluster
 	 * @param cluster2 dito for second cluster
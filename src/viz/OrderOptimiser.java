@@ -0,0 +1,278 @@
+package viz;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Improves a taxon order by simulated annealing, so that taxa that are close
+ * according to a distance matrix end up close in the order.
+ *
+ * The objective is the sum of distances between taxa at positions p < q weighted by
+ * 1/(q-p)^3, as in NodeOrderer.score, but truncated to pairs at most WINDOW positions
+ * apart, since weights of pairs further apart are negligible. Lower is better. Orders
+ * are compared on this truncated score only, so the order returned need not be the
+ * best one according to the untruncated NodeOrderer.score.
+ *
+ * Moves reverse or rotate the block of positions taken by a clade, with clades sampled
+ * proportional to their weight, so clades that are contiguous stay contiguous.
+ * Since only pairs with a taxon in the block change, the change in score of a move
+ * is calculated in O(block size x WINDOW) instead of rescoring the whole order.
+ * A fixed number of chains with fixed seeds run in parallel for a budget of moves, with
+ * the temperature cooling by the fraction of the budget used, so the result does not
+ * depend on timing or on the number of cores. The time limit is only a safety cap for
+ * very large trees. The best order found is returned.
+ */
+public class OrderOptimiser {
+	/** maximum distance between positions of taxa contributing to the score **/
+	final static int WINDOW = 16;
+	/** nr of annealing chains **/
+	final static int CHAINS = 4;
+	/** nr of moves between checks of the time limit and updates of the temperature **/
+	final static int CHECK_INTERVAL = 256;
+	/** ratio of final and initial annealing temperature **/
+	final static double COOLING = 1e-3;
+
+	/** distance matrix, nNrOfLabels x nNrOfLabels **/
+	double [] m_fDist;
+	int m_nNrOfLabels;
+	/** weight 1/k^3 of pairs k positions apart **/
+	double [] m_fWeight;
+	/** non-trivial clades and cumulative clade weights for sampling clades **/
+	int [][] m_clades;
+	double [] m_fCumulativeWeight;
+
+	public OrderOptimiser(double [] fDist, int nNrOfLabels, List<int[]> clades, List<Double> cladeWeights) {
+		m_fDist = fDist;
+		m_nNrOfLabels = nNrOfLabels;
+		m_fWeight = new double[WINDOW + 1];
+		for (int k = 1; k <= WINDOW; k++) {
+			m_fWeight[k] = 1.0 / ((double) k * k * k);
+		}
+		// reversing or rotating all taxa does not change the score, so leave the root clade out
+		List<int[]> sampled = new ArrayList<>();
+		List<Double> weights = new ArrayList<>();
+		for (int i = 0; i < clades.size(); i++) {
+			int [] clade = clades.get(i);
+			if (clade.length > 1 && clade.length < nNrOfLabels && cladeWeights.get(i) > 0) {
+				sampled.add(clade);
+				weights.add(cladeWeights.get(i));
+			}
+		}
+		m_clades = sampled.toArray(new int[sampled.size()][]);
+		m_fCumulativeWeight = new double[m_clades.length];
+		double fSum = 0;
+		for (int i = 0; i < m_clades.length; i++) {
+			fSum += weights.get(i);
+			m_fCumulativeWeight[i] = fSum;
+		}
+	}
+
+	/**
+	 * optimise order, starting from nRevOrder
+	 * @param nRevOrder taxon at every position
+	 * @param nMoves nr of moves every chain makes
+	 * @param nTimeLimit time in milliseconds after which all chains together stop early
+	 * @return best order found, as taxon at every position
+	 */
+	public int [] optimise(int [] nRevOrder, long nMoves, long nTimeLimit) throws Exception {
+		if (m_clades.length == 0 || m_nNrOfLabels < 3) {
+			return nRevOrder.clone();
+		}
+		int nThreads = Math.min(CHAINS, Runtime.getRuntime().availableProcessors());
+		// chains run in rounds of nThreads, each round gets an equal share of the time limit,
+		// so with fewer threads chains are not cut short by time spent on other chains
+		int nRounds = (CHAINS + nThreads - 1) / nThreads;
+		long nChainTimeLimit = nTimeLimit / nRounds;
+		List<Chain> chains = new ArrayList<>();
+		for (int i = 0; i < CHAINS; i++) {
+			chains.add(new Chain(nRevOrder, i + 1));
+		}
+		if (nThreads == 1) {
+			for (Chain chain : chains) {
+				chain.run(nMoves, nChainTimeLimit);
+			}
+		} else {
+			ExecutorService exec = Executors.newFixedThreadPool(nThreads);
+			try {
+				List<Future<?>> futures = new ArrayList<>();
+				for (final Chain chain : chains) {
+					futures.add(exec.submit(() -> chain.run(nMoves, nChainTimeLimit)));
+				}
+				for (Future<?> future : futures) {
+					future.get();
+				}
+			} finally {
+				exec.shutdown();
+			}
+		}
+
+		// pick best chain, rescoring to avoid rounding errors accumulated over moves
+		int [] nBest = nRevOrder;
+		double fBest = score(nRevOrder);
+		for (Chain chain : chains) {
+			double fScore = score(chain.m_nBestRevOrder);
+			if (fScore < fBest) {
+				fBest = fScore;
+				nBest = chain.m_nBestRevOrder;
+			}
+		}
+		return nBest.clone();
+	}
+
+	/** score of order given as taxon at every position **/
+	double score(int [] nRevOrder) {
+		return partialScore(nRevOrder, 0, nRevOrder.length);
+	}
+
+	/** sum over pairs within WINDOW with at least one position in [iStart, iEnd), and possibly some pairs around the block **/
+	double partialScore(int [] nRevOrder, int iStart, int iEnd) {
+		int n = nRevOrder.length;
+		double fScore = 0;
+		for (int p = Math.max(0, iStart - WINDOW); p < iEnd; p++) {
+			int iTaxon = nRevOrder[p] * m_nNrOfLabels;
+			int qEnd = Math.min(n, p + WINDOW + 1);
+			for (int q = (p < iStart ? iStart : p + 1); q < qEnd; q++) {
+				fScore += m_fDist[iTaxon + nRevOrder[q]] * m_fWeight[q - p];
+			}
+		}
+		return fScore;
+	}
+
+	/** annealing chain with its own random number generator and current order **/
+	class Chain {
+		Random m_random;
+		int [] m_nRevOrder;
+		int [] m_nPosition;
+		int [] m_nBestRevOrder;
+
+		Chain(int [] nRevOrder, long nSeed) {
+			m_random = new Random(nSeed);
+			m_nRevOrder = nRevOrder.clone();
+			m_nBestRevOrder = nRevOrder.clone();
+			m_nPosition = new int[m_nNrOfLabels];
+			for (int i = 0; i < m_nRevOrder.length; i++) {
+				m_nPosition[m_nRevOrder[i]] = i;
+			}
+		}
+
+		void run(long nMoves, long nTimeLimit) {
+			long nDeadline = System.currentTimeMillis() + nTimeLimit;
+			double fScore = score(m_nRevOrder);
+			double fBestScore = fScore;
+			int [] nMove = new int[4];
+
+			// initial temperature is the mean change of score of random moves
+			double fT0 = 0;
+			int nSampled = 0;
+			for (int i = 0; i < 100; i++) {
+				if (sampleMove(nMove)) {
+					double fDelta = doMove(nMove);
+					undoMove(nMove);
+					fT0 += Math.abs(fDelta);
+					nSampled++;
+				}
+			}
+			if (nSampled == 0 || fT0 == 0) {
+				return;
+			}
+			fT0 /= nSampled;
+			double fT = fT0;
+
+			for (long nIteration = 1; nIteration <= nMoves; nIteration++) {
+				if (nIteration % CHECK_INTERVAL == 0) {
+					if (System.currentTimeMillis() >= nDeadline || Thread.currentThread().isInterrupted()) {
+						break;
+					}
+					fT = fT0 * Math.pow(COOLING, (double) nIteration / nMoves);
+				}
+				if (!sampleMove(nMove)) {
+					continue;
+				}
+				double fDelta = doMove(nMove);
+				if (fDelta <= 0 || m_random.nextDouble() < Math.exp(-fDelta / fT)) {
+					fScore += fDelta;
+					if (fScore < fBestScore) {
+						fBestScore = fScore;
+						System.arraycopy(m_nRevOrder, 0, m_nBestRevOrder, 0, m_nRevOrder.length);
+					}
+				} else {
+					undoMove(nMove);
+				}
+			}
+		}
+
+		/**
+		 * sample move on a clade whose taxa are contiguous in the current order
+		 * @param nMove set to start and end of block, and position to rotate at, or -1 to reverse
+		 * @return false if the sampled clade is not contiguous
+		 */
+		boolean sampleMove(int [] nMove) {
+			double fWeight = m_random.nextDouble() * m_fCumulativeWeight[m_fCumulativeWeight.length - 1];
+			int iClade = java.util.Arrays.binarySearch(m_fCumulativeWeight, fWeight);
+			if (iClade < 0) {
+				iClade = -iClade - 1;
+			}
+			iClade = Math.min(iClade, m_clades.length - 1);
+			int [] clade = m_clades[iClade];
+			int iMin = m_nRevOrder.length;
+			int iMax = -1;
+			for (int iTaxon : clade) {
+				int iPos = m_nPosition[iTaxon];
+				iMin = Math.min(iMin, iPos);
+				iMax = Math.max(iMax, iPos);
+			}
+			if (iMax - iMin + 1 != clade.length) {
+				return false;
+			}
+			nMove[0] = iMin;
+			nMove[1] = iMax + 1;
+			// rotate the block at a random position, or reverse it
+			nMove[2] = m_random.nextBoolean() ? iMin + 1 + m_random.nextInt(clade.length - 1) : -1;
+			return true;
+		}
+
+		/** apply move and return change in score **/
+		double doMove(int [] nMove) {
+			int iStart = nMove[0], iEnd = nMove[1], iRotate = nMove[2];
+			double fBefore = partialScore(m_nRevOrder, iStart, iEnd);
+			if (iRotate < 0) {
+				reverse(iStart, iEnd);
+			} else {
+				rotate(iStart, iRotate, iEnd);
+			}
+			return partialScore(m_nRevOrder, iStart, iEnd) - fBefore;
+		}
+
+		void undoMove(int [] nMove) {
+			int iStart = nMove[0], iEnd = nMove[1], iRotate = nMove[2];
+			if (iRotate < 0) {
+				reverse(iStart, iEnd);
+			} else {
+				rotate(iStart, iStart + iEnd - iRotate, iEnd);
+			}
+		}
+
+		/** move block [iRotate, iEnd) in front of [iStart, iRotate) **/
+		void rotate(int iStart, int iRotate, int iEnd) {
+			reverse(iStart, iRotate);
+			reverse(iRotate, iEnd);
+			reverse(iStart, iEnd);
+		}
+
+		void reverse(int iStart, int iEnd) {
+			for (int i = iStart, j = iEnd - 1; i < j; i++, j--) {
+				int tmp = m_nRevOrder[i];
+				m_nRevOrder[i] = m_nRevOrder[j];
+				m_nRevOrder[j] = tmp;
+			}
+			for (int i = iStart; i < iEnd; i++) {
+				m_nPosition[m_nRevOrder[i]] = i;
+			}
+		}
+	} // class Chain
+
+} // class OrderOptimiser
@@ -0,0 +1,318 @@
+/*
+ * This program is free software; you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation; either version 2 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program; if not, write to the Free Software
+ * Foundation, Inc., 675 Mass Ave, Cambridge, MA 02139, USA.
+ */
+package viz;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream for gzip compressed tree files that decompresses in the
+ * background, so decompression runs in parallel with parsing.
+ *
+ * BGZF files (as produced by bgzip) consist of independent gzip members
+ * that record their compressed size in the header, so blocks can be
+ * inflated in parallel by a pool of threads. Ordinary (possibly multi-member)
+ * gzip files are inflated by a single thread that reads ahead of the consumer.
+ **/
+public class ParallelGZIPInputStream extends InputStream {
+	/** gzip header constants **/
+	final static int GZIP_MAGIC1 = 0x1f, GZIP_MAGIC2 = 0x8b, FEXTRA = 4;
+	/** size of decompressed chunks for ordinary gzip files **/
+	final static int CHUNK_SIZE = 1 << 20;
+	/** marks end of stream in the queue of decompressed blocks **/
+	final static byte [] END = new byte[0];
+
+	/** decompressed blocks, in file order **/
+	BlockingQueue<Future<byte[]>> m_blocks;
+	/** thread reading the compressed file **/
+	Thread m_reader;
+	/** pool inflating BGZF blocks, null for ordinary gzip **/
+	ExecutorService m_exec;
+
+	/** current block and read position in the current block **/
+	byte [] m_block = new byte[0];
+	int m_iPos;
+	boolean m_bEOF = false;
+
+	/** check whether the file starts with the gzip magic bytes **/
+	public static boolean isGZIP(File file) {
+		try (FileInputStream in = new FileInputStream(file)) {
+			return in.read() == GZIP_MAGIC1 && in.read() == GZIP_MAGIC2;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** check whether the file is BGZF, that is, the first gzip member has a BC extra field **/
+	public static boolean isBGZF(File file) {
+		try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+			byte [] header = new byte[18];
+			in.readFully(header);
+			return (header[0] & 0xff) == GZIP_MAGIC1 && (header[1] & 0xff) == GZIP_MAGIC2 &&
+					(header[3] & FEXTRA) != 0 && header[12] == 'B' && header[13] == 'C';
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/** open file for reading, decompressing it on the fly if it is gzip compressed **/
+	public static InputStream open(File file) throws IOException {
+		if (isGZIP(file)) {
+			return new ParallelGZIPInputStream(file);
+		}
+		return new FileInputStream(file);
+	}
+
+	public ParallelGZIPInputStream(File file) throws IOException {
+		final boolean bBGZF = isBGZF(file);
+		final int nThreads = bBGZF ? Runtime.getRuntime().availableProcessors() : 1;
+		// bound the read ahead to limit memory use
+		m_blocks = new ArrayBlockingQueue<Future<byte[]>>(4 * nThreads + 4);
+		if (bBGZF) {
+			// daemon threads, so a stream that is not closed does not keep the JVM alive
+			m_exec = Executors.newFixedThreadPool(nThreads, r -> {
+				Thread thread = new Thread(r, "gzip inflater " + file.getName());
+				thread.setDaemon(true);
+				return thread;
+			});
+		}
+		final InputStream in = new BufferedInputStream(new FileInputStream(file), CHUNK_SIZE);
+		m_reader = new Thread("gzip reader " + file.getName()) {
+			@Override
+			public void run() {
+				try {
+					if (bBGZF) {
+						readBlocks(new DataInputStream(in));
+					} else {
+						readStream(new GZIPInputStream(in, CHUNK_SIZE));
+					}
+					m_blocks.put(done(END));
+				} catch (InterruptedException e) {
+					// stream was closed
+				} catch (final Exception e) {
+					try {
+						m_blocks.put(failed(e));
+					} catch (InterruptedException e1) {
+						// stream was closed
+					}
+				} finally {
+					try {
+						in.close();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		};
+		m_reader.setDaemon(true);
+		m_reader.start();
+	}
+
+	/** split BGZF file into gzip members and inflate them in the thread pool **/
+	private void readBlocks(DataInputStream in) throws IOException, InterruptedException {
+		byte [] header = new byte[12];
+		while (true) {
+			try {
+				in.readFully(header);
+			} catch (EOFException e) {
+				return;
+			}
+			if ((header[0] & 0xff) != GZIP_MAGIC1 || (header[1] & 0xff) != GZIP_MAGIC2 || (header[3] & FEXTRA) == 0) {
+				throw new IOException("Not a BGZF block");
+			}
+			int nExtraLen = (header[10] & 0xff) | ((header[11] & 0xff) << 8);
+			byte [] extra = new byte[nExtraLen];
+			in.readFully(extra);
+			int nBlockSize = -1;
+			for (int i = 0; i + 4 <= nExtraLen; ) {
+				int nLen = (extra[i + 2] & 0xff) | ((extra[i + 3] & 0xff) << 8);
+				if (extra[i] == 'B' && extra[i + 1] == 'C' && nLen == 2) {
+					nBlockSize = ((extra[i + 4] & 0xff) | ((extra[i + 5] & 0xff) << 8)) + 1;
+				}
+				i += 4 + nLen;
+			}
+			if (nBlockSize < 0) {
+				throw new IOException("BGZF block without block size");
+			}
+			// compressed data, followed by CRC32 and uncompressed size
+			final byte [] data = new byte[nBlockSize - header.length - nExtraLen];
+			in.readFully(data);
+			m_blocks.put(m_exec.submit(new Callable<byte[]>() {
+				@Override
+				public byte[] call() throws Exception {
+					return inflate(data);
+				}
+			}));
+		}
+	}
+
+	/** inflate deflated data of a BGZF block, and check its CRC **/
+	private static byte [] inflate(byte [] data) throws IOException, DataFormatException {
+		int n = data.length;
+		int nCRC = (data[n - 8] & 0xff) | ((data[n - 7] & 0xff) << 8) | ((data[n - 6] & 0xff) << 16) | ((data[n - 5] & 0xff) << 24);
+		int nSize = (data[n - 4] & 0xff) | ((data[n - 3] & 0xff) << 8) | ((data[n - 2] & 0xff) << 16) | ((data[n - 1] & 0xff) << 24);
+		byte [] out = new byte[nSize];
+		Inflater inflater = new Inflater(true);
+		try {
+			inflater.setInput(data, 0, n - 8);
+			int nDone = 0;
+			while (nDone < nSize && !inflater.finished()) {
+				int k = inflater.inflate(out, nDone, nSize - nDone);
+				if (k == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+					break;
+				}
+				nDone += k;
+			}
+			if (nDone != nSize) {
+				throw new IOException("Truncated BGZF block");
+			}
+		} finally {
+			inflater.end();
+		}
+		CRC32 crc = new CRC32();
+		crc.update(out, 0, nSize);
+		if ((int) crc.getValue() != nCRC) {
+			throw new IOException("CRC error in BGZF block");
+		}
+		return out;
+	}
+
+	/** inflate ordinary gzip stream ahead of the consumer **/
+	private void readStream(InputStream in) throws IOException, InterruptedException {
+		while (true) {
+			byte [] chunk = new byte[CHUNK_SIZE];
+			int n = 0;
+			while (n < chunk.length) {
+				int k = in.read(chunk, n, chunk.length - n);
+				if (k < 0) {
+					break;
+				}
+				n += k;
+			}
+			if (n == 0) {
+				return;
+			}
+			if (n < chunk.length) {
+				byte [] tmp = new byte[n];
+				System.arraycopy(chunk, 0, tmp, 0, n);
+				chunk = tmp;
+			}
+			m_blocks.put(done(chunk));
+		}
+	}
+
+	private static Future<byte[]> done(final byte [] block) {
+		FutureTask<byte[]> future = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return block;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	private static Future<byte[]> failed(final Exception e) {
+		FutureTask<byte[]> future = new FutureTask<byte[]>(new Callable<byte[]>() {
+			@Override
+			public byte[] call() throws Exception {
+				throw e;
+			}
+		});
+		future.run();
+		return future;
+	}
+
+	/** make sure the current block has data available, unless the end of the stream is reached **/
+	private boolean fill() throws IOException {
+		while (m_iPos >= m_block.length) {
+			if (m_bEOF) {
+				return false;
+			}
+			try {
+				m_block = m_blocks.take().get();
+			} catch (InterruptedException e) {
+				throw new IOException("Interrupted while decompressing", e);
+			} catch (ExecutionException e) {
+				throw new IOException("Could not decompress: " + e.getCause().getMessage(), e.getCause());
+			}
+			m_iPos = 0;
+			if (m_block == END) {
+				m_bEOF = true;
+				return false;
+			}
+		}
+		return true;
+	}
+
+	@Override
+	public int read() throws IOException {
+		if (!fill()) {
+			return -1;
+		}
+		return m_block[m_iPos++] & 0xff;
+	}
+
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!fill()) {
+			return -1;
+		}
+		int n = Math.min(len, m_block.length - m_iPos);
+		System.arraycopy(m_block, m_iPos, b, off, n);
+		m_iPos += n;
+		return n;
+	}
+
+	/** blocks till the next block is decompressed, so that 0 is only returned at the end of the stream **/
+	@Override
+	public int available() throws IOException {
+		if (!fill()) {
+			return 0;
+		}
+		return m_block.length - m_iPos;
+	}
+
+	@Override
+	public void close() throws IOException {
+		m_bEOF = true;
+		m_block = END;
+		m_reader.interrupt();
+		if (m_exec != null) {
+			m_exec.shutdownNow();
+		}
+	}
+} // class ParallelGZIPInputStream
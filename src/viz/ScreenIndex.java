@@ -0,0 +1,231 @@
+package viz;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+
+/**
+ * Uniform grid over screen space for finding items near a point or overlapping
+ * a rectangle, e.g. labels, rotation points or clade markers under the mouse,
+ * without visiting every item. Items are boxes, indexed by their position in the
+ * arrays the index is built from. The index is immutable, so it has to be rebuilt
+ * when items move, i.e. when layout or zoom changes.
+ *
+ * Queries return candidates whose box overlaps the query box; callers still do
+ * their own (exact) test on the candidates.
+ **/
+public class ScreenIndex {
+	/** preferred width and height of a grid cell in pixels **/
+	final static int CELL_SIZE = 32;
+	/** half the width of the box around a rotation point, see RotationPoint.intersects **/
+	final static int ROTATION_POINT_RADIUS = 5;
+
+	/** item boxes **/
+	int [] m_nX;
+	int [] m_nY;
+	int [] m_nW;
+	int [] m_nH;
+
+	/** grid covering all boxes **/
+	int m_nMinX, m_nMinY;
+	int m_nCellSize;
+	int m_nCols, m_nRows;
+	/** items in cell c are m_nCellItems[m_nCellStart[c]...m_nCellStart[c+1]-1] **/
+	int [] m_nCellStart;
+	int [] m_nCellItems;
+
+	/** last query an item was reported in, to report items spanning several cells once **/
+	int [] m_nStamp;
+	int m_nQuery;
+
+	/**
+	 * build index of boxes; boxes with zero width or height are treated as one pixel wide or high,
+	 * boxes with negative width are left out
+	 * @param nX, nY top left corner of each box
+	 * @param nW, nH width and height of each box
+	 */
+	public ScreenIndex(int [] nX, int [] nY, int [] nW, int [] nH) {
+		int n = nX.length;
+		m_nX = nX;
+		m_nY = nY;
+		m_nW = new int[n];
+		m_nH = new int[n];
+		m_nStamp = new int[n];
+		int nMinX = Integer.MAX_VALUE, nMinY = Integer.MAX_VALUE;
+		int nMaxX = Integer.MIN_VALUE, nMaxY = Integer.MIN_VALUE;
+		int nIndexed = 0;
+		for (int i = 0; i < n; i++) {
+			if (nW[i] < 0) {
+				m_nW[i] = -1;
+				continue;
+			}
+			nIndexed++;
+			m_nW[i] = Math.max(1, nW[i]);
+			m_nH[i] = Math.max(1, nH[i]);
+			nMinX = Math.min(nMinX, nX[i]);
+			nMinY = Math.min(nMinY, nY[i]);
+			nMaxX = Math.max(nMaxX, nX[i] + m_nW[i] - 1);
+			nMaxY = Math.max(nMaxY, nY[i] + m_nH[i] - 1);
+		}
+		if (nIndexed == 0) {
+			nMinX = nMinY = nMaxX = nMaxY = 0;
+		}
+		m_nMinX = nMinX;
+		m_nMinY = nMinY;
+
+		// grow cells if items are spread so widely that the grid gets much larger than the nr of items
+		long nMaxCells = Math.max(1024, 4L * nIndexed);
+		m_nCellSize = CELL_SIZE;
+		while (((long) nMaxX - nMinX) / m_nCellSize + 1 > nMaxCells / (((long) nMaxY - nMinY) / m_nCellSize + 1)) {
+			m_nCellSize *= 2;
+		}
+		m_nCols = (int)(((long) nMaxX - nMinX) / m_nCellSize + 1);
+		m_nRows = (int)(((long) nMaxY - nMinY) / m_nCellSize + 1);
+
+		// count items per cell, then fill cells
+		m_nCellStart = new int[m_nCols * m_nRows + 1];
+		for (int i = 0; i < n; i++) {
+			if (m_nW[i] < 0) {
+				continue;
+			}
+			for (int iRow = row(m_nY[i]); iRow <= row(m_nY[i] + m_nH[i] - 1); iRow++) {
+				for (int iCol = col(m_nX[i]); iCol <= col(m_nX[i] + m_nW[i] - 1); iCol++) {
+					m_nCellStart[iRow * m_nCols + iCol + 1]++;
+				}
+			}
+		}
+		for (int c = 0; c < m_nCols * m_nRows; c++) {
+			m_nCellStart[c + 1] += m_nCellStart[c];
+		}
+		m_nCellItems = new int[m_nCellStart[m_nCols * m_nRows]];
+		int [] nFill = Arrays.copyOf(m_nCellStart, m_nCols * m_nRows);
+		for (int i = 0; i < n; i++) {
+			if (m_nW[i] < 0) {
+				continue;
+			}
+			for (int iRow = row(m_nY[i]); iRow <= row(m_nY[i] + m_nH[i] - 1); iRow++) {
+				for (int iCol = col(m_nX[i]); iCol <= col(m_nX[i] + m_nW[i] - 1); iCol++) {
+					m_nCellItems[nFill[iRow * m_nCols + iCol]++] = i;
+				}
+			}
+		}
+	}
+
+	/** index of label or geo rectangles; null entries are never reported **/
+	public static ScreenIndex of(Rectangle [] rectangles) {
+		int n = rectangles.length;
+		int [] nX = new int[n], nY = new int[n], nW = new int[n], nH = new int[n];
+		for (int i = 0; i < n; i++) {
+			Rectangle r = rectangles[i];
+			if (r != null) {
+				nX[i] = r.x;
+				nY[i] = r.y;
+				nW[i] = r.width;
+				nH[i] = r.height;
+			} else {
+				nW[i] = -1;
+			}
+		}
+		return new ScreenIndex(nX, nY, nW, nH);
+	}
+
+	/**
+	 * index of rotation points, with a box around each point that contains all
+	 * positions RotationPoint.intersects accepts; null entries are never reported
+	 **/
+	public static ScreenIndex of(RotationPoint [] points) {
+		int n = points.length;
+		int [] nX = new int[n], nY = new int[n], nW = new int[n], nH = new int[n];
+		for (int i = 0; i < n; i++) {
+			if (points[i] != null) {
+				nX[i] = points[i].m_nX - ROTATION_POINT_RADIUS;
+				nY[i] = points[i].m_nY - ROTATION_POINT_RADIUS;
+				nW[i] = 2 * ROTATION_POINT_RADIUS;
+				nH[i] = 2 * ROTATION_POINT_RADIUS;
+			} else {
+				nW[i] = -1;
+			}
+		}
+		return new ScreenIndex(nX, nY, nW, nH);
+	}
+
+	/** nr of items in the index **/
+	public int size() {
+		return m_nX.length;
+	}
+
+	/** items whose box contains point (nX, nY), in increasing order **/
+	public int [] query(int nX, int nY) {
+		return query(nX, nY, 1, 1);
+	}
+
+	/** items whose box overlaps rectangle r, in increasing order **/
+	public int [] query(Rectangle r) {
+		return query(r.x, r.y, r.width, r.height);
+	}
+
+	/**
+	 * items whose box overlaps the given box, in increasing order, so callers
+	 * visit items in the same order as a loop over all items would
+	 **/
+	public int [] query(int nX, int nY, int nW, int nH) {
+		nW = Math.max(1, nW);
+		nH = Math.max(1, nH);
+		long nRight = (long) nX + nW - 1;
+		long nBottom = (long) nY + nH - 1;
+		int iCol0 = Math.max(0, colClamped(nX)), iCol1 = Math.min(m_nCols - 1, colClamped(nRight));
+		int iRow0 = Math.max(0, rowClamped(nY)), iRow1 = Math.min(m_nRows - 1, rowClamped(nBottom));
+		if (iCol0 > iCol1 || iRow0 > iRow1) {
+			return new int[0];
+		}
+		if (++m_nQuery == 0) {
+			Arrays.fill(m_nStamp, 0);
+			m_nQuery = 1;
+		}
+		int [] nItems = new int[8];
+		int nFound = 0;
+		for (int iRow = iRow0; iRow <= iRow1; iRow++) {
+			for (int iCol = iCol0; iCol <= iCol1; iCol++) {
+				int c = iRow * m_nCols + iCol;
+				for (int k = m_nCellStart[c]; k < m_nCellStart[c + 1]; k++) {
+					int i = m_nCellItems[k];
+					if (m_nStamp[i] != m_nQuery
+							&& m_nX[i] <= nRight && nX <= (long) m_nX[i] + m_nW[i] - 1
+							&& m_nY[i] <= nBottom && nY <= (long) m_nY[i] + m_nH[i] - 1) {
+						m_nStamp[i] = m_nQuery;
+						if (nFound == nItems.length) {
+							nItems = Arrays.copyOf(nItems, nFound * 2);
+						}
+						nItems[nFound++] = i;
+					}
+				}
+			}
+		}
+		nItems = Arrays.copyOf(nItems, nFound);
+		Arrays.sort(nItems);
+		return nItems;
+	}
+
+	private int col(int nX) {
+		return (int)(((long) nX - m_nMinX) / m_nCellSize);
+	}
+
+	private int row(int nY) {
+		return (int)(((long) nY - m_nMinY) / m_nCellSize);
+	}
+
+	/** column of nX, -1 left of the grid and m_nCols right of it **/
+	private int colClamped(long nX) {
+		if (nX < m_nMinX) {
+			return -1;
+		}
+		return (int) Math.min(m_nCols, (nX - m_nMinX) / m_nCellSize);
+	}
+
+	private int rowClamped(long nY) {
+		if (nY < m_nMinY) {
+			return -1;
+		}
+		return (int) Math.min(m_nRows, (nY - m_nMinY) / m_nCellSize);
+	}
+
+} // class ScreenIndex
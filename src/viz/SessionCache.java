@@ -0,0 +1,429 @@
+package viz;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+import viz.ccd.AbstractCCD;
+import viz.ccd.CCDGraphFile;
+import viz.ccd.CCDType;
+import viz.ccd.Tree;
+
+/**
+ * Sidecar file (tree file name + ".dtcache") containing data derived from a tree set
+ * that is expensive to calculate, so that reopening a tree file with the same burn-in,
+ * thinning and settings skips the work: tree order and topology grouping,
+ * the clade table, clade numbers of consensus trees, the summary tree,
+ * the root canal tree and the taxon order.
+ *
+ * The cache is only used if the key, consisting of a fingerprint of the tree
+ * file and the settings the derived data depends on, matches. The cache file
+ * is memory mapped when read.
+ *
+ * CCD graphs are stored in separate files (tree file name + ".ccd0.dtcache" etc.,
+ * see CCDGraphFile) that only depend on the tree set, so they remain valid when
+ * settings change, and can be added after the session cache is written.
+ */
+public class SessionCache {
+	final static byte [] MAGIC = {'D', 'T', 'S', 'C'};
+	final static int VERSION = 1;
+	public final static String EXTENSION = ".dtcache";
+
+	final static int TOPOLOGY = 0, CLADES = 1, SUMMARY_TREES = 2, ORDER = 3, SECTIONS = 4;
+
+	/** file containing the cache **/
+	File m_file;
+	/** tree file the cache belongs to **/
+	String m_sTreeFile;
+	/** fingerprint of tree file and the trees used from it, which the CCD graphs depend on **/
+	String m_sTreeKey;
+	/** settings and fingerprint of tree file the cache content depends on **/
+	String m_sKey;
+	/** memory mapped content of cache file, null if no valid cache is available **/
+	ByteBuffer m_buf;
+	/** start of sections in m_buf **/
+	int [] m_iSection = new int[SECTIONS];
+
+	/** file order of trees, and topology nr of trees after sorting by topology **/
+	int [] m_iTreeOrder;
+	int [] m_nTopology;
+	/** taxon order and the method it was calculated with **/
+	int [] m_nOrder;
+	int m_nOrderMethod = -1;
+
+	/** 
+	 * create cache for tree file sFile, and load content if it is valid for the given keys
+	 * @param sTreeKey describes which trees from the file are used
+	 * @param sSettingsKey describes the settings derived data depends on
+	 */
+	SessionCache(String sFile, String sTreeKey, String sSettingsKey) {
+		m_file = new File(sFile + EXTENSION);
+		m_sTreeFile = sFile;
+		m_sTreeKey = fingerprint(new File(sFile)) + sTreeKey;
+		m_sKey = m_sTreeKey + sSettingsKey;
+		if (!m_file.exists() || m_file.length() > Integer.MAX_VALUE) {
+			return;
+		}
+		try (RandomAccessFile raf = new RandomAccessFile(m_file, "r")) {
+			ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+			for (int i = 0; i < MAGIC.length; i++) {
+				if (buf.get() != MAGIC[i]) {
+					return;
+				}
+			}
+			if (buf.getInt() != VERSION || !readString(buf).equals(m_sKey)) {
+				System.err.println("Session cache " + m_file.getName() + " is out of date");
+				return;
+			}
+			for (int i = 0; i < SECTIONS; i++) {
+				m_iSection[i] = buf.getInt();
+			}
+			// read tree order and taxon order, which are needed before the clades
+			buf.position(m_iSection[TOPOLOGY]);
+			m_iTreeOrder = readInts(buf);
+			m_nTopology = readInts(buf);
+			buf.position(m_iSection[ORDER]);
+			m_nOrderMethod = buf.getInt();
+			m_nOrder = readInts(buf);
+			if (m_nOrder.length == 0) {
+				m_nOrder = null;
+			}
+			m_buf = buf;
+			System.err.println("Using session cache " + m_file.getName());
+		} catch (Exception e) {
+			System.err.println("Could not read session cache " + m_file.getName() + ": " + e.getMessage());
+			m_buf = null;
+		}
+	}
+
+	/** whether valid cached data was found **/
+	boolean isLoaded() {
+		return m_buf != null;
+	}
+
+	/** return cached taxon order if it was calculated with method nMethod, null otherwise **/
+	int [] getOrder(int nMethod) {
+		if (m_nOrder != null && nMethod == m_nOrderMethod) {
+			return m_nOrder.clone();
+		}
+		return null;
+	}
+
+	void setOrder(int nMethod, int [] nOrder) {
+		m_nOrderMethod = nMethod;
+		m_nOrder = nOrder.clone();
+	}
+
+	private File getCCDFile(CCDType type) {
+		return new File(m_sTreeFile + "." + type.toString().toLowerCase() + EXTENSION);
+	}
+
+	/**
+	 * restore CCD graph of given type stored for the tree set, so the trees do not need to be processed again
+	 * @param tree one of the trees of the tree set, used for taxon names
+	 * @return null if no valid CCD graph is stored
+	 */
+	public AbstractCCD readCCD(CCDType type, Tree tree) {
+		File file = getCCDFile(type);
+		try {
+			AbstractCCD ccd = CCDGraphFile.read(file, m_sTreeKey, tree);
+			if (ccd != null) {
+				System.err.println("Using CCD graph from " + file.getName());
+			}
+			return ccd;
+		} catch (IOException e) {
+			System.err.println("Could not read CCD graph " + file.getName() + ": " + e.getMessage());
+			return null;
+		}
+	}
+
+	/** store CCD graph of given type for the tree set. Failure to write is not fatal **/
+	public void saveCCD(CCDType type, AbstractCCD ccd) {
+		File file = getCCDFile(type);
+		try {
+			CCDGraphFile.write(ccd, m_sTreeKey, file);
+			System.err.println("Written CCD graph " + file.getName());
+		} catch (Exception e) {
+			System.err.println("Could not write CCD graph " + file.getName() + ": " + e.getMessage());
+			file.delete();
+		}
+	}
+
+	/** cheap fingerprint of a file: size, modification time and hash of start and end of the file **/
+	static String fingerprint(File file) {
+		long nHash = 0;
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			byte [] bytes = new byte[1 << 16];
+			int n = raf.read(bytes);
+			for (int i = 0; i < n; i++) {
+				nHash = 31 * nHash + bytes[i];
+			}
+			if (raf.length() > bytes.length) {
+				raf.seek(Math.max(bytes.length, raf.length() - bytes.length));
+				n = raf.read(bytes);
+				for (int i = 0; i < n; i++) {
+					nHash = 31 * nHash + bytes[i];
+				}
+			}
+		} catch (IOException e) {
+			// file cannot be read, so the cache will not match anyway
+		}
+		return "size=" + file.length() + " modified=" + file.lastModified() + " hash=" + Long.toHexString(nHash);
+	}
+
+	/**
+	 * set clade table, clade numbers of trees, summary and root canal tree from the cache
+	 * @return false if there is no valid cache
+	 */
+	boolean restoreClades(TreeData td) {
+		if (m_buf == null) {
+			return false;
+		}
+		try {
+			ByteBuffer buf = m_buf.duplicate();
+			buf.position(m_iSection[CLADES]);
+			int nClades = buf.getInt();
+			td.m_clades = new ArrayList<int[]>(nClades);
+			td.m_cladeWeight = new ArrayList<Double>(nClades);
+			td.m_cladeHeight = new ArrayList<Double>(nClades);
+			td.m_cladeHeight95HPDup = new ArrayList<Double>(nClades);
+			td.m_cladeHeight95HPDdown = new ArrayList<Double>(nClades);
+			td.m_cladeChildren = new ArrayList<List<ChildClade>>(nClades);
+			td.mapCladeToIndex = new HashMap<String, Integer>();
+			for (int i = 0; i < nClades; i++) {
+				int [] clade = readInts(buf);
+				td.m_clades.add(clade);
+				td.m_cladeWeight.add(buf.getDouble());
+				td.m_cladeHeight.add(buf.getDouble());
+				td.m_cladeHeight95HPDup.add(buf.getDouble());
+				td.m_cladeHeight95HPDdown.add(buf.getDouble());
+				int nChildren = buf.getInt();
+				List<ChildClade> children = new ArrayList<ChildClade>(nChildren);
+				for (int j = 0; j < nChildren; j++) {
+					ChildClade child = new ChildClade();
+					child.m_iLeft = buf.getInt();
+					child.m_iRight = buf.getInt();
+					child.m_fWeight = buf.getDouble();
+					children.add(child);
+				}
+				td.m_cladeChildren.add(children);
+			}
+			int [] reverseindex = readInts(buf);
+			td.reverseindex = new Integer[reverseindex.length];
+			for (int i = 0; i < reverseindex.length; i++) {
+				td.reverseindex[i] = reverseindex[i];
+			}
+			// mapCladeToIndex maps onto clade nrs before sorting clades by weight, 
+			// which reverseindex maps onto the current clade nrs
+			for (int i = 0; i < reverseindex.length; i++) {
+				td.mapCladeToIndex.put(Arrays.toString(td.m_clades.get(reverseindex[i])), i);
+			}
+			td.m_cladePosition = new float[nClades];
+			td.m_cladePairs = new HashMap<Integer, Double>();
+			int nPairs = buf.getInt();
+			for (int i = 0; i < nPairs; i++) {
+				td.m_cladePairs.put(buf.getInt(), buf.getDouble());
+			}
+			// clade nrs of consensus trees, and from those the clade nrs of the trees
+			for (Node tree : td.m_cTrees) {
+				int [] iClade = readInts(buf);
+				setCladeNr(tree, iClade, 0);
+			}
+			for (int i = 0; i < td.m_trees.length; i++) {
+				setLeafCladeNr(td.m_trees[i]);
+				td.setCladeNr(td.m_trees[i], td.m_cTrees[td.m_nTopologyByPopularity[i]]);
+			}
+
+			buf.position(m_iSection[SUMMARY_TREES]);
+			td.m_summaryTree = new ArrayList<Node>();
+			td.m_summaryTree.add(readTree(buf));
+			td.m_rootcanaltree = readTree(buf);
+			for (Node tree : new Node[]{td.m_summaryTree.get(0), td.m_rootcanaltree}) {
+				float fHeight = td.positionHeight(tree, 0);
+				td.offsetHeight(tree, td.m_dt.m_fHeight - fHeight);
+			}
+			return true;
+		} catch (Exception e) {
+			System.err.println("Could not restore clades from session cache: " + e.getMessage());
+			m_buf = null;
+			return false;
+		}
+	} // restoreClades
+
+	private int setCladeNr(Node node, int [] iClade, int iPos) {
+		node.m_iClade = iClade[iPos++];
+		if (!node.isLeaf()) {
+			iPos = setCladeNr(node.m_left, iClade, iPos);
+			if (node.m_right != null) {
+				iPos = setCladeNr(node.m_right, iClade, iPos);
+			}
+		}
+		return iPos;
+	}
+
+	/** leafs of trees have clade nr equal to their label, as in TreeData.calcClades **/
+	private void setLeafCladeNr(Node node) {
+		if (node.isLeaf()) {
+			node.m_iClade = node.getNr();
+		} else {
+			setLeafCladeNr(node.m_left);
+			if (node.m_right != null) {
+				setLeafCladeNr(node.m_right);
+			}
+		}
+	}
+
+	/** write derived data of td to the cache file. Failure to write is not fatal **/
+	void save(TreeData td) {
+		try {
+			ByteArrayOutputStream [] sections = new ByteArrayOutputStream[SECTIONS];
+			DataOutputStream [] out = new DataOutputStream[SECTIONS];
+			for (int i = 0; i < SECTIONS; i++) {
+				sections[i] = new ByteArrayOutputStream();
+				out[i] = new DataOutputStream(sections[i]);
+			}
+
+			writeInts(out[TOPOLOGY], m_iTreeOrder);
+			writeInts(out[TOPOLOGY], m_nTopology);
+
+			DataOutputStream o = out[CLADES];
+			o.writeInt(td.m_clades.size());
+			for (int i = 0; i < td.m_clades.size(); i++) {
+				writeInts(o, td.m_clades.get(i));
+				o.writeDouble(td.m_cladeWeight.get(i));
+				o.writeDouble(td.m_cladeHeight.get(i));
+				o.writeDouble(td.m_cladeHeight95HPDup.get(i));
+				o.writeDouble(td.m_cladeHeight95HPDdown.get(i));
+				List<ChildClade> children = td.m_cladeChildren.get(i);
+				o.writeInt(children.size());
+				for (ChildClade child : children) {
+					o.writeInt(child.m_iLeft);
+					o.writeInt(child.m_iRight);
+					o.writeDouble(child.m_fWeight);
+				}
+			}
+			o.writeInt(td.reverseindex.length);
+			for (Integer i : td.reverseindex) {
+				o.writeInt(i);
+			}
+			o.writeInt(td.m_cladePairs.size());
+			for (Integer i : td.m_cladePairs.keySet()) {
+				o.writeInt(i);
+				o.writeDouble(td.m_cladePairs.get(i));
+			}
+			for (Node tree : td.m_cTrees) {
+				List<Integer> iClade = new ArrayList<Integer>();
+				collectCladeNr(tree, iClade);
+				o.writeInt(iClade.size());
+				for (int i : iClade) {
+					o.writeInt(i);
+				}
+			}
+
+			writeTree(out[SUMMARY_TREES], td.m_summaryTree.get(0));
+			writeTree(out[SUMMARY_TREES], td.m_rootcanaltree);
+
+			out[ORDER].writeInt(m_nOrderMethod);
+			writeInts(out[ORDER], m_nOrder == null ? new int[0] : m_nOrder);
+
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.write(MAGIC);
+			header.writeInt(VERSION);
+			writeString(header, m_sKey);
+			int iOffset = header.size() + 4 * SECTIONS;
+			for (int i = 0; i < SECTIONS; i++) {
+				header.writeInt(iOffset);
+				iOffset += sections[i].size();
+			}
+
+			FileOutputStream fout = new FileOutputStream(m_file);
+			headerBytes.writeTo(fout);
+			for (int i = 0; i < SECTIONS; i++) {
+				sections[i].writeTo(fout);
+			}
+			fout.close();
+			System.err.println("Written session cache " + m_file.getName());
+		} catch (Exception e) {
+			System.err.println("Could not write session cache " + m_file.getName() + ": " + e.getMessage());
+			m_file.delete();
+		}
+	} // save
+
+	private void collectCladeNr(Node node, List<Integer> iClade) {
+		iClade.add(node.m_iClade);
+		if (!node.isLeaf()) {
+			collectCladeNr(node.m_left, iClade);
+			if (node.m_right != null) {
+				collectCladeNr(node.m_right, iClade);
+			}
+		}
+	}
+
+	/** write tree in pre-order, with number of children, label, clade nr and length for every node **/
+	private void writeTree(DataOutputStream out, Node node) throws IOException {
+		out.writeByte(node.isLeaf() ? 0 : (node.m_right == null ? 1 : 2));
+		out.writeInt(node.m_iLabel);
+		out.writeInt(node.m_iClade);
+		out.writeFloat(node.m_fLength);
+		if (!node.isLeaf()) {
+			writeTree(out, node.m_left);
+			if (node.m_right != null) {
+				writeTree(out, node.m_right);
+			}
+		}
+	}
+
+	private Node readTree(ByteBuffer buf) {
+		Node node = new Node();
+		int nChildren = buf.get();
+		node.m_iLabel = buf.getInt();
+		node.m_iClade = buf.getInt();
+		node.m_fLength = buf.getFloat();
+		if (nChildren > 0) {
+			node.m_left = readTree(buf);
+			node.m_left.setParent(node);
+			if (nChildren > 1) {
+				node.m_right = readTree(buf);
+				node.m_right.setParent(node);
+			}
+		}
+		return node;
+	}
+
+	private static void writeInts(DataOutputStream out, int [] values) throws IOException {
+		out.writeInt(values.length);
+		for (int i : values) {
+			out.writeInt(i);
+		}
+	}
+
+	private static int [] readInts(ByteBuffer buf) {
+		int [] values = new int[buf.getInt()];
+		buf.asIntBuffer().get(values);
+		buf.position(buf.position() + 4 * values.length);
+		return values;
+	}
+
+	private static void writeString(DataOutputStream out, String s) throws IOException {
+		byte [] bytes = s.getBytes(StandardCharsets.UTF_8);
+		out.writeInt(bytes.length);
+		out.write(bytes);
+	}
+
+	private static String readString(ByteBuffer buf) {
+		byte [] bytes = new byte[buf.getInt()];
+		buf.get(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+} // class SessionCache
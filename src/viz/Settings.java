@@ -41,6 +41,14 @@ public class Settings {
 	String m_sKMLFile = null;
 
 	public Vector<String> m_sLabels;
+	/** symbol table for looking up label indices in m_sLabels **/
+	LabelTable m_labelTable = new LabelTable();
+
+	/** symbol table for m_sLabels, brought up to date with the current labels **/
+	public LabelTable getLabelTable() {
+		m_labelTable.sync(m_sLabels);
+		return m_labelTable;
+	}
 
 	/** smallest support for it to be considered a clade, default 1% **/
 	public double m_smallestCladeSupport = 0.01;
@@ -108,6 +116,10 @@ public class Settings {
 	/** flag to indicate that single child nodes are allowed **/
 	boolean m_bAllowSingleChild = false;
 
+	/** flag to indicate derived data (clades, order, root canal tree) is stored
+	 * in and read from a sidecar file next to the tree file, see SessionCache **/
+	boolean m_bUseSessionCache = true;
+
 	/** flag to indicate that text should be rotated when root at top **/
 	public boolean m_bRotateTextWhenRootAtTop = false;
 
@@ -0,0 +1,219 @@
+package viz;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Runs the background work of the viewer, i.e. loading tree sets, calculating
+ * clades, ordering, lines, colours, drawing, rogue detection and exporting, as
+ * tasks on a shared pool of daemon threads, instead of starting a thread for every
+ * job and polling flags with sleeps to find out when it is done.
+ *
+ * Every task belongs to a stage, may depend on other tasks, and only starts once
+ * these are finished. Cancellation is cooperative: work checks Task.isCancelled()
+ * between steps and returns early. Work that is cancelled because settings changed
+ * may leave half updated data behind, which is then recalculated by the task taking
+ * its place, see DensiTree.startRecalc. Cancelling a task also cancels
+ * the tasks depending on it that have not started yet.
+ **/
+public class TaskScheduler {
+	/** stages of the pipeline, in the order data flows through them **/
+	public enum Stage {LOAD, CLADES, ORDER, LINES, COLOURS, DRAW, ROGUES, EXPORT}
+
+	/** work done by a task **/
+	public interface Work {
+		void run(Task task) throws Exception;
+	}
+
+	/** receives progress messages of running tasks **/
+	public interface ProgressListener {
+		void progress(Task task, String sMessage);
+	}
+
+	/** handle on submitted work **/
+	public class Task {
+		final Stage m_stage;
+		final String m_sName;
+		final CompletableFuture<Void> m_future = new CompletableFuture<>();
+		volatile boolean m_bCancelled = false;
+
+		Task(Stage stage, String sName) {
+			m_stage = stage;
+			m_sName = sName;
+		}
+
+		public Stage getStage() {
+			return m_stage;
+		}
+
+		public String getName() {
+			return m_sName;
+		}
+
+		/** request the work to stop at its next check; tasks not started yet do not start at all **/
+		public void cancel() {
+			m_bCancelled = true;
+		}
+
+		public boolean isCancelled() {
+			return m_bCancelled;
+		}
+
+		/** true once the work finished, failed, or was cancelled before it started **/
+		public boolean isDone() {
+			return m_future.isDone();
+		}
+
+		/** report progress, e.g. for the status bar **/
+		public void progress(String sMessage) {
+			ProgressListener listener = m_progressListener;
+			if (listener != null && !m_bCancelled) {
+				listener.progress(this, sMessage);
+			}
+		}
+
+		/** wait till the task is done; failures are reported when they happen, so they are not rethrown here **/
+		public void await() throws InterruptedException {
+			try {
+				m_future.get();
+			} catch (ExecutionException e) {
+				// cannot happen: futures are always completed normally
+			}
+		}
+
+		/** wait at most nMilliSeconds, return true if the task is done **/
+		public boolean await(long nMilliSeconds) throws InterruptedException {
+			try {
+				m_future.get(nMilliSeconds, TimeUnit.MILLISECONDS);
+			} catch (ExecutionException | TimeoutException e) {
+				// not done yet
+			}
+			return m_future.isDone();
+		}
+
+		@Override
+		public String toString() {
+			return m_stage + ": " + m_sName;
+		}
+	} // class Task
+
+	ExecutorService m_executor;
+	/** tasks submitted and not done yet **/
+	final List<Task> m_tasks = new ArrayList<>();
+	volatile ProgressListener m_progressListener;
+
+	public TaskScheduler() {
+		m_executor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "DensiTree task");
+			thread.setDaemon(true);
+			return thread;
+		});
+	}
+
+	public void setProgressListener(ProgressListener listener) {
+		m_progressListener = listener;
+	}
+
+	/**
+	 * run work in the background once all dependencies are done.
+	 * If any of the dependencies was cancelled, the work does not run and the task is cancelled as well.
+	 * @param dependencies tasks that need to finish first, null entries are ignored
+	 */
+	public Task submit(Stage stage, String sName, Work work, Task... dependencies) {
+		return schedule(stage, sName, work, true, dependencies);
+	}
+
+	/**
+	 * run work in the background once all predecessors are done, whether they were cancelled or not.
+	 * Used to start new work in a continuation of work that was just cancelled, so the
+	 * caller does not have to wait for the cancelled work to reach its next check.
+	 * @param predecessors tasks that need to finish first, null entries are ignored
+	 */
+	public Task submitAfter(Stage stage, String sName, Work work, List<Task> predecessors) {
+		return schedule(stage, sName, work, false, predecessors.toArray(new Task[0]));
+	}
+
+	Task schedule(Stage stage, String sName, Work work, boolean bInheritCancel, Task [] dependencies) {
+		final Task task = new Task(stage, sName);
+		synchronized (m_tasks) {
+			m_tasks.add(task);
+		}
+		List<CompletableFuture<Void>> futures = new ArrayList<>();
+		for (Task dependency : dependencies) {
+			if (dependency != null) {
+				futures.add(dependency.m_future);
+			}
+		}
+		// cancellation is only passed on from dependencies, not from predecessors
+		final Task [] cancelling = (bInheritCancel ? dependencies : new Task[0]);
+		CompletableFuture.allOf(futures.toArray(new CompletableFuture<?>[0]))
+			.thenRunAsync(() -> execute(task, work, cancelling), m_executor);
+		return task;
+	} // schedule
+
+	void execute(Task task, Work work, Task [] dependencies) {
+		try {
+			for (Task dependency : dependencies) {
+				if (dependency != null && dependency.isCancelled()) {
+					task.cancel();
+				}
+			}
+			if (!task.isCancelled()) {
+				work.run(task);
+			}
+		} catch (Throwable e) {
+			e.printStackTrace();
+			System.err.println("Error in task " + task + (task.isCancelled() ? " (cancelled)" : ""));
+		} finally {
+			synchronized (m_tasks) {
+				m_tasks.remove(task);
+			}
+			task.m_future.complete(null);
+		}
+	} // execute
+
+	/** cancel all tasks of the given stages that are not done yet **/
+	public void cancel(Stage... stages) {
+		for (Task task : getTasks(stages)) {
+			task.cancel();
+		}
+	}
+
+	/** cancel all tasks that are not done yet **/
+	public void cancelAll() {
+		cancel(Stage.values());
+	}
+
+	/** wait till all tasks of the given stages that are not done yet are done **/
+	public void await(Stage... stages) throws InterruptedException {
+		for (Task task : getTasks(stages)) {
+			task.await();
+		}
+	}
+
+	/** true if any task of the given stages is not done yet **/
+	public boolean isBusy(Stage... stages) {
+		return getTasks(stages).size() > 0;
+	}
+
+	List<Task> getTasks(Stage... stages) {
+		List<Task> tasks = new ArrayList<>();
+		synchronized (m_tasks) {
+			for (Task task : m_tasks) {
+				for (Stage stage : stages) {
+					if (task.m_stage == stage) {
+						tasks.add(task);
+					}
+				}
+			}
+		}
+		return tasks;
+	}
+
+} // class TaskScheduler
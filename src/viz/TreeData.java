@@ -2,6 +2,8 @@ package viz;
 
 import java.awt.Color;
 import java.awt.Rectangle;
+import java.io.File;
+import java.nio.IntBuffer;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -12,6 +14,7 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.function.BooleanSupplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -19,12 +22,15 @@ import javax.swing.DefaultListModel;
 import javax.swing.JList;
 import javax.swing.JOptionPane;
 
+import viz.DensiTree.LineColorMode;
 import viz.DensiTree.LineWidthMode;
 import viz.DensiTree.MetaDataType;
 import viz.ccd.AbstractCCD;
 import viz.ccd.CCD0;
+import viz.ccd.CCDType;
 import viz.ccd.HeightSettingStrategy;
 import viz.ccd.Tree;
+import viz.graphics.TreeDrawer;
 import viz.process.BranchLengthOptimiser;
 
 public class TreeData {
@@ -36,6 +42,19 @@ public class TreeData {
 		this.settings = settings;
 	}
 
+	/** tells a background recalculation of positions, lines, colours or line widths to stop early, null if none runs **/
+	volatile BooleanSupplier m_cancelled = null;
+
+	void setCancelled(BooleanSupplier cancelled) {
+		m_cancelled = cancelled;
+	}
+
+	/** true if the calc* methods should stop early, leaving the work to be done again **/
+	boolean isCancelled() {
+		BooleanSupplier cancelled = m_cancelled;
+		return cancelled != null && cancelled.getAsBoolean();
+	}
+
 	final static int MODE_LEFT = 0;
 	final static int MODE_RIGHT = 2;
 	final static int MODE_CENTRE = 3;
@@ -51,6 +70,25 @@ public class TreeData {
 
 	
 	RotationPoint[] m_rotationPoints = null;
+	/** index of m_rotationPoints for picking, and the points it was built for **/
+	private ScreenIndex m_rotationIndex = null;
+	private RotationPoint[] m_rotationIndexPoints = null;
+
+	/**
+	 * index of rotation points on screen. m_rotationPoints is replaced when
+	 * layout or zoom changes, so the index is rebuilt when it is asked for a new array.
+	 **/
+	ScreenIndex getRotationIndex() {
+		RotationPoint[] rotationPoints = m_rotationPoints;
+		if (rotationPoints == null) {
+			return null;
+		}
+		if (m_rotationIndexPoints != rotationPoints) {
+			m_rotationIndex = ScreenIndex.of(rotationPoints);
+			m_rotationIndexPoints = rotationPoints;
+		}
+		return m_rotationIndex;
+	}
 
 	/**
 	 * Trees represented as lines for drawing block trees Units are tree lengths
@@ -84,6 +122,10 @@ public class TreeData {
 
 	/** Topology number of the tree, in order of appearance in tree set **/
 	int[] m_nTopology;
+	/** run (tree file) each tree comes from when multiple runs are loaded, null otherwise **/
+	public int[] m_iRun;
+	/** file names of the runs, null if a single file is loaded **/
+	public String[] m_sRuns;
 	/**
 	 * Topology number for particular tree in order of popularity (most popular
 	 * = 0, next most popular = 1, etc.) Useful for coloring trees.
@@ -101,6 +143,9 @@ public class TreeData {
 	/** as m_nLines, but for consensus trees **/
 	float[][] m_fCLinesX;
 	float[][] m_fCLinesY;
+	/** bounds of the lines of every tree and consensus tree, see TreeDrawer.calcBounds **/
+	float[][] m_fLinesBounds;
+	float[][] m_fCLinesBounds;
 	/** as m_nTLines, but for consensus trees **/
 	// float[][] m_fCTLinesX;
 	// float[][] m_fCTLinesY;	
@@ -116,8 +161,8 @@ public class TreeData {
 	List<Double> m_cladeHeight;
 	List<Double> m_cladeHeight95HPDup;
 	List<Double> m_cladeHeight95HPDdown;
-	public List<List<Double>> m_cladeHeightSetBottom;
-	public List<List<Double>> m_cladeHeightSetTop;
+	/** heights of branches above a clade in all trees, only available while calculating clades **/
+	public List<CladeHeightSet> m_cladeHeightSet;
 	/** UI component for manipulating clade selection **/
 	JList<String> m_cladelist;
 	DefaultListModel<String> m_cladelistmodel = new DefaultListModel<String>();
@@ -125,6 +170,9 @@ public class TreeData {
 	public Map<String, Integer> mapCladeToIndex;
 	public Integer [] reverseindex;
 	
+	/** derived data stored with the tree file, null if not used **/
+	SessionCache m_sessionCache;
+	
 	Comparator<Float> floatComparator = new Comparator<Float>() {
 		@Override
 		public int compare(Float o1, Float o2) {
@@ -148,6 +196,7 @@ public class TreeData {
 	boolean m_bAllowCladeSelection = true;
 	private Set<Integer> m_cladeSelection = new HashSet<Integer>();
 	public Set<Integer> getCladeSelection() {return m_cladeSelection;}
+	public SessionCache getSessionCache() {return m_sessionCache;}
 	
 	
 	public void calcPositions() {
@@ -189,6 +238,9 @@ public class TreeData {
 		}
 
 		for (int i = 0; i < m_trees.length; i++) {
+			if (i % 64 == 0 && isCancelled()) {
+				return;
+			}
 			if (settings.m_nShuffleMode == NodeOrderer.GEOINFO) {
 				positionLeafsGeo(m_trees[i]);
 			} else {
@@ -292,7 +344,11 @@ public class TreeData {
 
 
 
-	void calcClades() {
+	/**
+	 * calculate clades, their heights and support, the summary trees and the CCD graph;
+	 * returns early, leaving clades incomplete, once the task is cancelled
+	 **/
+	void calcClades(TaskScheduler.Task task) {
 		if (settings.m_bAllowSingleChild) {
 			return;
 		}
@@ -303,13 +359,22 @@ public class TreeData {
 		m_cladeHeight95HPDup = new ArrayList<Double>();
 		m_cladeHeight95HPDdown = new ArrayList<Double>();
 		
-		m_cladeHeightSetBottom = new ArrayList<List<Double>>();
-		m_cladeHeightSetTop = new ArrayList<List<Double>>();
+		m_cladeHeightSet = new ArrayList<CladeHeightSet>();
 		m_cladeChildren = new ArrayList<List<ChildClade>>();
 		mapCladeToIndex = new HashMap<String, Integer>();
 
+		if (m_sessionCache != null && m_sessionCache.restoreClades(this)) {
+			addUserSummaryTrees();
+			updateCladeModel();
+			positionLeafs(m_rootcanaltree);
+			positionRest(m_rootcanaltree);
+			m_cladeHeightSet = null;
+			return;
+		}
 		
 		// add leafs as clades
+		// clades are identified by their (sorted) taxa, wrapped in an IntBuffer for content based hashing
+		Map<IntBuffer, Integer> cladeIndex = new HashMap<IntBuffer, Integer>();
 		for (int i = 0; i < settings.m_nNrOfLabels; i++) {
 			int[] clade = new int[1];
 			clade[0] = i;
@@ -318,18 +383,47 @@ public class TreeData {
 			m_cladeHeight.add(0.0);
 			m_cladeHeight95HPDup.add(0.0);
 			m_cladeHeight95HPDdown.add(0.0);
-			m_cladeHeightSetBottom.add(new ArrayList<Double>());
-			m_cladeHeightSetTop.add(new ArrayList<Double>());
+			m_cladeHeightSet.add(new CladeHeightSet());
 			m_cladeChildren.add(new ArrayList<ChildClade>());
-			mapCladeToIndex.put(Arrays.toString(clade), mapCladeToIndex.size());
+			cladeIndex.put(IntBuffer.wrap(clade), cladeIndex.size());
 		}
 
-		// collect clades
+		// collect clades from the distinct topologies
 		for (int i = 0; i < m_cTrees.length; i++) {
-			calcCladeForNode(m_cTrees[i], mapCladeToIndex, m_fTreeWeight[i], m_cTrees[i].m_fPosY);
+			if (i % 64 == 0 && task.isCancelled()) {
+				return;
+			}
+			calcCladeForNode(m_cTrees[i], cladeIndex, m_fTreeWeight[i], m_cTrees[i].m_fPosY);
+		}
+		cladeIndex = null;
+		for (int i = 0; i < m_clades.size(); i++) {
+			mapCladeToIndex.put(Arrays.toString(m_clades.get(i)), i);
+		}
+		// single pass over all trees: clade nrs are copied from the consensus tree with the 
+		// same topology, and used for both clade height statistics and building the CCD graph,
+		// unless the CCD graph of a previous session can be reused
+		AbstractCCD ccd = null;
+		if (m_sessionCache != null && m_trees.length > 0) {
+			ccd = m_sessionCache.readCCD(CCDType.CCD0, new Tree(m_trees[0], this));
+		}
+		boolean bBuildCCD = (ccd == null);
+		if (bBuildCCD) {
+			CCD0 ccd0 = new CCD0(settings.m_nNrOfLabels, false);
+			// the expand step of a large CCD graph can take a while
+			ccd0.setCancelled(task::isCancelled);
+			ccd = ccd0;
 		}
 		for (int i = 0; i < m_trees.length; i++) {
-			calcCladeForNode2(m_trees[i], mapCladeToIndex, 1.0 / m_trees.length, m_trees[i].m_fPosY);
+			if (i % 64 == 0 && task.isCancelled()) {
+				return;
+			}
+			calcCladeForNode2(m_trees[i], m_cTrees[m_nTopologyByPopularity[i]], 1.0 / m_trees.length, m_trees[i].m_fPosY);
+			if (bBuildCCD) {
+				ccd.addCladifiedTree(new Tree(m_trees[i], this), m_clades);
+			}
+		}
+		if (task.isCancelled()) {
+			return;
 		}
 
 		// normalise clade heights, so m_cladeHeight represent average clade
@@ -339,13 +433,11 @@ public class TreeData {
 		}
 
 		for (int i = 0; i < m_cladeHeight.size(); i++) {
-			List<Double> heights = new ArrayList<Double>();
-			heights.addAll(m_cladeHeightSetBottom.get(i));
-			Collections.sort(heights);
-			int upIndex = heights.size() * 190 / 200;
-			int downIndex = heights.size() * 5 / 200;
-			m_cladeHeight95HPDup.set(i, heights.get(upIndex));
-			m_cladeHeight95HPDdown.set(i, heights.get(downIndex));
+			double [] heights = m_cladeHeightSet.get(i).getSortedBottoms();
+			int upIndex = heights.length * 190 / 200;
+			int downIndex = heights.length * 5 / 200;
+			m_cladeHeight95HPDup.set(i, heights[upIndex]);
+			m_cladeHeight95HPDdown.set(i, heights[downIndex]);
 		}
 		
 		double fHeight0 = m_dt.m_fHeight;
@@ -379,8 +471,7 @@ public class TreeData {
 		List<Double> cladeHeight = new ArrayList<Double>();
 		List<Double> cladeHeight95HPDup = new ArrayList<Double>();
 		List<Double> cladeHeight95HPDdown = new ArrayList<Double>();
-		List<List<Double>> cladeHeightSetBottom = new ArrayList<List<Double>>();
-		List<List<Double>> cladeHeightSetTop = new ArrayList<List<Double>>();
+		List<CladeHeightSet> cladeHeightSet = new ArrayList<CladeHeightSet>();
 		List<List<ChildClade>> cladeChildren = new ArrayList<List<ChildClade>>();
 		for (int i = 0; i < m_cladePosition.length; i++) {
 			clades.add(m_clades.get(index[i]));
@@ -389,8 +480,7 @@ public class TreeData {
 			cladeHeight95HPDdown.add(m_cladeHeight95HPDdown.get(index[i]));
 			cladeHeight95HPDup.add(m_cladeHeight95HPDup.get(index[i]));
 			cladeChildren.add(m_cladeChildren.get(index[i]));
-			cladeHeightSetBottom.add(m_cladeHeightSetBottom.get(index[i]));
-			cladeHeightSetTop.add(m_cladeHeightSetTop.get(index[i]));
+			cladeHeightSet.add(m_cladeHeightSet.get(index[i]));
 			
 		}
 		m_clades = clades;
@@ -399,8 +489,7 @@ public class TreeData {
 		m_cladeHeight95HPDdown = cladeHeight95HPDdown;
 		m_cladeHeight95HPDup = cladeHeight95HPDup;
 		m_cladeChildren = cladeChildren;
-		m_cladeHeightSetBottom = cladeHeightSetBottom;
-		m_cladeHeightSetTop = cladeHeightSetTop;
+		m_cladeHeightSet = cladeHeightSet;
 
 
 		reverseindex = new Integer[m_cladePosition.length];
@@ -507,6 +596,36 @@ public class TreeData {
 
 //		m_summaryTree[5] = m_cTrees[iMaxCladeProbTopology].copy();
 		
+		addUserSummaryTrees();
+		
+		// m_rootcanaltree = m_summaryTree.get(0);
+
+		if (task.isCancelled()) {
+			return;
+		}
+		m_rootcanaltree = ccd.getMAPTree(HeightSettingStrategy.One, this);
+		if (task.isCancelled()) {
+			// the CCD graph may be incomplete, so do not keep it
+			return;
+		}
+		if (bBuildCCD && m_sessionCache != null) {
+			// CCD graph is expanded now
+			m_sessionCache.saveCCD(CCDType.CCD0, ccd);
+		}
+		m_rootcanaltree.m_fLength = 0;
+		calcCladeForNode(m_rootcanaltree, mapCladeToIndex);
+		resetCladeNr(m_rootcanaltree, reverseindex);
+		positionLeafs(m_rootcanaltree);
+		positionRest(m_rootcanaltree);
+		cleanUpSummaryTree(m_rootcanaltree);
+		//setHeightByClade(m_rootcanaltree);
+		
+		// save memory
+		m_cladeHeightSet = null;
+	}
+	
+	/** add summary trees specified by the user, if any **/
+	private void addUserSummaryTrees() {
 		if (m_dt.m_sOptTree != null) {
 			TreeFileParser parser = new TreeFileParser(settings.m_sLabels, null, null, 0);
 			try {
@@ -527,26 +646,6 @@ public class TreeData {
 		if (m_dt.m_optTree != null) {
 			m_summaryTree.add(m_dt.m_optTree.copy());
 		}
-		
-		// m_rootcanaltree = m_summaryTree.get(0);
-
-		List<Tree> trees = new ArrayList<>();
-		for (Node t : m_trees) {
-			trees.add(new Tree(t, this));
-		}
-		AbstractCCD ccd = new CCD0(trees, 0);
-		m_rootcanaltree = ccd.getMAPTree(HeightSettingStrategy.One, this);
-		m_rootcanaltree.m_fLength = 0;
-		calcCladeForNode(m_rootcanaltree, mapCladeToIndex);
-		resetCladeNr(m_rootcanaltree, reverseindex);
-		positionLeafs(m_rootcanaltree);
-		positionRest(m_rootcanaltree);
-		cleanUpSummaryTree(m_rootcanaltree);
-		//setHeightByClade(m_rootcanaltree);
-		
-		// save memory
-		m_cladeHeightSetBottom = null;
-		m_cladeHeightSetTop = null;
 	}
 	
 	private void cleanUpSummaryTree(Node summaryTree) {
@@ -734,7 +833,7 @@ public class TreeData {
 	}			
 
 
-	private void setCladeNr(Node node, Node node2) {
+	void setCladeNr(Node node, Node node2) {
 		if (node2 == null) {
 			throw new RuntimeException("node2 cannot be null");
 		}
@@ -765,7 +864,7 @@ public class TreeData {
 	}
 
 
-	private int[] calcCladeForNode(Node node, Map<String, Integer> mapCladeToIndex, double fWeight, double fHeight) {
+	private int[] calcCladeForNode(Node node, Map<IntBuffer, Integer> cladeIndex, double fWeight, double fHeight) {
 		if (node.isLeaf()) {
 			int[] clade = new int[1];
 			clade[0] = node.getNr();
@@ -774,8 +873,8 @@ public class TreeData {
 			//m_cladeHeightSet.get(node.m_iClade).add(fHeight);
 			return clade;
 		} else {
-			int[] cladeLeft = calcCladeForNode(node.m_left, mapCladeToIndex, fWeight, fHeight + node.m_left.m_fLength);
-			int[] cladeRight = calcCladeForNode(node.m_right, mapCladeToIndex, fWeight, fHeight
+			int[] cladeLeft = calcCladeForNode(node.m_left, cladeIndex, fWeight, fHeight + node.m_left.m_fLength);
+			int[] cladeRight = calcCladeForNode(node.m_right, cladeIndex, fWeight, fHeight
 					+ node.m_right.m_fLength);
 			int[] clade = mergeClades(cladeLeft, cladeRight);
 			
@@ -797,19 +896,20 @@ public class TreeData {
 //			}
 
 			// update clade weights
-			String sClade = Arrays.toString(clade);
-			if (!mapCladeToIndex.containsKey(sClade)) {
-				mapCladeToIndex.put(sClade, mapCladeToIndex.size());
+			IntBuffer key = IntBuffer.wrap(clade);
+			Integer iCladeIndex = cladeIndex.get(key);
+			if (iCladeIndex == null) {
+				iCladeIndex = cladeIndex.size();
+				cladeIndex.put(key, iCladeIndex);
 				m_clades.add(clade);
 				m_cladeWeight.add(0.0);
 				m_cladeHeight.add(0.0);
 				m_cladeHeight95HPDup.add(0.0);
 				m_cladeHeight95HPDdown.add(0.0);
-				m_cladeHeightSetBottom.add(new ArrayList<Double>());
-				m_cladeHeightSetTop.add(new ArrayList<Double>());
+				m_cladeHeightSet.add(new CladeHeightSet());
 				m_cladeChildren.add(new ArrayList<ChildClade>());
 			}
-			int iClade = mapCladeToIndex.get(sClade);
+			int iClade = iCladeIndex;
 			m_cladeWeight.set(iClade, m_cladeWeight.get(iClade) + fWeight);
 			m_cladeHeight.set(iClade, m_cladeHeight.get(iClade) + fWeight * fHeight);
 			//m_cladeHeightSet.get(iClade).add(fHeight);
@@ -843,45 +943,21 @@ public class TreeData {
 
 	}
 
-	private int[] calcCladeForNode2(Node node, Map<String, Integer> mapCladeToIndex, double fWeight, double fHeight) {
+	/**
+	 * collect clade heights and child clades of a tree. Clade nrs are taken from the
+	 * consensus tree node2 with the same topology, which was processed by calcCladeForNode,
+	 * so no clades need to be constructed. 
+	 */
+	private void calcCladeForNode2(Node node, Node node2, double fWeight, double fHeight) {
 		if (node.isLeaf()) {
-			int[] clade = new int[1];
-			clade[0] = node.getNr();
 			node.m_iClade = node.getNr();
-			m_cladeHeightSetBottom.get(node.m_iClade).add(fHeight);
-			m_cladeHeightSetTop.get(node.m_iClade).add(fHeight - node.m_fLength);
-			return clade;
+			m_cladeHeightSet.get(node.m_iClade).add(fHeight, fHeight - node.m_fLength);
 		} else {
-			int[] cladeLeft = calcCladeForNode2(node.m_left, mapCladeToIndex, fWeight, fHeight + node.m_left.m_fLength);
-			int[] cladeRight = calcCladeForNode2(node.m_right, mapCladeToIndex, fWeight, fHeight
-					+ node.m_right.m_fLength);
-			// merge clades, keep in sorted order
-			int[] clade = new int[cladeLeft.length + cladeRight.length];
-			int iLeft = 0;
-			int iRight = 0;
-			for (int i = 0; i < clade.length; i++) {
-				if (iLeft == cladeLeft.length) {
-					clade[i] = cladeRight[iRight++];
-				} else if (iRight == cladeRight.length) {
-					clade[i] = cladeLeft[iLeft++];
-				} else if (cladeRight[iRight] > cladeLeft[iLeft]) {
-					clade[i] = cladeLeft[iLeft++];
-				} else {
-					clade[i] = cladeRight[iRight++];
-				}
-			}
+			calcCladeForNode2(node.m_left, node2.m_left, fWeight, fHeight + node.m_left.m_fLength);
+			calcCladeForNode2(node.m_right, node2.m_right, fWeight, fHeight + node.m_right.m_fLength);
 
-			// update clade weights
-			String sClade = Arrays.toString(clade);
-//			if (!mapCladeToIndex.containsKey(sClade)) {
-//				mapCladeToIndex.put(sClade, mapCladeToIndex.size());
-//				m_cladeHeight95HPDup.add(0.0);
-//				m_cladeHeight95HPDdown.add(0.0);
-//				m_cladeHeightSet.add(new ArrayList<Double>());
-//			}
-			int iClade = mapCladeToIndex.get(sClade);
-			m_cladeHeightSetBottom.get(iClade).add(fHeight);
-			m_cladeHeightSetTop.get(iClade).add(fHeight - node.m_fLength);
+			int iClade = node2.m_iClade;
+			m_cladeHeightSet.get(iClade).add(fHeight, fHeight - node.m_fLength);
 			node.m_iClade = iClade;
 
 			// update child clades
@@ -903,8 +979,6 @@ public class TreeData {
 				child.m_fWeight = fWeight;
 				m_cladeChildren.get(iClade).add(child);
 			}
-
-			return clade;
 		}
 	}
 
@@ -1027,9 +1101,28 @@ public class TreeData {
 		}
 		m_dt.setWaitCursor();
 
+		// colours are replaced by new arrays, so a cancelled recalculation can go back to the previous ones
+		int [][] nLineColor = m_nLineColor;
+		int [][] nCLineColor = m_nCLineColor;
+		int [][] nRLineColor = m_nRLineColor;
+		LineColorMode prevLineColorMode = settings.m_prevLineColorMode;
+		String sPrevLineColorTag = settings.m_prevLineColorTag;
+		String sPrevLineColorPattern = settings.m_sPrevLineColorPattern;
 		settings.m_prevLineColorMode = settings.m_lineColorMode; 
 		settings.m_prevLineColorTag = settings.m_lineColorTag;
 		settings.m_sPrevLineColorPattern = settings.m_sLineColorPattern;
+		calcLineColors(forceRecalc);
+		if (isCancelled()) {
+			m_nLineColor = nLineColor;
+			m_nCLineColor = nCLineColor;
+			m_nRLineColor = nRLineColor;
+			settings.m_prevLineColorMode = prevLineColorMode;
+			settings.m_prevLineColorTag = sPrevLineColorTag;
+			settings.m_sPrevLineColorPattern = sPrevLineColorPattern;
+		}
+	} // calcColors
+
+	private void calcLineColors(boolean forceRecalc) {
 		int nNodes = getNrOfNodes(m_trees[0]);
 		switch (settings.m_lineColorMode) {
 		case COLOR_BY_CLADE:
@@ -1037,6 +1130,9 @@ public class TreeData {
 			m_nCLineColor = new int[m_cTrees.length][];
 			m_nRLineColor = new int[1][];
 			for (int i = 0; i < m_trees.length; i++) {
+				if (i % 64 == 0 && isCancelled()) {
+					return;
+				}
 				if (settings.m_bAllowSingleChild) {
 					nNodes = getNrOfNodes(m_trees[i]);
 				}
@@ -1078,6 +1174,9 @@ public class TreeData {
 			//m_colorMetaDataCategories = new ArrayList<String>();
 			settings.m_colorMetaDataCategories = new HashMap<String, Integer>();
 			for (int i = 0; i < m_trees.length; i++) {
+				if (i % 64 == 0 && isCancelled()) {
+					return;
+				}
 				if (settings.m_bAllowSingleChild) {
 					nNodes = getNrOfNodes(m_trees[i]);
 				}
@@ -1128,6 +1227,9 @@ public class TreeData {
 				}
 			}
 			for (int i = 0; i < m_trees.length; i++) {
+				if (i % 64 == 0 && isCancelled()) {
+					return;
+				}
 				if (settings.m_bAllowSingleChild) {
 					nNodes = getNrOfNodes(m_trees[i]);
 				}
@@ -1159,6 +1261,36 @@ public class TreeData {
 			m_nRLineColor[0] = new int[nNodes * 2 + 2];
 			Arrays.fill(m_nRLineColor[0], settings.m_color[DensiTree.ROOTCANALCOLOR].getRGB());
 			break;
+		case COLOR_BY_RUN:
+			if (m_iRun == null) {
+				// single run, so use default colouring
+				settings.m_lineColorMode = LineColorMode.DEFAULT;
+				calcColors(forceRecalc);
+				return;
+			}
+			m_nLineColor = new int[m_trees.length][];
+			m_nCLineColor = new int[m_cTrees.length][];
+			m_nRLineColor = new int[1][];
+			for (int i = 0; i < m_trees.length; i++) {
+				if (settings.m_bAllowSingleChild) {
+					nNodes = getNrOfNodes(m_trees[i]);
+				}
+				m_nLineColor[i] = new int[nNodes * 2 + 2];
+				Arrays.fill(m_nLineColor[i], settings.m_color[9 + (m_iRun[i] % (settings.m_color.length - 9))].getRGB());
+			}
+			for (int i = 0; i < m_cTrees.length; i++) {
+				if (settings.m_bAllowSingleChild) {
+					nNodes = getNrOfNodes(m_cTrees[i]);
+				}
+				m_nCLineColor[i] = new int[nNodes * 2 + 2];
+				Arrays.fill(m_nCLineColor[i], settings.m_color[DensiTree.CONSCOLOR].getRGB());
+			}
+			if (settings.m_bAllowSingleChild) {
+				break;
+			}
+			m_nRLineColor[0] = new int[nNodes * 2 + 2];
+			Arrays.fill(m_nRLineColor[0], settings.m_color[DensiTree.ROOTCANALCOLOR].getRGB());
+			break;
 		case DEFAULT:
 			m_nLineColor = new int[m_trees.length][];
 			m_nCLineColor = new int[m_cTrees.length][];
@@ -1202,7 +1334,7 @@ public class TreeData {
 			Arrays.fill(m_nRLineColor[0], settings.m_color[DensiTree.ROOTCANALCOLOR].getRGB());
 			break;
 		}
-	} // calcColors
+	} // calcLineColors
 
 
 	/**
@@ -1512,6 +1644,10 @@ public class TreeData {
 
 		boolean[] b = new boolean[1];
 		for (int i = 0; i < m_trees.length; i++) {
+			if (i % 64 == 0 && isCancelled()) {
+				// lines of every tree are still valid, and are recalculated when the recalculation is done again
+				return;
+			}
 			// m_fLinesX[i] = new float[nNodes * 2 + 2];
 			// m_fLinesY[i] = new float[nNodes * 2 + 2];
 			if (settings.m_bAllowSingleChild) {
@@ -1567,6 +1703,7 @@ public class TreeData {
 				m_fRLinesY[0][j] = (float) Math.pow(m_fHeight - m_fRLinesY[0][j], m_fExponent)/fNormaliser;
 			}
 		}
+		calcLineBounds();
 		m_dt.m_w = 0;
 		for (int i = 0; i < m_cTrees.length; i++) {
 			float[] fCLines = m_fCLinesX[i];
@@ -1575,11 +1712,20 @@ public class TreeData {
 				m_dt.m_w += Math.abs(fCLines[j + 1] - fCLines[j + 2]) * fWeight;
 			}
 		}
+		if (isCancelled()) {
+			return;
+		}
 		calcColors(false);
 		calcLineWidths(false);
 	} // calcLines
 	
 	
+	/** recalculate m_fLinesBounds and m_fCLinesBounds, to be called whenever lines change **/
+	void calcLineBounds() {
+		m_fLinesBounds = TreeDrawer.calcBounds(m_fLinesX, m_fLinesY);
+		m_fCLinesBounds = TreeDrawer.calcBounds(m_fCLinesX, m_fCLinesY);
+	}
+
 	void calcLinesForNode(Node node, float [] fLinesX, float [] fLinesY) {
 		final float m_fTreeScale = m_dt.m_fTreeScale;
 		final float m_fTreeOffset = m_dt.m_fTreeOffset;
@@ -1626,7 +1772,20 @@ public class TreeData {
 		} else {
 			calcPositions();
 			calcLines();
+			if (isCancelled()) {
+				return;
+			}
 		}
+		// line widths are replaced by new arrays, so a cancelled recalculation can go back to the previous ones
+		float [][] fLineWidth = m_fLineWidth;
+		float [][] fCLineWidth = m_fCLineWidth;
+		float [][] fTopLineWidth = m_fTopLineWidth;
+		float [][] fTopCLineWidth = m_fTopCLineWidth;
+		float [][] fRLineWidth = m_fRLineWidth;
+		float [][] fRTopLineWidth = m_fRTopLineWidth;
+		LineWidthMode prevLineWidthMode = settings.m_prevLineWidthMode;
+		String sPrevLineWidthTag = settings.m_prevLineWidthTag;
+		String sPrevLineWidthPattern = settings.m_sPrevLineWidthPattern;
 		settings.m_prevLineWidthMode = settings.m_lineWidthMode;
 		settings.m_prevLineWidthTag = settings.m_lineWidthTag;
 		settings.m_sPrevLineWidthPattern = settings.m_sLineWidthPattern;
@@ -1636,7 +1795,21 @@ public class TreeData {
 			// no trees loaded
 			return;
 		}
-		
+		calcLineWidths();
+		if (isCancelled()) {
+			m_fLineWidth = fLineWidth;
+			m_fCLineWidth = fCLineWidth;
+			m_fTopLineWidth = fTopLineWidth;
+			m_fTopCLineWidth = fTopCLineWidth;
+			m_fRLineWidth = fRLineWidth;
+			m_fRTopLineWidth = fRTopLineWidth;
+			settings.m_prevLineWidthMode = prevLineWidthMode;
+			settings.m_prevLineWidthTag = sPrevLineWidthTag;
+			settings.m_sPrevLineWidthPattern = sPrevLineWidthPattern;
+		}
+	} // calcLineWidths
+
+	private void calcLineWidths() {
 		if (settings.m_lineWidthMode == LineWidthMode.DEFAULT) {
 			m_fLineWidth = null;
 			m_fCLineWidth = null;
@@ -1668,6 +1841,9 @@ public class TreeData {
 		// calculate coordinates of lines for drawing trees
 		boolean[] b = new boolean[1];
 		for (int i = 0; i < m_trees.length; i++) {
+			if (i % 64 == 0 && isCancelled()) {
+				return;
+			}
 			//m_fLinesX[i] = new float[nNodes * 2 + 2];
 			//m_fLinesY[i] = new float[nNodes * 2 + 2];
 			m_fLineWidth[i] = new float[nNodes * 2 + 2];
@@ -1710,7 +1886,7 @@ public class TreeData {
 		m_fRLineWidth = null;
 		m_fRTopLineWidth = null;
 
-	} // calcLinesWidths
+	} // calcLineWidths
 
 	
 	
@@ -1741,8 +1917,16 @@ public class TreeData {
 
 	public boolean loadFromFile(String sFile, boolean resetHeight) {
 		TreeFileParser parser = new TreeFileParser(m_dt);
+		String [] sRuns = sFile.split(File.pathSeparator);
 		try {
-			m_trees = parser.parseFile(sFile);
+			if (sRuns.length > 1 || !new File(sFile).exists() && sFile.indexOf('#') > 0) {
+				// multiple runs, or single file with its own burn-in
+				m_trees = parser.parseRuns(sRuns);
+			} else {
+				m_trees = parser.parseFile(sFile);
+			}
+			m_iRun = parser.m_iRun;
+			m_sRuns = parser.m_sRuns;
 		} catch (Exception e) {
 			JOptionPane.showMessageDialog(null, "Problem loading file: " + e.getMessage(),
 					"Help Message", JOptionPane.PLAIN_MESSAGE);
@@ -1773,6 +1957,8 @@ public class TreeData {
 		m_bSelection = new boolean[settings.m_sLabels.size()];
 		m_dt.m_bLabelRectangle = new Rectangle[settings.m_sLabels.size()];
 		m_dt.m_bGeoRectangle = new Rectangle[settings.m_sLabels.size()];
+		m_dt.m_labelIndex = null;
+		m_dt.m_geoIndex = null;
 		for (int i = 0; i < m_bSelection.length; i++) {
 			m_bSelection[i] = true;
 			m_dt.m_bLabelRectangle[i] = new Rectangle();
@@ -1803,45 +1989,85 @@ public class TreeData {
 			offsetHeight(m_trees[i], m_dt.m_fHeight - fHeights[i]);
 		}
 
-		// count tree topologies
-		// first step is find how many different topologies are present
-		m_nTopology = new int[m_trees.length];
-		HashMap<String, Integer> map = new HashMap<String, Integer>();
-		for (int i = 0; i < m_trees.length; i++) {
-			Node tree = m_trees[i];
-			String sNewick = tree.toShortNewick();
-			if (map.containsKey(sNewick)) {
-				m_nTopology[i] = map.get(sNewick).intValue();
-			} else {
-				m_nTopology[i] = map.size();
-				map.put(sNewick, map.size());
-			}
+		m_sessionCache = null;
+		if (settings.m_bUseSessionCache && !settings.m_bAllowSingleChild && m_sRuns == null) {
+			m_sessionCache = new SessionCache(sFile, " burnin=" + parser.m_nBurnIn + (parser.m_bBurnInIsPercentage ? "%" : "")
+					+ " thin=" + parser.m_nThin + " trees=" + m_trees.length + " taxa=" + settings.m_nNrOfLabels,
+					" height=" + m_dt.m_fHeight + " cladeThreshold=" + settings.m_cladeThreshold
+					+ " optimise=" + settings.m_bOptimiseRootCanalTree);
 		}
+		
+		int [] iTreeOrder;
+		if (m_sessionCache != null && m_sessionCache.m_iTreeOrder != null && m_sessionCache.m_iTreeOrder.length == m_trees.length) {
+			// use tree order and topologies from previous session
+			iTreeOrder = m_sessionCache.m_iTreeOrder;
+			Node [] trees = new Node[m_trees.length];
+			for (int i = 0; i < m_trees.length; i++) {
+				trees[i] = m_trees[iTreeOrder[i]];
+			}
+			m_trees = trees;
+			m_nTopology = m_sessionCache.m_nTopology;
+			m_nTopologies = m_trees.length == 0 ? 0 : m_nTopology[m_trees.length - 1] + 1;
+		} else {
+			// count tree topologies
+			// first step is find how many different topologies are present
+			m_nTopology = new int[m_trees.length];
+			HashMap<String, Integer> map = new HashMap<String, Integer>();
+			for (int i = 0; i < m_trees.length; i++) {
+				Node tree = m_trees[i];
+				String sNewick = tree.toShortNewick();
+				if (map.containsKey(sNewick)) {
+					m_nTopology[i] = map.get(sNewick).intValue();
+				} else {
+					m_nTopology[i] = map.size();
+					map.put(sNewick, map.size());
+				}
+			}
 
-		// second step is find how many different tree have a particular
-		// topology
-		m_nTopologies = map.size();
-		int[] nTopologies = new int[m_nTopologies];
-		for (int i = 0; i < m_trees.length; i++) {
-			nTopologies[m_nTopology[i]]++;
-		}
+			// second step is find how many different tree have a particular
+			// topology
+			m_nTopologies = map.size();
+			int[] nTopologies = new int[m_nTopologies];
+			for (int i = 0; i < m_trees.length; i++) {
+				nTopologies[m_nTopology[i]]++;
+			}
 
-		// sort the trees so that frequently occurring topologies go first
-		// in
-		// the ordering
-		for (int i = 0; i < m_trees.length; i++) {
-			for (int j = i + 1; j < m_trees.length; j++) {
-				if (nTopologies[m_nTopology[i]] < nTopologies[m_nTopology[j]]
-						|| (nTopologies[m_nTopology[i]] == nTopologies[m_nTopology[j]] && m_nTopology[i] > m_nTopology[j])) {
-					int h = m_nTopology[j];
-					m_nTopology[j] = m_nTopology[i];
-					m_nTopology[i] = h;
-					Node tree = m_trees[j];
-					m_trees[j] = m_trees[i];
-					m_trees[i] = tree;
-				}
+			// sort the trees so that frequently occurring topologies go first
+			// in
+			// the ordering
+			iTreeOrder = new int[m_trees.length];
+			for (int i = 0; i < m_trees.length; i++) {
+				iTreeOrder[i] = i;
+			}
+			for (int i = 0; i < m_trees.length; i++) {
+				for (int j = i + 1; j < m_trees.length; j++) {
+					if (nTopologies[m_nTopology[i]] < nTopologies[m_nTopology[j]]
+							|| (nTopologies[m_nTopology[i]] == nTopologies[m_nTopology[j]] && m_nTopology[i] > m_nTopology[j])) {
+						int h = m_nTopology[j];
+						m_nTopology[j] = m_nTopology[i];
+						m_nTopology[i] = h;
+						Node tree = m_trees[j];
+						m_trees[j] = m_trees[i];
+						m_trees[i] = tree;
+						h = iTreeOrder[j];
+						iTreeOrder[j] = iTreeOrder[i];
+						iTreeOrder[i] = h;
+					}
 
+				}
+			}
+			if (m_sessionCache != null) {
+				m_sessionCache.m_iTreeOrder = iTreeOrder;
+				m_sessionCache.m_nTopology = m_nTopology.clone();
+			}
+		}
+		if (m_iRun != null) {
+			// keep track of the run of every tree
+			int [] iRun = new int[m_trees.length];
+			for (int i = 0; i < m_trees.length; i++) {
+				iRun[i] = m_iRun[iTreeOrder[i]];
 			}
+			m_iRun = iRun;
 		}
 		
 		
@@ -1892,6 +2118,8 @@ public class TreeData {
 		// m_fTLinesY = new float[m_trees.length][];
 		m_fCLinesX = new float[m_nTopologies][];
 		m_fCLinesY = new float[m_nTopologies][];
+		m_fLinesBounds = null;
+		m_fCLinesBounds = null;
 		// m_fCTLinesX = new float[m_nTopologies][];
 		// m_fCTLinesY = new float[m_nTopologies][];
 		// calcLines();
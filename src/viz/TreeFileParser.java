@@ -23,10 +23,16 @@ package viz;
 
 import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 public class TreeFileParser {
@@ -38,6 +44,8 @@ public class TreeFileParser {
 	int m_nOffset = 0;
 	/** labels of leafs **/
 	Vector<String> m_sLabels;
+	/** symbol table for looking up labels in m_sLabels **/
+	LabelTable m_labelTable;
 	/** position information for the leafs (if available) **/
 	Vector<Float> m_fLongitude;
 	Vector<Float> m_fLatitude;
@@ -48,8 +56,8 @@ public class TreeFileParser {
 	/** maps taxon number in mirror set to taxon number in original set **/
 	int [] m_iLabelMap;
 	/** burn in = nr of trees ignored at the start of tree file, can be set by command line option **/
-	int m_nBurnIn = 0, m_nThin = 1;
-	boolean m_bBurnInIsPercentage = true;
+	public int m_nBurnIn = 0, m_nThin = 1;
+	public boolean m_bBurnInIsPercentage = true;
 	//DensiTree m_densiTree;
 	/** for memory saving, set to true **/
 	boolean m_bSurpressMetadata = true;
@@ -57,10 +65,15 @@ public class TreeFileParser {
 	boolean m_bIsLabelledNewick = false;
 	/** flag to indicate that single child nodes are allowed **/
 	boolean m_bAllowSingleChild = false;
+	/** run each tree returned by parseRuns comes from, and file names of the runs.
+	 * Null when parseFile is used **/
+	int [] m_iRun;
+	String [] m_sRuns;
 	
 	public TreeFileParser(DensiTree densiTree) {
 		//m_densiTree = densiTree;
 		m_sLabels = densiTree.m_settings.m_sLabels;
+		m_labelTable = densiTree.m_settings.getLabelTable();
 		m_fLongitude = densiTree.m_settings.m_fLongitude;
 		m_fLatitude = densiTree.m_settings.m_fLatitude;
 		m_nBurnIn = densiTree.m_nBurnIn;
@@ -73,6 +86,7 @@ public class TreeFileParser {
 	
 	public TreeFileParser(Vector<String> sLabels, Vector<Float> fLongitude, Vector<Float> fLatitude, int nBurnIn) {
 		m_sLabels = sLabels;
+		m_labelTable = new LabelTable(sLabels);
 		if (m_sLabels != null) {
 			m_bIsLabelledNewick = true;
 			m_nNrOfLabels = m_sLabels.size();
@@ -85,21 +99,100 @@ public class TreeFileParser {
 	}
 	
 	public Node [] parseFile(String sFile) throws Exception {
-		//Vector<String> sNewickTrees = new Vector<String>();
+		File file = new File(sFile);
+		if (BinaryTreeSet.isBinaryTreeSet(file)) {
+			return BinaryTreeSet.read(sFile, this);
+		}
+
+		// A percentage burn-in depends on the nr of trees in the file, so these are counted
+		// first; then burn-in and thinning are applied as for a burn-in given as nr of trees.
+		int nBurnIn = m_nBurnIn;
+		if (m_bBurnInIsPercentage) {
+			nBurnIn = (int) ((long) m_nBurnIn * countTrees(file) / 100);
+		}
 		List<Node> trees = new ArrayList<>();
-		m_nOffset = 0;
+		int nTrees = parseTrees(file, nBurnIn, trees::add);
+		if (!m_bIsLabelledNewick && (nBurnIn > nTrees || (trees.size() == 0 && m_nBurnIn > 0))) {
+			System.err.println("WARNING: Burn-in too large, resetting burn-in to default");
+			m_sLabels.clear();
+			if (m_bBurnInIsPercentage) {					
+				m_nBurnIn = 10;
+			} else {
+				m_nBurnIn = 0;
+			}
+			return parseFile(sFile);
+		}
 		
+		System.err.println();
+		System.err.println("Geo: " +m_fMinLong + "x" + m_fMinLat + " " + m_fMaxLong + "x" + m_fMaxLat);
+		return trees.toArray(new Node[1]);
+	} // parseFile
+
+	/** receives trees from parseFile one at a time **/
+	public interface TreeListener {
+		void tree(Node tree) throws Exception;
+	}
+
+	/**
+	 * parse tree file and pass on trees one at a time as they are parsed, 
+	 * so the tree set does not need to fit in memory. Burn-in is taken as 
+	 * a nr of trees, since a percentage needs the nr of trees in the file.
+	 * @return nr of trees in the file, including burn-in and trees removed by thinning
+	 */
+	public int parseFile(String sFile, TreeListener listener) throws Exception {
 		File file = new File(sFile);
-		long nFileSize = file.length();
+		if (BinaryTreeSet.isBinaryTreeSet(file)) {
+			Node [] trees = BinaryTreeSet.read(sFile, this);
+			for (Node tree : trees) {
+				listener.tree(tree);
+			}
+			return trees.length;
+		}
+		return parseTrees(file, m_nBurnIn, listener);
+	} // parseFile
+
+	/**
+	 * count trees in a Nexus or Newick tree file the way parseTrees does, without parsing them
+	 * @return nr of trees in the file
+	 */
+	int countTrees(File file) throws IOException {
+		int nNexusTrees = 0;
+		int nNewickTrees = 0;
+		boolean bTranslate = false;
+		try (BufferedReader fin = openReader(file)) {
+			String sStr;
+			while ((sStr = fin.readLine()) != null) {
+				if (!bTranslate && sStr.toLowerCase().indexOf("translate") >= 0) {
+					bTranslate = true;
+				}
+				if (sStr.length() > 2 && sStr.indexOf("(") >= 0) {
+					nNewickTrees++;
+				}
+				String sTrimmed = sStr.trim();
+				if (sTrimmed.length() > 5 && sTrimmed.substring(0, 5).toLowerCase().startsWith("tree ")) {
+					nNexusTrees++;
+				}
+			}
+		}
+		return bTranslate ? nNexusTrees : nNewickTrees;
+	} // countTrees
+
+	/**
+	 * parse Nexus or Newick tree file, applying burn-in and then thinning
+	 * @param nBurnInTrees nr of trees in the burn-in, thinning starts after the burn-in
+	 * @return nr of trees in the file
+	 */
+	int parseTrees(File file, int nBurnInTrees, TreeListener listener) throws Exception {
+		m_nOffset = 0;
+		int nTrees = 0;
 		
 		// parse Newick tree file
-		BufferedReader fin = new BufferedReader(new FileReader(sFile));
+		try (BufferedReader fin0 = openReader(file)) {
+		BufferedReader fin = fin0;
 		String sStr = fin.readLine();
-		nFileSize -= sStr.length();
 		// grab translate block
 		while (fin.ready() && sStr.toLowerCase().indexOf("translate") < 0) {
 			sStr = fin.readLine();
-			nFileSize -= sStr.length();
 		}
 		m_bIsLabelledNewick = false;
 		m_nNrOfLabels = m_sLabels.size();
@@ -109,23 +202,15 @@ public class TreeFileParser {
 			m_bIsLabelledNewick = true;
 			// could not find translate block, assume it is a list of Newick trees instead of Nexus file
 			fin.close();
-			fin = new BufferedReader(new FileReader(sFile));
+			fin = openReader(file);
 
-			int nBurnIn = m_nBurnIn;
-			if (m_bBurnInIsPercentage) {
-				nFileSize = file.length();
-				nBurnIn = (int) (m_nBurnIn * nFileSize/ 100);
-			}
-			
+			int nBurnIn = nBurnInTrees;
+			try {
 			while (fin.ready() && m_nNrOfLabels == 0) {
-				nFileSize = file.length();
 				sStr = fin.readLine();
-				if (m_bBurnInIsPercentage) {
-					nBurnIn -= sStr.length();
-				} else {
-					nBurnIn--;
-				}
+				nBurnIn--;
 				if (sStr.length() > 2 && sStr.indexOf("(") >= 0) {
+					nTrees++;
 					String sStr2 = sStr;
 					sStr2 = sStr2.substring(sStr2.indexOf("("));
 					while (sStr2.indexOf('[') >= 0) {
@@ -149,31 +234,36 @@ public class TreeFileParser {
 						Node tree = parseNewick(sStr);
 						tree.sort();
 						tree.labelInternalNodes(m_nNrOfLabels);
-						trees.add(tree);
+						listener.tree(tree);
 					}
 //					sNewickTrees.add(sStr);
 				}
 			}
 			int iThin = 1;
+			int nParsed = 0;
 			while (fin.ready()) {
 				sStr = fin.readLine();
 				if (sStr.length() > 2 && sStr.indexOf("(") >= 0) {
+					nTrees++;
 					if (iThin >= m_nThin) {
 						iThin = 0;
 						Node tree = parseNewick(sStr);
 						tree.sort();
 						tree.labelInternalNodes(m_nNrOfLabels);
-						trees.add(tree);
-						if (trees.size() % 100 ==0) {if (m_nNrOfLabels>=100||trees.size() % 1000 ==0) {System.err.print(trees.size() + " ");}}
+						listener.tree(tree);
+						nParsed++;
+						if (nParsed % 100 ==0) {if (m_nNrOfLabels>=100||nParsed % 1000 ==0) {System.err.print(nParsed + " ");}}
 					}
 					iThin++;
 //					sNewickTrees.add(sStr);
 				}
 			}
+			} finally {
+				fin.close();
+			}
 		} else {
 			// read tree set from file, and store in individual strings
 			sStr = fin.readLine();
-			nFileSize -= sStr.length(); 
 			//m_nNrOfLabels = 0;
 			boolean bLastLabel = false;
 			while (fin.ready() && !bLastLabel) {
@@ -242,24 +332,19 @@ public class TreeFileParser {
 				}
 				if (!bLastLabel) {
 					sStr = fin.readLine();
-					nFileSize -= sStr.length(); 
 				}
 			}
 			
 			m_iLabelMap = new int[m_nNrOfLabels];
 			if (sLabelsFound.size() > 0) {
+				m_labelTable.sync(m_sLabels);
 				for (int i = 0; i < m_nNrOfLabels; i++) {
 					String label = sLabelsFound.get(i);
-					boolean found = false;
-					for (int j = 0; j < m_nNrOfLabels; j++) {
-						if (m_sLabels.get(j).equals(label)) {
-							m_iLabelMap[i] = j;
-							found = true;
-						}
-					}
-					if (!found) {
+					int j = m_labelTable.indexOf(label);
+					if (j < 0 || j >= m_nNrOfLabels) {
 						throw new IllegalArgumentException("Taxon " + label + " found in mirror set that was not in original set");
 					}
+					m_iLabelMap[i] = j;
 				}
 			} else {
 				for (int i = 0; i < m_nNrOfLabels; i++) {
@@ -269,23 +354,19 @@ public class TreeFileParser {
 			
 			
 			// read trees
-			int nBurnIn = m_nBurnIn;
-			if (m_bBurnInIsPercentage) {
-				nBurnIn = (int) (m_nBurnIn * nFileSize/ 100);
-			}
+			int nBurnIn = nBurnInTrees;
 			
 			//int k = 0;
 			int iThin = 1;
+			int nParsed = 0;
 			while (fin.ready()) {
 				sStr = fin.readLine();
-				if (m_bBurnInIsPercentage) {
-					nBurnIn -= sStr.length();
-				}
 				sStr = sStr.trim();
 				if (sStr.length() > 5) {
 					String sTree = sStr.substring(0,5);
 					if (sTree.toLowerCase().startsWith("tree ")) {
 						//k++;
+						nTrees++;
 						if (nBurnIn <= 0) {
 							if (iThin >= m_nThin) {
 								iThin = 0;
@@ -304,37 +385,139 @@ public class TreeFileParser {
 								//System.err.println(k + " " + tree);
 								tree.sort();
 								tree.labelInternalNodes(m_nNrOfLabels);
-								trees.add(tree);
-								if (trees.size() % 100 ==0) {if (m_nNrOfLabels>=100||trees.size() % 1000 ==0) {System.err.print(trees.size() + " ");}}
+								listener.tree(tree);
+								nParsed++;
+								if (nParsed % 100 ==0) {if (m_nNrOfLabels>=100||nParsed % 1000 ==0) {System.err.print(nParsed + " ");}}
 							}
 							iThin++;
 							//sNewickTrees.add(sStr);
 						} else {
-							if (!m_bBurnInIsPercentage) {
-								nBurnIn--;
-							}
+							nBurnIn--;
 						}
 					}
 				}
 			}
-			fin.close();
-			if (nBurnIn > 0) {
-				System.err.println("WARNING: Burn-in too large, resetting burn-in to default");
-				m_sLabels.clear();
-				if (m_bBurnInIsPercentage) {					
-					m_nBurnIn = 10;
-				} else {
-					m_nBurnIn = 0;
+		}
+		}
+		return nTrees;
+	} // parseTrees
+
+	/**
+	 * Parse several tree files, for instance from independent MCMC runs, in parallel and
+	 * concatenate the trees. Every run is specified by a file name, optionally followed by
+	 * #burnin and #thin to override burn-in and thinning for that file only, e.g. run2.trees#25#2
+	 * Taxa of all runs must match, and are mapped onto the labels of the first run
+	 * (or the labels already known to the parser, when loading a mirror set).
+	 */
+	public Node [] parseRuns(String [] sRunSpecs) throws Exception {
+		int nRuns = sRunSpecs.length;
+		m_sRuns = new String[nRuns];
+		final TreeFileParser [] parsers = new TreeFileParser[nRuns];
+		List<Future<Node[]>> futures = new ArrayList<>();
+		ExecutorService exec = Executors.newFixedThreadPool(Math.min(nRuns, Runtime.getRuntime().availableProcessors()));
+		Node [][] runTrees = new Node[nRuns][];
+		try {
+			for (int iRun = 0; iRun < nRuns; iRun++) {
+				String [] sStrs = sRunSpecs[iRun].split("#");
+				m_sRuns[iRun] = sStrs[0];
+				// every run gets its own parser, so runs can be parsed independently
+				final TreeFileParser parser = new TreeFileParser(new Vector<String>(m_sLabels),
+						m_fLongitude == null ? null : new Vector<Float>(m_fLongitude),
+						m_fLatitude == null ? null : new Vector<Float>(m_fLatitude), 
+						sStrs.length > 1 ? Integer.parseInt(sStrs[1].trim()) : m_nBurnIn);
+				parser.m_nThin = sStrs.length > 2 ? Integer.parseInt(sStrs[2].trim()) : m_nThin;
+				parser.m_bBurnInIsPercentage = m_bBurnInIsPercentage;
+				parser.m_bAllowSingleChild = m_bAllowSingleChild;
+				parser.m_bSurpressMetadata = m_bSurpressMetadata;
+				parsers[iRun] = parser;
+				final String sFile = m_sRuns[iRun];
+				futures.add(exec.submit(() -> parser.parseFile(sFile)));
+			}
+			for (int iRun = 0; iRun < nRuns; iRun++) {
+				try {
+					runTrees[iRun] = futures.get(iRun).get();
+				} catch (ExecutionException e) {
+					throw new Exception("Could not load " + m_sRuns[iRun] + ": " + e.getCause().getMessage(), e.getCause());
 				}
-				return parseFile(sFile);
 			}
+		} finally {
+			exec.shutdownNow();
 		}
-		
-		
-		System.err.println();
-		System.err.println("Geo: " +m_fMinLong + "x" + m_fMinLat + " " + m_fMaxLong + "x" + m_fMaxLat);
-		return trees.toArray(new Node[1]);
-	} // parseFile
+
+		if (m_sLabels.size() == 0) {
+			m_sLabels.addAll(parsers[0].m_sLabels);
+			if (m_fLatitude != null && parsers[0].m_fLatitude != null) {
+				m_fLatitude.addAll(parsers[0].m_fLatitude);
+				m_fLongitude.addAll(parsers[0].m_fLongitude);
+			}
+		}
+		m_nNrOfLabels = m_sLabels.size();
+		m_labelTable.sync(m_sLabels);
+
+		int nTrees = 0;
+		for (int iRun = 0; iRun < nRuns; iRun++) {
+			// parseFile returns a single null entry when no trees are found
+			if (runTrees[iRun].length == 0 || runTrees[iRun][0] == null) {
+				throw new Exception("No trees found in " + m_sRuns[iRun] + "\nMaybe burn in is too large?");
+			}
+			nTrees += runTrees[iRun].length;
+		}
+		Node [] trees = new Node[nTrees];
+		m_iRun = new int[nTrees];
+		int iTree = 0;
+		for (int iRun = 0; iRun < nRuns; iRun++) {
+			TreeFileParser parser = parsers[iRun];
+			m_fMinLat = Math.min(m_fMinLat, parser.m_fMinLat);
+			m_fMaxLat = Math.max(m_fMaxLat, parser.m_fMaxLat);
+			m_fMinLong = Math.min(m_fMinLong, parser.m_fMinLong);
+			m_fMaxLong = Math.max(m_fMaxLong, parser.m_fMaxLong);
+
+			// map taxa of this run onto the labels of the first run
+			if (parser.m_sLabels.size() != m_nNrOfLabels) {
+				throw new IllegalArgumentException("Run " + m_sRuns[iRun] + " has " + parser.m_sLabels.size() + 
+						" taxa, but " + m_nNrOfLabels + " taxa are expected");
+			}
+			int [] iLabelMap = new int[m_nNrOfLabels];
+			boolean bIdentity = true;
+			for (int i = 0; i < m_nNrOfLabels; i++) {
+				String sLabel = parser.m_sLabels.get(i);
+				iLabelMap[i] = m_labelTable.indexOf(sLabel);
+				if (iLabelMap[i] < 0) {
+					throw new IllegalArgumentException("Taxon " + sLabel + " of run " + m_sRuns[iRun] + " not found in " + m_sRuns[0]);
+				}
+				bIdentity = bIdentity && iLabelMap[i] == i;
+			}
+			for (Node tree : runTrees[iRun]) {
+				if (!bIdentity) {
+					relabel(tree, iLabelMap);
+					tree.sort();
+					tree.labelInternalNodes(m_nNrOfLabels);
+				}
+				m_iRun[iTree] = iRun;
+				trees[iTree++] = tree;
+			}
+			// release memory of the run as soon as possible
+			runTrees[iRun] = null;
+			System.err.println("Run " + iRun + ": " + m_sRuns[iRun]);
+		}
+		return trees;
+	} // parseRuns
+
+	private void relabel(Node node, int [] iLabelMap) {
+		if (node.isLeaf()) {
+			node.m_iLabel = iLabelMap[node.m_iLabel];
+		} else {
+			relabel(node.m_left, iLabelMap);
+			if (node.m_right != null) {
+				relabel(node.m_right, iLabelMap);
+			}
+		}
+	}
+
+	/** open tree file for reading, gzip and BGZF compressed files are decompressed on the fly **/
+	static BufferedReader openReader(File file) throws IOException {
+		return new BufferedReader(new InputStreamReader(ParallelGZIPInputStream.open(file)));
+	}
 
 //	/**
 //	 * helper method for parsing Newick tree. It finds the split point of the
@@ -500,40 +683,28 @@ public class TreeFileParser {
 //		return node;
 //	} // parseNewick
 	
-	/** Try to map sStr into an index. First, assume it is a number.
-	 * If that does not work, look in list of labels to see whether it is there.
+	/** Try to map the label in chars[iStart]...chars[iEnd-1] into an index. 
+	 * First, assume it is a number. If that does not work, look it up in the 
+	 * label table, which also knows about labels with (double) quotes missing or added.
 	 */
-	private int getLabelIndex(String sStr) throws Exception {
-		if (!m_bIsLabelledNewick) {
-			try {
-				int i = Integer.parseInt(sStr) - m_nOffset;
-				return m_iLabelMap[i];
-			} catch (Exception e) {
+	private int getLabelIndex(char [] chars, int iStart, int iEnd) throws Exception {
+		if (!m_bIsLabelledNewick && iEnd > iStart && iEnd - iStart < 10) {
+			int i = 0;
+			int k = iStart;
+			while (k < iEnd && chars[k] >= '0' && chars[k] <= '9') {
+				i = i * 10 + chars[k] - '0';
+				k++;
 			}
-		}
-		for (int i = 0; i < m_nNrOfLabels; i++) {
-			if (sStr.equals(m_sLabels.elementAt(i))) {
-				return i;
-			}
-		}
-		// sStr may have (double) qoutes missing
-		for (int i = 0; i < m_nNrOfLabels; i++) {
-			String sLabel = m_sLabels.elementAt(i);
-			if (sLabel.startsWith("'") && sLabel.endsWith("'") ||
-					sLabel.startsWith("\"") && sLabel.endsWith("\"")) {
-				sLabel = sLabel.substring(1, sLabel.length()-1);
-				if (sStr.equals(sLabel)) {
-					return i;
-				}
+			i -= m_nOffset;
+			if (k == iEnd && i >= 0 && i < m_iLabelMap.length) {
+				return m_iLabelMap[i];
 			}
 		}
-		// sStr may have extra (double) qoutes
-		if (sStr.startsWith("'") && sStr.endsWith("'") ||
-				sStr.startsWith("\"") && sStr.endsWith("\"")) {
-			sStr = sStr.substring(1, sStr.length()-1);
-			return getLabelIndex(sStr);
+		int iLabel = m_labelTable.indexOf(chars, iStart, iEnd);
+		if (iLabel >= 0 && iLabel < m_nNrOfLabels) {
+			return iLabel;
 		}
-		throw new Exception("Label '" + sStr + "' in Newick tree could not be identified");
+		throw new Exception("Label '" + new String(chars, iStart, iEnd - iStart) + "' in Newick tree could not be identified");
 	}
 	
 
@@ -608,6 +779,7 @@ public class TreeFileParser {
 			return null;
 		}
 		
+		m_labelTable.sync(m_sLabels);
 		m_chars = sStr.toCharArray();
 		m_iTokenStart = sStr.indexOf('(');
 		if (m_iTokenStart < 0) {
@@ -698,8 +870,7 @@ public class TreeFileParser {
 				break;
 			case TEXT:
 				if (bIsLabel) {
-					String sLabel = sStr.substring(m_iTokenStart, m_iTokenEnd);
-					stack.lastElement().m_iLabel = getLabelIndex(sLabel); 
+					stack.lastElement().m_iLabel = getLabelIndex(m_chars, m_iTokenStart, m_iTokenEnd); 
 				} else {
 					String sLength = sStr.substring(m_iTokenStart, m_iTokenEnd);
 					stack.lastElement().m_fLength = Float.parseFloat(sLength); 
@@ -22,10 +22,13 @@ import java.io.File;
 import java.io.PrintStream;
 import java.text.DecimalFormat;
 import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.imageio.ImageIO;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.Timer;
 
 import viz.DensiTree.LineColorMode;
 import viz.DensiTree.ViewMode;
@@ -46,8 +49,12 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 	DensiTree m_dt;
 	/** number of threads used for drawing **/
 	int m_nDrawThreads = 2;
-	/** the set of actual threads **/
-	Thread[][] m_drawThread;
+	/** drawing tasks, per draw direction, one for every thread **/
+	TaskScheduler.Task[][] m_drawTasks;
+	/** animation frame drawn in the images, -1 if none; index 1 for the mirror set and 0 otherwise **/
+	int [] m_iFrame = {-1, -1};
+	/** repaints while drawing is in progress, without blocking the event dispatch thread **/
+	Timer m_repaintTimer;
 
 	/** image in memory containing tree set drawing **/
 	BufferedImageF m_image1;
@@ -60,53 +67,87 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		m_dt = dt;
 		addMouseListener(this);
 		addMouseMotionListener(this);
-		m_drawThread = new Thread[2][2];
+		m_drawTasks = new TaskScheduler.Task[2][2];
+		m_repaintTimer = new Timer(0, e -> repaint());
+		m_repaintTimer.setRepeats(false);
 	}
 
-	/** stop drawing thread, if any is running */
+	/**
+	 * stop drawing tasks, if any is running. Tasks stop before drawing the next tree;
+	 * drawing started afterwards waits for that, so this does not block.
+	 */
 	void stopDrawThreads() {
-		try {
-			for (int i = 0; i < m_nDrawThreads; i++) {
-				for (int k = 0; k < 1; k++) {
-					if (m_drawThread[k][i] != null) {
-						((DrawThread) m_drawThread[k][i]).m_bStop = true;
-					}
-				}
-			}
-			for (int i = 0; i < m_nDrawThreads; i++) {
-				for (int k = 0; k < 1; k++) {
-					if (m_drawThread[k][i] != null) {
-						m_drawThread[k][i].join();
-					}
-				}
-			}
-		} catch (InterruptedException e) {
-			e.printStackTrace();
+		for (int k = 0; k < m_drawTasks.length; k++) {
+			stopDrawTasks(k);
 		}
 	} // stopDrawThreads
 
+	/** stop drawing tasks of one tree set, k = 1 for the mirror set and 0 otherwise **/
+	void stopDrawTasks(int k) {
+		for (int i = 0; i < m_drawTasks[k].length; i++) {
+			if (m_drawTasks[k][i] != null) {
+				m_drawTasks[k][i].cancel();
+			}
+		}
+	}
+
 	/** reset image so that it will be redrawn on the next occasion */
 	public void clearImage() {
 		m_image1 = null;
 		m_image2 = null;
+		m_iFrame[0] = -1;
+		m_iFrame[1] = -1;
 		stopDrawThreads();
 	}
 
 	/** return true if any drawing thread is active **/
 	boolean isDrawing() {
-		for (int i = 0; i < m_nDrawThreads; i++) {
-			for (int k = 0; k < 1; k++) {
-				if (m_drawThread[k][i] != null) {
-					return true;
-				}
+		for (int k = 0; k < m_drawTasks.length; k++) {
+			if (isDrawing(k)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/** return true if any drawing thread of one tree set is active **/
+	boolean isDrawing(int k) {
+		for (int i = 0; i < m_drawTasks[k].length; i++) {
+			if (m_drawTasks[k][i] != null && !m_drawTasks[k][i].isDone()) {
+				return true;
 			}
 		}
 		return false;
 	}
 
-	/** thread for drawing (part of the) tree set **/
-	class DrawThread extends Thread {
-		public boolean m_bStop = false;
+	/** repaint after the animation delay, without blocking the event dispatch thread **/
+	void repaintLater() {
+		m_repaintTimer.setInitialDelay(Math.max(0, m_dt.m_nAnimationDelay));
+		m_repaintTimer.restart();
+	}
+
+	/**
+	 * start drawing trees of a tree set in nDrawThreads tasks, each drawing every nDrawThreads-th tree.
+	 * The tree drawer is shared, so the tasks start once drawing tasks started before are done,
+	 * which does not take long for tasks that were stopped.
+	 **/
+	void startDrawTasks(int nDrawThreads, int iTreeTopology, TreeData treeData, BufferedImageF image) {
+		int k = treeData.reverse() ? 1 : 0;
+		List<TaskScheduler.Task> predecessors = m_dt.m_scheduler.getTasks(TaskScheduler.Stage.DRAW);
+		AtomicInteger nRemaining = new AtomicInteger(nDrawThreads);
+		for (int i = 0; i < nDrawThreads; i++) {
+			m_drawTasks[k][i] = m_dt.m_scheduler.submitAfter(TaskScheduler.Stage.DRAW, "Drawing trees",
+					new DrawWork(i, treeData.m_trees.length + i, nDrawThreads, iTreeTopology, m_dt.m_treeDrawer, treeData, image, nRemaining),
+					predecessors);
+		}
+	}
+
+	/** work for drawing (part of the) tree set **/
+	class DrawWork implements TaskScheduler.Work {
+		/** task running this work, null when drawing synchronously **/
+		TaskScheduler.Task m_task;
+		/** nr of tasks drawing the same image that are not finished yet; the last one finishes the image **/
+		AtomicInteger m_nRemaining;
 		int m_nFrom = 0;
 		int m_nTo = 1;
 		int m_nEvery = 1;
@@ -115,9 +156,8 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		TreeData treeData;
 		BufferedImageF m_image;
 
-		public DrawThread(String str, int nFrom, int nTo, int nEvery, int iTreeTopology, TreeDrawer treeDrawer, 
-				TreeData treeData, BufferedImageF image) {
-			super(str);
+		public DrawWork(int nFrom, int nTo, int nEvery, int iTreeTopology, TreeDrawer treeDrawer, 
+				TreeData treeData, BufferedImageF image, AtomicInteger nRemaining) {
 			m_treeDrawer = treeDrawer;
 			m_nFrom = nFrom;
 			m_nTo = nTo;
@@ -125,24 +165,39 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			m_iTreeTopology = iTreeTopology;
 			this.treeData = treeData;
 			m_image = image;
+			m_nRemaining = nRemaining;
 		} // c'tor
 
-		public DrawThread(String str, int nFrom, int nTo, int nEvery, TreeDrawer treeDrawer, TreeData treeData,
+		public DrawWork(int nFrom, int nTo, int nEvery, TreeDrawer treeDrawer, TreeData treeData,
 				BufferedImageF image) {
-			super(str);
 			m_nFrom = nFrom;
 			m_nTo = nTo;
 			m_nEvery = nEvery;
 			m_dt.m_treeDrawer = treeDrawer;
 			this.treeData = treeData;
 			m_image = image;
+			m_nRemaining = new AtomicInteger(1);
 		} // c'tor
 
+		boolean isStopped() {
+			return m_task != null && m_task.isCancelled();
+		}
+
+		void progress(String sMessage) {
+			if (m_task != null) {
+				m_task.progress(sMessage);
+			} else {
+				m_dt.m_jStatusBar.setText(sMessage);
+			}
+		}
+
 		@Override
-		public void run() {
+		public void run(TaskScheduler.Task task) {
+			m_task = task;
 			if (m_image == null) {
 				return;
 			}
+			m_dt.m_treeDrawer.setImage(m_image);
 			Graphics2D g = m_image.createGraphics();
 			try {
 				g.setClip(0, 0, m_image.getWidth(), m_image.getHeight());
@@ -166,7 +221,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 					g.setStroke(stroke);
 					m_dt.m_treeDrawer.setJitter(m_dt.m_settings.m_nJitter);
 					for (int i = iStart; i >= m_nFrom; i -= m_nEvery) {
-						if (m_bStop) {
+						if (isStopped()) {
 							return;
 						}
 						if (m_iTreeTopology < 0 || m_iTreeTopology == treeData.m_nTopologyByPopularity[i]) {
@@ -184,18 +239,18 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 //								g.setColor(m_dt.m_color[3]);
 //							}
 
-							m_dt.m_treeDrawer.draw(i, treeData.m_fLinesX, treeData.m_fLinesY, treeData.m_fLineWidth, treeData.m_fTopLineWidth, treeData.m_nLineColor, g, fScaleX,
+							m_dt.m_treeDrawer.draw(i, treeData.m_fLinesX, treeData.m_fLinesY, treeData.m_fLinesBounds, treeData.m_fLineWidth, treeData.m_fTopLineWidth, treeData.m_nLineColor, g, fScaleX,
 									fScaleY);
 							if (i % 100 == 0) {
 								System.err.print('.');
-								m_dt.m_jStatusBar.setText("Drawing tree " + i);
+								progress("Drawing tree " + i);
 							}
 						}
 					}
 				}
 				// draw consensus trees if necessary
 				if (m_dt.m_bViewCTrees) {
-					m_dt.m_jStatusBar.setText("Drawing consensus trees");
+					progress("Drawing consensus trees");
 //					g.setColor(m_dt.m_color[DensiTree.CONSCOLOR]);
 					Stroke stroke = new BasicStroke(m_dt.m_settings.m_nCTreeWidth, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL);
 					g.setStroke(stroke);
@@ -203,7 +258,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 					g.setClip(0, 0, getWidth(), getHeight());
 					m_dt.m_treeDrawer.setJitter(0);
 					for (int i = m_nFrom; i < treeData.m_nTopologies; i += m_nEvery) {
-						if (m_bStop) {
+						if (isStopped()) {
 							return;
 						}
 //						if (m_dt.m_bViewMultiColor) {
@@ -211,45 +266,44 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 						if (m_iTreeTopology < 0 || m_iTreeTopology == i) {
 							g.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC_OVER,
 									Math.min(1.0f, 0.5f * m_dt.m_settings.m_fCTreeIntensity * treeData.m_fTreeWeight[i])));
-							m_dt.m_treeDrawer.draw(i, treeData.m_fCLinesX, treeData.m_fCLinesY, treeData.m_fCLineWidth, treeData.m_fTopCLineWidth, treeData.m_nCLineColor, g,
+							m_dt.m_treeDrawer.draw(i, treeData.m_fCLinesX, treeData.m_fCLinesY, treeData.m_fCLinesBounds, treeData.m_fCLineWidth, treeData.m_fTopCLineWidth, treeData.m_nCLineColor, g,
 									fScaleX, fScaleY);
 							if (i % 100 == 0) {
 								System.err.print('x');
-								m_dt.m_jStatusBar.setText("Drawing consensus tree " + i);
+								progress("Drawing consensus tree " + i);
 							}
 						}
 					}
 				}
 
 				if (m_dt.m_viewMode == ViewMode.DRAW) {
-					m_drawThread[treeData.reverse() ? 1 : 0][m_nFrom] = null;
-					if (!isDrawing()) {
+					if (m_nRemaining.decrementAndGet() == 0) {
 						if (m_dt.m_settings.m_bShowRootCanalTopology) {
 							drawRootCanalTree(g, treeData);
 						}
 						double fEntropy = calcImageEntropy(m_image);
-						m_dt.m_jStatusBar.setText("Done Drawing trees ");
+						progress("Done Drawing trees ");
 						System.out.println("Entropy(x100): " + fEntropy + " Mean cumulative width: " + m_dt.m_w);
 					}
 					repaint();
 				} else {
 					DecimalFormat df = new DecimalFormat("##.##");
 					double fSum = 0;
-					for (int i = 0; i <= m_dt.m_iAnimateTree; i++) {
+					for (int i = 0; i <= m_iTreeTopology; i++) {
 						fSum += treeData.m_fTreeWeight[i];
 					}
 
-					m_dt.m_jStatusBar.setText("Consensus tree " + (m_dt.m_iAnimateTree + 1) + " out of " + treeData.m_nTopologies
-							+ " covering " + df.format((treeData.m_fTreeWeight[m_dt.m_iAnimateTree] * 100)) + "% of trees "
+					progress("Consensus tree " + (m_iTreeTopology + 1) + " out of " + treeData.m_nTopologies
+							+ " covering " + df.format((treeData.m_fTreeWeight[m_iTreeTopology] * 100)) + "% of trees "
 							+ df.format(fSum * 100) + "% cumultive trees");
+					repaint();
 				}
 			} catch (Exception e) {
 				e.printStackTrace();
 				System.err.println("DRAWING ERROR -- IGNORED");
 			}
-			m_drawThread[treeData.reverse() ? 1 : 0][m_nFrom] = null;
 		}
-	} // DrawThread
+	} // DrawWork
 
 
 	void drawLabelsSVG(Node node, StringBuffer buf) {
@@ -299,8 +353,8 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			if (m_dt.m_treeDrawer.getBranchDrawer() instanceof ArcBranchDrawer) {
 				treeDrawer.m_branchStyle = 2;
 			}
-			DrawThread thread = new DrawThread("draw thread", 0, m_dt.m_treeData.m_trees.length, 1, treeDrawer, m_dt.m_treeData, m_image);
-			thread.run();
+			DrawWork work = new DrawWork(0, m_dt.m_treeData.m_trees.length, 1, treeDrawer, m_dt.m_treeData, m_image);
+			work.run(null);
 			drawLabelsSVG(m_dt.m_treeData.m_trees[0], buf);
 			m_dt.m_gridDrawer.drawHeightInfoSVG(buf);
 
@@ -373,6 +427,16 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		g.clearRect(r.x, r.y, r.width, r.height);
 		g2.setBackground(oldBackground);
 		g.setClip(r.x, r.y, r.width, r.height);
+		if (m_dt.isRecalcOutstanding()) {
+			// lines and positions are rewritten in the background, or do not match after a cancelled
+			// recalculation, so only show what was drawn before; the image is cleared and redrawn
+			// once the recalculation is done
+			paintImage(g, m_dt.m_treeData, m_image1);
+			if (m_dt.m_treeData2 != null) {
+				paintImage(g, m_dt.m_treeData2, m_image2);
+			}
+			return;
+		}
 		paintComponent(g, m_dt.m_treeData, m_image1);
 		if (m_dt.m_treeData2 != null) {
 			paintComponent(g, m_dt.m_treeData2, m_image2);
@@ -384,6 +448,24 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		}
 	}
 	
+	/** show image drawn before for a tree set, without touching its lines **/
+	void paintImage(Graphics g, TreeData treeData, BufferedImageF m_image) {
+		if (m_image == null || m_image1 == null) {
+			return;
+		}
+		AffineTransform transform = ((Graphics2D)g).getTransform();
+		if (treeData.drawMode == TreeData.MODE_RIGHT) {
+			((Graphics2D)g).setTransform(new AffineTransform(-1.0,0,0,1,2*m_image1.getWidth(), 0));
+			if (Util.isAppleWithJava17() >= 1 && !m_dt.isExporting()) {
+				((Graphics2D)g).setTransform(new AffineTransform(-2.0,0,0,2,4*m_image1.getWidth(), 0));
+			}
+		} else if (m_dt.m_viewMode == ViewMode.DRAW && m_dt.m_settings.m_bDrawReverse) {
+			((Graphics2D)g).setTransform(new AffineTransform(-1,0,0,1,m_image.getWidth(), 0));
+		}
+		m_image.drawImage(g, this);
+		((Graphics2D)g).setTransform(transform);
+	}
+
 	public void paintComponent(Graphics g, TreeData treeData, BufferedImageF m_image) {
 		switch (treeData.drawMode) {
 		case TreeData.MODE_LEFT :
@@ -412,21 +494,15 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			}
 			break;
 		case ANIMATE:
-			drawFrame(g, treeData, m_image);
-			m_dt.m_gridDrawer.paintHeightInfo(g, treeData.reverse());
-			try {
-				Thread.sleep(m_dt.m_nAnimationDelay);
-			} catch (Exception ex) {
-				// ignore
+			if (drawFrame(g, treeData, m_image)) {
+				m_dt.m_iAnimateTree = (m_dt.m_iAnimateTree + 1) % treeData.m_nTopologies;
 			}
-			m_dt.m_iAnimateTree = (m_dt.m_iAnimateTree + 1) % treeData.m_nTopologies;
-			repaint();
+			m_dt.m_gridDrawer.paintHeightInfo(g, treeData.reverse());
+			repaintLater();
 			return;
 		case BROWSE:
 			drawFrame(g, treeData, m_image);
 			m_dt.m_gridDrawer.paintHeightInfo(g, treeData.reverse());
-			m_dt.setDefaultCursor();
-			//this.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
 			return;
 		}
 		if (m_dt.m_settings.m_sOutputFile != null && !isDrawing()) {
@@ -549,7 +625,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 				} else {
 					m_image1 = m_image;
 				}
-				m_dt.m_treeDrawer.setImage(m_image);
+				m_iFrame[treeData.reverse() ? 1 : 0] = -1;
 				Graphics2D g2 = m_image.createGraphics();
 				m_image.init(g2, m_dt.m_settings.m_color[DensiTree.BGCOLOR], m_dt.m_bgImage, m_dt.m_fBGImageBox, m_dt.m_settings.m_nLabelWidth, m_dt.m_settings.m_fMinLong, m_dt.m_settings.m_fMaxLong,
 						m_dt.m_settings.m_fMinLat, m_dt.m_settings.m_fMaxLat);
@@ -562,16 +638,8 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 					m_image.SyncIntToRGBImage();
 				}
 
-				int nDrawThreads = Math.min(m_nDrawThreads, treeData.m_trees.length);
-				int k = treeData.reverse() ? 1 : 0;
-				for (int i = 0; i < nDrawThreads; i++) {
-					m_drawThread[k][i] = new DrawThread("draw thread", i, treeData.m_trees.length + i, nDrawThreads,
-							m_dt.m_treeDrawer, treeData, m_image);
-					m_drawThread[k][i].start();
-				}
-				if (m_dt.m_settings.m_bShowRootCanalTopology) {
-					drawRootCanalTree(g, treeData);
-				}
+				// the last task draws the root canal tree in the image as well
+				startDrawTasks(Math.min(m_nDrawThreads, treeData.m_trees.length), -1, treeData, m_image);
 			}
 
 		}
@@ -606,12 +674,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		}
 		// ((Graphics2D) g).scale(m_dt.m_fScale, m_dt.m_fScale);
 		if (isDrawing()) {
-			try {
-				Thread.sleep(m_dt.m_nAnimationDelay);
-			} catch (Exception ex) {
-				// ignore
-			}
-			repaint();
+			repaintLater();
 			if (m_dt.m_settings.m_bRecord) {
 				try {
 					System.err.println(" writing /tmp/frame" + m_dt.m_settings.m_nFrameNr + ".jpg " + isDrawing());
@@ -657,8 +720,11 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 				treeData.m_fRTopLineWidth, treeData.m_nRLineColor, g, fScaleX, fScaleY);
 	}
 
-	/** draw new frame in animation or browse action **/
-	void drawFrame(Graphics g, TreeData treeData, BufferedImageF m_image) {
+	/**
+	 * draw new frame in animation or browse action. Drawing the frame is started in
+	 * the background, and the part drawn so far is shown; returns true once the frame is complete.
+	 **/
+	boolean drawFrame(Graphics g, TreeData treeData, BufferedImageF m_image) {
 		Color oldBackground = ((Graphics2D) g).getBackground();
 		((Graphics2D) g).setBackground(m_dt.m_settings.m_color[DensiTree.BGCOLOR]);
 		Rectangle r = g.getClipBounds();
@@ -668,10 +734,22 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 
 		if (treeData.m_trees == null || treeData.m_fCLinesY == null || m_dt.m_bInitializing) {
 			// nothing to see
-			return;
+			return false;
+		}
+		int k = treeData.reverse() ? 1 : 0;
+		if (m_image != null && m_iFrame[k] == m_dt.m_iAnimateTree) {
+			// frame is being drawn, or done
+			m_image.drawImage(g, this);
+			if (isDrawing(k)) {
+				repaintLater();
+				return false;
+			}
+			m_dt.setDefaultCursor();
+			return true;
 		}
 		m_dt.setWaitCursor();
 		//this.setCursor(new Cursor(Cursor.WAIT_CURSOR));
+		stopDrawTasks(k);
 		if (m_image == null || m_dt.m_bAnimateOverwrite || m_dt.m_iAnimateTree == 0) { // ||
 																				// m_viewMode
 																				// ==
@@ -688,7 +766,6 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 				m_image1 = m_image;
 			}
 
-			m_dt.m_treeDrawer.setImage(m_image);
 			Graphics2D g2 = m_image.createGraphics();
 			// g2.setBackground(m_dt.m_color[DensiTree.BGCOLOR]);
 			// g2.clearRect(0, 0, m_image.getWidth(), m_image.getHeight());
@@ -707,25 +784,11 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			m_image.SyncIntToRGBImage();
 		}
 
-		int k = treeData.reverse() ? 1 : 0;
-		for (int i = 0; i < m_nDrawThreads; i++) {
-			m_drawThread[k][i] = new DrawThread("draw thread", i, treeData.m_trees.length + i, m_nDrawThreads, m_dt.m_iAnimateTree,
-					m_dt.m_treeDrawer, treeData, m_image);
-			m_drawThread[k][i].start();
-		}
-
-		while (isDrawing()) {
-			try {
-				Thread.sleep(m_dt.m_nAnimationDelay);
-			} catch (Exception ex) {
-				// ignore
-			}
-			m_image.drawImage(g, this);
-			System.err.print("X");
-		}
+		m_iFrame[k] = m_dt.m_iAnimateTree;
+		startDrawTasks(m_nDrawThreads, m_dt.m_iAnimateTree, treeData, m_image);
 		m_image.drawImage(g, this);
-		m_dt.setDefaultCursor();
-		//this.setCursor(new Cursor(Cursor.DEFAULT_CURSOR));
+		repaintLater();
+		return false;
 	} // animate
 
 	/**
@@ -813,7 +876,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		r.y = (int) (r.y / m_dt.m_fScale);
 		r.width = 1 + (int) (r.width / m_dt.m_fScale);
 		r.height = 1 + (int) (r.height / m_dt.m_fScale);
-		for (int i = 0; i < m_dt.m_treeData.m_bSelection.length; i++) {
+		for (int i : m_dt.getLabelIndex().query(r)) {
 			if (m_dt.m_bLabelRectangle[i].intersects(r)) {
 				m_dt.m_treeData.m_bSelection[i] = !m_dt.m_treeData.m_bSelection[i];
 				m_dt.m_treeData.m_bSelectionChanged = true;
@@ -824,7 +887,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			r.x += 5;
 			r.y += 5;
 			Rectangle rotationPoint = new Rectangle(10, 10);
-			for (int i = 0; i < rotationPoints.length; i++) {
+			for (int i : queryRotationPoints(m_dt.m_treeData, r)) {
 				rotationPoint.x = rotationPoints[i].m_nX;
 				rotationPoint.y = rotationPoints[i].m_nY;
 				if (r.intersects(rotationPoint)) { 
@@ -837,12 +900,12 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 					}
 				}
 			}
-			if (m_dt.m_treeData2 != null) {
+			if (m_dt.m_treeData2 != null && m_dt.m_treeData2.m_rotationPoints != null) {
 				rotationPoints = m_dt.m_treeData2.m_rotationPoints;
 				r.x += 5;
 				r.y += 5;
 				rotationPoint = new Rectangle(10, 10);
-				for (int i = 0; i < rotationPoints.length; i++) {
+				for (int i : queryRotationPoints(m_dt.m_treeData2, r)) {
 					rotationPoint.x = rotationPoints[i].m_nX;
 					rotationPoint.y = rotationPoints[i].m_nY;
 					if (r.intersects(rotationPoint)) { 
@@ -870,13 +933,14 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		r.y = (int) (r.y / m_dt.m_fScale);
 		r.width = 1 + (int) (r.width / m_dt.m_fScale);
 		r.height = 1 + (int) (r.height / m_dt.m_fScale);
-		for (int i = 0; i < m_dt.m_treeData.m_bSelection.length; i++) {
-			if (m_dt.m_bLabelRectangle[i].intersects(r)
-					|| (m_dt.m_bGeoRectangle[i] != null && m_dt.m_bGeoRectangle[i].intersects(r))) {
-				if (!m_dt.m_treeData.m_bSelection[i] && m_dt.m_treeData.m_cladeWeight.get(i) >= m_dt.m_settings.m_smallestCladeSupport) {
-					m_dt.m_treeData.m_bSelection[i] = true;
-					m_dt.m_treeData.m_bSelectionChanged = true;
-				}
+		for (int i : m_dt.getLabelIndex().query(r)) {
+			if (m_dt.m_bLabelRectangle[i].intersects(r)) {
+				addLabelToSelection(i);
+			}
+		}
+		for (int i : m_dt.getGeoIndex().query(r)) {
+			if (m_dt.m_bGeoRectangle[i] != null && m_dt.m_bGeoRectangle[i].intersects(r)) {
+				addLabelToSelection(i);
 			}
 		}
 		if (m_dt.m_treeData.m_rotationPoints != null) {
@@ -884,7 +948,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 			r.x += 5;
 			r.y += 5;
 			Rectangle rotationPoint = new Rectangle(10, 10);
-			for (int i = 0; i < rotationPoints.length; i++) {
+			for (int i : queryRotationPoints(m_dt.m_treeData, r)) {
 				rotationPoint.x = rotationPoints[i].m_nX;
 				rotationPoint.y = rotationPoints[i].m_nY;
 				if (r.intersects(rotationPoint) && m_dt.m_treeData.m_cladeWeight.get(i) >= m_dt.m_settings.m_smallestCladeSupport) {
@@ -892,9 +956,9 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 					// m_dt.treeData.m_cladeSelection.add(i);
 				}
 			}
-			if (m_dt.m_treeData2 != null) {
+			if (m_dt.m_treeData2 != null && m_dt.m_treeData2.m_rotationPoints != null) {
 				rotationPoints =  m_dt.m_treeData2.m_rotationPoints;
-				for (int i = 0; i < rotationPoints.length; i++) {
+				for (int i : queryRotationPoints(m_dt.m_treeData2, r)) {
 					rotationPoint.x = rotationPoints[i].m_nX;
 					rotationPoint.y = rotationPoints[i].m_nY;
 					if (r.intersects(rotationPoint) && m_dt.m_treeData2.m_cladeWeight.get(i) >= m_dt.m_settings.m_smallestCladeSupport) {
@@ -926,6 +990,22 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		}
 	}
 
+	/** select label i, unless its clade support is too low **/
+	private void addLabelToSelection(int i) {
+		if (!m_dt.m_treeData.m_bSelection[i] && m_dt.m_treeData.m_cladeWeight.get(i) >= m_dt.m_settings.m_smallestCladeSupport) {
+			m_dt.m_treeData.m_bSelection[i] = true;
+			m_dt.m_treeData.m_bSelectionChanged = true;
+		}
+	}
+
+	/**
+	 * candidate rotation points for the test r.intersects(new Rectangle(x, y, 10, 10))
+	 * of toggleSelection and addToSelection, where (x, y) is the rotation point
+	 **/
+	private int [] queryRotationPoints(TreeData treeData, Rectangle r) {
+		return treeData.getRotationIndex().query(r.x - ScreenIndex.ROTATION_POINT_RADIUS, r.y - ScreenIndex.ROTATION_POINT_RADIUS, r.width, r.height);
+	}
+
 	@Override
 	public void mouseEntered(MouseEvent e) {
 	}
@@ -978,7 +1058,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 
 	private boolean checkRotationPoints(TreeData treeData, MouseEvent e) {
 		RotationPoint [] rotationPoints =  treeData.m_rotationPoints;
-		for (int i = 0; i < rotationPoints.length; i++) {
+		for (int i : treeData.getRotationIndex().query(e.getX(), e.getY())) {
 			if (rotationPoints[i].intersects(e.getPoint().x, e.getPoint().y)) {
 				m_bIsMoving = true;
 				m_dt.m_nSelectedRect = new Rectangle(e.getPoint(), new Dimension(1, 1));
@@ -990,7 +1070,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 
 	private boolean checkRotationPoints2(TreeData treeData, MouseEvent e) {
 		RotationPoint [] rotationPoints =  treeData.m_rotationPoints;
-		for (int i = 0/* m_dt.settings.m_sLabels.size() */; i < rotationPoints.length; i++) {
+		for (int i : treeData.getRotationIndex().query(e.getX(), e.getY())) {
 			if (rotationPoints[i].intersects(e.getPoint().x, e.getPoint().y) && 
 					m_dt.m_treeData.getCladeSelection().contains(i)) {
 				m_bIsMoving = true;
@@ -1007,7 +1087,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		if (m_dt.m_settings.m_bViewEditTree && m_dt.m_settings.m_Xmode == 0 && e.getButton() == MouseEvent.BUTTON1 && !m_bIsDragging) {
 			if (m_dt.m_treeData.m_rotationPoints != null) {
 				RotationPoint [] rotationPoints =  m_dt.m_treeData.m_rotationPoints;
-				for (int i = 0; i < rotationPoints.length; i++) {
+				for (int i : m_dt.m_treeData.getRotationIndex().query(e.getX(), e.getY())) {
 					if (rotationPoints[i].intersects(e.getX(), e.getY())) {
 						m_dt.rotateAround(i);
 						m_dt.m_nSelectedRect = null;
@@ -1044,7 +1124,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 				if (m_dt.m_treeData.m_rotationPoints != null) {
 					RotationPoint [] rotationPoints =  m_dt.m_treeData.m_rotationPoints;
 					if (m_dt.m_settings.m_bViewEditTree && m_dt.m_settings.m_Xmode == 0) {
-						for (int i = 0; i < rotationPoints.length; i++) {
+						for (int i : m_dt.m_treeData.getRotationIndex().query(m_dt.m_nSelectedRect.x, m_dt.m_nSelectedRect.y)) {
 							if (rotationPoints[i].intersects(m_dt.m_nSelectedRect.x, m_dt.m_nSelectedRect.y)) {
 								m_dt.moveRotationPoint(i, m_dt.m_settings.m_sLabels.size()
 										* (m_dt.m_treeDrawer.m_bRootAtTop ? (float) m_dt.m_nSelectedRect.width / getWidth()
@@ -1091,7 +1171,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 	@Override
 	public void mouseMoved(MouseEvent e) {
 		if (m_dt.m_settings.m_bDrawGeo) {
-			for (int i = 0; i < m_dt.m_treeData.m_bSelection.length; i++) {
+			for (int i : m_dt.getGeoIndex().query(e.getX(), e.getY())) {
 				if (m_dt.m_bGeoRectangle[i].contains(e.getPoint())) {
 					m_dt.m_jStatusBar.setText(m_dt.m_settings.m_sLabels.elementAt(i));
 				}
@@ -1100,7 +1180,7 @@ public class TreeSetPanel extends JPanel implements MouseListener, Printable, Mo
 		Point p = e.getPoint();
 		boolean found = false;
 		if (m_dt.m_bLabelRectangle != null) {
-			for (int i = 0; i < m_dt.m_bLabelRectangle.length; i++) {
+			for (int i : m_dt.getLabelIndex().query(p.x, p.y)) {
 				if (m_dt.m_bLabelRectangle[i].contains(p)) {
 					m_dt.m_jStatusBar.setText(m_dt.m_settings.m_sLabels.elementAt(i) + " ");
 					if (m_dt.m_settings.m_LabelImages != null) {
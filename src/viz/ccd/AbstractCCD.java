@@ -7,6 +7,7 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.math.BigInteger;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -16,6 +17,10 @@ import java.util.Map;
 import java.util.Queue;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /**
  * <p>
@@ -64,6 +69,12 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /** Threshold used for throwing error when probability that much out of bounds (mostly above 1). */
     public final static double PROBABILITY_ERROR = 1e-5;
 
+    /** Threshold of number of trees on whether to cladify trees in parallel during construction. */
+    public static final int NUM_TREES_PARALLELIZATION_THRESHOLD = 2000;
+
+    /** Minimum number of trees in a batch cladified by a single worker thread. */
+    private static final int MIN_BATCH_SIZE = 250;
+
     /**
      * The trees this CCD is based on (burnin trees removed).
      */
@@ -100,10 +111,24 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /**
      * Mapping from a BitSet representation to a clade; used to ensure
      * uniqueness of clades. Assumes that all BitSets have length equal to the
-     * number of leaves.
+     * number of leaves. Backed by a {@link CladeMap}, which stores the
+     * bitsets in an arena with an open-addressing hash table.
      */
     protected Map<BitSet, Clade> cladeMapping;
 
+    /**
+     * Number of clades created for this CCD so far, including removed ones;
+     * each clade gets the next number as its id, see {@link Clade#getId()}.
+     */
+    private int numCladeIds = 0;
+
+    /**
+     * Scratch array by clade id for {@link FilterScore}, one per thread scoring
+     * candidates; a FilterScore sets the entries of the clades it changes and
+     * clears them again, so no arrays are allocated per candidate.
+     */
+    private final ThreadLocal<Object[]> filterScoreScratch = new ThreadLocal<>();
+
     /**
      * Random used for sampling and tie breaking
      */
@@ -137,11 +162,77 @@ public abstract class AbstractCCD implements ITreeDistribution {
             treesToUse.addAll(trees.subList(numDiscardedTrees, trees.size()));
         }
 
-        for (Tree tree : treesToUse) {
-            cladifyTree(tree);
+        cladifyTrees(treesToUse);
+    }
+
+    /**
+     * Process the given trees into the CCD graph, in parallel for large
+     * numbers of trees on multi-core machines.
+     *
+     * @param trees to be processed into the CCD graph
+     */
+    protected void cladifyTrees(List<Tree> trees) {
+        if (trees.size() >= NUM_TREES_PARALLELIZATION_THRESHOLD
+                && Runtime.getRuntime().availableProcessors() > 1) {
+            cladifyTreesInParallel(trees);
+        } else {
+            for (Tree tree : trees) {
+                cladifyTree(tree);
+            }
+        }
+    }
+
+    /**
+     * Process the given trees into the CCD graph using multiple threads:
+     * batches of consecutive trees are cladified into separate
+     * {@link CladeCountTable}s by worker threads, which are then merged into
+     * the CCD graph in batch order. This results in the same CCD graph as
+     * calling {@link #cladifyTree(Tree)} for every tree, including the mean
+     * heights.
+     *
+     * @param trees to be processed into the CCD graph
+     */
+    protected void cladifyTreesInParallel(List<Tree> trees) {
+        for (Tree tree : trees) {
+            if (storeBaseTrees) {
+                this.baseTrees.add(tree);
+            } else if (this.baseTrees.isEmpty()) {
+                this.baseTrees.add(tree);
+            }
+        }
+
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        // a few batches per thread to balance load
+        int batchSize = Math.max(MIN_BATCH_SIZE, (trees.size() + 4 * threadCount - 1) / (4 * threadCount));
+        ExecutorService executor = Executors.newFixedThreadPool(threadCount);
+        try {
+            List<Future<CladeCountTable>> batches = new ArrayList<Future<CladeCountTable>>();
+            for (int start = 0; start < trees.size(); start += batchSize) {
+                final List<Tree> batch = trees.subList(start, Math.min(start + batchSize, trees.size()));
+                batches.add(executor.submit(() -> {
+                    CladeCountTable table = newCladeCountTable();
+                    for (Tree tree : batch) {
+                        table.addTree(tree);
+                    }
+                    return table;
+                }));
+            }
+            // merge in batch order while later batches are still being processed
+            for (Future<CladeCountTable> batch : batches) {
+                batch.get().mergeInto(this);
+            }
+        } catch (InterruptedException | ExecutionException e) {
+            throw new RuntimeException("Failed to construct CCD: " + e.getMessage(), e);
+        } finally {
+            executor.shutdownNow();
         }
     }
 
+    /** @return an empty table to cladify a batch of trees into, see {@link #cladifyTreesInParallel(List)} */
+    CladeCountTable newCladeCountTable() {
+        return new CladeCountTable(leafArraySize);
+    }
+
 
     /**
      * Constructor to start with an empty CDD graph. Trees can then be processed
@@ -159,7 +250,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /* Base constructor */
     protected AbstractCCD(boolean storeTrees) {
         this.storeBaseTrees = storeTrees;
-        this.cladeMapping = new HashMap<BitSet, Clade>();
+        this.cladeMapping = new CladeMap();
         this.baseTrees = new ArrayList<Tree>(storeTrees ? 1000 : 1);
     }
 
@@ -208,8 +299,8 @@ public abstract class AbstractCCD implements ITreeDistribution {
             firstChildClade = cladifyVertex(vertex.getChild(0));
             secondChildClade = cladifyVertex(vertex.getChild(1));
 
-            cladeInBits.or(firstChildClade.getCladeInBits());
-            cladeInBits.or(secondChildClade.getCladeInBits());
+            firstChildClade.orCladeInBitsInto(cladeInBits);
+            secondChildClade.orCladeInBitsInto(cladeInBits);
         }
 
         Clade currentClade = cladeMapping.get(cladeInBits);
@@ -231,6 +322,93 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return currentClade;
     }
 
+    /**
+     * Clades of trees added with {@link #addCladifiedTree(Tree, List)} indexed
+     * by their clade number; null for clade numbers not encountered yet.
+     */
+    private Clade[] cladeByNumber = new Clade[0];
+
+    /**
+     * Add and process a tree whose vertices already carry a dense clade number
+     * (as assigned by {@link TreeData} when it collects clades, with leaves
+     * numbered by taxon). Clades are looked up by number, so no BitSet has to
+     * be built and hashed for every vertex; a BitSet is only created the first
+     * time a clade number is encountered. Clade numbers must be consistent
+     * over all trees added this way.
+     *
+     * @param tree   to be added and processed into the CCD graph
+     * @param clades for every clade number, the sorted taxa in the clade
+     */
+    public void addCladifiedTree(Tree tree, List<int[]> clades) {
+        if (storeBaseTrees) {
+            this.baseTrees.add(tree);
+        } else if (this.baseTrees.isEmpty()) {
+            this.baseTrees.add(tree);
+        }
+        if (cladeByNumber.length < clades.size()) {
+            cladeByNumber = Arrays.copyOf(cladeByNumber, clades.size());
+        }
+        cladifyVertex(tree.getRoot(), clades);
+        this.numBaseTrees++;
+        this.setCacheAsDirty();
+    }
+
+    /* Recursive helper method, as cladifyVertex(Node) but using clade numbers */
+    private Clade cladifyVertex(Node vertex, List<int[]> clades) {
+        Clade firstChildClade = null;
+        Clade secondChildClade = null;
+        if (!vertex.isLeaf()) {
+            firstChildClade = cladifyVertex(vertex.getChild(0), clades);
+            secondChildClade = cladifyVertex(vertex.getChild(1), clades);
+        }
+
+        Clade currentClade = cladeByNumber[vertex.m_iClade];
+        if (currentClade == null) {
+            BitSet cladeInBits = BitSet.newBitSet(leafArraySize);
+            for (int taxon : clades.get(vertex.m_iClade)) {
+                cladeInBits.set(taxon);
+            }
+            currentClade = cladeMapping.get(cladeInBits);
+            if (currentClade == null) {
+                currentClade = addNewClade(cladeInBits);
+            }
+            cladeByNumber[vertex.m_iClade] = currentClade;
+        }
+        currentClade.increaseOccurrenceCount(vertex.getHeight());
+
+        if (!vertex.isLeaf()) {
+            CladePartition currentPartition = currentClade.getCladePartition(firstChildClade,
+                    secondChildClade);
+            if (currentPartition == null) {
+                currentPartition = currentClade.createCladePartition(firstChildClade,
+                        secondChildClade);
+            }
+            currentPartition.increaseOccurrenceCount(vertex.getHeight());
+        }
+
+        return currentClade;
+    }
+
+    /* Helper method - id for a new clade of this CCD; clades are only created by one thread at a time */
+    int nextCladeId() {
+        return numCladeIds++;
+    }
+
+    /** @return bound on the ids of the clades of this CCD, so the length of an array indexed by them */
+    int getNumberOfCladeIds() {
+        return numCladeIds;
+    }
+
+    /* Helper method - scratch array by clade id of the current thread for FilterScore, with all entries null */
+    Object[] getFilterScoreScratch() {
+        Object[] scratch = filterScoreScratch.get();
+        if ((scratch == null) || (scratch.length < numCladeIds)) {
+            scratch = new Object[numCladeIds];
+            filterScoreScratch.set(scratch);
+        }
+        return scratch;
+    }
+
     /**
      * Adds and returns a new clade to this CCD based on the given BitSet.
      * Assumes that the clade does not exist yet; otherwise future behaviour is undefined.
@@ -284,8 +462,8 @@ public abstract class AbstractCCD implements ITreeDistribution {
             firstChildClade = reduceCladeCount(vertex.getChild(0));
             secondChildClade = reduceCladeCount(vertex.getChild(1));
 
-            cladeInBits.or(firstChildClade.getCladeInBits());
-            cladeInBits.or(secondChildClade.getCladeInBits());
+            firstChildClade.orCladeInBitsInto(cladeInBits);
+            secondChildClade.orCladeInBitsInto(cladeInBits);
         }
 
         // 2. retrieve clade and reduce count
@@ -584,11 +762,19 @@ public abstract class AbstractCCD implements ITreeDistribution {
     /** Whether cached numbers of topologies are out of date. */
     protected boolean commonAncestorHeightsDirty = true;
 
+    /**
+     * Version of the CCD graph and its values, increased whenever the CCD is
+     * set as dirty; lets CCDs derived from this one detect when values they
+     * share with it become out of date.
+     */
+    private long version = 0;
+
     /**
      * Sets CCD as dirty lazily, meaning cached values become out of date and
      * (lazily) clades and clade partitions are not told about being dirty!
      */
     public void setCacheAsDirty() {
+        this.version++;
         this.probabilitiesDirty = true;
         this.entropyDirty = true;
         this.numberOfTopologiesDirty = true;
@@ -610,6 +796,24 @@ public abstract class AbstractCCD implements ITreeDistribution {
         commonAncestorHeightsDirty = true;
     }
 
+    /** @return version of this CCD, increased whenever it is set as dirty */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Returns a clade of another CCD whose subtree has the same entropy, max
+     * subtree probability and number of topologies as the given clade of this
+     * CCD, so that these values can be shared instead of recomputed; used by
+     * the {@link Clade} getters of these values.
+     *
+     * @param clade of this CCD
+     * @return clade with same subtree values or null if there is none (anymore)
+     */
+    protected Clade getStatisticsSource(Clade clade) {
+        return null;
+    }
+
     /* Helper method. */
     protected void resetCacheIfProbabilitiesDirty() {
         if (probabilitiesDirty) {
@@ -635,6 +839,34 @@ public abstract class AbstractCCD implements ITreeDistribution {
         return this.rootClade.getEntropy();
     }
 
+    /**
+     * Whether {@link #getFilterScore(BitSet)} can be used, which requires that
+     * conditional clade probabilities are based on occurrence counts.
+     *
+     * @return whether filter scores can be computed for this CCD
+     */
+    public boolean supportsFilterScores() {
+        return false;
+    }
+
+    /**
+     * Computes entropy, max tree probability and number of tree topologies of
+     * the CCD obtained by removing the given taxa from this CCD, without
+     * constructing that {@link FilteredCCD}; only clades that change by the
+     * removal are visited. Requires {@link #supportsFilterScores()}.
+     *
+     * @param taxaToRemove mask specifying which taxa to remove
+     * @return scores of the filtered CCD
+     */
+    public FilterScore getFilterScore(BitSet taxaToRemove) {
+        if (!supportsFilterScores()) {
+            throw new UnsupportedOperationException("Filter scores require count based clade partition probabilities.");
+        }
+        tidyUpCacheIfDirty();
+        resetCacheIfProbabilitiesDirty();
+        return new FilterScore(this, taxaToRemove);
+    }
+
     /**
      * Compute the entropy of the tree distribution modeled by this CCD
      * with the simple clade partition based formula.
@@ -825,7 +1057,7 @@ public abstract class AbstractCCD implements ITreeDistribution {
 
         Node vertex = null;
         if (clade.isLeaf()) {
-            int leafNr = clade.getCladeInBits().nextSetBit(0);
+            int leafNr = clade.nextSetBit(0);
             //String taxonName = this.getSomeBaseTree().getTaxaNames()[leafNr];
 
             vertex = new Node();
@@ -1146,13 +1378,9 @@ public abstract class AbstractCCD implements ITreeDistribution {
     private void setMeanOccurredHeights(Tree tree) {
         WrappedBeastTree wrappedTree = new WrappedBeastTree(tree);
 
-        for (Node vertex : tree.getNodesAsArray()) {
-            if (vertex == null) {
-                // if filtered, there can be null entries in vertex array
-                continue;
-            }
-
-            BitSet cladeInBits = wrappedTree.getCladeInBits(vertex.getNr());
+        for (int nr : tree.getPostOrder()) {
+            Node vertex = tree.getNode(nr);
+            BitSet cladeInBits = wrappedTree.getCladeInBits(nr);
             Clade clade = cladeMapping.get(cladeInBits);
 
             if (clade != null) {
@@ -1256,8 +1484,8 @@ public abstract class AbstractCCD implements ITreeDistribution {
                 return null;
             }
 
-            cladeInBits.or(firstChildClade.getCladeInBits());
-            cladeInBits.or(secondChildClade.getCladeInBits());
+            firstChildClade.orCladeInBitsInto(cladeInBits);
+            secondChildClade.orCladeInBitsInto(cladeInBits);
 
             Clade currentClade = cladeMapping.get(cladeInBits);
             if (currentClade != null) {
@@ -68,7 +68,7 @@ public class AttachingFilteredCCD extends FilteredCCD {
             toFilterClades.add(clade);
 
             // then we also need the clade that will absorb them (if it exists)
-            BitSet filteredBitSet = filterBitSet(clade.getCladeInBits());
+            BitSet filteredBitSet = filterBitSet(clade);
             Clade absorbingClade = baseCCD.getClade(filteredBitSet);
             if (absorbingClade != null) {
                 toFilterClades.add(absorbingClade);
@@ -97,6 +97,12 @@ public class AttachingFilteredCCD extends FilteredCCD {
         return super.getEntropyLewis();
     }
 
+    @Override
+    public boolean supportsFilterScores() {
+        // cannot be filtered further
+        return false;
+    }
+
     @Override
     public String toString() {
         return "Attaching" + super.toString();
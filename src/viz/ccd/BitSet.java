@@ -1,5 +1,7 @@
 package viz.ccd;
 
+import java.util.Arrays;
+
 /**
  * Stripped down version of {@link java.util.BitSet} adapted for speedup;
  * safety checks on sizes removed and special child classes for small bitsets used.
@@ -522,5 +524,94 @@ public class BitSet implements Cloneable {
 
         return ((u+1) * BITS_PER_WORD) - Long.numberOfLeadingZeros(word) - 1;
     }
-    
+
+    /**
+     * Copies the words of this bitset into the given array, starting at the given offset;
+     * exactly numWords words are written, padded with zeros if this bitset has fewer words.
+     *
+     * @param dest array to copy the words into
+     * @param offset position of the first word in dest
+     * @param numWords number of words to write, at least the number of words with bits set
+     */
+    public void copyWordsTo(long[] dest, int offset, int numWords) {
+        int n = Math.min(words.length, numWords);
+        System.arraycopy(words, 0, dest, offset, n);
+        Arrays.fill(dest, offset + n, offset + numWords, 0L);
+    }
+
+    /**
+     * Sets the words of this bitset to the numWords words stored in the given
+     * array starting at the given offset; the counterpart of {@link #copyWordsTo}.
+     *
+     * @param src array with the words to copy
+     * @param offset position of the first word in src
+     * @param numWords number of words stored in src
+     */
+    public void copyWordsFrom(long[] src, int offset, int numWords) {
+        int n = Math.min(words.length, numWords);
+        System.arraycopy(src, offset, words, 0, n);
+        Arrays.fill(words, n, words.length, 0L);
+    }
+
+    /**
+     * Returns whether this bitset has exactly the same bits set as the numWords
+     * words stored in the given array starting at the given offset.
+     *
+     * @param src array with the words to compare to
+     * @param offset position of the first word in src
+     * @param numWords number of words stored in src
+     * @return whether the bits are equal
+     */
+    public boolean equalsWords(long[] src, int offset, int numWords) {
+        int n = Math.min(words.length, numWords);
+        for (int i = 0; i < n; i++)
+            if (words[i] != src[offset + i])
+                return false;
+        for (int i = n; i < words.length; i++)
+            if (words[i] != 0)
+                return false;
+        for (int i = n; i < numWords; i++)
+            if (src[offset + i] != 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Returns the word with the given index, so bits 64 * wordIndex up to 64 * wordIndex + 63;
+     * 0 for words beyond the words of this bitset.
+     *
+     * @param wordIndex index of the word
+     * @return the word
+     */
+    public long getWord(int wordIndex) {
+        return wordIndex < words.length ? words[wordIndex] : 0L;
+    }
+
+    /**
+     * ORs the numWords words stored in the given array starting at the given
+     * offset into this bitset; as {@link #or(BitSet)} with {@link #copyWordsFrom}.
+     *
+     * @param src array with the words to OR
+     * @param offset position of the first word in src
+     * @param numWords number of words stored in src
+     */
+    public void orWords(long[] src, int offset, int numWords) {
+        int n = Math.min(words.length, numWords);
+        for (int i = 0; i < n; i++)
+            words[i] |= src[offset + i];
+    }
+
+    /**
+     * XORs the numWords words stored in the given array starting at the given
+     * offset into this bitset; as {@link #xor(BitSet)} with {@link #copyWordsFrom}.
+     *
+     * @param src array with the words to XOR
+     * @param offset position of the first word in src
+     * @param numWords number of words stored in src
+     */
+    public void xorWords(long[] src, int offset, int numWords) {
+        int n = Math.min(words.length, numWords);
+        for (int i = 0; i < n; i++)
+            words[i] ^= src[offset + i];
+    }
 }
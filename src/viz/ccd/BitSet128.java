@@ -373,4 +373,45 @@ public class BitSet128 extends BitSet {
     		return 2 * BITS_PER_WORD - Long.numberOfLeadingZeros(word2) - 1;
         return BITS_PER_WORD - Long.numberOfLeadingZeros(word1) - 1;
     }
+
+    @Override
+    public void copyWordsTo(long[] dest, int offset, int numWords) {
+        dest[offset] = word1;
+        dest[offset + 1] = word2;
+    }
+
+    @Override
+    public void copyWordsFrom(long[] src, int offset, int numWords) {
+        word1 = src[offset];
+        word2 = src[offset + 1];
+    }
+
+    @Override
+    public boolean equalsWords(long[] src, int offset, int numWords) {
+        return src[offset] == word1 && src[offset + 1] == word2;
+    }
+
+    @Override
+    public long getWord(int wordIndex) {
+        switch (wordIndex) {
+            case 0:
+                return word1;
+            case 1:
+                return word2;
+            default:
+                return 0L;
+        }
+    }
+
+    @Override
+    public void orWords(long[] src, int offset, int numWords) {
+        word1 |= src[offset];
+        word2 |= src[offset + 1];
+    }
+
+    @Override
+    public void xorWords(long[] src, int offset, int numWords) {
+        word1 ^= src[offset];
+        word2 ^= src[offset + 1];
+    }
 }
@@ -400,4 +400,50 @@ public class BitSet192 extends BitSet {
         return BITS_PER_WORD - Long.numberOfLeadingZeros(word1) - 1;
     }
 
+    @Override
+    public void copyWordsTo(long[] dest, int offset, int numWords) {
+        dest[offset] = word1;
+        dest[offset + 1] = word2;
+        dest[offset + 2] = word3;
+    }
+
+    @Override
+    public void copyWordsFrom(long[] src, int offset, int numWords) {
+        word1 = src[offset];
+        word2 = src[offset + 1];
+        word3 = src[offset + 2];
+    }
+
+    @Override
+    public boolean equalsWords(long[] src, int offset, int numWords) {
+        return src[offset] == word1 && src[offset + 1] == word2 && src[offset + 2] == word3;
+    }
+
+    @Override
+    public long getWord(int wordIndex) {
+        switch (wordIndex) {
+            case 0:
+                return word1;
+            case 1:
+                return word2;
+            case 2:
+                return word3;
+            default:
+                return 0L;
+        }
+    }
+
+    @Override
+    public void orWords(long[] src, int offset, int numWords) {
+        word1 |= src[offset];
+        word2 |= src[offset + 1];
+        word3 |= src[offset + 2];
+    }
+
+    @Override
+    public void xorWords(long[] src, int offset, int numWords) {
+        word1 ^= src[offset];
+        word2 ^= src[offset + 1];
+        word3 ^= src[offset + 2];
+    }
 }
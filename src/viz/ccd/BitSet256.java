@@ -461,11 +461,64 @@ public class BitSet256 extends BitSet {
     @Override
     public int lastSetBit() {
     	if (word4 != 0)
-    		return 3 * BITS_PER_WORD - Long.numberOfLeadingZeros(word4) - 1;
+    		return 4 * BITS_PER_WORD - Long.numberOfLeadingZeros(word4) - 1;
     	if (word3 != 0)
     		return 3 * BITS_PER_WORD - Long.numberOfLeadingZeros(word3) - 1;
     	if (word2 != 0)
     		return 2 * BITS_PER_WORD - Long.numberOfLeadingZeros(word2) - 1;
         return BITS_PER_WORD - Long.numberOfLeadingZeros(word1) - 1;
     }
+
+    @Override
+    public void copyWordsTo(long[] dest, int offset, int numWords) {
+        dest[offset] = word1;
+        dest[offset + 1] = word2;
+        dest[offset + 2] = word3;
+        dest[offset + 3] = word4;
+    }
+
+    @Override
+    public void copyWordsFrom(long[] src, int offset, int numWords) {
+        word1 = src[offset];
+        word2 = src[offset + 1];
+        word3 = src[offset + 2];
+        word4 = src[offset + 3];
+    }
+
+    @Override
+    public boolean equalsWords(long[] src, int offset, int numWords) {
+        return src[offset] == word1 && src[offset + 1] == word2 && src[offset + 2] == word3 && src[offset + 3] == word4;
+    }
+
+    @Override
+    public long getWord(int wordIndex) {
+        switch (wordIndex) {
+            case 0:
+                return word1;
+            case 1:
+                return word2;
+            case 2:
+                return word3;
+            case 3:
+                return word4;
+            default:
+                return 0L;
+        }
+    }
+
+    @Override
+    public void orWords(long[] src, int offset, int numWords) {
+        word1 |= src[offset];
+        word2 |= src[offset + 1];
+        word3 |= src[offset + 2];
+        word4 |= src[offset + 3];
+    }
+
+    @Override
+    public void xorWords(long[] src, int offset, int numWords) {
+        word1 ^= src[offset];
+        word2 ^= src[offset + 1];
+        word3 ^= src[offset + 2];
+        word4 ^= src[offset + 3];
+    }
 }
@@ -295,4 +295,34 @@ public class BitSet64 extends BitSet {
     public int lastSetBit() {
         return BITS_PER_WORD - Long.numberOfLeadingZeros(word1) - 1;
     }
+
+    @Override
+    public void copyWordsTo(long[] dest, int offset, int numWords) {
+        dest[offset] = word1;
+    }
+
+    @Override
+    public void copyWordsFrom(long[] src, int offset, int numWords) {
+        word1 = src[offset];
+    }
+
+    @Override
+    public boolean equalsWords(long[] src, int offset, int numWords) {
+        return src[offset] == word1;
+    }
+
+    @Override
+    public long getWord(int wordIndex) {
+        return (wordIndex == 0) ? word1 : 0L;
+    }
+
+    @Override
+    public void orWords(long[] src, int offset, int numWords) {
+        word1 |= src[offset];
+    }
+
+    @Override
+    public void xorWords(long[] src, int offset, int numWords) {
+        word1 ^= src[offset];
+    }
 }
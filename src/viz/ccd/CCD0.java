@@ -7,14 +7,14 @@ import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Comparator;
-import java.util.ConcurrentModificationException;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
 import java.util.stream.Stream;
 
 /**
@@ -81,8 +81,21 @@ public class CCD0 extends AbstractCCD {
     /** Stream to report on progress of CCD0 construction. */
     private PrintStream progressStream = System.out;
 
+    /**
+     * If given, the expand step stops early once this returns true, e.g. because
+     * the CCD is no longer needed; the CCD graph is incomplete then.
+     */
+    private BooleanSupplier cancelled = null;
+
     /** Progress counted of clades handled in the expand step. */
-    private int progressed = 0;
+    private final AtomicInteger progressed = new AtomicInteger();
+
+    /** Number of clades handled and clade partitions added in the last expand step. */
+    private final AtomicInteger numExpandedClades = new AtomicInteger();
+    private int numExpandedPartitions = 0;
+
+    /** Duration of the last expand step in milliseconds. */
+    private long expandTime = 0;
 
     /**
      * If given, only (number of taxa) times this factor of clades are considered
@@ -97,7 +110,13 @@ public class CCD0 extends AbstractCCD {
 
     /** Number of worker threads used for the expand step. */
     private int threadCount = 1;
-    private CountDownLatch countDown = null;
+
+    /**
+     * Maximum number of clades handled by a single fork-join task in the
+     * expand step; larger ranges of clades get split, and idle workers steal
+     * the split off halves.
+     */
+    private static final int EXPAND_TASK_SIZE = 64;
 
 
     /* -- CONSTRUCTORS & CONSTRUCTION METHODS -- */
@@ -277,6 +296,19 @@ public class CCD0 extends AbstractCCD {
         this.progressStream = progressStream;
     }
 
+    /**
+     * @param cancelled tells whether the expand step should stop early,
+     *                  or null to always complete it
+     */
+    public void setCancelled(BooleanSupplier cancelled) {
+        this.cancelled = cancelled;
+    }
+
+    /** Whether the expand step should stop early. */
+    private boolean isCancelled() {
+        return (cancelled != null) && cancelled.getAsBoolean();
+    }
+
     /** Whether a progress stream has been set. */
     private boolean hasProgressStream() {
         return (progressStream != null);
@@ -307,6 +339,20 @@ public class CCD0 extends AbstractCCD {
         this.dirtyStructure = true;
     }
 
+    /** @return whether the CCD graph is expanded and its CCPs are set */
+    boolean isExpanded() {
+        return !dirtyStructure;
+    }
+
+    /**
+     * Marks the CCD graph as expanded with all CCPs set, for when the graph
+     * has been restored (see {@link CCDGraphFile}) instead of built from trees.
+     */
+    void setExpanded() {
+        this.dirtyStructure = false;
+        this.probabilitiesDirty = false;
+    }
+
     @Override
     protected void tidyUpCacheIfDirty() {
         if (dirtyStructure) {
@@ -363,15 +409,10 @@ public class CCD0 extends AbstractCCD {
         }
 
         // then need to set clade partition probabilities
-        // which normalizes the product of clade probabilities
+        // which normalizes the product of clade probabilities;
+        // sums are scaled, so this cannot underflow
         // out.print("setting probabilities ... ");
-        try {
-            setPartitionProbabilities(this.rootClade);
-        } catch (UnderflowException exception) {
-            System.err.println("An underflow was detected. We switch to log space.");
-            this.resetSumCladeCredibilities();
-            setPartitionLogProbabilities(this.rootClade);
-        }
+        setPartitionProbabilities(this.rootClade);
 
         // out.println(" ...done.");
         if (updateOnline) {
@@ -387,7 +428,7 @@ public class CCD0 extends AbstractCCD {
      * observed, but not that clade partition.
      */
     protected void expand() {
-        // long start = System.currentTimeMillis();
+        long start = System.currentTimeMillis();
         if (this.maxExpansionFactor == 0) {
             return;
         }
@@ -422,43 +463,65 @@ public class CCD0 extends AbstractCCD {
         cladeBuckets = processCladeBuckets(clades, leafArraySize);
 
         // 4. find missing clade partitions
-        done = new HashSet<>();
+        int numPartitionsBefore = getNumberOfCladePartitions();
+        numExpandedClades.set(0);
+        progressed.set(0);
         threadCount = Runtime.getRuntime().availableProcessors();
         if (threadCount <= 1 || clades.length < NUM_CLADES_PARALLELIZATION_THRESHOLD
                 || updateOnline) {
             threadCount = 1;
+            done = new HashSet<>();
             findChildPartitions(clades);
         } else {
+            if ((progressStream != null) && verbose) {
+                progressStream.println("Running expand step with " + threadCount + " threads.");
+            }
+            // workers only read the CCD graph and stage the partitions they find,
+            // which are then added in clade order, so no locking is required
+            done = ConcurrentHashMap.newKeySet();
+            ForkJoinPool pool = new ForkJoinPool(threadCount);
             try {
-                if ((progressStream != null) && verbose) {
-                    progressStream.println("Running expand step with " + threadCount + " threads.");
-                }
-                countDown = new CountDownLatch(threadCount);
-                ExecutorService exec = Executors.newFixedThreadPool(threadCount);
-                int end = clades.length;
-                for (int i = 0; i < threadCount; i++) {
-                    ExpandWorker coreRunnable = new ExpandWorker(clades, i, end);
-                    exec.execute(coreRunnable);
+                List<Clade> staged = pool.invoke(new ExpandTask(clades, 0, clades.length));
+                for (int i = 0; i < staged.size(); i += 3) {
+                    Clade parent = staged.get(i);
+                    Clade child = staged.get(i + 1);
+                    Clade otherChild = staged.get(i + 2);
+                    // a partition into two equally sized clades is found from both children
+                    if (parent.getCladePartition(child, otherChild) == null) {
+                        parent.createCladePartition(child, otherChild);
+                    }
                 }
-                countDown.await();
-                exec.shutdownNow();
-            } catch (RejectedExecutionException | InterruptedException e) {
-                // do nothing
+            } finally {
+                pool.shutdownNow();
+            }
+            if ((progressStream != null) && verbose) {
+                progressStream.println();
             }
-            done.clear();
         }
+        done = null;
+        numExpandedPartitions = getNumberOfCladePartitions() - numPartitionsBefore;
+        expandTime = System.currentTimeMillis() - start;
 
         if ((progressStream != null) && verbose) {
-            progressStream.println("... done.");
+            progressStream.println("... done: added " + numExpandedPartitions + " clade partitions for "
+                    + numExpandedClades.get() + " clades in " + expandTime + " ms ("
+                    + (numExpandedClades.get() * 1000L / Math.max(1, expandTime)) + " clades/s).");
         }
-        // Log.warning("Expanded CCD0 in " + (end - start) / 1000 + " seconds.");
         progressStream = null;
 
         // release memory
         from = null;
         to = null;
-        // long end = System.currentTimeMillis();
-        // System.err.println("Expanded in " + (end-start) + " ms");
+    }
+
+    /** @return number of clade partitions added by the last expand step */
+    public int getNumberOfExpandedPartitions() {
+        return numExpandedPartitions;
+    }
+
+    /** @return duration of the last expand step in milliseconds */
+    public long getExpandTime() {
+        return expandTime;
     }
 
 
@@ -488,14 +551,12 @@ public class CCD0 extends AbstractCCD {
         // 3.iii sort buckets by first set bit, then last set bit -- ignore intermediate bits
         for (int i = 0; i < leafArraySize; i++) {
             cladeBuckets.get(i).sort((o1, o2) -> {
-                final BitSet b1 = o1.getCladeInBits();
-                final BitSet b2 = o2.getCladeInBits();
-                final int firstBit1 = b1.nextSetBit(0);
-                final int firstBit2 = b2.nextSetBit(0);
+                final int firstBit1 = o1.nextSetBit(0);
+                final int firstBit2 = o2.nextSetBit(0);
                 if (firstBit1 < firstBit2) return -1;
                 if (firstBit1 > firstBit2) return 1;
-                final int lastBit1 = b1.lastSetBit();
-                final int lastBit2 = b2.lastSetBit();
+                final int lastBit1 = o1.lastSetBit();
+                final int lastBit2 = o2.lastSetBit();
                 if (lastBit1 < lastBit2) return -1;
                 if (lastBit1 > lastBit2) return 1;
                 return 0;
@@ -513,11 +574,11 @@ public class CCD0 extends AbstractCCD {
                 int[] toi = to[i];
                 for (int c = 0; c < bucket.size(); c++) {
                     Clade clade = bucket.get(c);
-                    int min = clade.getCladeInBits().nextSetBit(0);
+                    int min = clade.nextSetBit(0);
                     while (j <= min) {
                         fromi[j++] = c;
                     }
-                    int max = clade.getCladeInBits().lastSetBit();
+                    int max = clade.lastSetBit();
 //	        		if (max < 0 || max >= toi.length) {
 //	        			max = clade.getCladeInBits().lastSetBit();
 //	        		}
@@ -589,7 +650,11 @@ public class CCD0 extends AbstractCCD {
         int progressed = 0;
         int i = 0;
         for (Clade parent : parentClades) {
-            findChildPartitionsOf(parent, helperBits);
+            if ((i % EXPAND_TASK_SIZE == 0) && isCancelled()) {
+                return;
+            }
+            findChildPartitionsOf(parent, helperBits, null);
+            numExpandedClades.incrementAndGet();
             if ((progressStream != null) && verbose) {
                 while (progressed < (i * 61 / parentClades.length)) {
                     progressStream.print(".");
@@ -612,7 +677,11 @@ public class CCD0 extends AbstractCCD {
         int progressed = 0;
         int i = 0;
         for (Clade parent : parentClades) {
-            findChildPartitionsOf(parent, helperBits);
+            if ((i % EXPAND_TASK_SIZE == 0) && isCancelled()) {
+                return;
+            }
+            findChildPartitionsOf(parent, helperBits, null);
+            numExpandedClades.incrementAndGet();
             if ((progressStream != null) && verbose) {
                 while (progressed < (i * 61 / parentClades.size())) {
                     progressStream.print(".");
@@ -627,17 +696,19 @@ public class CCD0 extends AbstractCCD {
         }
     }
 
-    /* Helper method - do the work for one particular clade */
-    private void findChildPartitionsOf(Clade parent, BitSet helperBits) {
+    /*
+     * Helper method - do the work for one particular clade; if staged is given,
+     * found partitions are appended to it as (parent, child, other child) instead of being created
+     */
+    private void findChildPartitionsOf(Clade parent, BitSet helperBits, List<Clade> staged) {
         // we skip leaves and cherries as they have no/only one partition
         if (parent.isLeaf() || parent.isCherry()) {
             return;
         }
 
-        BitSet parentBits = parent.getCladeInBits();
         int parentSize = parent.size();
-        int min = parent.getCladeInBits().nextSetBit(0);
-        int max = parent.getCladeInBits().lastSetBit();
+        int min = parent.nextSetBit(0);
+        int max = parent.lastSetBit();
 
         for (int j = 1; j <= parentSize / 2; j++) {
             // every clade split has a smaller child with size k_small and a larger child with
@@ -655,8 +726,7 @@ public class CCD0 extends AbstractCCD {
                         continue;
                     }
 
-                    BitSet childBits = child.getCladeInBits();
-                    findPartitionHelper(child, parent, helperBits, parentBits, childBits);
+                    findPartitionHelper(child, parent, helperBits, staged);
                 }
             }
         }
@@ -669,22 +739,9 @@ public class CCD0 extends AbstractCCD {
                     cladeBuckets.get(descendant.size() - 1).remove(descendant);
                 }
             } else {
-                Set<Clade> descendants;
-                try {
-                    descendants = parent.getDescendantClades(true);
-                } catch (ConcurrentModificationException e) {
-                    try {
-                        Thread.sleep(100);
-                        descendants = parent.getDescendantClades(true);
-                    } catch (Throwable e2) {
-                        descendants = new HashSet<>();
-                    }
-                }
-                for (Clade descendant : descendants) {
-                    synchronized (this) {
-                        done.add(descendant);
-                    }
-                }
+                // the graph is not modified while workers run, so this is safe;
+                // partitions staged for the parent are not taken into account
+                done.addAll(parent.getDescendantClades(true));
             }
         }
     }
@@ -701,36 +758,29 @@ public class CCD0 extends AbstractCCD {
         // we go through clades in increasing size, then check for each clade of
         // at least child's size, whether it can be a parent and if there is a partner
         for (Clade child : childClades) {
-            BitSet childBits = child.getCladeInBits();
-
             for (int j = child.size() + 1; j <= leafArraySize; j++) {
                 for (Clade parent : cladeBuckets.get(j - 1)) {
-                    BitSet parentBits = parent.getCladeInBits();
-
-                    findPartitionHelper(child, parent, helperBits, parentBits, childBits);
+                    findPartitionHelper(child, parent, helperBits, null);
                 }
             }
         }
     }
 
     /* Helper method */
-    private void findPartitionHelper(Clade child, Clade parent, BitSet helperBits, BitSet parentBits, BitSet childBits) {
-        // check whether child clade is contained in parent clade
-        helperBits.clear();
-        helperBits.or(parentBits);
-        helperBits.and(childBits);
-
-        if (helperBits.equals(childBits)
+    private void findPartitionHelper(Clade child, Clade parent, BitSet helperBits, List<Clade> staged) {
+        // check whether child clade is contained in parent clade; both are compared
+        // in the slab of the clade mapping, and only the partner's bits are built
+        if (parent.containsClade(child)
                 && !child.parentClades.contains(parent)) {
-            // here helperBits equal childBits, so with an XOR
-            // with the parentBits we get the bits of the potential partner clade
-            helperBits.xor(parentBits);
+            // the XOR of parent and child bits gives the bits of the potential partner clade
+            parent.copyCladeInBitsTo(helperBits);
+            child.xorCladeInBitsInto(helperBits);
             Clade otherChild = cladeMapping.get(helperBits);
             if (otherChild != null) {
-                if (threadCount > 1) {
-                    synchronized (this) {
-                        parent.createCladePartition(child, otherChild);
-                    }
+                if (staged != null) {
+                    staged.add(parent);
+                    staged.add(child);
+                    staged.add(otherChild);
                 } else {
                     parent.createCladePartition(child, otherChild);
                 }
@@ -738,116 +788,57 @@ public class CCD0 extends AbstractCCD {
         }
     }
 
-    /* Thread worker for embarrassingly parallelizing parts of the expand step */
-    class ExpandWorker implements java.lang.Runnable {
-        private Clade [] clades;
-        private int start;
-        private int end;
+    /*
+     * Fork-join task for the expand step; handles a range of clades and returns the
+     * partitions found as (parent, child, other child) triples, in clade order.
+     * Since clades are sorted by size, the cost per clade varies a lot, so ranges
+     * are split into small tasks that idle workers can steal.
+     */
+    class ExpandTask extends RecursiveTask<List<Clade>> {
+        private static final long serialVersionUID = 1L;
+
+        private final Clade[] clades;
+        private final int start;
+        private final int end;
 
-        ExpandWorker(Clade [] clades, int start, int end) {
+        ExpandTask(Clade[] clades, int start, int end) {
             this.clades = clades;
             this.start = start;
             this.end = end;
         }
 
         @Override
-        public void run() {
-            int i = start;
-            try {
-                BitSet helperBits = BitSet.newBitSet(clades[0].getCCD().getSizeOfLeavesArray());
-                while (i < end) {
-                    findChildPartitionsOf(clades[i], helperBits);
-                    i += threadCount;
-
-                    if (progressStream != null) {
-                        while (progressed < (i * 61 / clades.length)) {
-                            progressStream.print("*");
-                            progressed++;
-                        }
-                    }
-                }
-            } catch (Throwable t) {
-                t.printStackTrace();
-            }
-            // progressStream.println("finished " + start + " " + i);
-            countDown.countDown();
-        }
-
-    }
-
-    /**
-     * Recursively computes, sets, and returns the log probabilities of all clade partitions based on the clade credibilities.
-     * Method only needs to be called when a CCD0 was constructed manually,
-     * e.g. by the {@link  ccp.algorithms.CCDCombiner}.
-     *
-     * @param clade for which the clade partition probabilities are computed
-     * @return the sum of this clade's partitions probabilities times its own credibility
-     */
-    private static double setPartitionLogProbabilities(Clade clade) {
-        if (clade.getLogSumCladeCredibilities() < 0) {
-            return clade.getLogSumCladeCredibilities();
-        }
-
-        double logCladeValue = Math.log(clade.getCladeCredibility());
-
-        if (clade.isLeaf()) {
-            // a leaf has no partition, sum of probabilities is 1
-            clade.setLogSumCladeCredibilities(0);
-            return 0.0;
-
-        } else if (clade.isCherry()) {
-            // a cherry has only one partition
-            if (clade.partitions.isEmpty()) {
-                throw new AssertionError("Cherry should contain a clade split.");
+        protected List<Clade> compute() {
+            if (end - start > EXPAND_TASK_SIZE) {
+                int middle = (start + end) >>> 1;
+                ExpandTask second = new ExpandTask(clades, middle, end);
+                second.fork();
+                List<Clade> staged = new ExpandTask(clades, start, middle).compute();
+                staged.addAll(second.join());
+                return staged;
             }
-            clade.partitions.get(0).setCCP(1);
-            clade.setLogSumCladeCredibilities(logCladeValue);
-            return logCladeValue;
 
-        } else {
-            // other might have more partitions
-            double sumSubtreeProbabilities = 0.0;
-            double[] sumPartitionSubtreeLogProbabilities = new double[clade.getPartitions().size()];
-
-            // compute log of sum of probabilities over all partitions ...
-            // with log-sum-exp trick
-            double max = Double.NEGATIVE_INFINITY;
-            int i = 0;
-            for (CladePartition partition : clade.getPartitions()) {
-                sumPartitionSubtreeLogProbabilities[i] =
-                        setPartitionLogProbabilities(partition.getChildClades()[0])
-                                + setPartitionLogProbabilities(partition.getChildClades()[1]);
-                max = Math.max(max, sumPartitionSubtreeLogProbabilities[i]);
-                i++;
+            List<Clade> staged = new ArrayList<>();
+            if (isCancelled()) {
+                return staged;
             }
-            i = 0;
-            for (CladePartition partition : clade.getPartitions()) {
-                sumSubtreeProbabilities += Math.exp(sumPartitionSubtreeLogProbabilities[i] - max);
-                i++;
+            BitSet helperBits = BitSet.newBitSet(leafArraySize);
+            for (int i = start; i < end; i++) {
+                findChildPartitionsOf(clades[i], helperBits, staged);
             }
-            double sumSubtreeLogProbabilities = max + Math.log(sumSubtreeProbabilities);
 
-            // ... and then normalize
-            i = 0;
-            for (CladePartition partition : clade.getPartitions()) {
-                double logProbability = sumPartitionSubtreeLogProbabilities[i] - sumSubtreeLogProbabilities;
-                partition.setCCP(Math.exp(logProbability));
-                i++;
-            }
-
-            // sumSubtreeLogProbabilities can be a very tiny positive number due to numerical issues
-            // (when it should be log(1) = 0)
-            // because we want non-positive log probabilities, round it down to 0 in this case
-            if (1e-12 < sumSubtreeLogProbabilities) {
-                throw new AssertionError("Negative probability detected.");
-            } else {
-                sumSubtreeLogProbabilities = Math.min(sumSubtreeLogProbabilities, 0.0);
+            int count = numExpandedClades.addAndGet(end - start);
+            if ((progressStream != null) && verbose) {
+                int target = (int) (count * 61L / clades.length);
+                int current = progressed.get();
+                while (current < target) {
+                    if (progressed.compareAndSet(current, current + 1)) {
+                        progressStream.print("*");
+                    }
+                    current = progressed.get();
+                }
             }
-
-            // combined with probability of clade, we get sum of all subtree probabilities
-            double sumLogCladeCredibilities = sumSubtreeLogProbabilities + logCladeValue;
-            clade.setLogSumCladeCredibilities(sumLogCladeCredibilities);
-            return sumLogCladeCredibilities;
+            return staged;
         }
     }
 
@@ -873,8 +864,21 @@ public class CCD0 extends AbstractCCD {
      * @return the sum of this clade's partitions probabilities times its own credibility
      */
     public static double setPartitionProbabilities(Clade clade, boolean useCladeParameters) {
-        if (clade.getSumCladeCredibilities() > 0) {
-            return clade.getSumCladeCredibilities();
+        setScaledPartitionProbabilities(clade);
+        return clade.getSumCladeCredibilities();
+    }
+
+    /*
+     * Recursive helper method - sets the probabilities of all clade partitions
+     * in a single pass; sums of subtree clade credibilities are stored as
+     * scaled value and binary exponent, so they cannot underflow. Scaling by
+     * powers of two is exact, so without underflows the probabilities are
+     * the same as when computed with plain doubles.
+     */
+    private static void setScaledPartitionProbabilities(Clade clade) {
+        // a negative sum marks it as not computed yet; 0 is a valid sum
+        if (clade.getScaledSumCladeCredibilities() >= 0) {
+            return;
         }
 
         double cladeValue = /*useCladeParameters ? clade.getCladeParameter() :*/ clade.getCladeCredibility();
@@ -882,7 +886,6 @@ public class CCD0 extends AbstractCCD {
         if (clade.isLeaf()) {
             // a leaf has no partition, sum of probabilities is 1
             clade.setSumCladeCredibilities(1);
-            return 1.0;
         } else if (clade.isCherry()) {
             // a cherry has only one partition
             if (clade.partitions.isEmpty()) {
@@ -890,101 +893,58 @@ public class CCD0 extends AbstractCCD {
             }
             clade.partitions.get(0).setCCP(1);
             clade.setSumCladeCredibilities(cladeValue);
-            return cladeValue;
         } else {
             // other might have more partitions
-            double sumSubtreeProbabilities = 0.0;
-            double[] sumPartitionSubtreeProbabilities = new double[clade.getPartitions().size()];
+            int numPartitions = clade.getPartitions().size();
+            double[] scaledPartitionSums = new double[numPartitions];
+            int[] partitionExponents = new int[numPartitions];
+            int maxExponent = Integer.MIN_VALUE;
 
-            // compute sum of probabilities over all partitions ...
+            // compute sum of probabilities over all partitions, each with its own exponent ...
             int i = 0;
             for (CladePartition partition : clade.getPartitions()) {
-                sumPartitionSubtreeProbabilities[i] =
-                        setPartitionProbabilities(partition.getChildClades()[0], useCladeParameters)
-                                * setPartitionProbabilities(partition.getChildClades()[1], useCladeParameters);
-                sumSubtreeProbabilities += sumPartitionSubtreeProbabilities[i];
+                Clade firstChild = partition.getChildClades()[0];
+                Clade secondChild = partition.getChildClades()[1];
+                setScaledPartitionProbabilities(firstChild);
+                setScaledPartitionProbabilities(secondChild);
+
+                double product = firstChild.getScaledSumCladeCredibilities() * secondChild.getScaledSumCladeCredibilities();
+                int exponent = firstChild.getSumCladeCredibilitiesExponent() + secondChild.getSumCladeCredibilitiesExponent();
+                if (product > 0) {
+                    // keep scaled value in [1,2)
+                    int shift = Math.getExponent(product);
+                    product = Math.scalb(product, -shift);
+                    exponent += shift;
+                    maxExponent = Math.max(maxExponent, exponent);
+                }
+                scaledPartitionSums[i] = product;
+                partitionExponents[i] = exponent;
                 i++;
             }
 
-            // ... and then normalize
-            if (sumSubtreeProbabilities == 0) {
-                // probability of this subtree is so small, that we have an underflow problem;
-                // we can try to use log transformed probabilities to set CCPs
-                // but the probability of the clade will still become zero
-
-                // try log-sum-exp trick
-                double logMax = Double.NEGATIVE_INFINITY;
-                double[] logProbs = new double[clade.getPartitions().size()];
-                i = 0;
-                for (CladePartition partition : clade.getPartitions()) {
-                    double left = partition.getChildClades()[0].getSumCladeCredibilities();
-                    double right = partition.getChildClades()[1].getSumCladeCredibilities();
-                    logProbs[i] = Math.log(left) + Math.log(right);
-                    logMax = Math.max(logProbs[i], logMax);
-
-                    // if (Double.isNaN(logProbs[i]) || Double.isInfinite(logProbs[i])) {
-                    //     out.println("XXXXXXXXX");
-                    //     out.println("logProbs[i] = " + logProbs[i]);
-                    //     out.println("left = " + left);
-                    //     out.println("log left = " + Math.log(left));
-                    //     out.println("right = " + left);
-                    //     out.println("log right = " + Math.log(right));
-                    // }
-
-                    i++;
+            // ... brought to the largest exponent ...
+            double sumSubtreeProbabilities = 0.0;
+            for (i = 0; i < numPartitions; i++) {
+                if (scaledPartitionSums[i] > 0) {
+                    scaledPartitionSums[i] = Math.scalb(scaledPartitionSums[i], partitionExponents[i] - maxExponent);
+                    sumSubtreeProbabilities += scaledPartitionSums[i];
                 }
+            }
 
-                // log sum = log pMax - log( sum exp(log pi - logMax))
-                double intermSum = 0;
-                for (int j = 0; j < logProbs.length; j++) {
-                    if (Double.isFinite(logProbs[j])) {
-                        intermSum += Math.exp(logProbs[j] - logMax);
-                    }
-                }
-                double logSum = logMax - Math.log(intermSum);
-
-                // normalizing with normalized log pi = log pi - log sum
-                i = 0;
-                double pSum = 0;
-                for (CladePartition partition : clade.getPartitions()) {
-                    if (!Double.isFinite(logProbs[i])) {
-                        // we are still encountering underflows
-                        throw new UnderflowException("An underflow has occurred.");
-                    } else {
-                        double logProbability = logProbs[i] - logSum;
-                        double probability = Math.exp(logProbability);
-                        pSum += probability;
-
-                        if (Double.isNaN(probability)) {
-                            out.println("NaN probability = " + probability);
-                            out.println("logProbability = " + logProbability);
-                            out.println("logProbs[i] = " + logProbs[i]);
-                            out.println("logSum = " + logSum);
-                        }
-
-                        partition.setCCP(probability);
-                    }
-                    i++;
-                }
-            } else {
-                i = 0;
-                for (CladePartition partition : clade.getPartitions()) {
-                    double probability = sumPartitionSubtreeProbabilities[i] / sumSubtreeProbabilities;
-                    if (Double.isNaN(probability)) {
-                        out.println("clade = " + clade);
-                        out.println("partition = " + partition);
-                        out.println("sumPartitionSubtreeProbabilities = " + sumPartitionSubtreeProbabilities[i]);
-                        out.println("sumSubtreeProbabilities = " + sumSubtreeProbabilities);
-                    }
-                    partition.setCCP(probability);
-                    i++;
-                }
+            // ... and then normalize
+            i = 0;
+            for (CladePartition partition : clade.getPartitions()) {
+                double probability = (sumSubtreeProbabilities > 0) ? (scaledPartitionSums[i] / sumSubtreeProbabilities) : 0;
+                partition.setCCP(probability);
+                i++;
             }
 
             // combined with probability of clade, we get sum of all subtree probabilities
-            double sumCladeCredibilities = sumSubtreeProbabilities * cladeValue;
-            clade.setSumCladeCredibilities(sumCladeCredibilities);
-            return sumCladeCredibilities;
+            if (sumSubtreeProbabilities > 0) {
+                clade.setScaledSumCladeCredibilities(sumSubtreeProbabilities * cladeValue, maxExponent);
+            } else {
+                clade.setSumCladeCredibilities(0);
+            }
         }
     }
 
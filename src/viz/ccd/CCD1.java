@@ -112,6 +112,11 @@ public class CCD1 extends AbstractCCD {
         resetCacheIfProbabilitiesDirty();
     }
 
+    @Override
+    public boolean supportsFilterScores() {
+        return true;
+    }
+
     @Override
     protected boolean removeCladePartitionIfNecessary(Clade clade, CladePartition partition) {
         // when a partition has no registered occurrences more, we remove it
@@ -69,9 +69,7 @@ public class CCD2 extends AbstractCCD {
             treesToUse.addAll(trees.subList(numDiscardedTrees, trees.size()));
         }
 
-        for (Tree tree : treesToUse) {
-            cladifyTree(tree);
-        }
+        cladifyTrees(treesToUse);
     }
 
     /**
@@ -151,6 +149,20 @@ public class CCD2 extends AbstractCCD {
         clades = new HashSet<>(10 * numLeaves);
     }
 
+    /**
+     * Clade numbers cannot be used for the extended clades of a CCD2,
+     * so the tree is cladified as usual.
+     */
+    @Override
+    public void addCladifiedTree(Tree tree, List<int[]> clades) {
+        addTree(tree);
+    }
+
+    @Override
+    CladeCountTable newCladeCountTable() {
+        return new ExtendedCladeCountTable(leafArraySize);
+    }
+
     @Override
     protected void cladifyTree(Tree tree) {
         if (super.storesBaseTrees()) {
@@ -180,25 +192,42 @@ public class CCD2 extends AbstractCCD {
         ExtendedClade[] rightChildren = processChildrenCladifying(rightVertex, rightInBits);
 
         // 2. create extended clades, if they don't exist yet
+        ExtendedClade[] clades = getOrAddExtendedClades(leftInBits, leftVertex.isLeaf(), rightInBits, rightVertex.isLeaf());
+        ExtendedClade leftClade = clades[0];
+        ExtendedClade rightClade = clades[1];
+        leftClade.increaseOccurrenceCount(leftVertex.getHeight());
+        rightClade.increaseOccurrenceCount(rightVertex.getHeight());
+
+        processCladePartitionCladifying(leftVertex, leftClade, leftChildren);
+        processCladePartitionCladifying(rightVertex, rightClade, rightChildren);
+
+        return new ExtendedClade[]{leftClade, rightClade};
+    }
+
+    /**
+     * Returns the pair of sibling extended clades on the given taxa, creating
+     * them if they do not exist yet.
+     *
+     * @param leftInBits   taxa of the left clade
+     * @param leftIsLeaf   whether the left clade is a leaf
+     * @param rightInBits  taxa of the right clade
+     * @param rightIsLeaf  whether the right clade is a leaf
+     * @return the left and right extended clade
+     */
+    ExtendedClade[] getOrAddExtendedClades(BitSet leftInBits, boolean leftIsLeaf, BitSet rightInBits, boolean rightIsLeaf) {
         ExtendedClade leftClade = getExtendedClade(leftInBits, rightInBits);
         ExtendedClade rightClade = getExtendedClade(rightInBits, leftInBits);
         if (leftClade == null) {
             // we know that if one doesn't exist yet then also the other does not unless one is a leaf;
             // addNewClade then adds both new clades
-            leftClade = addNewClade(leftInBits, leftVertex, rightClade, rightInBits, rightVertex);
+            leftClade = addNewClade(leftInBits, leftIsLeaf, rightClade, rightInBits, rightIsLeaf);
             if (rightClade == null) {
                 rightClade = getExtendedClade(rightInBits, leftInBits);
             }
         }
         if (rightClade == null) {
-            rightClade = addNewClade(rightInBits, rightVertex, leftClade, leftInBits, leftVertex);
+            rightClade = addNewClade(rightInBits, rightIsLeaf, leftClade, leftInBits, leftIsLeaf);
         }
-        leftClade.increaseOccurrenceCount(leftVertex.getHeight());
-        rightClade.increaseOccurrenceCount(rightVertex.getHeight());
-
-        processCladePartitionCladifying(leftVertex, leftClade, leftChildren);
-        processCladePartitionCladifying(rightVertex, rightClade, rightChildren);
-
         return new ExtendedClade[]{leftClade, rightClade};
     }
 
@@ -209,31 +238,31 @@ public class CCD2 extends AbstractCCD {
             cladeInBits.set(parent.getNr());
         } else {
             children = cladifyVertices(parent.getChild(0), parent.getChild(1));
-            cladeInBits.or(children[0].getCladeInBits());
-            cladeInBits.or(children[1].getCladeInBits());
+            children[0].orCladeInBitsInto(cladeInBits);
+            children[1].orCladeInBitsInto(cladeInBits);
         }
         return children;
     }
 
     /* Helper method */
-    private ExtendedClade addNewClade(BitSet cladeInBits, Node vertex, ExtendedClade sibling, BitSet siblingInBits, Node siblingVertex) {
+    private ExtendedClade addNewClade(BitSet cladeInBits, boolean isLeaf, ExtendedClade sibling, BitSet siblingInBits, boolean siblingIsLeaf) {
         ExtendedClade clade;
-        if (vertex.isLeaf()) {
+        if (isLeaf) {
             clade = new ExtendedClade(cladeInBits, this);
         } else {
             clade = new ExtendedClade(cladeInBits, sibling, this);
         }
 
         if (sibling == null) {
-            sibling = addNewClade(siblingInBits, siblingVertex, clade, cladeInBits, vertex);
+            sibling = addNewClade(siblingInBits, siblingIsLeaf, clade, cladeInBits, isLeaf);
 
-            if (!vertex.isLeaf()) {
+            if (!isLeaf) {
                 clade.setSibling(sibling);
             }
         }
 
         clades.add(clade);
-        if (vertex.isLeaf()) {
+        if (isLeaf) {
             cladeMapping.put(cladeInBits, clade);
         } else {
             Map<BitSet, ExtendedClade> map = extendedCladeMapping.get(cladeInBits);
@@ -327,8 +356,8 @@ public class CCD2 extends AbstractCCD {
             cladeInBits.set(parent.getNr());
         } else {
             children = reduceCladeCount(parent.getChild(0), parent.getChild(1));
-            cladeInBits.or(children[0].getCladeInBits());
-            cladeInBits.or(children[1].getCladeInBits());
+            children[0].orCladeInBitsInto(cladeInBits);
+            children[1].orCladeInBitsInto(cladeInBits);
         }
         return children;
     }
@@ -505,8 +534,8 @@ public class CCD2 extends AbstractCCD {
                 return null;
             }
 
-            cladeInBits.or(leftChildren[0].getCladeInBits());
-            cladeInBits.or(leftChildren[1].getCladeInBits());
+            leftChildren[0].orCladeInBitsInto(cladeInBits);
+            leftChildren[1].orCladeInBitsInto(cladeInBits);
         }
 
         return leftChildren;
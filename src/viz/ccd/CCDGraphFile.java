@@ -0,0 +1,238 @@
+package viz.ccd;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * <p>
+ * Binary file format for the CCD graph of a {@link CCD0} or {@link CCD1}, so
+ * that a CCD can be stored once and restored later without processing the
+ * trees again (and, for a CCD0, without running the expand step). The file
+ * stores the bitsets of the clades, occurrence counts and mean heights of
+ * clades and clade partitions, clade parameters, CCPs that were set directly
+ * and, for a CCD0, whether the graph is expanded.
+ * </p>
+ *
+ * <p>
+ * Besides the type of CCD, the header contains a key chosen by the caller,
+ * e.g. a fingerprint of the tree file and the burn-in used, and a file is only
+ * read if its key matches. The clade and partition tables follow the header as
+ * flat arrays, which are read from a memory mapped buffer in bulk.
+ * </p>
+ */
+public class CCDGraphFile {
+
+    private static final byte[] MAGIC = {'D', 'T', 'C', 'G'};
+    private static final int VERSION = 1;
+
+    /* static methods only */
+    private CCDGraphFile() {
+    }
+
+    /**
+     * Writes the CCD graph of the given CCD to the given file.
+     *
+     * @param ccd  CCD0 or CCD1 whose graph is written
+     * @param key  identifies what the CCD is based on; only read back with the same key
+     * @param file to write to; overwritten if it exists
+     * @throws IOException if the file cannot be written
+     */
+    public static void write(AbstractCCD ccd, String key, File file) throws IOException {
+        CCDType type;
+        if (ccd.getClass() == CCD0.class) {
+            type = CCDType.CCD0;
+        } else if (ccd.getClass() == CCD1.class) {
+            type = CCDType.CCD1;
+        } else {
+            throw new IllegalArgumentException("Only the graphs of CCD0s and CCD1s can be written, not of " + ccd);
+        }
+        boolean expanded = (type == CCDType.CCD0) && ((CCD0) ccd).isExpanded();
+
+        // index clades, and collect partitions grouped by parent clade in clade order
+        List<Clade> clades = new ArrayList<Clade>(ccd.getClades());
+        int[] index = new int[ccd.getNumberOfCladeIds()];
+        int numPartitions = 0;
+        for (int i = 0; i < clades.size(); i++) {
+            index[clades.get(i).getId()] = i;
+            numPartitions += clades.get(i).getNumberOfPartitions();
+        }
+        int stride = (ccd.getSizeOfLeavesArray() + 63) / 64;
+        long[] words = new long[stride];
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(keyBytes.length);
+            out.write(keyBytes);
+            out.writeByte(type.ordinal());
+            out.writeBoolean(expanded);
+            out.writeInt(ccd.getSizeOfLeavesArray());
+            out.writeInt(ccd.getNumberOfBaseTrees());
+            out.writeInt(clades.size());
+            out.writeInt(numPartitions);
+
+            for (Clade clade : clades) {
+                clade.getCladeInBits().copyWordsTo(words, 0, stride);
+                for (long word : words) {
+                    out.writeLong(word);
+                }
+            }
+            for (Clade clade : clades) {
+                out.writeInt(clade.getNumberOfOccurrences());
+            }
+            for (Clade clade : clades) {
+                out.writeDouble(clade.getMeanOccurredHeight());
+            }
+            for (Clade clade : clades) {
+                out.writeDouble(clade.getCladeParameter());
+            }
+
+            for (Clade clade : clades) {
+                for (CladePartition partition : clade.getPartitions()) {
+                    Clade[] children = partition.getChildClades();
+                    out.writeInt(index[clade.getId()]);
+                    out.writeInt(index[children[0].getId()]);
+                    out.writeInt(index[children[1].getId()]);
+                }
+            }
+            for (Clade clade : clades) {
+                for (CladePartition partition : clade.getPartitions()) {
+                    out.writeInt(partition.getNumberOfOccurrences());
+                }
+            }
+            for (Clade clade : clades) {
+                for (CladePartition partition : clade.getPartitions()) {
+                    out.writeDouble(partition.getMeanOccurredHeight());
+                }
+            }
+            for (Clade clade : clades) {
+                for (CladePartition partition : clade.getPartitions()) {
+                    // -1 marks CCPs that follow from the occurrence counts
+                    out.writeDouble(partition.isCCPSet() ? partition.getCCP() : -1);
+                }
+            }
+        }
+    }
+
+    /**
+     * Restores a CCD from a file written by {@link #write(AbstractCCD, String, File)}.
+     * The trees the CCD is based on are not stored, so the restored CCD only
+     * knows the given tree as base tree (used for taxon names).
+     *
+     * @param file         to read from
+     * @param key          that the file has to be written with
+     * @param someBaseTree tree of the tree set the CCD is based on, may be null
+     * @return the restored CCD, or null if the file does not exist or was written for another key
+     * @throws IOException if the file cannot be read or is corrupt
+     */
+    public static AbstractCCD read(File file, String key, Tree someBaseTree) throws IOException {
+        if (!file.exists() || file.length() > Integer.MAX_VALUE) {
+            return null;
+        }
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            ByteBuffer buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            for (int i = 0; i < MAGIC.length; i++) {
+                if (buf.get() != MAGIC[i]) {
+                    return null;
+                }
+            }
+            if (buf.getInt() != VERSION) {
+                return null;
+            }
+            byte[] keyBytes = new byte[buf.getInt()];
+            buf.get(keyBytes);
+            if (!new String(keyBytes, StandardCharsets.UTF_8).equals(key)) {
+                return null;
+            }
+            CCDType type = CCDType.values()[buf.get()];
+            boolean expanded = buf.get() != 0;
+            int leafArraySize = buf.getInt();
+            int numBaseTrees = buf.getInt();
+            int numClades = buf.getInt();
+            int numPartitions = buf.getInt();
+            int stride = (leafArraySize + 63) / 64;
+
+            long[] words = new long[numClades * stride];
+            buf.asLongBuffer().get(words);
+            buf.position(buf.position() + 8 * words.length);
+            int[] cladeOccurrences = readInts(buf, numClades);
+            double[] cladeHeights = readDoubles(buf, numClades);
+            double[] cladeParameters = readDoubles(buf, numClades);
+            int[] partitionClades = readInts(buf, 3 * numPartitions);
+            int[] partitionOccurrences = readInts(buf, numPartitions);
+            double[] partitionHeights = readDoubles(buf, numPartitions);
+            double[] ccps = readDoubles(buf, numPartitions);
+
+            AbstractCCD ccd = type.emptyCCDOfType(leafArraySize);
+            if (someBaseTree != null) {
+                ccd.baseTrees.add(someBaseTree);
+            }
+            ccd.numBaseTrees = numBaseTrees;
+
+            Clade[] clades = new Clade[numClades];
+            for (int i = 0; i < numClades; i++) {
+                BitSet cladeInBits = BitSet.newBitSet(leafArraySize);
+                for (int j = 0; j < stride; j++) {
+                    long word = words[i * stride + j];
+                    while (word != 0) {
+                        cladeInBits.set(j * 64 + Long.numberOfTrailingZeros(word));
+                        word &= word - 1;
+                    }
+                }
+                // the root clade is created with the CCD
+                Clade clade = ccd.cladeMapping.get(cladeInBits);
+                if (clade == null) {
+                    clade = ccd.addNewClade(cladeInBits);
+                }
+                clade.setNumberOfOccurrences(cladeOccurrences[i]);
+                clade.setMeanOccurredHeight(cladeHeights[i]);
+                clade.setCladeParameter(cladeParameters[i]);
+                clades[i] = clade;
+            }
+
+            for (int i = 0; i < numPartitions; i++) {
+                Clade parent = clades[partitionClades[3 * i]];
+                CladePartition partition = parent.createCladePartition(clades[partitionClades[3 * i + 1]],
+                        clades[partitionClades[3 * i + 2]]);
+                partition.setNumOccurrences(partitionOccurrences[i]);
+                partition.setMeanOccurredHeight(partitionHeights[i]);
+                if (ccps[i] >= 0) {
+                    partition.setCCP(ccps[i]);
+                }
+            }
+
+            if (expanded) {
+                ((CCD0) ccd).setExpanded();
+            } else {
+                ccd.setCacheAsDirty();
+            }
+            return ccd;
+        } catch (RuntimeException e) {
+            throw new IOException("Corrupt CCD graph file " + file.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private static int[] readInts(ByteBuffer buf, int length) {
+        int[] values = new int[length];
+        buf.asIntBuffer().get(values);
+        buf.position(buf.position() + 4 * length);
+        return values;
+    }
+
+    private static double[] readDoubles(ByteBuffer buf, int length) {
+        double[] values = new double[length];
+        buf.asDoubleBuffer().get(values);
+        buf.position(buf.position() + 8 * length);
+        return values;
+    }
+}
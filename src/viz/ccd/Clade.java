@@ -27,10 +27,23 @@ public class Clade {
     private final AbstractCCD ccd;
 
     /**
-     * BitSet representation of this clade. The mapping of bits to taxa is
-     * implicit here, explicit in a global context.
+     * Id of this clade, unique within its CCD and given in order of creation.
      */
-    private final BitSet cladeAsBitSet;
+    private final int id;
+
+    /**
+     * BitSet representation of this clade, until it is stored in a
+     * {@link CladeMap}; from then on the bits live in the slab of the map
+     * under {@link #slabId}, so they are not stored twice. The mapping of bits
+     * to taxa is implicit here, explicit in a global context.
+     */
+    private BitSet cladeAsBitSet;
+
+    /** Map whose slab stores the bits of this clade, or null if this clade keeps its own BitSet. */
+    private CladeMap slab = null;
+
+    /** Position of this clade in the slab of {@link #slab}. */
+    private int slabId = -1;
 
     /**
      * Number of taxa in this clade.
@@ -96,14 +109,16 @@ public class Clade {
     private CladePartition maxSubtreeSumCladeCredibilityPartition = null;
 
     /**
-     * The sum of subtree clade credibilities of all trees rooted at this clade.
+     * The sum of subtree clade credibilities of all trees rooted at this clade,
+     * scaled by 2^-{@link #sumCladeCredibilitiesExponent} to avoid underflows;
+     * -1 if not computed yet, since a sum of 0 is a valid value.
      */
     private double sumCladeCredibilities = -1;
 
     /**
-     * The log of sum of subtree clade credibilities of all trees rooted at this clade.
+     * Binary exponent of the sum of subtree clade credibilities.
      */
-    private double sumLogCladeCredibilities = 1;
+    private int sumCladeCredibilitiesExponent = 0;
 
     /**
      * The probability of this clade appearing in a tree of the respective
@@ -133,6 +148,7 @@ public class Clade {
      */
     public Clade(BitSet cladeInBits, AbstractCCD abstractCCD) {
         this.ccd = abstractCCD;
+        this.id = abstractCCD.nextCladeId();
         this.cladeAsBitSet = cladeInBits;
         this.size = cladeInBits.cardinality();
         this.parentClades = new ArrayList<Clade>(4);
@@ -155,7 +171,7 @@ public class Clade {
      * @return a copy of this clade
      */
     public Clade copy(AbstractCCD targetCCD) {
-        Clade copiedClade = new Clade((BitSet) this.cladeAsBitSet.clone(), targetCCD);
+        Clade copiedClade = new Clade((BitSet) getCladeInBits().clone(), targetCCD);
         copiedClade.increaseOccurrenceCountBy(getNumberOfOccurrences(), getMeanOccurredHeight());
         copiedClade.setCladeParameter(this.getCladeParameter());
         return copiedClade;
@@ -303,7 +319,7 @@ public class Clade {
             this.maxSubtreeSumCladeCredibility = -1;
             this.entropy = -1;
             this.sumCladeCredibilities = -1;
-            this.sumLogCladeCredibilities = 1;
+            this.sumCladeCredibilitiesExponent = 0;
             this.probability = -1;
 
             for (CladePartition partition : partitions) {
@@ -401,6 +417,15 @@ public class Clade {
         this.numOccurrences = numOccurrences;
     }
 
+    /**
+     * Overwrites the mean height of the registered occurrences with the given height.
+     *
+     * @param height new mean occurred height
+     */
+    public void setMeanOccurredHeight(double height) {
+        this.meanHeight = height;
+    }
+
     /**
      * @return the common ancestor height of this clade (wrt trees used to construct it);
      * note that not maintained automatically
@@ -423,11 +448,108 @@ public class Clade {
         return this.size;
     }
 
+    /**
+     * @return id of this clade, unique within its CCD; ids are less than
+     * {@link AbstractCCD#getNumberOfCladeIds()}, so they can index arrays
+     */
+    int getId() {
+        return id;
+    }
+
     /**
      * @return BitSet of this clade
      */
     public BitSet getCladeInBits() {
-        return cladeAsBitSet;
+        CladeMap slab = this.slab;
+        return slab == null ? cladeAsBitSet : slab.getBits(slabId);
+    }
+
+    /*
+     * The following accessors work on the bits of this clade without
+     * allocating a BitSet as getCladeInBits() does for clades in a slab.
+     */
+
+    /**
+     * Overwrites the given BitSet with the bits of this clade.
+     *
+     * @param dest BitSet of the same size as the bits of this clade
+     */
+    public void copyCladeInBitsTo(BitSet dest) {
+        CladeMap slab = this.slab;
+        if (slab == null) {
+            dest.clear();
+            dest.or(cladeAsBitSet);
+        } else {
+            slab.copyBits(slabId, dest);
+        }
+    }
+
+    /**
+     * Sets the bits of this clade in the given BitSet.
+     *
+     * @param dest BitSet of the same size as the bits of this clade
+     */
+    public void orCladeInBitsInto(BitSet dest) {
+        CladeMap slab = this.slab;
+        if (slab == null) {
+            dest.or(cladeAsBitSet);
+        } else {
+            slab.orBits(slabId, dest);
+        }
+    }
+
+    /**
+     * Flips the bits of this clade in the given BitSet.
+     *
+     * @param dest BitSet of the same size as the bits of this clade
+     */
+    public void xorCladeInBitsInto(BitSet dest) {
+        CladeMap slab = this.slab;
+        if (slab == null) {
+            dest.xor(cladeAsBitSet);
+        } else {
+            slab.xorBits(slabId, dest);
+        }
+    }
+
+    /**
+     * @param fromIndex index of the taxon to start from
+     * @return the index of the first taxon in this clade at or after the given index, -1 if there is none
+     */
+    public int nextSetBit(int fromIndex) {
+        CladeMap slab = this.slab;
+        return slab == null ? cladeAsBitSet.nextSetBit(fromIndex) : slab.nextSetBit(slabId, fromIndex);
+    }
+
+    /**
+     * @return the index of the last taxon in this clade
+     */
+    public int lastSetBit() {
+        CladeMap slab = this.slab;
+        return slab == null ? cladeAsBitSet.lastSetBit() : slab.lastSetBit(slabId);
+    }
+
+    /*
+     * Called by the map that stored the given bits with the given id; the
+     * clade drops its own BitSet if it does not live in another map already.
+     */
+    void storeBitsIn(CladeMap map, int id) {
+        if (slab == map) {
+            slabId = id;
+        } else if (slab == null && map.bitsEqual(id, cladeAsBitSet)) {
+            slab = map;
+            slabId = id;
+            cladeAsBitSet = null;
+        }
+    }
+
+    /* Called by the map when it removes this clade, so the clade gets its own BitSet back. */
+    void releaseBitsFrom(CladeMap map) {
+        if (slab == map) {
+            cladeAsBitSet = map.getBits(slabId);
+            slab = null;
+            slabId = -1;
+        }
     }
 
     /**
@@ -460,7 +582,7 @@ public class Clade {
 
     @Override
     public String toString() {
-        return "Clade [taxa = " + cladeAsBitSet + ", numOccurrences = " + numOccurrences
+        return "Clade [taxa = " + getCladeInBits() + ", numOccurrences = " + numOccurrences
                 // + ", ccd = " + ccd
                 + ", num partitions = " + partitions.size()
                 + ", parameter = " + ((parameter < 0) ? getCladeCredibility() : parameter) + "]";
@@ -594,8 +716,11 @@ public class Clade {
     public double getEntropy() {
         if (this.entropy < 0) {
             // compute entropy recursively
+            Clade source;
             if (this.isLeaf()) {
                 this.entropy = 0;
+            } else if ((source = ccd.getStatisticsSource(this)) != null) {
+                this.entropy = source.getEntropy();
             } else {
                 double runningEntropy = 0;
 
@@ -620,8 +745,11 @@ public class Clade {
      */
     public BigInteger getNumberOfTopologies() {
         if (this.numTopologies == null) {
+            Clade source;
             if (this.isLeaf() || this.isCherry()) {
                 numTopologies = BigInteger.valueOf(1);
+            } else if ((source = ccd.getStatisticsSource(this)) != null) {
+                numTopologies = source.getNumberOfTopologies();
             } else {
                 numTopologies = BigInteger.valueOf(0);
                 for (CladePartition partition : this.partitions) {
@@ -658,7 +786,13 @@ public class Clade {
      */
     public double getMaxSubtreeLogCCP() {
         if (this.maxSubtreeLogCCP > 0) {
-            this.computeMaxSubtreeLogCCP();
+            Clade source = ccd.getStatisticsSource(this);
+            if (source != null) {
+                // only the value is shared, the partition is computed on demand
+                this.maxSubtreeLogCCP = source.getMaxSubtreeLogCCP();
+            } else {
+                this.computeMaxSubtreeLogCCP();
+            }
         }
 
         return maxSubtreeLogCCP;
@@ -672,7 +806,11 @@ public class Clade {
      * @return partition realized in max CCP subtree rooted at this clade
      */
     public CladePartition getMaxSubtreeCCPPartition() {
-        if ((this.maxSubtreeCCPPartition == null) || (this.maxSubtreeLogCCP > 0)) {
+        if ((this.maxSubtreeCCPPartition == null) && !partitions.isEmpty()) {
+            // value might have been shared without the partition
+            this.maxSubtreeLogCCP = 1;
+        }
+        if (this.maxSubtreeLogCCP > 0) {
             this.computeMaxSubtreeLogCCP();
         }
 
@@ -774,12 +912,29 @@ public class Clade {
     }
 
     /**
-     * @return if computed, sum of subtree clade credibilities of all subtrees rooted at this clade
+     * @return if computed, sum of subtree clade credibilities of all subtrees rooted at this clade;
+     * might underflow to zero, unlike the scaled value
      */
     public double getSumCladeCredibilities() {
+        return Math.scalb(this.sumCladeCredibilities, this.sumCladeCredibilitiesExponent);
+    }
+
+    /**
+     * @return if computed, sum of subtree clade credibilities of all subtrees rooted at this clade
+     * scaled by 2^-{@link #getSumCladeCredibilitiesExponent()}
+     */
+    public double getScaledSumCladeCredibilities() {
         return this.sumCladeCredibilities;
     }
 
+    /**
+     * @return binary exponent of the sum of subtree clade credibilities of all
+     * subtrees rooted at this clade, see {@link #getScaledSumCladeCredibilities()}
+     */
+    public int getSumCladeCredibilitiesExponent() {
+        return this.sumCladeCredibilitiesExponent;
+    }
+
     /**
      * @return the newly computed sum of subtree clade credibilities of all
      * subtrees rooted at this clade
@@ -798,9 +953,10 @@ public class Clade {
                 }
                 this.sumCladeCredibilities = sum * this.getCladeCredibility();
             }
+            this.sumCladeCredibilitiesExponent = 0;
         }
 
-        return sumCladeCredibilities;
+        return getSumCladeCredibilities();
     }
 
     /**
@@ -808,10 +964,20 @@ public class Clade {
      *              this clade
      */
     public void setSumCladeCredibilities(double value) {
+        setScaledSumCladeCredibilities(value, 0);
+    }
+
+    /**
+     * @param value    sum of subtree clade credibilities of all subtrees rooted
+     *                 at this clade, scaled by 2^-exponent
+     * @param exponent binary exponent of the sum
+     */
+    public void setScaledSumCladeCredibilities(double value, int exponent) {
         if (value < 0) {
             throw new AssertionError("Sum clade credibilities cannot be negative, but requested value to set is: " + value);
         }
         this.sumCladeCredibilities = value;
+        this.sumCladeCredibilitiesExponent = exponent;
     }
 
     /**
@@ -823,48 +989,7 @@ public class Clade {
         } else {
             this.sumCladeCredibilities = -1;
         }
-    }
-
-    /**
-     * @return if computed, log of sum of subtree clade credibilities of all subtrees rooted at this clade
-     */
-    public double getLogSumCladeCredibilities() {
-        return this.sumLogCladeCredibilities;
-    }
-
-    /**
-     * @return the newly computed log of sum of subtree clade credibilities of all
-     * subtrees rooted at this clade
-     */
-    public double computeLogSumCladeCredibilities() {
-        if (this.sumLogCladeCredibilities > 0) {
-            if (this.isLeaf()) {
-                this.sumLogCladeCredibilities = 0;
-            } else if (this.isCherry()) {
-                this.sumLogCladeCredibilities = Math.log(this.getCladeCredibility());
-            } else {
-                double sum = 0;
-                for (CladePartition partition : partitions) {
-                    // TODO
-                    // sum += partition.getChildClades()[0].computeSumCladeCredibilities()
-                    //         * partition.getChildClades()[1].computeSumCladeCredibilities();
-                }
-                this.sumLogCladeCredibilities = sum * this.getCladeCredibility();
-            }
-        }
-
-        return sumLogCladeCredibilities;
-    }
-
-    /**
-     * @param value sum of subtree clade credibilities of all subtrees rooted at
-     *              this clade
-     */
-    public void setLogSumCladeCredibilities(double value) {
-        if (value > 0) {
-            throw new AssertionError("Log probabilities must be non-positive but given value is " + value + ".");
-        }
-        this.sumLogCladeCredibilities = value;
+        this.sumCladeCredibilitiesExponent = 0;
     }
 
     /**
@@ -898,6 +1023,10 @@ public class Clade {
      * @return whether this clade contains the given clade as subclade
      */
     public boolean containsClade(Clade potentialSubclade) {
+        CladeMap slab = this.slab;
+        if ((slab != null) && (potentialSubclade.slab == slab)) {
+            return slab.contains(slabId, potentialSubclade.slabId);
+        }
         return contains(potentialSubclade.getCladeInBits());
     }
 
@@ -908,7 +1037,8 @@ public class Clade {
      * @return whether this clade contains the given filter
      */
     public boolean contains(BitSet mask) {
-        return BitSetUtil.contains(this.cladeAsBitSet, mask);
+        CladeMap slab = this.slab;
+        return slab == null ? BitSetUtil.contains(cladeAsBitSet, mask) : slab.contains(slabId, mask);
     }
 
     /**
@@ -918,7 +1048,8 @@ public class Clade {
      * @return whether this clade is contained in the given BitSet
      */
     public boolean contained(BitSet mask) {
-        return BitSetUtil.contains(mask, this.cladeAsBitSet);
+        CladeMap slab = this.slab;
+        return slab == null ? BitSetUtil.contains(mask, cladeAsBitSet) : slab.contained(slabId, mask);
     }
 
     /**
@@ -928,6 +1059,10 @@ public class Clade {
      * @return whether this clade intersects the given clade
      */
     public boolean intersects(Clade potentialIntersectedClade) {
+        CladeMap slab = this.slab;
+        if ((slab != null) && (potentialIntersectedClade.slab == slab)) {
+            return slab.intersects(slabId, potentialIntersectedClade.slabId);
+        }
         return this.intersects(potentialIntersectedClade.getCladeInBits());
     }
 
@@ -938,7 +1073,8 @@ public class Clade {
      * @return whether this clade intersects the given filter
      */
     public boolean intersects(BitSet mask) {
-        return this.cladeAsBitSet.intersects(mask);
+        CladeMap slab = this.slab;
+        return slab == null ? cladeAsBitSet.intersects(mask) : slab.intersects(slabId, mask);
     }
 
     /**
@@ -948,7 +1084,8 @@ public class Clade {
      * @return whether this clade equals the given filter
      */
     public boolean equals(BitSet mask) {
-        return this.cladeAsBitSet.equals(mask);
+        CladeMap slab = this.slab;
+        return slab == null ? cladeAsBitSet.equals(mask) : slab.bitsEqual(slabId, mask);
     }
 
 
@@ -959,6 +1096,11 @@ public class Clade {
      */
     private Clade baseClade;
 
+    /**
+     * Whether the subtree of this clade is the same as the one of its base clade.
+     */
+    private boolean unchangedFromBase = false;
+
     /**
      * @return the base clade of this clade (when clade comes from filtering)
      */
@@ -974,6 +1116,22 @@ public class Clade {
         this.baseClade = baseClade;
     }
 
+    /**
+     * @return whether the subtree of this clade is the same as the one of its
+     * base clade (when clade comes from filtering)
+     */
+    public boolean isUnchangedFromBase() {
+        return unchangedFromBase;
+    }
+
+    /**
+     * @param unchangedFromBase whether the subtree of this clade is the same as
+     *                          the one of its base clade
+     */
+    protected void setUnchangedFromBase(boolean unchangedFromBase) {
+        this.unchangedFromBase = unchangedFromBase;
+    }
+
 
     /* -- BASE CLADE FOR FILTERED CCDs -- */
 
@@ -0,0 +1,184 @@
+package viz.ccd;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import viz.Node;
+
+/**
+ * Clades, clade partitions and their occurrences in a batch of trees,
+ * collected without touching a CCD graph, so that batches of trees can be
+ * cladified in parallel. The tables are then merged one after the other into
+ * the CCD graph.
+ *
+ * <p>
+ * Clades and partitions are kept in order of first occurrence. Merging the
+ * tables of consecutive batches in batch order therefore creates clades and
+ * partitions in the same order as adding the trees one by one would. The
+ * height of every occurrence is kept as well and registered in tree order
+ * when merging, so the running mean heights are computed exactly as when
+ * adding the trees one by one, and the resulting CCD graph is identical to
+ * the one built sequentially.
+ * </p>
+ */
+class CladeCountTable {
+
+    /** Number of leaves/taxa of the trees. */
+    protected final int leafArraySize;
+
+    /** Clades on distinct taxa in order of first occurrence, and their index. */
+    protected final List<BitSet> cladeBits = new ArrayList<BitSet>();
+    private final Map<BitSet, Integer> cladeBitsIndex = new HashMap<BitSet, Integer>();
+
+    /** Partitions in order of first occurrence, indexed by parent and the smaller child clade index. */
+    private final Map<Long, Integer> partitionIndex = new HashMap<Long, Integer>();
+    private int numPartitions = 0;
+    private int[] partitionParents = new int[64];
+    private int[] partitionFirstChildren = new int[64];
+    private int[] partitionSecondChildren = new int[64];
+
+    /** Clade, partition (-1 for leaves) and height of every vertex of the trees, in tree order. */
+    private int numOccurrences = 0;
+    private int[] occurrenceClades = new int[256];
+    private int[] occurrencePartitions = new int[256];
+    private double[] occurrenceHeights = new double[256];
+
+    CladeCountTable(int leafArraySize) {
+        this.leafArraySize = leafArraySize;
+    }
+
+    /**
+     * Collect clades, partitions and their occurrences of the given tree.
+     *
+     * @param tree to be processed
+     */
+    void addTree(Tree tree) {
+        cladifyVertex(tree.getRoot());
+    }
+
+    /* Recursive helper method, counterpart of AbstractCCD.cladifyVertex */
+    private int cladifyVertex(Node vertex) {
+        BitSet cladeInBits = BitSet.newBitSet(leafArraySize);
+        int firstChild = -1;
+        int secondChild = -1;
+
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+        } else {
+            firstChild = cladifyVertex(vertex.getChild(0));
+            secondChild = cladifyVertex(vertex.getChild(1));
+
+            cladeInBits.or(cladeBits.get(firstChild));
+            cladeInBits.or(cladeBits.get(secondChild));
+        }
+
+        int index = indexOf(cladeInBits);
+        int partition = vertex.isLeaf() ? -1 : partitionIndexOf(index, firstChild, secondChild);
+        addOccurrence(index, partition, vertex.getHeight());
+
+        return index;
+    }
+
+    /**
+     * @param cladeInBits taxa of a clade, not to be changed afterwards
+     * @return index of the given taxa in {@link #cladeBits}, where they are added if new
+     */
+    protected int indexOf(BitSet cladeInBits) {
+        Integer index = cladeBitsIndex.get(cladeInBits);
+        if (index == null) {
+            index = cladeBits.size();
+            cladeBits.add(cladeInBits);
+            cladeBitsIndex.put(cladeInBits, index);
+        }
+        return index;
+    }
+
+    /**
+     * The parent and either child clade determine a partition.
+     *
+     * @return index of the partition of the given clades, which is added if new
+     */
+    protected int partitionIndexOf(int parent, int firstChild, int secondChild) {
+        long key = ((long) parent << 32) | Math.min(firstChild, secondChild);
+        Integer partition = partitionIndex.get(key);
+        if (partition == null) {
+            partition = numPartitions++;
+            partitionIndex.put(key, partition);
+            if (partition == partitionParents.length) {
+                int newSize = partition * 2;
+                partitionParents = Arrays.copyOf(partitionParents, newSize);
+                partitionFirstChildren = Arrays.copyOf(partitionFirstChildren, newSize);
+                partitionSecondChildren = Arrays.copyOf(partitionSecondChildren, newSize);
+            }
+            partitionParents[partition] = parent;
+            partitionFirstChildren[partition] = firstChild;
+            partitionSecondChildren[partition] = secondChild;
+        }
+        return partition;
+    }
+
+    /** Register an occurrence of the given clade and partition (-1 for none) at the given height. */
+    protected void addOccurrence(int clade, int partition, double height) {
+        if (numOccurrences == occurrenceClades.length) {
+            int newSize = numOccurrences * 2;
+            occurrenceClades = Arrays.copyOf(occurrenceClades, newSize);
+            occurrencePartitions = Arrays.copyOf(occurrencePartitions, newSize);
+            occurrenceHeights = Arrays.copyOf(occurrenceHeights, newSize);
+        }
+        occurrenceClades[numOccurrences] = clade;
+        occurrencePartitions[numOccurrences] = partition;
+        occurrenceHeights[numOccurrences] = height;
+        numOccurrences++;
+    }
+
+    /**
+     * Add the clades, partitions and occurrences of this table to the CCD
+     * graph of the given CCD, creating clades and partitions that do not
+     * exist yet.
+     *
+     * @param ccd to merge the table into
+     */
+    void mergeInto(AbstractCCD ccd) {
+        Clade[] ccdClades = new Clade[cladeBits.size()];
+        for (int i = 0; i < ccdClades.length; i++) {
+            BitSet cladeInBits = cladeBits.get(i);
+            Clade clade = ccd.cladeMapping.get(cladeInBits);
+            if (clade == null) {
+                clade = ccd.addNewClade(cladeInBits);
+            }
+            ccdClades[i] = clade;
+        }
+        mergeOccurrences(ccdClades);
+    }
+
+    /**
+     * Create the partitions that do not exist yet and register all
+     * occurrences, in tree order.
+     *
+     * @param ccdClades clades of the CCD graph by clade index of this table
+     */
+    protected void mergeOccurrences(Clade[] ccdClades) {
+        CladePartition[] ccdPartitions = new CladePartition[numPartitions];
+        for (int i = 0; i < numPartitions; i++) {
+            Clade parent = ccdClades[partitionParents[i]];
+            Clade firstChild = ccdClades[partitionFirstChildren[i]];
+            Clade secondChild = ccdClades[partitionSecondChildren[i]];
+            CladePartition partition = parent.getCladePartition(firstChild, secondChild);
+            if (partition == null) {
+                partition = parent.createCladePartition(firstChild, secondChild);
+            }
+            ccdPartitions[i] = partition;
+        }
+
+        for (int i = 0; i < numOccurrences; i++) {
+            double height = occurrenceHeights[i];
+            ccdClades[occurrenceClades[i]].increaseOccurrenceCount(height);
+            if (occurrencePartitions[i] >= 0) {
+                ccdPartitions[occurrencePartitions[i]].increaseOccurrenceCount(height);
+            }
+        }
+    }
+}
@@ -0,0 +1,425 @@
+package viz.ccd;
+
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * <p>
+ * Mapping from BitSets to clades for the CCD graph of an {@link AbstractCCD}.
+ * The clades are stored in an arena with a dense clade id each: the words of
+ * the bitsets of all clades are packed into one {@code long[]} slab with a
+ * fixed stride, and together with their hash codes they are looked up via an
+ * open-addressing hash table (linear probing) of clade ids. So unlike a
+ * {@link java.util.HashMap}, no entry object is allocated per clade and a
+ * lookup compares against the slab instead of following references to the
+ * clades' bitsets. The slab is the only copy of the bits: a clade stored here
+ * drops its own BitSet and refers to its id in the slab instead, and keys are
+ * only built as BitSets when asked for.
+ * </p>
+ *
+ * <p>
+ * Iteration is in order of insertion, except that removing a clade moves the
+ * last clade into its position. Concurrent lookups are safe as long as no
+ * clade is added or removed at the same time.
+ * </p>
+ */
+class CladeMap extends AbstractMap<BitSet, Clade> {
+
+    /** Initial number of clades the arena can hold. */
+    private static final int INITIAL_CAPACITY = 64;
+
+    /** Number of words per clade in the slab; set by the first clade added, usually the root clade. */
+    private int stride = -1;
+
+    /** Words of the bitsets of the clades, clade with id i at i * stride. */
+    private long[] words;
+
+    /** Hash codes of the bitsets of the clades, by clade id. */
+    private int[] hashes;
+
+    /** Clades, by clade id. */
+    private Clade[] clades;
+
+    /** Number of clades stored. */
+    private int size = 0;
+
+    /** Open-addressing hash table storing clade id + 1, with 0 for empty slots. */
+    private int[] table;
+
+    /** Bit mask for indices into the hash table, whose length is a power of two. */
+    private int mask;
+
+    CladeMap() {
+        hashes = new int[INITIAL_CAPACITY];
+        clades = new Clade[INITIAL_CAPACITY];
+        table = new int[2 * INITIAL_CAPACITY];
+        mask = table.length - 1;
+    }
+
+    /* Spread hash codes, since those of small bitsets are just the xor-ed words. */
+    private static int mix(int hash) {
+        hash *= 0x9e3779b9;
+        return hash ^ (hash >>> 16);
+    }
+
+    /*
+     * Returns the slot in the hash table of the given bitset if it is stored,
+     * otherwise -(slot + 1) of the empty slot where it would be inserted.
+     */
+    private int findSlot(BitSet cladeInBits, int hash) {
+        int slot = mix(hash) & mask;
+        while (true) {
+            int entry = table[slot];
+            if (entry == 0) {
+                return -(slot + 1);
+            }
+            int id = entry - 1;
+            if (hashes[id] == hash && cladeInBits.equalsWords(words, id * stride, stride)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+    }
+
+    /* Returns a new BitSet with the bits of the clade with the given id */
+    BitSet getBits(int id) {
+        BitSet bits = BitSet.newBitSet(stride * 64);
+        bits.copyWordsFrom(words, id * stride, stride);
+        return bits;
+    }
+
+    /*
+     * Non-allocating accessors of the bits of the clade with the given id,
+     * as the corresponding BitSet methods on the result of getBits(id)
+     */
+
+    void copyBits(int id, BitSet dest) {
+        dest.copyWordsFrom(words, id * stride, stride);
+    }
+
+    void orBits(int id, BitSet dest) {
+        dest.orWords(words, id * stride, stride);
+    }
+
+    void xorBits(int id, BitSet dest) {
+        dest.xorWords(words, id * stride, stride);
+    }
+
+    int nextSetBit(int id, int fromIndex) {
+        int u = fromIndex >> 6;
+        if (u >= stride) {
+            return -1;
+        }
+        int offset = id * stride;
+        long word = words[offset + u] & (-1L << fromIndex);
+        while (word == 0) {
+            if (++u == stride) {
+                return -1;
+            }
+            word = words[offset + u];
+        }
+        return u * 64 + Long.numberOfTrailingZeros(word);
+    }
+
+    int lastSetBit(int id) {
+        int offset = id * stride;
+        for (int u = stride - 1; u >= 0; u--) {
+            long word = words[offset + u];
+            if (word != 0) {
+                return u * 64 + 63 - Long.numberOfLeadingZeros(word);
+            }
+        }
+        return -1;
+    }
+
+    /* Whether the clade with the given id contains all bits of the clade with the other id */
+    boolean contains(int id, int otherId) {
+        int offset = id * stride;
+        int otherOffset = otherId * stride;
+        for (int i = 0; i < stride; i++) {
+            long other = words[otherOffset + i];
+            if ((words[offset + i] & other) != other) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Whether the clade with the given id contains all bits of the given mask */
+    boolean contains(int id, BitSet mask) {
+        int offset = id * stride;
+        for (int i = 0; i < stride; i++) {
+            long other = mask.getWord(i);
+            if ((words[offset + i] & other) != other) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /* Whether all bits of the clade with the given id are in the given mask */
+    boolean contained(int id, BitSet mask) {
+        int offset = id * stride;
+        for (int i = 0; i < stride; i++) {
+            long word = words[offset + i];
+            if ((mask.getWord(i) & word) != word) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    boolean intersects(int id, int otherId) {
+        int offset = id * stride;
+        int otherOffset = otherId * stride;
+        for (int i = 0; i < stride; i++) {
+            if ((words[offset + i] & words[otherOffset + i]) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean intersects(int id, BitSet mask) {
+        int offset = id * stride;
+        for (int i = 0; i < stride; i++) {
+            if ((words[offset + i] & mask.getWord(i)) != 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /* Returns whether the clade with the given id has exactly the bits of the given BitSet */
+    boolean bitsEqual(int id, BitSet cladeInBits) {
+        return cladeInBits.equalsWords(words, id * stride, stride);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Clade get(Object key) {
+        if (size == 0 || !(key instanceof BitSet)) {
+            return null;
+        }
+        BitSet cladeInBits = (BitSet) key;
+        int slot = findSlot(cladeInBits, cladeInBits.hashCode());
+        return slot < 0 ? null : clades[table[slot] - 1];
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public Clade put(BitSet cladeInBits, Clade clade) {
+        if (stride < 0) {
+            stride = cladeInBits.size() / 64;
+            words = new long[INITIAL_CAPACITY * stride];
+        }
+        int hash = cladeInBits.hashCode();
+        int slot = findSlot(cladeInBits, hash);
+        if (slot >= 0) {
+            int id = table[slot] - 1;
+            Clade old = clades[id];
+            if (old != clade) {
+                old.releaseBitsFrom(this);
+                clades[id] = clade;
+                clade.storeBitsIn(this, id);
+            }
+            return old;
+        }
+
+        if (size == clades.length) {
+            int capacity = 2 * clades.length;
+            words = Arrays.copyOf(words, capacity * stride);
+            hashes = Arrays.copyOf(hashes, capacity);
+            clades = Arrays.copyOf(clades, capacity);
+        }
+        int id = size++;
+        cladeInBits.copyWordsTo(words, id * stride, stride);
+        hashes[id] = hash;
+        clades[id] = clade;
+        clade.storeBitsIn(this, id);
+
+        // keep load factor of hash table below 1/2
+        if (2 * size > table.length) {
+            rehash(2 * table.length);
+        } else {
+            table[-(slot + 1)] = id + 1;
+        }
+        return null;
+    }
+
+    /* Rebuild hash table with the given size */
+    private void rehash(int tableSize) {
+        table = new int[tableSize];
+        mask = tableSize - 1;
+        for (int id = 0; id < size; id++) {
+            int slot = mix(hashes[id]) & mask;
+            while (table[slot] != 0) {
+                slot = (slot + 1) & mask;
+            }
+            table[slot] = id + 1;
+        }
+    }
+
+    @Override
+    public Clade remove(Object key) {
+        if (size == 0 || !(key instanceof BitSet)) {
+            return null;
+        }
+        BitSet cladeInBits = (BitSet) key;
+        int slot = findSlot(cladeInBits, cladeInBits.hashCode());
+        if (slot < 0) {
+            return null;
+        }
+        return removeSlot(slot);
+    }
+
+    /* Returns the slot in the hash table of the clade with the given id */
+    private int slotOf(int id) {
+        int slot = mix(hashes[id]) & mask;
+        while (table[slot] != id + 1) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /* Removes the clade in the given slot of the hash table */
+    private Clade removeSlot(int slot) {
+        int id = table[slot] - 1;
+        Clade removed = clades[id];
+        // the removed clade takes its bits along before its id is reused
+        removed.releaseBitsFrom(this);
+        deleteSlot(slot);
+
+        // move last clade into freed id to keep the arena dense
+        int last = size - 1;
+        if (id != last) {
+            table[slotOf(last)] = id + 1;
+            System.arraycopy(words, last * stride, words, id * stride, stride);
+            hashes[id] = hashes[last];
+            clades[id] = clades[last];
+            clades[id].storeBitsIn(this, id);
+        }
+        clades[last] = null;
+        size--;
+        return removed;
+    }
+
+    /* Backward shift deletion for linear probing, so no tombstones are needed */
+    private void deleteSlot(int slot) {
+        int free = slot;
+        int current = slot;
+        while (true) {
+            current = (current + 1) & mask;
+            int entry = table[current];
+            if (entry == 0) {
+                break;
+            }
+            int home = mix(hashes[entry - 1]) & mask;
+            // entry can stay if its home slot lies cyclically in (free, current]
+            boolean stays = (free <= current) ? (free < home && home <= current) : (free < home || home <= current);
+            if (!stays) {
+                table[free] = entry;
+                free = current;
+            }
+        }
+        table[free] = 0;
+    }
+
+    @Override
+    public void clear() {
+        for (int id = 0; id < size; id++) {
+            clades[id].releaseBitsFrom(this);
+        }
+        Arrays.fill(clades, 0, size, null);
+        Arrays.fill(table, 0);
+        size = 0;
+    }
+
+    @Override
+    public Collection<Clade> values() {
+        return new AbstractCollection<Clade>() {
+            @Override
+            public Iterator<Clade> iterator() {
+                return new ArenaIterator<Clade>() {
+                    @Override
+                    Clade element(int id) {
+                        return clades[id];
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    @Override
+    public Set<Map.Entry<BitSet, Clade>> entrySet() {
+        return new AbstractSet<Map.Entry<BitSet, Clade>>() {
+            @Override
+            public Iterator<Map.Entry<BitSet, Clade>> iterator() {
+                return new ArenaIterator<Map.Entry<BitSet, Clade>>() {
+                    @Override
+                    Map.Entry<BitSet, Clade> element(int id) {
+                        return new AbstractMap.SimpleImmutableEntry<BitSet, Clade>(getBits(id), clades[id]);
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /* Iterator over clade ids; removal through the iterator is supported */
+    private abstract class ArenaIterator<E> implements Iterator<E> {
+        private int next = 0;
+        private int current = -1;
+
+        abstract E element(int id);
+
+        @Override
+        public boolean hasNext() {
+            return next < size;
+        }
+
+        @Override
+        public E next() {
+            if (next >= size) {
+                throw new NoSuchElementException();
+            }
+            current = next++;
+            return element(current);
+        }
+
+        @Override
+        public void remove() {
+            if (current < 0) {
+                throw new IllegalStateException();
+            }
+            // last clade moves into the removed position, so visit it next
+            removeSlot(slotOf(current));
+            next = current;
+            current = -1;
+        }
+    }
+}
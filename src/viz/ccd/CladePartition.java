@@ -240,8 +240,8 @@ public class CladePartition {
      * @return whether the given clade as BitSet is part of this clade partition
      */
     public boolean containsClade(BitSet cladeToTest) {
-        return (childClades[0].getCladeInBits().equals(cladeToTest)
-                || childClades[1].getCladeInBits().equals(cladeToTest));
+        return (childClades[0].equals(cladeToTest)
+                || childClades[1].equals(cladeToTest));
     }
 
     /**
@@ -293,8 +293,8 @@ public class CladePartition {
         }
     }
 
-    /* Precompute log values for quick lookup */
-    private static double[] logTable;
+    /* Precompute log values for quick lookup; volatile since it may get extended while CCDs are evaluated concurrently */
+    private static volatile double[] logTable;
 
     private static int logTableLength = 1024;
 
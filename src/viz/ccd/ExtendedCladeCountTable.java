@@ -0,0 +1,122 @@
+package viz.ccd;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import viz.Node;
+
+/**
+ * {@link CladeCountTable} for a {@link CCD2}, whose clades are extended
+ * clades, that is, a clade together with its sibling clade.
+ *
+ * <p>
+ * The table keeps the pairs of sibling clades in order of first occurrence
+ * of either of them. Merging replays these pairs with
+ * {@link CCD2#getOrAddExtendedClades(BitSet, boolean, BitSet, boolean)}, so
+ * extended clades are created in the same order as adding the trees one by
+ * one would.
+ * </p>
+ */
+class ExtendedCladeCountTable extends CladeCountTable {
+
+    /** Index of the root clade, which has no sibling. */
+    private static final int ROOT = 0;
+
+    /** Extended clades as index of their taxa and of their sibling's taxa (-1 for leaves), and their index. */
+    private final Map<Long, Integer> extendedCladeIndex = new HashMap<Long, Integer>();
+    private int numExtendedClades = 1;
+    private int[] extendedCladeBits = new int[64];
+    private int[] extendedCladeSiblingBits = new int[64];
+
+    /** Pairs of sibling extended clades, in order of first occurrence of either of them. */
+    private int numPairs = 0;
+    private int[] pairs = new int[128];
+
+    ExtendedCladeCountTable(int leafArraySize) {
+        super(leafArraySize);
+    }
+
+    /* Counterpart of CCD2.cladifyTree */
+    @Override
+    void addTree(Tree tree) {
+        Node root = tree.getRoot();
+        int[] children = cladifyVertices(root.getChild(0), root.getChild(1));
+        addOccurrence(ROOT, partitionIndexOf(ROOT, children[0], children[1]), root.getHeight());
+    }
+
+    /* Recursive helper method, counterpart of CCD2.cladifyVertices */
+    private int[] cladifyVertices(Node leftVertex, Node rightVertex) {
+        int[] leftChildren = leftVertex.isLeaf() ? null
+                : cladifyVertices(leftVertex.getChild(0), leftVertex.getChild(1));
+        int[] rightChildren = rightVertex.isLeaf() ? null
+                : cladifyVertices(rightVertex.getChild(0), rightVertex.getChild(1));
+        int leftBits = indexOf(cladeInBits(leftVertex, leftChildren));
+        int rightBits = indexOf(cladeInBits(rightVertex, rightChildren));
+
+        int numBefore = numExtendedClades;
+        int leftClade = extendedCladeIndexOf(leftBits, leftVertex.isLeaf() ? -1 : rightBits);
+        int rightClade = extendedCladeIndexOf(rightBits, rightVertex.isLeaf() ? -1 : leftBits);
+        if (numExtendedClades > numBefore) {
+            if (numPairs * 2 == pairs.length) {
+                pairs = Arrays.copyOf(pairs, pairs.length * 2);
+            }
+            pairs[2 * numPairs] = leftClade;
+            pairs[2 * numPairs + 1] = rightClade;
+            numPairs++;
+        }
+
+        addOccurrence(leftClade, leftVertex.isLeaf() ? -1
+                : partitionIndexOf(leftClade, leftChildren[0], leftChildren[1]), leftVertex.getHeight());
+        addOccurrence(rightClade, rightVertex.isLeaf() ? -1
+                : partitionIndexOf(rightClade, rightChildren[0], rightChildren[1]), rightVertex.getHeight());
+
+        return new int[]{leftClade, rightClade};
+    }
+
+    /* Helper method - taxa of the given vertex, whose children have the given extended clades */
+    private BitSet cladeInBits(Node vertex, int[] children) {
+        BitSet cladeInBits = BitSet.newBitSet(leafArraySize);
+        if (vertex.isLeaf()) {
+            cladeInBits.set(vertex.getNr());
+        } else {
+            cladeInBits.or(cladeBits.get(extendedCladeBits[children[0]]));
+            cladeInBits.or(cladeBits.get(extendedCladeBits[children[1]]));
+        }
+        return cladeInBits;
+    }
+
+    /* Helper method - index of the extended clade, which is added if new */
+    private int extendedCladeIndexOf(int bits, int siblingBits) {
+        long key = ((long) bits << 32) | (siblingBits + 1);
+        Integer index = extendedCladeIndex.get(key);
+        if (index == null) {
+            index = numExtendedClades++;
+            extendedCladeIndex.put(key, index);
+            if (index == extendedCladeBits.length) {
+                extendedCladeBits = Arrays.copyOf(extendedCladeBits, index * 2);
+                extendedCladeSiblingBits = Arrays.copyOf(extendedCladeSiblingBits, index * 2);
+            }
+            extendedCladeBits[index] = bits;
+            extendedCladeSiblingBits[index] = siblingBits;
+        }
+        return index;
+    }
+
+    @Override
+    void mergeInto(AbstractCCD ccd) {
+        CCD2 ccd2 = (CCD2) ccd;
+        Clade[] ccdClades = new Clade[numExtendedClades];
+        ccdClades[ROOT] = ccd2.getRootClade();
+        for (int i = 0; i < numPairs; i++) {
+            int left = pairs[2 * i];
+            int right = pairs[2 * i + 1];
+            ExtendedClade[] clades = ccd2.getOrAddExtendedClades(
+                    cladeBits.get(extendedCladeBits[left]), extendedCladeSiblingBits[left] < 0,
+                    cladeBits.get(extendedCladeBits[right]), extendedCladeSiblingBits[right] < 0);
+            ccdClades[left] = clades[0];
+            ccdClades[right] = clades[1];
+        }
+        mergeOccurrences(ccdClades);
+    }
+}
@@ -0,0 +1,418 @@
+package viz.ccd;
+
+
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * This class computes the entropy, max tree probability and number of tree
+ * topologies of the CCD obtained by removing a set of taxa from a CCD, so of
+ * the corresponding {@link FilteredCCD}, without constructing it.
+ *
+ * <p>
+ * When filtering, only the clades that contain removed taxa, the clades
+ * absorbing them and the ancestors of those change; all other clades keep
+ * their subtree and thus their entropy, max subtree probability and number of
+ * topologies, which are then taken from the base CCD. Clades containing
+ * removed taxa are merged with the other clades on the same remaining taxa
+ * into light-weight filtered clades. The remaining changed clades, ancestors
+ * of absorbing clades without removed taxa, keep their partitions and only get
+ * their values recomputed. The changed clades are looked up by clade id in a
+ * scratch array of the base CCD that is reused for every candidate scored on a
+ * thread, so the scores are computed when the FilterScore is constructed and
+ * only the entries of changed clades are cleared afterwards. This requires
+ * conditional clade probabilities based on occurrence counts, see
+ * {@link AbstractCCD#supportsFilterScores()}.
+ * </p>
+ */
+public class FilterScore {
+
+    /** The CCD the taxa are removed from. */
+    private final AbstractCCD baseCCD;
+
+    /** Mask of the taxa removed. */
+    private final BitSet removedTaxaMask;
+
+    /** Filtered clades of clades with removed taxa, merged with the clades on the same remaining taxa. */
+    private final List<FilteredClade> filteredClades = new ArrayList<>();
+
+    /** Marks clades containing removed taxa in {@link #changed} before they are merged. */
+    private static final Object AFFECTED = new Object();
+
+    /**
+     * Changed base clades by clade id, during construction only: the filtered
+     * clade a clade gets merged into, or the recomputed values of a clade
+     * without removed taxa that changes as ancestor of an absorbing clade;
+     * null for unchanged clades.
+     */
+    private Object[] changed;
+
+    /** Number of changed ancestor clades. */
+    private int numChangedAncestors = 0;
+
+    /** Scores of the filtered CCD. */
+    private final double entropy;
+    private final double maxLogTreeProbability;
+    private final BigInteger numberOfTrees;
+
+    /**
+     * Set up the changed clades of filtering the given CCD with the given mask
+     * and compute the scores of the filtered CCD.
+     *
+     * @param baseCCD      CCD with count based conditional clade probabilities
+     * @param taxaToRemove mask specifying which taxa to remove
+     */
+    FilterScore(AbstractCCD baseCCD, BitSet taxaToRemove) {
+        this.baseCCD = baseCCD;
+        this.removedTaxaMask = taxaToRemove;
+        this.changed = baseCCD.getFilterScoreScratch();
+        // clades with an entry in the scratch array, which is cleared again at these only
+        List<Clade> touched = new ArrayList<>();
+        try {
+            // 1. clades containing removed taxa are the ancestors of their leaves
+            ArrayDeque<Clade> queue = new ArrayDeque<>();
+            BitSet leafBits = BitSet.newBitSet(baseCCD.getSizeOfLeavesArray());
+            for (int i = taxaToRemove.nextSetBit(0); i >= 0; i = taxaToRemove.nextSetBit(i + 1)) {
+                leafBits.clear();
+                leafBits.set(i);
+                Clade leaf = baseCCD.getClade(leafBits);
+                if ((leaf != null) && (changed[leaf.getId()] == null)) {
+                    changed[leaf.getId()] = AFFECTED;
+                    queue.add(leaf);
+                }
+            }
+            while (!queue.isEmpty()) {
+                Clade clade = queue.poll();
+                touched.add(clade);
+                for (Clade parent : clade.getParentClades()) {
+                    if (changed[parent.getId()] == null) {
+                        changed[parent.getId()] = AFFECTED;
+                        queue.add(parent);
+                    }
+                }
+            }
+            int numAffected = touched.size();
+
+            // 2. group them by their filtered bits, together with the absorbing clades;
+            // without absorbing clade, the first clade of a group represents it
+            CladeMap representatives = new CladeMap();
+            for (int k = 0; k < numAffected; k++) {
+                Clade clade = touched.get(k);
+                if (clade.contained(taxaToRemove)) {
+                    // collapses completely
+                    continue;
+                }
+                BitSet remainingTaxaBits = BitSet.newBitSet(baseCCD.getSizeOfLeavesArray());
+                clade.copyCladeInBitsTo(remainingTaxaBits);
+                remainingTaxaBits.andNot(removedTaxaMask);
+                Clade representative = baseCCD.getClade(remainingTaxaBits);
+                boolean absorbing = (representative != null);
+                if (!absorbing) {
+                    representative = representatives.get(remainingTaxaBits);
+                }
+                FilteredClade filteredClade = (representative != null) ? getFilteredClade(representative) : null;
+                if (filteredClade == null) {
+                    filteredClade = new FilteredClade(remainingTaxaBits);
+                    filteredClades.add(filteredClade);
+                    if (absorbing) {
+                        filteredClade.clades.add(representative);
+                        changed[representative.getId()] = filteredClade;
+                        touched.add(representative);
+                        queue.add(representative);
+                    } else {
+                        representatives.put(remainingTaxaBits, clade);
+                    }
+                }
+                filteredClade.clades.add(clade);
+                changed[clade.getId()] = filteredClade;
+            }
+
+            // 3. ancestors of absorbing clades without removed taxa change as well,
+            // since the absorbing clades get merged with other clades
+            while (!queue.isEmpty()) {
+                Clade clade = queue.poll();
+                for (Clade parent : clade.getParentClades()) {
+                    if (changed[parent.getId()] == null) {
+                        changed[parent.getId()] = new AncestorValues();
+                        touched.add(parent);
+                        numChangedAncestors++;
+                        queue.add(parent);
+                    }
+                }
+            }
+
+            // 4. aggregate occurrences and partitions as a FilteredCCD does
+            for (FilteredClade filteredClade : filteredClades) {
+                filteredClade.setUpPartitions();
+            }
+
+            FilteredClade rootClade = getFilteredClade(baseCCD.getRootClade());
+            this.entropy = rootClade.getEntropy();
+            this.maxLogTreeProbability = rootClade.getMaxSubtreeLogCCP();
+            this.numberOfTrees = rootClade.getNumberOfTopologies();
+        } finally {
+            for (Clade clade : touched) {
+                changed[clade.getId()] = null;
+            }
+            changed = null;
+        }
+    }
+
+    /* Helper method - filtered clade the given clade gets merged into, or null */
+    private FilteredClade getFilteredClade(Clade clade) {
+        Object value = changed[clade.getId()];
+        return (value instanceof FilteredClade) ? (FilteredClade) value : null;
+    }
+
+    /* Helper method - filtered clade or base clade with given (unfiltered) clade as origin */
+    private Object getFilteredChild(Clade clade) {
+        FilteredClade filteredClade = getFilteredClade(clade);
+        return (filteredClade != null) ? filteredClade : clade;
+    }
+
+    /** @return the entropy of the filtered CCD, as {@link AbstractCCD#getEntropyLewis()} */
+    public double getEntropy() {
+        return entropy;
+    }
+
+    /** @return the log probability of the most likely tree of the filtered CCD */
+    public double getMaxLogTreeProbability() {
+        return maxLogTreeProbability;
+    }
+
+    /** @return the probability of the most likely tree of the filtered CCD */
+    public double getMaxTreeProbability() {
+        return Math.exp(getMaxLogTreeProbability());
+    }
+
+    /** @return the number of tree topologies of the filtered CCD */
+    public BigInteger getNumberOfTrees() {
+        return numberOfTrees;
+    }
+
+    /** @return number of clades that change by removing the taxa */
+    public int getNumberOfChangedClades() {
+        return filteredClades.size() + numChangedAncestors;
+    }
+
+    /** @return the mask of removed taxa */
+    public BitSet getRemovedTaxaMask() {
+        return removedTaxaMask;
+    }
+
+    /* -- VALUES OF CHILDREN, WHICH ARE EITHER FILTERED OR BASE CLADES -- */
+
+    private static BitSet getCladeInBits(Object clade) {
+        return (clade instanceof FilteredClade) ? ((FilteredClade) clade).cladeInBits : ((Clade) clade).getCladeInBits();
+    }
+
+    private double getEntropy(Object child) {
+        if (child instanceof FilteredClade) {
+            return ((FilteredClade) child).getEntropy();
+        }
+        Clade clade = (Clade) child;
+        Object changedValues = changed[clade.getId()];
+        if (!(changedValues instanceof AncestorValues)) {
+            return clade.getEntropy();
+        }
+        AncestorValues values = (AncestorValues) changedValues;
+        if (values.entropy < 0) {
+            double runningEntropy = 0;
+            for (CladePartition partition : clade.getPartitions()) {
+                Clade[] childClades = partition.getChildClades();
+                runningEntropy -= partition.getCCP() * (partition.getLogCCP()
+                        - getEntropy(getFilteredChild(childClades[0]))
+                        - getEntropy(getFilteredChild(childClades[1])));
+            }
+            values.entropy = runningEntropy;
+        }
+        return values.entropy;
+    }
+
+    private double getMaxSubtreeLogCCP(Object child) {
+        if (child instanceof FilteredClade) {
+            return ((FilteredClade) child).getMaxSubtreeLogCCP();
+        }
+        Clade clade = (Clade) child;
+        Object changedValues = changed[clade.getId()];
+        if (!(changedValues instanceof AncestorValues)) {
+            return clade.getMaxSubtreeLogCCP();
+        }
+        AncestorValues values = (AncestorValues) changedValues;
+        if (values.maxSubtreeLogCCP > 0) {
+            for (CladePartition partition : clade.getPartitions()) {
+                Clade[] childClades = partition.getChildClades();
+                double partitionMaxLogCCP = partition.getLogCCP()
+                        + getMaxSubtreeLogCCP(getFilteredChild(childClades[0]))
+                        + getMaxSubtreeLogCCP(getFilteredChild(childClades[1]));
+                if ((partitionMaxLogCCP > values.maxSubtreeLogCCP) || (values.maxSubtreeLogCCP > 0)) {
+                    values.maxSubtreeLogCCP = partitionMaxLogCCP;
+                }
+            }
+        }
+        return values.maxSubtreeLogCCP;
+    }
+
+    private BigInteger getNumberOfTopologies(Object child) {
+        if (child instanceof FilteredClade) {
+            return ((FilteredClade) child).getNumberOfTopologies();
+        }
+        Clade clade = (Clade) child;
+        Object changedValues = changed[clade.getId()];
+        if (!(changedValues instanceof AncestorValues)) {
+            return clade.getNumberOfTopologies();
+        }
+        AncestorValues values = (AncestorValues) changedValues;
+        if (values.numTopologies == null) {
+            BigInteger numTopologies = BigInteger.ZERO;
+            for (CladePartition partition : clade.getPartitions()) {
+                Clade[] childClades = partition.getChildClades();
+                numTopologies = numTopologies.add(getNumberOfTopologies(getFilteredChild(childClades[0]))
+                        .multiply(getNumberOfTopologies(getFilteredChild(childClades[1]))));
+            }
+            values.numTopologies = numTopologies;
+        }
+        return values.numTopologies;
+    }
+
+    /* Recomputed values of a base clade that changes as ancestor of an absorbing clade */
+    private static class AncestorValues {
+        double entropy = -1;
+        double maxSubtreeLogCCP = 1;
+        BigInteger numTopologies = null;
+    }
+
+    /*
+     * Clade of the filtered CCD that stems from clades with removed taxa;
+     * merges all base clades with the same remaining taxa.
+     */
+    private class FilteredClade {
+        final BitSet cladeInBits;
+        final int size;
+
+        /** Base clades that get merged into this clade. */
+        final List<Clade> clades = new ArrayList<>(2);
+
+        int numOccurrences = 0;
+
+        /** Partitions with their occurrences; first child is the one with the lowest taxon. */
+        final List<FilteredPartition> partitions = new ArrayList<>(4);
+
+        double entropy = -1;
+        double maxSubtreeLogCCP = 1;
+        BigInteger numTopologies = null;
+
+        FilteredClade(BitSet cladeInBits) {
+            this.cladeInBits = cladeInBits;
+            this.size = cladeInBits.cardinality();
+        }
+
+        void setUpPartitions() {
+            int firstTaxon = cladeInBits.nextSetBit(0);
+            for (Clade clade : clades) {
+                numOccurrences += clade.getNumberOfOccurrences();
+                for (CladePartition partition : clade.getPartitions()) {
+                    Clade[] childClades = partition.getChildClades();
+                    if (childClades[0].contained(removedTaxaMask) || childClades[1].contained(removedTaxaMask)) {
+                        // the other child is absorbed into this clade,
+                        // whose occurrences are then already counted
+                        numOccurrences -= partition.getNumberOfOccurrences();
+                        continue;
+                    }
+                    Object firstChild = getFilteredChild(childClades[0]);
+                    Object secondChild = getFilteredChild(childClades[1]);
+                    // children partition this clade, so only one of them has its lowest taxon
+                    if (getCladeInBits(firstChild).nextSetBit(0) != firstTaxon) {
+                        Object tmp = firstChild;
+                        firstChild = secondChild;
+                        secondChild = tmp;
+                    }
+                    FilteredPartition filteredPartition = getPartition(firstChild);
+                    if (filteredPartition == null) {
+                        filteredPartition = new FilteredPartition(firstChild, secondChild);
+                        partitions.add(filteredPartition);
+                    }
+                    filteredPartition.numOccurrences += partition.getNumberOfOccurrences();
+                }
+            }
+        }
+
+        /* Helper method - partition with the given child with the lowest taxon or null */
+        FilteredPartition getPartition(Object firstChild) {
+            for (FilteredPartition partition : partitions) {
+                if (partition.firstChild == firstChild) {
+                    return partition;
+                }
+            }
+            return null;
+        }
+
+        double getEntropy() {
+            if (entropy < 0) {
+                if (size == 1) {
+                    entropy = 0;
+                } else {
+                    double runningEntropy = 0;
+                    double logOccurrences = Math.log(numOccurrences);
+                    for (FilteredPartition partition : partitions) {
+                        double probability = partition.numOccurrences / ((double) numOccurrences);
+                        double logprobability = Math.log(partition.numOccurrences) - logOccurrences;
+                        runningEntropy -= probability * (logprobability
+                                - FilterScore.this.getEntropy(partition.firstChild)
+                                - FilterScore.this.getEntropy(partition.secondChild));
+                    }
+                    entropy = runningEntropy;
+                }
+            }
+            return entropy;
+        }
+
+        double getMaxSubtreeLogCCP() {
+            if (maxSubtreeLogCCP > 0) {
+                if (size == 1) {
+                    maxSubtreeLogCCP = 0;
+                } else {
+                    double logOccurrences = Math.log(numOccurrences);
+                    for (FilteredPartition partition : partitions) {
+                        double partitionMaxLogCCP = Math.log(partition.numOccurrences) - logOccurrences
+                                + FilterScore.this.getMaxSubtreeLogCCP(partition.firstChild)
+                                + FilterScore.this.getMaxSubtreeLogCCP(partition.secondChild);
+                        if ((partitionMaxLogCCP > maxSubtreeLogCCP) || (maxSubtreeLogCCP > 0)) {
+                            maxSubtreeLogCCP = partitionMaxLogCCP;
+                        }
+                    }
+                }
+            }
+            return maxSubtreeLogCCP;
+        }
+
+        BigInteger getNumberOfTopologies() {
+            if (numTopologies == null) {
+                if (size <= 2) {
+                    numTopologies = BigInteger.ONE;
+                } else {
+                    numTopologies = BigInteger.ZERO;
+                    for (FilteredPartition partition : partitions) {
+                        numTopologies = numTopologies.add(FilterScore.this.getNumberOfTopologies(partition.firstChild)
+                                .multiply(FilterScore.this.getNumberOfTopologies(partition.secondChild)));
+                    }
+                }
+            }
+            return numTopologies;
+        }
+    }
+
+    /* Partition of a filtered clade; children are filtered or base clades */
+    private static class FilteredPartition {
+        final Object firstChild;
+        final Object secondChild;
+        int numOccurrences = 0;
+
+        FilteredPartition(Object firstChild, Object secondChild) {
+            this.firstChild = firstChild;
+            this.secondChild = secondChild;
+        }
+    }
+}
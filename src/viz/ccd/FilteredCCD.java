@@ -24,6 +24,12 @@ public class FilteredCCD extends AbstractCCD {
     /** The mask representing the taxon removed from the base CCD. */
     protected final BitSet removedTaxaMask;
 
+    /** Version of the base CCD this one was constructed from. */
+    private final long baseVersion;
+
+    /** Whether clades with unchanged subtree share values with their base clades. */
+    private volatile boolean shareStatistics;
+
     /**
      * Creates a CCD based on the given CCD by taking out the taxa specified by the given mask.
      *
@@ -54,9 +60,15 @@ public class FilteredCCD extends AbstractCCD {
         this.removedTaxaMask = taxaToRemove;
         this.baseTrees = baseCCD.getBaseTrees();
         this.numBaseTrees = baseCCD.getNumberOfBaseTrees();
+        this.baseVersion = baseCCD.getVersion();
+        // CCPs of a CCD2 depend on the sibling clade, which filtering might change
+        this.shareStatistics = !(rootCCD instanceof CCD2);
 
         // construction
         filter();
+        if (shareStatistics) {
+            markUnchangedClades();
+        }
         initialize();
     }
 
@@ -69,6 +81,9 @@ public class FilteredCCD extends AbstractCCD {
     /** Helper bookkeeping set for construction */
     protected HashSet<Clade> processedClades = new HashSet<>();
 
+    /** Helper bookkeeping set for construction; filtered clades that absorbed other clades */
+    protected HashSet<Clade> mergedClades = new HashSet<>();
+
     /* Recursive helper method */
     protected Clade filterRecursively(Clade clade) {
         // 0. assume that clade is not contained in filter/does not collapse
@@ -82,7 +97,7 @@ public class FilteredCCD extends AbstractCCD {
         // 1. test if clade has already been processed
         // this happens because we traverse the whole CCD graph
         // so for any clade with multiple parents, this method will be called multiple times on it
-        BitSet remainingTaxaBits = filterBitSet(clade.getCladeInBits());
+        BitSet remainingTaxaBits = filterBitSet(clade);
         Clade processedClade = checkFilteringNecessity(clade, remainingTaxaBits);
         if (processedClade != null) {
             return processedClade;
@@ -130,6 +145,7 @@ public class FilteredCCD extends AbstractCCD {
         if (cladeMapping.containsKey(remainingTaxaBits)) {
             // 3a. filtered clade already exists
             filteredClade = cladeMapping.get(remainingTaxaBits);
+            mergedClades.add(filteredClade);
 
             // have to add the registered occurrences and heights
             int occurrences = clade.getNumberOfOccurrences();
@@ -177,9 +193,9 @@ public class FilteredCCD extends AbstractCCD {
 
         for (CladePartition partition : clade.getPartitions()) {
             Clade firstClade = partition.getChildClades()[0];
-            BitSet firstBitsFiltered = filterBitSet(firstClade.getCladeInBits());
+            BitSet firstBitsFiltered = filterBitSet(firstClade);
             Clade secondClade = partition.getChildClades()[1];
-            BitSet secondBitsFiltered = filterBitSet(secondClade.getCladeInBits());
+            BitSet secondBitsFiltered = filterBitSet(secondClade);
 
             if (filteredClade.equals(firstBitsFiltered)
                     || filteredClade.equals(secondBitsFiltered)) {
@@ -207,6 +223,64 @@ public class FilteredCCD extends AbstractCCD {
         }
     }
 
+    /*
+     * Helper method - marks the filtered clades whose subtree is the same as
+     * the one of their base clade: the base clade contains no removed taxa and
+     * neither it nor any clade below got merged with another clade.
+     */
+    private void markUnchangedClades() {
+        List<Clade> clades = new ArrayList<Clade>(cladeMapping.values());
+        // children are smaller than their parents, so they are checked first
+        clades.sort((a, b) -> Integer.compare(a.size(), b.size()));
+        for (Clade clade : clades) {
+            if ((clade.getCCD() != this) || (clade.getBaseClade() == null)
+                    || mergedClades.contains(clade) || clade.getBaseClade().intersects(removedTaxaMask)) {
+                continue;
+            }
+            boolean unchanged = true;
+            for (Clade childClade : clade.getChildClades()) {
+                // values of leaves do not change even if they absorbed other clades
+                if (!childClade.isUnchangedFromBase() && !childClade.isLeaf()) {
+                    unchanged = false;
+                    break;
+                }
+            }
+            clade.setUnchangedFromBase(unchanged);
+        }
+        mergedClades = null;
+    }
+
+    @Override
+    protected Clade getStatisticsSource(Clade clade) {
+        if (!shareStatistics || !clade.isUnchangedFromBase()) {
+            return null;
+        }
+        // values of base clades are only the same as long as the base CCD did not change
+        if ((baseCCD.getVersion() != baseVersion) || baseCCD.probabilitiesDirty) {
+            releaseSharedStatistics();
+            return null;
+        }
+        return clade.getBaseClade();
+    }
+
+    /**
+     * Stops sharing values with the clades of the base CCD; values that were
+     * not taken from the base clades yet are computed by the clades of this CCD
+     * from then on. This happens as soon as the base CCD changes, and can be
+     * called when this CCD should no longer rely on the statistics of its base,
+     * e.g. before the base CCD is modified or dropped.
+     */
+    public void releaseSharedStatistics() {
+        if (shareStatistics) {
+            shareStatistics = false;
+            for (Clade clade : cladeMapping.values()) {
+                if (clade.getCCD() == this) {
+                    clade.setUnchangedFromBase(false);
+                }
+            }
+        }
+    }
+
     /** @return the filter with which this CCD has been constructed */
     public BitSet getRemovedTaxaMask() {
         return removedTaxaMask;
@@ -225,6 +299,14 @@ public class FilteredCCD extends AbstractCCD {
         return filteredBitSet;
     }
 
+    /* Helper method - as filterBitSet(clade.getCladeInBits()), but without copying the bits twice */
+    protected BitSet filterBitSet(Clade clade) {
+        BitSet filteredBitSet = BitSet.newBitSet(removedTaxaMask.size());
+        clade.copyCladeInBitsTo(filteredBitSet);
+        filteredBitSet.andNot(removedTaxaMask);
+        return filteredBitSet;
+    }
+
     /**
      * @return get the base conditional clade probability of this filtered one
      */
@@ -253,6 +335,12 @@ public class FilteredCCD extends AbstractCCD {
         // nothing to do for filtered CCDs
     }
 
+    @Override
+    public boolean supportsFilterScores() {
+        // partition probabilities are recomputed from clade credibilities for CCD0s
+        return rootCCD.supportsFilterScores();
+    }
+
     @Override
     protected double getNumberOfParameters() {
         throw new UnsupportedOperationException();
@@ -10,6 +10,11 @@ import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import viz.Node;
 
@@ -143,6 +148,23 @@ public class RogueDetection {
         }
     }
 
+    /**
+     * Allows to follow the progress of a continuous rogue detection with
+     * {@link #detectRoguesWhileImproving} and to cancel it.
+     */
+    public interface ProgressMonitor {
+        /** @return whether the rogue detection should stop as soon as possible */
+        boolean isCancelled();
+
+        /**
+         * Reports the progress of the rogue detection; called after each step.
+         *
+         * @param step     number of steps done
+         * @param numSteps maximum number of steps
+         */
+        void progress(int step, int numSteps);
+    }
+
     /**
      * Extract the rogue clades used to construct the list of {@link FilteredCCD} by {@link #detectRoguesWhileImproving}.
      *
@@ -226,6 +248,47 @@ public class RogueDetection {
             AbstractCCD ccd, int maxCladeSize,
             RogueDetectionStrategy rogueDetectionStrategy, TerminationStrategy terminationStrategy,
             double minCladeProbability, boolean verbose) {
+        return detectRoguesWhileImproving(ccd, maxCladeSize, rogueDetectionStrategy, terminationStrategy,
+                minCladeProbability, verbose, null);
+    }
+
+    /**
+     * Greedy dynamic program that continuously detects the roguest clades
+     * with given maximum size under the given strategies in the given CCD.
+     * Returns a list of {@link FilteredCCD} where the found rogue clades are successively removed.
+     * Candidate rogue clades are evaluated concurrently on a pool with a thread per processor.
+     * When cancelled via the given monitor, the rogue clades found so far are returned.
+     *
+     * @param ccd                    in which we try to find rogue clades
+     * @param maxCladeSize           maximum size of a rogue clade we try to detect
+     * @param rogueDetectionStrategy strategy to measure rogueness
+     * @param terminationStrategy    strategy to decide when to stop
+     * @param minCladeProbability    minimum probability for a clade to be considered
+     * @param verbose                whether to print information while running
+     * @param monitor                to report progress to and check for cancellation; allowed {@code null}
+     * @return list of {@link FilteredCCD} where the found rogue clades are successively removed
+     */
+    public static ArrayList<AbstractCCD> detectRoguesWhileImproving(
+            AbstractCCD ccd, int maxCladeSize,
+            RogueDetectionStrategy rogueDetectionStrategy, TerminationStrategy terminationStrategy,
+            double minCladeProbability, boolean verbose, ProgressMonitor monitor) {
+        int threadCount = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = (threadCount > 1) ? Executors.newFixedThreadPool(threadCount) : null;
+        try {
+            return detectRoguesWhileImproving(ccd, maxCladeSize, rogueDetectionStrategy, terminationStrategy,
+                    minCladeProbability, verbose, executor, monitor);
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
+            }
+        }
+    }
+
+    /* Helper method doing the work for the above, using the given executor (if not null) */
+    private static ArrayList<AbstractCCD> detectRoguesWhileImproving(
+            AbstractCCD ccd, int maxCladeSize,
+            RogueDetectionStrategy rogueDetectionStrategy, TerminationStrategy terminationStrategy,
+            double minCladeProbability, boolean verbose, ExecutorService executor, ProgressMonitor monitor) {
 
         if (verbose) {
             System.out.println("> skeleton computation with max clade size " + maxCladeSize
@@ -267,6 +330,11 @@ public class RogueDetection {
 
         detection:
         for (int i = 1; i < bestCCDs.length; i++) {
+            if ((monitor != null) && monitor.isCancelled()) {
+                System.out.println("\nEnd of rogue detection - cancelled");
+                break;
+            }
+
             filterSize:
             for (int filterSize = 1; filterSize <= maxCladeSize; filterSize++) {
                 int baseIndex = i - filterSize;
@@ -276,7 +344,14 @@ public class RogueDetection {
                         continue;
                     }
 
-                    FilteredCCD nextFCCPCandidate = detectSingleRogueClade(bestCCDs[baseIndex], filterSize, minCladeProbability, rogueDetectionStrategy);
+                    FilteredCCD nextFCCPCandidate = detectSingleRogueClade(bestCCDs[baseIndex], filterSize,
+                            minCladeProbability, rogueDetectionStrategy, executor, monitor);
+                    if ((monitor != null) && monitor.isCancelled()) {
+                        // step is incomplete, so its result is not used
+                        bestCCDs[i] = null;
+                        System.out.println("\nEnd of rogue detection - cancelled");
+                        break detection;
+                    }
                     if (nextFCCPCandidate != null) {
                         if (bestCCDs[i] == null) {
                             bestCCDs[i] = nextFCCPCandidate;
@@ -311,6 +386,9 @@ public class RogueDetection {
                     }
                 }
             }
+            if (monitor != null) {
+                monitor.progress(i, bestCCDs.length - 1);
+            }
 
             if (verbose) {
                 System.out.print(i + ", ");
@@ -441,6 +519,27 @@ public class RogueDetection {
      */
     public static FilteredCCD detectSingleRogueClade(AbstractCCD ccd, int cladeSize, double minCladeProbability,
                                                      RogueDetectionStrategy rogueDetectionStrategy) {
+        return detectSingleRogueClade(ccd, cladeSize, minCladeProbability, rogueDetectionStrategy, null, null);
+    }
+
+    /**
+     * Detects a single rogue clade of given size for the give strategy in the
+     * given CCD and returns {@link FilteredCCD} without this rogue clade.
+     * If an executor is given, the candidate clades are evaluated concurrently;
+     * the result is the same as when evaluated one after the other.
+     *
+     * @param ccd                    in which we try to find a rogue clade
+     * @param cladeSize              size of rogue clade we try to detect
+     * @param minCladeProbability    minimum probability for a clade to be considered
+     * @param rogueDetectionStrategy strategy to measure rogueness
+     * @param executor               to evaluate candidates with; allowed {@code null}
+     * @param monitor                to check for cancellation; allowed {@code null}
+     * @return a {@link FilteredCCD} with the roguest clade removed;
+     * {@code null} if there is no improvement or when cancelled
+     */
+    public static FilteredCCD detectSingleRogueClade(AbstractCCD ccd, int cladeSize, double minCladeProbability,
+                                                     RogueDetectionStrategy rogueDetectionStrategy,
+                                                     ExecutorService executor, ProgressMonitor monitor) {
 
         ArrayList<BitSet> candidateFilters = new ArrayList<>();
         for (Clade clade : ccd.getClades()) {
@@ -452,75 +551,127 @@ public class RogueDetection {
             // and if a single parent clade doesn't have 100% support
             if ((clade.size() == cladeSize) && ((clade.getNumberOfParentClades() != 1)
                     || (clade.getParentClades().get(0).getCladeCredibility() != 1))) {
-                BitSet filter = (BitSet) clade.getCladeInBits().clone();
+                BitSet filter = BitSet.newBitSet(ccd.getSizeOfLeavesArray());
+                clade.copyCladeInBitsTo(filter);
                 candidateFilters.add(filter);
             }
         }
 
         // System.out.println("Check " + candidateFilters.size() + " clades of size " + cladeSize + " ... ");
 
-        FilteredCCD roguestCCD = null;
         double bestProbability = ccd.getMaxTreeProbability();
-        double bestEntropy = ccd.getEntropy();
+        // same Lewis recursion as the candidates are scored with, see scoreCandidate
+        double bestEntropy = ccd.getEntropyLewis();
         BigInteger bestNumTopologies = (rogueDetectionStrategy == RogueDetectionStrategy.NumTopologies)
                 ? ccd.getNumberOfTrees()
                 : null;
 
-        // to detect ties
-        boolean tie = false;
-
-        for (BitSet filter : candidateFilters) {
-            FilteredCCD fccd = new AttachingFilteredCCD(ccd, filter);
-            boolean improvement = false;
+        // score all candidates; the filtered CCDs only read the given CCD,
+        // so they can be constructed and evaluated concurrently
+        final int numCandidates = candidateFilters.size();
+        final double[] values = new double[numCandidates];
+        final BigInteger[] numTopologies = new BigInteger[numCandidates];
+        if ((executor == null) || (numCandidates < 2)) {
+            for (int i = 0; i < numCandidates; i++) {
+                if ((monitor != null) && monitor.isCancelled()) {
+                    return null;
+                }
+                scoreCandidate(ccd, candidateFilters.get(i), rogueDetectionStrategy, i, values, numTopologies);
+            }
+        } else {
+            List<Callable<Void>> tasks = new ArrayList<>(numCandidates);
+            for (int i = 0; i < numCandidates; i++) {
+                final int index = i;
+                tasks.add(() -> {
+                    if ((monitor == null) || !monitor.isCancelled()) {
+                        scoreCandidate(ccd, candidateFilters.get(index), rogueDetectionStrategy, index,
+                                values, numTopologies);
+                    }
+                    return null;
+                });
+            }
+            try {
+                for (Future<Void> future : executor.invokeAll(tasks)) {
+                    future.get();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                throw new RuntimeException("Rogue detection failed: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+        if ((monitor != null) && monitor.isCancelled()) {
+            return null;
+        }
 
+        // pick candidate in the same order as the candidates were found,
+        // so ties are broken in favour of the first found candidate
+        int roguest = -1;
+        for (int i = 0; i < numCandidates; i++) {
             switch (rogueDetectionStrategy) {
                 case Entropy:
-                    double currentEntropy = fccd.getEntropy();
-
-                    if (currentEntropy < bestEntropy) {
-                        bestEntropy = currentEntropy;
-                        improvement = true;
-                    } else if ((currentEntropy == bestEntropy) && (roguestCCD != null)) {
-                        tie = true;
+                    if (values[i] < bestEntropy) {
+                        bestEntropy = values[i];
+                        roguest = i;
                     }
-
                     break;
                 case MaxProbability:
-                    double currentProbability = fccd.getMaxTreeProbability();
-
-                    if (currentProbability > bestProbability) {
-                        bestProbability = currentProbability;
-                        improvement = true;
-                    } else if ((currentProbability == bestProbability) && (roguestCCD != null)) {
-                        tie = true;
+                    if (values[i] > bestProbability) {
+                        bestProbability = values[i];
+                        roguest = i;
                     }
-
                     break;
                 case NumTopologies:
-                    BigInteger currentNumTopologies = fccd.getNumberOfTrees();
-
-                    if (bestNumTopologies.compareTo(fccd.getNumberOfTrees()) > 0) {
-                        bestNumTopologies = currentNumTopologies;
-                        improvement = true;
-                    } else if ((bestNumTopologies.compareTo(fccd.getNumberOfTrees()) == 0)
-                            && (roguestCCD != null)) {
-                        tie = true;
+                    if (bestNumTopologies.compareTo(numTopologies[i]) > 0) {
+                        bestNumTopologies = numTopologies[i];
+                        roguest = i;
                     }
-
                     break;
             }
+        }
 
-            if (improvement) {
-                roguestCCD = fccd;
-                tie = false;
+        return (roguest >= 0) ? new FilteredCCD(ccd, candidateFilters.get(roguest)) : null;
+    }
+
+    /*
+     * Helper method - score the candidate filter with the given index under the given strategy;
+     * if possible without constructing the filtered CCD. Both ways score the filtered CCD that
+     * is returned for the winning candidate, so CCD0 and CCD1 are scored alike.
+     * Only CCDs with count based conditional clade probabilities (CCD1) support filter scores;
+     * for a CCD0 the partition probabilities of the filtered CCD depend on the clade credibilities
+     * of the whole filtered graph, so a full FilteredCCD is still built for every candidate.
+     */
+    private static void scoreCandidate(AbstractCCD ccd, BitSet filter, RogueDetectionStrategy rogueDetectionStrategy,
+                                       int index, double[] values, BigInteger[] numTopologies) {
+        if (ccd.supportsFilterScores()) {
+            FilterScore score = ccd.getFilterScore(filter);
+            switch (rogueDetectionStrategy) {
+                case Entropy:
+                    values[index] = score.getEntropy();
+                    break;
+                case MaxProbability:
+                    values[index] = score.getMaxTreeProbability();
+                    break;
+                case NumTopologies:
+                    numTopologies[index] = score.getNumberOfTrees();
+                    break;
             }
+            return;
         }
 
-        if (roguestCCD != null) {
-            roguestCCD = new FilteredCCD(ccd, roguestCCD.getRemovedTaxaMask());
+        FilteredCCD fccd = new FilteredCCD(ccd, filter);
+        switch (rogueDetectionStrategy) {
+            case Entropy:
+                values[index] = fccd.getEntropyLewis();
+                break;
+            case MaxProbability:
+                values[index] = fccd.getMaxTreeProbability();
+                break;
+            case NumTopologies:
+                numTopologies[index] = fccd.getNumberOfTrees();
+                break;
         }
-
-        return roguestCCD;
     }
 
     /**
@@ -9,7 +9,10 @@ import viz.TreeData;
 public class Tree {
 	TreeData td;
 	Node root;
-	
+
+	/** index of the nodes by node number, built on first use **/
+	private NodeIndex index;
+
 	public Tree(Node root) {
 		this(root, null);
 	}
@@ -18,49 +21,111 @@ public class Tree {
 		this.root = root;
 		this.td = td;
 	}
-	
-	
+
+
 	public int getLeafNodeCount() {
 		return td.m_dt.m_settings.m_nNrOfLabels;
 	}
-	
+
+	/** number of nodes in the tree, which is 2n-1 for binary trees with all n taxa **/
 	public int getNodeCount() {
-		int n = td.m_dt.m_settings.m_nNrOfLabels;
-		return n * 2 -1;
+		return getIndex().nodeCount;
 	}
-	
+
 	public Node getRoot() {
 		return root;
 	}
-	
-	
+
+
 	public String getID(int nr) {
 		return td.m_dt.m_settings.m_sLabels.get(nr);
 	}
-	
+
+	/** node with number nr, or null if the tree has no such node **/
 	public Node getNode(int nr) {
-		return getNode(root, nr);
+		Node [] nodes = getIndex().nodes;
+		return nr < nodes.length ? nodes[nr] : null;
+	}
+
+	/** bound on node numbers, so the length of an array indexed by them **/
+	int getNodeNrBound() {
+		return getIndex().nodes.length;
+	}
+
+	/** node numbers in post-order, so children come before their parent **/
+	int [] getPostOrder() {
+		return getIndex().postOrder;
+	}
+
+	/** node number of parent of node nr, -1 for the root **/
+	int getParentNr(int nr) {
+		return getIndex().parent[nr];
+	}
+
+	/**
+	 * The index is built on first use. Node numbers are those of leafs, and
+	 * the numbers Node.labelInternalNodes assigns to internal nodes, so they
+	 * do not depend on internal node labels having been set. Rotating children
+	 * does not invalidate the index, but other changes of the topology do.
+	 */
+	private NodeIndex getIndex() {
+		NodeIndex index = this.index;
+		if (index == null) {
+			index = new NodeIndex(this);
+			this.index = index;
+		}
+		return index;
 	}
 
-	private Node getNode(Node node, int nr) {
-		if (node.isLeaf()) {
-			return node.getNr() == nr ? node: null;
-		} else {
-			Node result = getNode(node.m_left, nr);
-			if (result != null) {
-				return result;
+	/** immutable, so it can be shared between threads without locking **/
+	private static class NodeIndex {
+		final Node [] nodes;
+		final int [] parent;
+		final int [] postOrder;
+		final int nodeCount;
+
+		NodeIndex(Tree tree) {
+			// leafs may be numbered beyond the nr of labels if no TreeData is available
+			int nLeafs = tree.td != null ? tree.getLeafNodeCount() : 0;
+			int nInternal = 0;
+			List<Node> nodes = tree.getNodesAsArray();
+			for (Node node : nodes) {
+				if (node.isLeaf()) {
+					nLeafs = Math.max(nLeafs, node.getNr() + 1);
+				} else {
+					nInternal++;
+				}
 			}
-			if (node.m_right != null) {
-				result = getNode(node.m_right, nr);
-				if (result != null) {
-					return result;
+			this.nodes = new Node[nLeafs + nInternal];
+			this.parent = new int[nLeafs + nInternal];
+			this.postOrder = new int[nodes.size()];
+			this.nodeCount = nodes.size();
+			int [] pos = new int[2];
+			pos[1] = nLeafs;
+			parent[number(tree.root, pos)] = -1;
+		}
+
+		/* post-order traversal; pos[0] is the position in the post-order, pos[1] the next internal node nr */
+		private int number(Node node, int [] pos) {
+			int nr;
+			if (node.isLeaf()) {
+				nr = node.getNr();
+			} else {
+				int iLeft = number(node.m_left, pos);
+				int iRight = node.m_right != null ? number(node.m_right, pos) : -1;
+				nr = pos[1]++;
+				parent[iLeft] = nr;
+				if (iRight >= 0) {
+					parent[iRight] = nr;
 				}
 			}
-			return null;
+			nodes[nr] = node;
+			postOrder[pos[0]++] = nr;
+			return nr;
 		}
 	}
 
-	
+
 	public List<Node> getNodesAsArray() {
 		List<Node> nodes = new ArrayList<>();
 		collectNodes(root, nodes);
@@ -77,5 +142,5 @@ public class Tree {
     	}
 
 	}
-	
+
 }
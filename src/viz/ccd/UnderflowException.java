@@ -1,7 +0,0 @@
-package viz.ccd;
-
-public class UnderflowException extends ArithmeticException {
-    public UnderflowException(String message) {
-        super(message);
-    }
-}
@@ -11,35 +11,65 @@ public class WrappedBeastTree {
 
     private Tree wrappedTree;
 
+    /** Clade of every vertex, indexed by vertex number (see {@link Tree#getNode(int)}). */
     private BitSet[] cladeOfVertex;
 
+    /** Number of leaves in the clade of every vertex. */
+    private int[] cladeSize;
+
     /** Matrix containing distances (#edges) between pairs of leaves. */
     private double[][] pathDistanceMatrix;
 
     public WrappedBeastTree(Tree wrappedTree) {
         super();
         this.wrappedTree = wrappedTree;
-        cladeOfVertex = new BitSet[wrappedTree.getNodeCount()];
-        this.initCladeBitSet(wrappedTree.getRoot());
+        this.initCladeBitSets();
     }
 
     public Tree getWrappedTree() {
         return wrappedTree;
     }
 
-    private BitSet initCladeBitSet(Node vertex) {
-        BitSet cladeAsBitSet = BitSet.newBitSet(wrappedTree.getLeafNodeCount());
-        if (vertex.isLeaf()) {
-            cladeAsBitSet.set(vertex.getNr());
-        } else {
-            for (Node child : vertex.getChildren()) {
-                BitSet childBitSet = initCladeBitSet(child);
-                cladeAsBitSet.or(childBitSet);
+    /* Sets up clades of all vertices in one pass over the vertices in post-order */
+    private void initCladeBitSets() {
+        int[] postOrder = wrappedTree.getPostOrder();
+        cladeOfVertex = new BitSet[wrappedTree.getNodeNrBound()];
+        cladeSize = new int[cladeOfVertex.length];
+        for (int nr : postOrder) {
+            if (cladeOfVertex[nr] == null) {
+                // leaf, as children come before their parent
+                cladeOfVertex[nr] = BitSet.newBitSet(wrappedTree.getLeafNodeCount());
+                cladeOfVertex[nr].set(nr);
+                cladeSize[nr] = 1;
+            }
+            int parentNr = wrappedTree.getParentNr(nr);
+            if (parentNr >= 0) {
+                if (cladeOfVertex[parentNr] == null) {
+                    cladeOfVertex[parentNr] = BitSet.newBitSet(wrappedTree.getLeafNodeCount());
+                }
+                cladeOfVertex[parentNr].or(cladeOfVertex[nr]);
+                cladeSize[parentNr] += cladeSize[nr];
             }
         }
+    }
 
-        cladeOfVertex[vertex.getNr()] = cladeAsBitSet;
-        return cladeAsBitSet;
+    /**
+     * Returns the number of the vertex that is the least common ancestor of the
+     * given clade, found by walking up from a leaf of the clade; so linear in
+     * the depth of the tree instead of in its size.
+     */
+    private int getCommonAncestorNr(BitSet cladeInBits) {
+        int root = wrappedTree.getPostOrder()[wrappedTree.getPostOrder().length - 1];
+        int nr = cladeInBits.nextSetBit(0);
+        if (nr < 0 || nr >= cladeOfVertex.length || cladeOfVertex[nr] == null) {
+            // no leaf of the clade is in this tree
+            return root;
+        }
+        int size = cladeInBits.cardinality();
+        while (nr != root && (cladeSize[nr] < size || !cladeOfVertex[nr].contains(cladeInBits))) {
+            nr = wrappedTree.getParentNr(nr);
+        }
+        return nr;
     }
 
     /**
@@ -49,43 +79,7 @@ public class WrappedBeastTree {
      * @return the height of the least common ancestor clade of the given clade
      */
     public double getCommonAncestorHeightOfClade(BitSet cladeInBits) {
-        return getCommonAncestorHeightOfClade(cladeInBits, wrappedTree.getRoot());
-    }
-
-    /* Recursive helper method */
-    private double getCommonAncestorHeightOfClade(BitSet cladeInBits, Node vertex) {
-        if (vertex.isLeaf()) {
-            return vertex.getHeight();
-        }
-
-        if (vertex.getChild(0) == null) {
-            System.err.println("- problem -");
-            System.err.println("current vertex: " + vertex);
-            System.err.println("clade in bits: " + cladeInBits);
-            return -1;
-        }
-
-        // if one of the children contains the clade, then recurse;
-        // otherwise the current vertex is the LCA of that clade
-
-        // test first child
-        // System.out.println("\n\ncladeInBits = " + cladeInBits);
-        // System.out.println("left =  " + cladeOfVertex[vertex.getChild(0).getNr()]);
-        // System.out.println("right = " + cladeOfVertex[vertex.getChild(1).getNr()]);
-
-        if (cladeOfVertex[vertex.getChild(0).getNr()].contains(cladeInBits)) {
-            // System.out.println("left");
-            return getCommonAncestorHeightOfClade(cladeInBits, vertex.getChild(0));
-        }
-        // otherwise test second child
-        if (cladeOfVertex[vertex.getChild(1).getNr()].contains(cladeInBits)) {
-            // System.out.println("right");
-            return getCommonAncestorHeightOfClade(cladeInBits, vertex.getChild(1));
-        }
-        // System.out.println("this");
-
-        // otherwise return height of this vertex
-        return vertex.getHeight();
+        return wrappedTree.getNode(getCommonAncestorNr(cladeInBits)).getHeight();
     }
 
     public BitSet getCladeInBits(int vertexIndex) {
@@ -97,17 +91,13 @@ public class WrappedBeastTree {
 //    }
 
     public boolean containsClade(BitSet cladeInBits) {
-        for (BitSet treeCladeInBits : cladeOfVertex) {
-            if ((treeCladeInBits != null) && treeCladeInBits.equals(cladeInBits)) {
-                return true;
-            }
-        }
-        return false;
+        int nr = getCommonAncestorNr(cladeInBits);
+        return cladeSize[nr] == cladeInBits.cardinality() && cladeOfVertex[nr].equals(cladeInBits);
     }
 
     public ArrayList<BitSet> getNontrivialClades() {
         ArrayList<BitSet> clades = new ArrayList<>();
-        for (int i = wrappedTree.getLeafNodeCount(); i < wrappedTree.getNodeCount(); i++) {
+        for (int i = wrappedTree.getLeafNodeCount(); i < cladeOfVertex.length; i++) {
             clades.add(cladeOfVertex[i]);
         }
         return clades;
@@ -115,7 +105,7 @@ public class WrappedBeastTree {
 
     public ArrayList<BitSet> getClades() {
         ArrayList<BitSet> clades = new ArrayList<>();
-        for (int i = 0; i < wrappedTree.getNodeCount(); i++) {
+        for (int i = 0; i < cladeOfVertex.length; i++) {
             clades.add(cladeOfVertex[i]);
         }
         return clades;
@@ -33,6 +33,13 @@ public class BranchDrawer {
 	
 	final static int MAX_LINE_WIDTH = 400;
 
+	/* Distance, as a fraction of the larger of the width and height of a branch,
+	 * that the drawing of the branch can stick out of the bounding box of its end
+	 * points (not counting line width). Used to skip branches outside the image.
+	 */
+	public float getOverhang() {
+		return 0;
+	}
 
 	/* Draw a branch from point (x1,y1) to (x2,y2)
 	 * in theory taking top width (x1,y1) and bottom width at (x2, y2) in account.
@@ -24,6 +24,12 @@ package viz.graphics;
 
 public class KoruBranchDrawer extends BranchDrawer {
 
+	/* branches that are (almost) vertical end up anywhere, so never skip branches */
+	@Override
+	public float getOverhang() {
+		return Float.POSITIVE_INFINITY;
+	}
+
 
 	@Override
 	void lineAA(BufferedImageF image, int x1, int y1, int x2, int y2, float fAlpha, int nRed, int nGreen, int nBlue, float fLineWidth) {
@@ -56,6 +56,120 @@ public class TreeDrawer {
 	/** scale factor of width for meta data **/
 	public float LINE_WIDTH_SCALE = 20;
 
+	/**
+	 * Whether the branches of the node whose quartet of points starts at i can touch
+	 * the image, where a point j is drawn at (nA[j] * fScaleA, nB[j] * fScaleB).
+	 * When zoomed in, most branches end up outside the image, and skipping them here
+	 * saves rasterising them pixel by pixel only to have every pixel dropped by
+	 * BufferedImageF.plot, so drawing time goes with what is visible.
+	 **/
+	boolean isVisible(float[] nA, float[] nB, int i, float fScaleA, float fScaleB, float fLineWidth) {
+		float fOverhang = m_branchDrawer.getOverhang();
+		if (m_image == null || i + 3 >= nA.length || Float.isInfinite(fOverhang)) {
+			return true;
+		}
+		float fMinA = nA[i], fMaxA = nA[i];
+		float fMinB = nB[i], fMaxB = nB[i];
+		for (int j = i + 1; j < i + 4; j++) {
+			fMinA = Math.min(fMinA, nA[j]);
+			fMaxA = Math.max(fMaxA, nA[j]);
+			fMinB = Math.min(fMinB, nB[j]);
+			fMaxB = Math.max(fMaxB, nB[j]);
+		}
+		fMinA *= fScaleA;
+		fMaxA *= fScaleA;
+		fMinB *= fScaleB;
+		fMaxB *= fScaleB;
+		// branch drawers may stick out of the bounding box, lines are fLineWidth wide, and allow for jitter and rounding
+		float fMargin = fOverhang * Math.max(Math.abs(fMaxA - fMinA), Math.abs(fMaxB - fMinB)) 
+				+ fLineWidth + Math.max(m_nJitter, 0) + 2;
+		return isVisible(fMinA, fMaxA, fMinB, fMaxB, fMargin);
+	}
+
+	/**
+	 * Whether any branch of a tree can touch the image, given the bounds of its lines
+	 * as calculated by calcBounds, and with bSwap true if the y-coordinates of the lines
+	 * are drawn horizontally. Testing this before isVisible for every node means that
+	 * trees entirely outside the image cost nothing, so zooming in on part of a large
+	 * tree set does not take time proportional to the whole set.
+	 **/
+	boolean isVisible(float[] fBounds, boolean bSwap, float fScaleA, float fScaleB, float fLineWidth) {
+		float fOverhang = m_branchDrawer.getOverhang();
+		if (m_image == null || fBounds == null || Float.isInfinite(fOverhang)) {
+			return true;
+		}
+		int iA = (bSwap ? 2 : 0), iB = (bSwap ? 0 : 2);
+		// the largest extent of any quartet gives a margin at least as large as that of every node
+		float fMargin = fOverhang * Math.max(fBounds[4 + iA / 2] * Math.abs(fScaleA), fBounds[4 + iB / 2] * Math.abs(fScaleB))
+				+ fLineWidth + Math.max(m_nJitter, 0) + 2;
+		return isVisible(fBounds[iA] * fScaleA, fBounds[iA + 1] * fScaleA, fBounds[iB] * fScaleB, fBounds[iB + 1] * fScaleB, fMargin);
+	}
+
+	/** whether the box spanned by A and B in image coordinates, widened by fMargin, can touch the image **/
+	boolean isVisible(float fMinA, float fMaxA, float fMinB, float fMaxB, float fMargin) {
+		float fMinX = Math.min(fMinA, fMaxA) - fMargin, fMaxX = Math.max(fMinA, fMaxA) + fMargin;
+		float fMinY = Math.min(fMinB, fMaxB) - fMargin, fMaxY = Math.max(fMinB, fMaxB) + fMargin;
+		if ((fMinX <= -1 && fMaxX >= -1) || (fMinY <= -1 && fMaxY >= -1)) {
+			// BranchDrawer.draw moves branches with an end point at -1 onto the image
+			fMaxX = Math.max(fMaxX, 0);
+			fMaxY = Math.max(fMaxY, 0);
+		}
+		return fMaxX >= 0 && fMinX < m_image.m_nWidth && fMaxY >= 0 && fMinY < m_image.m_nHeight;
+	}
+
+	/**
+	 * bounds of the lines of every tree, as {min x, max x, min y, max y, largest x-extent
+	 * of a quartet, largest y-extent of a quartet}, or null for a tree without lines
+	 **/
+	public static float[][] calcBounds(float[][] fLinesX, float[][] fLinesY) {
+		if (fLinesX == null || fLinesY == null) {
+			return null;
+		}
+		float[][] fBounds = new float[fLinesX.length][];
+		for (int i = 0; i < fLinesX.length; i++) {
+			float[] nX = fLinesX[i];
+			float[] nY = fLinesY[i];
+			if (nX == null || nY == null || nX.length == 0 || nX.length % 4 != 0) {
+				continue;
+			}
+			float[] fBound = {nX[0], nX[0], nY[0], nY[0], 0, 0};
+			for (int j = 0; j < nX.length; j += 4) {
+				float fMinX = nX[j], fMaxX = nX[j];
+				float fMinY = nY[j], fMaxY = nY[j];
+				for (int k = j + 1; k < j + 4; k++) {
+					fMinX = Math.min(fMinX, nX[k]);
+					fMaxX = Math.max(fMaxX, nX[k]);
+					fMinY = Math.min(fMinY, nY[k]);
+					fMaxY = Math.max(fMaxY, nY[k]);
+				}
+				fBound[0] = Math.min(fBound[0], fMinX);
+				fBound[1] = Math.max(fBound[1], fMaxX);
+				fBound[2] = Math.min(fBound[2], fMinY);
+				fBound[3] = Math.max(fBound[3], fMaxY);
+				fBound[4] = Math.max(fBound[4], fMaxX - fMinX);
+				fBound[5] = Math.max(fBound[5], fMaxY - fMinY);
+			}
+			fBounds[i] = fBound;
+		}
+		return fBounds;
+	}
+
+	/** width of lines drawn with the stroke of g **/
+	float getLineWidth(Graphics2D g) {
+		if (g.getStroke() instanceof BasicStroke) {
+			return Math.min(((BasicStroke) g.getStroke()).getLineWidth(), BranchDrawer.MAX_LINE_WIDTH);
+		}
+		return BranchDrawer.MAX_LINE_WIDTH;
+	}
+
+	/** largest width of the lines of the quartet starting at i **/
+	float getLineWidth(float[] fLineWidth, float [] fTopLineWidth, int i) {
+		float fWidth = m_nTreeWidth;
+		for (int j = i; j < i + 4 && j < fLineWidth.length; j++) {
+			fWidth = Math.max(fWidth, Math.max(fLineWidth[j], fTopLineWidth[j]) * LINE_WIDTH_SCALE);
+		}
+		return Math.min(fWidth, BranchDrawer.MAX_LINE_WIDTH);
+	}
 
 
 	/**
@@ -66,8 +180,12 @@ public class TreeDrawer {
 		if (nX == null || nY == null) {
 			return;
 		}
+		float fLineWidth = getLineWidth(g);
 		if (m_nJitter <= 0) {
 			for (int i = 0; i < nX.length - 4; i+=4) {
+				if (m_bRootAtTop ? !isVisible(nX, nY, i, fScaleX, fScaleY, fLineWidth) : !isVisible(nY, nX, i, fScaleX, fScaleY, fLineWidth)) {
+					continue;
+				}
 				if (m_bRootAtTop) {
 					m_branchDrawer.draw(m_image, color[i], g, (int) (nX[i] * fScaleX), (int) (nY[i] * fScaleY), (int) (nX[i] * fScaleX), (int) (nY[i+1] * fScaleY), 0, 0);
 					m_branchDrawer.draw(m_image, color[i], g, (int) (nX[i] * fScaleX), (int) (nY[i+1] * fScaleY), (int) (nX[i + 3] * fScaleX), (int) (nY[i + 1] * fScaleY), 0, 0);
@@ -87,6 +205,9 @@ public class TreeDrawer {
 				nXJ[i] = (int) (nX[i] * fScaleX) + m_random.nextInt(m_nJitter);
 			}
 			for (int i = 0; i < nX.length - 4; i += 4) {
+				if (!isVisible(nX, nY, i, fScaleX, fScaleY, fLineWidth)) {
+					continue;
+				}
 				if (m_bRootAtTop) {
 					m_branchDrawer.draw(m_image, color[i], g, (int) (nX[i] * fScaleX), (int) (nY[i] * fScaleY), (int) (nX[i] * fScaleX), (int) (nY[i+1] * fScaleY), 0, 0);
 					m_branchDrawer.draw(m_image, color[i], g, (int) (nX[i] * fScaleX), (int) (nY[i+1] * fScaleY), (int) (nX[i + 3] * fScaleX), (int) (nY[i + 1] * fScaleY), 0, 0);
@@ -106,8 +227,12 @@ public class TreeDrawer {
 			return;
 		}
 		if (m_nJitter <= 0) {
+			boolean bVisible = true;
 			for (int i = 0; i < nX.length - 2; i++) {
-				if (i % 4 != 3) {
+				if (i % 4 == 0) {
+					bVisible = isVisible(nX, nY, i, fScaleX, fScaleY, getLineWidth(fLineWidth, fTopLineWidth, i));
+				}
+				if (i % 4 != 3 && bVisible) {
 					if (i % 4 == 0 || i % 4 == 2) {
 						float fWidth = fLineWidth[i] * LINE_WIDTH_SCALE;
 						float fTopWidth = fTopLineWidth[i] * LINE_WIDTH_SCALE;
@@ -150,7 +275,28 @@ public class TreeDrawer {
 			for (int i = 0; i < nX.length; i++) {
 				nXJ[i] = (int) (nX[i] * fScaleX) + m_random.nextInt(m_nJitter);
 			}
+			// the first branch of a node is drawn with the stroke left behind by the previous node,
+			// so when nodes are skipped, set the stroke their last branch would have set
+			float fStrokeWidth = getLineWidth(g);
+			int iSkippedStroke = -1;
+			boolean bVisible = true;
 			for (int i = 0; i < nX.length - 1; i++) {
+				if (i % 4 == 0) {
+					bVisible = isVisible(nX, nY, i, fScaleX, fScaleY, Math.max(fStrokeWidth, getLineWidth(fLineWidth, fTopLineWidth, i)));
+					if (bVisible && iSkippedStroke >= 0) {
+						g.setStroke(new BasicStroke(fLineWidth[iSkippedStroke] * LINE_WIDTH_SCALE, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL));
+						iSkippedStroke = -1;
+					}
+					if (i + 2 < nX.length - 1) {
+						fStrokeWidth = Math.min(fLineWidth[i + 2] * LINE_WIDTH_SCALE, BranchDrawer.MAX_LINE_WIDTH);
+					}
+				}
+				if (!bVisible) {
+					if (i % 4 == 2) {
+						iSkippedStroke = i;
+					}
+					continue;
+				}
 				if (i % 4 != 3) {
 					m_branchDrawer.draw(m_image, color[i], g, nXJ[i], (int) (nY[i] * fScaleY), nXJ[i + 1], (int) (nY[i + 1] * fScaleY), 0, 0);
 				}
@@ -165,6 +311,9 @@ public class TreeDrawer {
 					m_branchDrawer.draw(m_image, color[i], g, nXJ[i], (int) (nY[i] * fScaleY), nXJ[i + 1], (int) (nY[i + 1] * fScaleY), 0, 0);
 				}
 			}
+			if (iSkippedStroke >= 0) {
+				g.setStroke(new BasicStroke(fLineWidth[iSkippedStroke] * LINE_WIDTH_SCALE, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL));
+			}
 		}
 	}
 	
@@ -178,12 +327,17 @@ public class TreeDrawer {
 			return;
 		}
 		// ignore jitter for triangle trees
+		float fLineWidth = getLineWidth(g);
+		boolean bVisible = true;
 		if (m_bRootAtTop) {
 			for (int i = 0; i < nX.length - 4; i++) {
 				float fWidth = 0;
 				float fTopWidth = 0;
 				float fTopWidth2 = 0;
-				if (i % 4 != 3) {
+				if (i % 4 == 0) {
+					bVisible = isVisible(nX, nY, i, fScaleX, fScaleY, fLineWidth);
+				}
+				if (i % 4 != 3 && bVisible) {
 					if (i % 4 == 0 || i % 4 == 2) {
 						if (i % 4 == 0) { 							
 							if (nX[i+1] < nX[i+2]) {
@@ -207,7 +361,10 @@ public class TreeDrawer {
 				float fWidth = 0;
 				float fTopWidth = 0;
 				float fTopWidth2 = 0;
-				if (i % 4 != 3) {
+				if (i % 4 == 0) {
+					bVisible = isVisible(nX, nY, i, fScaleX, fScaleY, fLineWidth);
+				}
+				if (i % 4 != 3 && bVisible) {
 					if (i % 4 == 0 || i % 4 == 2) {
 						if (i % 4 == 0) { 							
 							if (nY[i+1] < nY[i+2]) {
@@ -230,6 +387,23 @@ public class TreeDrawer {
 	}
 
 	public void draw(int i, float[][] fLinesX, float[][] fLinesY, float [][] fLineWidth, float [][] fTopLineWidth, int [][] nLineColor, Graphics2D g, float fScaleX, float fScaleY) {
+		draw(i, fLinesX, fLinesY, null, fLineWidth, fTopLineWidth, nLineColor, g, fScaleX, fScaleY);
+	}
+
+	/** as draw above, but skips tree i altogether if fBounds (see calcBounds) shows it is outside the image **/
+	public void draw(int i, float[][] fLinesX, float[][] fLinesY, float [][] fBounds, float [][] fLineWidth, float [][] fTopLineWidth, int [][] nLineColor, Graphics2D g, float fScaleX, float fScaleY) {
+		if (fBounds != null && i < fBounds.length) {
+			// block trees without line widths and with jitter draw x-coordinates horizontally either way
+			boolean bSwap = !m_bRootAtTop && !(m_bViewBlockTree && fLineWidth == null && m_nJitter > 0);
+			float fLineWidth2 = (fLineWidth == null ? getLineWidth(g) : BranchDrawer.MAX_LINE_WIDTH);
+			if (!isVisible(fBounds[i], bSwap, fScaleX, fScaleY, fLineWidth2)) {
+				if (fLineWidth != null && m_nJitter > 0 && fLineWidth[i].length > 1) {
+					// leave the stroke the last branch of the tree would have set, as drawBlockTree does for skipped nodes
+					g.setStroke(new BasicStroke(fLineWidth[i][fLineWidth[i].length - 2] * LINE_WIDTH_SCALE, BasicStroke.CAP_BUTT, BasicStroke.JOIN_BEVEL));
+				}
+				return;
+			}
+		}
 		
 		if (m_bViewBlockTree) {
 			if (fLineWidth == null) {
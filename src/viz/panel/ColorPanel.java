@@ -43,6 +43,7 @@ public class ColorPanel extends JPanel implements ChangeListener {
 			"line colors button.\n" +
 			"COLOR_BY_CLADE: draw clades in one color.\n" +
 			"COLOR_BY_META_DATA_PATTERN: draw trees matching the regular expression specified in the pattern entry below.\n" +
+			"COLOR_BY_RUN: only available when multiple tree files are loaded. Draw trees of every file in a different color.\n" +
 			"meta data attribute: only available if any meta data attribute is specified. Use value of the attribute to color branches.";
 	final public static String HELP_SHOW_LEGEND = "Show legend mapping colors to attribute values in the DensiTree. " +
 			"This only works when a discrete attribute is selected for line coloring.";
@@ -92,6 +93,8 @@ public class ColorPanel extends JPanel implements ChangeListener {
 							m_dt.m_settings.m_lineColorMode = LineColorMode.BY_METADATA_PATTERN;
 						} else if (selected.equals(LineColorMode.COLOR_BY_CLADE.toString())) {
 							m_dt.m_settings.m_lineColorMode = LineColorMode.COLOR_BY_CLADE;
+						} else if (selected.equals(LineColorMode.COLOR_BY_RUN.toString())) {
+							m_dt.m_settings.m_lineColorMode = LineColorMode.COLOR_BY_RUN;
 						} else {
 							m_dt.m_settings.m_lineColorTag = selected; 
 							m_dt.m_settings.m_lineColorMode = LineColorMode.COLOR_BY_METADATA_TAG;
@@ -101,8 +104,7 @@ public class ColorPanel extends JPanel implements ChangeListener {
 								|| m_dt.m_settings.m_lineColorMode == LineColorMode.COLOR_BY_METADATA_TAG);
 						chckbxCategorical.setEnabled(m_dt.m_settings.m_lineColorMode == LineColorMode.COLOR_BY_METADATA_TAG);
 						if (m_dt.m_settings.m_lineColorMode != oldMode || (m_dt.m_settings.m_lineColorTag != null && !m_dt.m_settings.m_lineColorTag.equals(oldTag))) {
-							m_dt.calcColors(false);
-							m_dt.makeDirty();
+							m_dt.requestRecalc(DensiTree.RECALC_COLORS);
 						}
 					}
 				});
@@ -148,17 +150,15 @@ public class ColorPanel extends JPanel implements ChangeListener {
 		txtPattern.addActionListener(e-> {
 				String oldPattern = m_dt.m_settings.m_sLineColorPattern;
 				m_dt.m_settings.m_sLineColorPattern = txtPattern.getText();
-				if (oldPattern.equals(m_dt.m_settings.m_sLineColorPattern)) {
-					m_dt.calcColors(false);
-					m_dt.makeDirty();
+				if (!oldPattern.equals(m_dt.m_settings.m_sLineColorPattern)) {
+					m_dt.requestRecalc(DensiTree.RECALC_COLORS);
 				}
 			});
 		
 		chckbxCategorical = new JCheckBox("categorical");
 		chckbxCategorical.addActionListener(e-> {
 				m_dt.m_settings.m_bColorByCategory = ((JCheckBox) e.getSource()).isSelected();
-				m_dt.calcColors(true);
-				m_dt.makeDirty();
+				m_dt.requestRecalc(DensiTree.RECALC_COLORS);
 			});
 		chckbxCategorical.setToolTipText("indicate that the meta data item shoud be interpreted as categorical");
 		chckbxCategorical.setEnabled(false);
@@ -289,8 +289,7 @@ public class ColorPanel extends JPanel implements ChangeListener {
 					button.m_color = newColor;
 					button.repaint();
 					m_dt.m_settings.m_color[m_colorID] = newColor;
-					m_dt.calcColors(true);
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_COLORS);
 				}
 				m_dt.repaint();
 			}
@@ -302,6 +301,9 @@ public class ColorPanel extends JPanel implements ChangeListener {
 	public void stateChanged(ChangeEvent e) {
 		List<String> selection = new ArrayList<String>();
 		selection.add(LineColorMode.DEFAULT.toString());
+		if (m_dt.m_treeData.m_iRun != null) {
+			selection.add(LineColorMode.COLOR_BY_RUN.toString());
+		}
 		if (m_dt.m_treeData.m_bMetaDataReady) {
 			selection.add(LineColorMode.COLOR_BY_CLADE.toString());
 			selection.add(LineColorMode.BY_METADATA_PATTERN.toString());
@@ -320,6 +322,8 @@ public class ColorPanel extends JPanel implements ChangeListener {
 			comboBox.setSelectedItem(LineColorMode.BY_METADATA_PATTERN.toString());
 		} else if (m_dt.m_settings.m_lineColorMode == LineColorMode.COLOR_BY_CLADE) {
 			comboBox.setSelectedItem(LineColorMode.COLOR_BY_CLADE.toString());
+		} else if (m_dt.m_settings.m_lineColorMode == LineColorMode.COLOR_BY_RUN) {
+			comboBox.setSelectedItem(LineColorMode.COLOR_BY_RUN.toString());
 		} else {
 			comboBox.setSelectedItem(m_dt.m_settings.m_lineColorTag);
 		}
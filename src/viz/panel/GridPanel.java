@@ -134,7 +134,7 @@ public class GridPanel extends JPanel {
 			@Override
 			public void stateChanged(ChangeEvent e) {
 				m_dt.m_gridDrawer.m_nGridDigits = (Integer) significantDigitsModel.getValue();
-				m_dt.makeDirty();
+				m_dt.requestRecalc(DensiTree.RECALC_REDRAW);
 			}
 		});
 		GridBagConstraints gbc_spinner = new GridBagConstraints();
@@ -283,7 +283,7 @@ public class GridPanel extends JPanel {
 					float fGridTicks = Float.parseFloat(m_ticksTextField.getText());
 					if (fGridTicks > 0) {
 						m_dt.m_gridDrawer.m_fGridTicks = fGridTicks;
-						m_dt.makeDirty();
+						m_dt.requestRecalc(DensiTree.RECALC_REDRAW);
 						m_dt.repaint();
 					}
 				} catch (NumberFormatException e) {
@@ -333,7 +333,7 @@ public class GridPanel extends JPanel {
 			private void updateOffset() {
 				try {
 					m_dt.m_gridDrawer.m_fGridOffset = Float.parseFloat(m_offsetTextField.getText());
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_REDRAW);
 					m_dt.repaint();
 				} catch (NumberFormatException e) {
 					// ignore
@@ -114,8 +114,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 //						chckbxShowLegend.setEnabled(m_dt.m_lineColorMode == LineColorMode.BY_METADATA_PATTERN 
 //								|| m_dt.m_lineColorMode == LineColorMode.COLOR_BY_METADATA_TAG);
 						if (m_dt.m_settings.m_lineWidthMode != oldMode || (m_dt.m_settings.m_lineWidthTag != null && !m_dt.m_settings.m_lineWidthTag.equals(oldTag))) {
-							m_dt.calcLineWidths(true);
-							m_dt.makeDirty();
+							m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 						}
 						updateEnabled();
 						repaint();
@@ -145,8 +144,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 				try {
 					m_dt.m_settings.m_sLineWidthPattern = textField_1.getText();
 					if (m_dt.m_settings.m_lineWidthMode!= LineWidthMode.DEFAULT) {
-						m_dt.calcLineWidths(true);
-						m_dt.makeDirty();
+						m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 					}
 				} catch (Exception ex) {}
 			});
@@ -163,8 +161,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 				}
 				if (m_dt.m_settings.m_lineWidthMode!= LineWidthMode.DEFAULT) {
 					m_dt.m_settings.m_pattern = m_dt.createPattern();
-					m_dt.calcLineWidths(true);
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 				}
 			}
 		});
@@ -179,8 +176,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 				}
 				if (m_dt.m_settings.m_lineWidthMode!= LineWidthMode.DEFAULT) {
 					m_dt.m_settings.m_pattern = m_dt.createPattern();
-					m_dt.calcLineWidths(true);
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 				}
 			}
 		});
@@ -248,8 +244,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 //									|| m_dt.m_lineColorMode == LineColorMode.COLOR_BY_METADATA_TAG);
 									if (m_dt.m_settings.m_lineWidthModeTop != oldMode || (m_dt.m_settings.m_lineWidthTag != null && !m_dt.m_settings.m_lineWidthTagTop.equals(oldTag))
 											|| oldCorrectTopOfBranch != m_dt.m_settings.m_bCorrectTopOfBranch) {
-										m_dt.calcLineWidths(true);
-										m_dt.makeDirty();
+										m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 									}
 									updateEnabled();
 									repaint();
@@ -269,8 +264,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 		textField.addActionListener(ea-> {
 				try {
 					m_dt.m_settings.m_sLineWidthPatternTop = textField.getText();
-					m_dt.calcLineWidths(true);
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 				} catch (Exception ex) {}
 			});
 		textField.setColumns(10);
@@ -297,8 +291,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 				boolean bPrev = m_dt.m_settings.m_bCorrectTopOfBranch;
 				m_dt.m_settings.m_bWidthsAreZeroBased = ((JCheckBox) ea.getSource()).isSelected();
 				if (bPrev != m_dt.m_settings.m_bWidthsAreZeroBased) {
-					m_dt.calcLineWidths(true);
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_LINE_WIDTHS);
 				}
 			});
 		
@@ -335,7 +328,7 @@ public class LineWidthPanel extends JPanel implements ChangeListener {
 				try {
 					m_dt.m_treeDrawer.LINE_WIDTH_SCALE = Float.parseFloat(textField_3.getText());
 					if (m_dt.m_settings.m_lineWidthMode!= LineWidthMode.DEFAULT) {
-						m_dt.makeDirty();
+						m_dt.requestRecalc(DensiTree.RECALC_REDRAW);
 					}
 				} catch (Exception ex) {}
 			});
@@ -27,7 +27,10 @@ import viz.ccd.RogueDetection;
 import viz.ccd.AbstractCCD;
 import viz.DensiTree;
 import viz.Node;
+import viz.SessionCache;
+import viz.TaskScheduler;
 import viz.ccd.CCD1;
+import viz.ccd.CCDType;
 import viz.ccd.Tree;
 import viz.util.Util;
 
@@ -37,7 +40,7 @@ public class RoguePanel extends JPanel implements ChangeListener {
 			+ "Select an item to remove all parts of the tree that include the selected rogue + all of the\n"
 			+ "rogues above.";
 	final static String HELP_CALC_ROGUES = "Calculate rogue taxa and populate combobox above.\n"
-			+ "This may take a while.\n" 
+			+ "This may take a while; click again to cancel.\n" 
 			+ "After that, remove unselected taxa from the tree set.";
 	final static String HELP_DROP_SET_SIZE = "Drop set size determines the maximum clade size to consider to be dropped.\n"
 			+ "Smaller is faster. Usually, small drop sets are sufficient.";
@@ -48,7 +51,38 @@ public class RoguePanel extends JPanel implements ChangeListener {
 	JTextField textField;
 	
 	DensiTree m_dt;
-	
+
+	/** task of the running rogue calculation, if any **/
+	volatile TaskScheduler.Task m_rogueTask;
+
+	/** passes progress of rogue calculation on to its task, and stops the calculation when the task is cancelled **/
+	class RogueMonitor implements RogueDetection.ProgressMonitor {
+		final TaskScheduler.Task m_task;
+
+		RogueMonitor(TaskScheduler.Task task) {
+			m_task = task;
+		}
+
+		@Override
+		public boolean isCancelled() {
+			return m_task.isCancelled();
+		}
+
+		@Override
+		public void progress(int nStep, int nSteps) {
+			final int nPercentage = 100 * nStep / Math.max(1, nSteps);
+			m_task.progress("Calculating rogues (" + nPercentage + "%)");
+			SwingUtilities.invokeLater(new Runnable() {
+				@Override
+				public void run() {
+					if (m_rogueTask == m_task && !m_task.isCancelled()) {
+						calcRoguesButton.setText("Cancel (" + nPercentage + "%)");
+					}
+				}
+			});
+		}
+	}
+
 	public RoguePanel(DensiTree dt) {
 		m_dt = dt;
 		m_dt.addChangeListener(this);
@@ -91,6 +125,11 @@ public class RoguePanel extends JPanel implements ChangeListener {
 		gbc_calcRoguesButton.gridwidth= 2;
 		add(calcRoguesButton, gbc_calcRoguesButton);
 		calcRoguesButton.addActionListener(e-> {
+					if (m_rogueTask != null) {
+						m_rogueTask.cancel();
+						calcRoguesButton.setText("Cancelling");
+						return;
+					}
 					if (calcRoguesButton.getText().equals("Calc rogues")) {
 						calcRoguesButton.setText("Processing");
 					}
@@ -152,11 +191,10 @@ public class RoguePanel extends JPanel implements ChangeListener {
 		for (int i = 1; i <= index; i++) {
 			String label = model.getElementAt(i);
 			String taxon = label.split(" : ")[0];
-			int j = 0;
-			while (j < m_dt.m_settings.m_sLabels.size() && !m_dt.m_settings.m_sLabels.get(j).equals(taxon)) {
-				j++;
+			int j = m_dt.m_settings.getLabelTable().indexOf(taxon);
+			if (j >= 0) {
+				selection[j] = false;
 			}
-			selection[j] = false;
 		}
 
 		m_dt.calcLines();
@@ -230,14 +268,8 @@ public class RoguePanel extends JPanel implements ChangeListener {
 		return buf.toString();
 	}
 
-	private Object calcRogues() {
-		
-		List<Tree> trees = new ArrayList<>();
-		for (Node tree : m_dt.m_treeData.m_trees) {
-			trees.add(new Tree(tree, m_dt.m_treeData));
-		}
-		CCD1 ccd = new CCD1(trees, 0);
-		
+	/** start rogue calculation in the background, so the GUI stays responsive and it can be cancelled **/
+	private void calcRogues() {
 		int dropSetSize = 1;
 		try {
 			dropSetSize = Integer.parseInt(textField.getText());
@@ -247,14 +279,55 @@ public class RoguePanel extends JPanel implements ChangeListener {
 		} catch (Exception e) {
 			e.printStackTrace();
 		}
-		
+		final int nDropSetSize = dropSetSize;
+		calcRoguesButton.setText("Cancel");
+		// runs on the shared scheduler, so it is cancelled with other work when a new tree set is loaded
+		m_rogueTask = m_dt.m_scheduler.submit(TaskScheduler.Stage.ROGUES, "Calculating rogues", task -> {
+			try {
+				calcRogues(nDropSetSize, new RogueMonitor(task));
+			} catch (Throwable e) {
+				e.printStackTrace();
+				SwingUtilities.invokeLater(new Runnable() {
+					@Override
+					public void run() {
+						if (m_rogueTask == task) {
+							m_rogueTask = null;
+							calcRoguesButton.setText("Calc rogues");
+						}
+					}
+				});
+			}
+		});
+	}
+
+	private void calcRogues(int dropSetSize, RogueMonitor monitor) {
+		List<Tree> trees = new ArrayList<>();
+		for (Node tree : m_dt.m_treeData.m_trees) {
+			trees.add(new Tree(tree, m_dt.m_treeData));
+		}
+		// reuse CCD graph of a previous session if available
+		SessionCache cache = m_dt.m_treeData.getSessionCache();
+		CCD1 ccd = null;
+		if (cache != null) {
+			ccd = (CCD1) cache.readCCD(CCDType.CCD1, trees.get(0));
+		}
+		if (ccd == null) {
+			ccd = new CCD1(trees, 0);
+			if (cache != null) {
+				cache.saveCCD(CCDType.CCD1, ccd);
+			}
+		}
+
 		RogueDetection.TerminationStrategy tStratgey = RogueDetection.TerminationStrategy.NumRogues;
 		tStratgey.setThreshold(m_dt.m_settings.m_sLabels.size());
         List<viz.ccd.AbstractCCD> ccds = RogueDetection.detectRoguesWhileImproving(
                 ccd,
                 dropSetSize,
                 RogueDetection.RogueDetectionStrategy.Entropy,
-                tStratgey
+                tStratgey,
+                0.0,
+                true,
+                monitor
                 );
         
 		List<String> rogues = new ArrayList<>();
@@ -277,17 +350,30 @@ public class RoguePanel extends JPanel implements ChangeListener {
     		}
     		i--;
     	}
-		ComboBoxModel<String> model = new DefaultComboBoxModel<>(rogues.toArray(new String[]{}));
-		comboBoxBottom.setModel(model);
-
-		calcRoguesButton.setText("Remove rogues");			
-		return null;
+		// rogues found so far are shown when cancelled
+		final ComboBoxModel<String> model = new DefaultComboBoxModel<>(rogues.toArray(new String[]{}));
+		SwingUtilities.invokeLater(new Runnable() {
+			@Override
+			public void run() {
+				if (m_rogueTask != monitor.m_task) {
+					// tree set changed while calculating
+					return;
+				}
+				comboBoxBottom.setModel(model);
+				m_rogueTask = null;
+				calcRoguesButton.setText(monitor.isCancelled() ? "Calc rogues" : "Remove rogues");
+			}
+		});
 	}
 
 	@Override
 	public void stateChanged(ChangeEvent e) {
 		// deal with m_dt state changes
 		if (!m_dt.m_treeData.m_bMetaDataReady) {
+			if (m_rogueTask != null) {
+				m_rogueTask.cancel();
+				m_rogueTask = null;
+			}
 			calcRoguesButton.setText("Calc rogues");
 			calcRoguesButton.setEnabled(false);
 			ComboBoxModel<String> model = new DefaultComboBoxModel<>(new String[]{"<not initialised>"});
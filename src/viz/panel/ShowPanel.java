@@ -129,9 +129,7 @@ public class ShowPanel extends JPanel implements ChangeListener {
 					model.addElement((comboBox.getItemCount() + 1) + "");
 					// setting last added item, this should trigger an ActionEvent handled below
 					comboBox.setSelectedIndex(comboBox.getItemCount() - 1);
-					m_dt.calcPositions();
-					m_dt.calcLines();
-					m_dt.makeDirty();
+					m_dt.requestRecalc(DensiTree.RECALC_POSITIONS);
 				}
 			});
 		
@@ -146,8 +144,7 @@ public class ShowPanel extends JPanel implements ChangeListener {
 				if (m_dt.m_treeData.m_summaryTree != null) {
 					if (i>= 0 && i < m_dt.m_treeData.m_summaryTree.size() - 1) {
 						m_dt.m_treeData.m_rootcanaltree = m_dt.m_treeData.m_summaryTree.get(i);					
-						m_dt.calcLines();
-						m_dt.makeDirty();
+						m_dt.requestRecalc(DensiTree.RECALC_LINES);
 					}
 				}
 			});
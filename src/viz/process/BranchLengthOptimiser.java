@@ -2,6 +2,11 @@ package viz.process;
 
 
 import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 
 //import org.apache.commons.math.FunctionEvaluationException;
@@ -24,6 +29,8 @@ public class BranchLengthOptimiser {
 
 	final static int MAX_ATTEMPTS = 500;
 	final static float RANGE = 100;
+	/** minimum nr of nodes in a group for optimising them in parallel **/
+	final static int PARALLEL_THRESHOLD = 256;
 
 	public BranchLengthOptimiser(DensiTree dt) {
 		m_dt = dt;
@@ -40,6 +47,8 @@ public class BranchLengthOptimiser {
 		Node [] nodes = new Node[m_dt.m_settings.m_sLabels.size() * 2 - 1];
 		collectNodes(tree, nodes, heights, tree.m_fPosY);
 		scorer = new BranchScorer(m_dt, nodes);
+		// the scorer has all it needs from the clade height sets, so free them before optimising
+		m_dt.m_treeData.m_cladeHeightSet = null;
 		double startscore = scorer.score(heights);
 		
 		initialiseTree(heights, nodes);
@@ -99,56 +108,126 @@ public class BranchLengthOptimiser {
 	}
 	
 	void optimiseTree(float[] heights, Node[] nodes, BranchScorer scorer) {
-		boolean bProgress = true;
-		for (int i = 0; i < MAX_ATTEMPTS && bProgress; i++) {
-			bProgress = false;
-			// optimise internal nodes by finding the best Uniform operation on a grid
-			// for each node individually
-			for (int k = nodes.length/2+1; k < nodes.length; k++) {
-				Node node = nodes[k];
-				int iCladeLeft = node.m_left.m_iClade;
-				int iCladeRight = node.m_right.m_iClade;
-
-				float leftHeight = heights[node.m_left.m_iLabel];
-				float rightHeight = heights[node.m_right.m_iLabel];
-				float minHeight = Math.min(leftHeight, rightHeight);
-				float maxHeight;
-				if (node.isRoot()) {
-					CladeBranchInfo infoLeft = scorer.m_cladeBranchInfo.get(iCladeLeft);
-					CladeBranchInfo infoRight = scorer.m_cladeBranchInfo.get(iCladeRight);
-					maxHeight = Math.min(leftHeight - infoLeft.getMaxLength(), rightHeight - infoRight.getMaxLength());
-				} else {
-					maxHeight = heights[node.getParent().getNr()];
-				}
-				
-				float bestHeight = heights[node.getNr()];				
-				
-				heights[k] = bestHeight; 
-				double bestScore = scorer.score(heights);
-						
-				for (int j = 1; j < RANGE; j++) {
-					float height = j*(maxHeight - minHeight)/RANGE + minHeight;
-					heights[k] = height;
-					double score = scorer.score(heights);
-					if (score < bestScore) {
-						bProgress = true;
-						bestScore = score;
-						bestHeight = height;
+		// internal nodes at even and at odd depth; nodes within a group are not adjacent,
+		// so moving one does not change the branches scored for another, which means 
+		// nodes in a group can be optimised in any order, and in parallel
+		int [][] groups = groupByDepth(nodes);
+		int nThreads = Runtime.getRuntime().availableProcessors();
+		ExecutorService exec = null;
+		if (nThreads > 1 && nodes.length / 4 >= PARALLEL_THRESHOLD) {
+			exec = Executors.newFixedThreadPool(nThreads);
+		}
+		try {
+			boolean bProgress = true;
+			for (int i = 0; i < MAX_ATTEMPTS && bProgress; i++) {
+				bProgress = false;
+				for (int [] group : groups) {
+					if (exec == null || group.length < PARALLEL_THRESHOLD) {
+						bProgress |= optimiseNodes(group, 0, group.length, heights, scorer);
+					} else {
+						bProgress |= optimiseNodes(group, heights, scorer, exec, nThreads);
 					}
 				}
-				
-				heights[k] = bestHeight;
+				System.err.print(".");
+			}
+		} finally {
+			if (exec != null) {
+				exec.shutdown();
+			}
+		}
+	}
+
+	/** optimise nodes in group in nThreads contiguous ranges of the group **/
+	private boolean optimiseNodes(final int [] group, final float[] heights, final BranchScorer scorer, ExecutorService exec, int nThreads) {
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>();
+		for (int i = 0; i < nThreads; i++) {
+			final int iFrom = (int)((long) group.length * i / nThreads);
+			final int iTo = (int)((long) group.length * (i + 1) / nThreads);
+			futures.add(exec.submit(() -> optimiseNodes(group, iFrom, iTo, heights, scorer)));
+		}
+		boolean bProgress = false;
+		try {
+			for (Future<Boolean> future : futures) {
+				bProgress |= future.get();
+			}
+		} catch (Exception e) {
+			throw new RuntimeException(e);
+		}
+		return bProgress;
+	}
+
+	/** 
+	 * optimise internal nodes group[iFrom], ..., group[iTo-1] one by one by finding 
+	 * the best Uniform operation on a grid for each node individually
+	 * @return true if any node moved
+	 */
+	private boolean optimiseNodes(int [] group, int iFrom, int iTo, float[] heights, BranchScorer scorer) {
+		boolean bProgress = false;
+		for (int i = iFrom; i < iTo; i++) {
+			int k = group[i];
+			Node node = scorer.nodes[k];
+
+			float leftHeight = heights[node.m_left.m_iLabel];
+			float rightHeight = heights[node.m_right.m_iLabel];
+			float minHeight = Math.min(leftHeight, rightHeight);
+			float maxHeight;
+			if (node.isRoot()) {
+				CladeBranchInfo infoLeft = scorer.getCladeBranchInfo(node.m_left);
+				CladeBranchInfo infoRight = scorer.getCladeBranchInfo(node.m_right);
+				maxHeight = Math.min(leftHeight - infoLeft.getMaxLength(), rightHeight - infoRight.getMaxLength());
+			} else {
+				maxHeight = heights[node.getParent().getNr()];
+			}
+			
+			float bestHeight = heights[node.getNr()];				
+			
+			// only branches connected to node k change, so score these only
+			heights[k] = bestHeight; 
+			double bestScore = scorer.nodeScore(heights, k);
+					
+			for (int j = 1; j < RANGE; j++) {
+				float height = j*(maxHeight - minHeight)/RANGE + minHeight;
+				heights[k] = height;
+				double score = scorer.nodeScore(heights, k);
+				if (score < bestScore) {
+					bProgress = true;
+					bestScore = score;
+					bestHeight = height;
+				}
+			}
+			
+			heights[k] = bestHeight;
+		}
+		return bProgress;
+	}
+
+	/** split internal node nrs into those at even and those at odd depth from the root **/
+	private int [][] groupByDepth(Node[] nodes) {
+		List<Integer> even = new ArrayList<Integer>();
+		List<Integer> odd = new ArrayList<Integer>();
+		for (int k = nodes.length/2+1; k < nodes.length; k++) {
+			int nDepth = 0;
+			for (Node node = nodes[k]; !node.isRoot(); node = node.getParent()) {
+				nDepth++;
+			}
+			if (nDepth % 2 == 0) {
+				even.add(k);
+			} else {
+				odd.add(k);
 			}
-			System.err.print(".");
 		}
+		int [][] groups = new int[2][];
+		groups[0] = even.stream().mapToInt(Integer::intValue).toArray();
+		groups[1] = odd.stream().mapToInt(Integer::intValue).toArray();
+		return groups;
 	}
 
 	private void initialiseTree(float[] heights, Node[] nodes) {
 		// do pre-optimisation; position each node optimally, without considering parents
 		for (int k = m_dt.m_settings.m_sLabels.size(); k < nodes.length; k++) {
 			Node node = nodes[k];
-			CladeBranchInfo infoLeft = scorer.m_cladeBranchInfo.get(node.m_left.m_iClade);
-			CladeBranchInfo infoRight = scorer.m_cladeBranchInfo.get(node.m_right.m_iClade);
+			CladeBranchInfo infoLeft = scorer.getCladeBranchInfo(node.m_left);
+			CladeBranchInfo infoRight = scorer.getCladeBranchInfo(node.m_right);
 			
 			float leftHeight = heights[node.m_left.m_iLabel];
 			float rightHeight = heights[node.m_right.m_iLabel];
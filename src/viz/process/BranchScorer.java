@@ -1,76 +1,82 @@
 package viz.process;
 
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
-import java.util.Set;
 
 //import org.apache.commons.math.FunctionEvaluationException;
 //import org.apache.commons.math.analysis.DifferentiableMultivariateRealFunction;
 //import org.apache.commons.math.analysis.MultivariateRealFunction;
 //import org.apache.commons.math.analysis.MultivariateVectorialFunction;
 
+import viz.CladeHeightSet;
 import viz.DensiTree;
 import viz.Node;
 
 public class BranchScorer {// implements DifferentiableMultivariateRealFunction {
 
-	Map<Integer, CladeBranchInfo> m_cladeBranchInfo;
+	/** branch info by clade nr, null for clades not in the root canal tree **/
+	CladeBranchInfo [] m_cladeBranchInfo;
 	DensiTree m_dt;
-	double nonCladeScore = -1;
+	double nonCladeScore = 0;
 	Node [] nodes;
 	
 	public BranchScorer(DensiTree dt, Node [] nodes) {
 		this.nodes = nodes;
-		m_cladeBranchInfo = new HashMap<Integer, CladeBranchInfo>();
 		m_dt = dt;
+		List<CladeHeightSet> cladeHeightSet = m_dt.m_treeData.m_cladeHeightSet;
+
+		// initialise CladeBranchInfo structures for clades in root canal tree
+		m_cladeBranchInfo = new CladeBranchInfo[cladeHeightSet.size()];
+		for (Node node: nodes) {
+			int iClade = node.m_iClade;
+			CladeBranchInfo info = new CladeBranchInfo();
+			if (!node.isRoot()) {
+				info.initialise(cladeHeightSet.get(iClade).getBranchLengths(), m_dt.m_treeData.m_trees.length);
+			}
+			m_cladeBranchInfo[iClade] = info;
+		}
+
+		// count contributions of all clades not in root canal tree, which do not depend on heights 
+		for (int i = 0; i < cladeHeightSet.size(); i++) {
+			if (m_cladeBranchInfo[i] == null) {
+				nonCladeScore += cladeHeightSet.get(i).getBranchLengthSum();
+			}
+		}
 	}
 	
 	double score(float [] heights) {
 		double cladeScore = 0;
-		Set<Integer> clades = new HashSet<Integer>();
 		// count contributions of clades in root canal tree
-		// and initialise CladeBranchInfo structures
 		for (Node node: nodes) {
-			int iClade = node.m_iClade;
-			clades.add(iClade);
 			if (!node.isRoot()) {
-				int iNode = node.getNr();
-				CladeBranchInfo info = null;
-				if (!m_cladeBranchInfo.containsKey(node.m_iClade)) {
-					info = new CladeBranchInfo();
-					info.initialise(m_dt.m_treeData.m_cladeHeightSetBottom.get(iClade), m_dt.m_treeData.m_cladeHeightSetTop.get(iClade), m_dt.m_treeData.m_trees.length);
-					m_cladeBranchInfo.put(iClade, info);
-				} else {
-					info = m_cladeBranchInfo.get(iClade);
-				}
-				cladeScore += info.score(heights[node.getParent().getNr()], heights[iNode]);
-			} else {
-				if (!m_cladeBranchInfo.containsKey(iClade)) {
-					m_cladeBranchInfo.put(iClade, new CladeBranchInfo());
-				}
-			}
-		}
-		
-		if (nonCladeScore < 0) {
-			// count contributions of all clades not in root canal tree 
-			nonCladeScore = 0;
-			for (int i = 0; i < m_dt.m_treeData.m_cladeHeightSetBottom.size(); i++) {
-				if (!clades.contains(i)) {
-					List<Double> bottom = m_dt.m_treeData.m_cladeHeightSetBottom.get(i);
-					List<Double> top = m_dt.m_treeData.m_cladeHeightSetTop.get(i);
-					double sum = 0;
-					for (int j = 0; j < bottom.size(); j++) {
-						sum += bottom.get(j) - top.get(j);
-					}
-					nonCladeScore += sum;
-				}
+				CladeBranchInfo info = m_cladeBranchInfo[node.m_iClade];
+				cladeScore += info.score(heights[node.getParent().getNr()], heights[node.getNr()]);
 			}
 		}
 		return cladeScore + nonCladeScore;
 	}
 
+	/** 
+	 * contribution to the score of the branches above and below internal node nr k,
+	 * which are the only ones that change when node k is moved. So, differences
+	 * between nodeScores for different heights of node k equal differences in score.
+	 * Only the CladeBranchInfo objects of these branches are used, so nodeScore can be
+	 * called concurrently for nodes that are not adjacent.
+	 */
+	double nodeScore(float [] heights, int k) {
+		Node node = nodes[k];
+		float height = heights[k];
+		double score = m_cladeBranchInfo[node.m_left.m_iClade].score(height, heights[node.m_left.getNr()]);
+		score += m_cladeBranchInfo[node.m_right.m_iClade].score(height, heights[node.m_right.getNr()]);
+		if (!node.isRoot()) {
+			score += m_cladeBranchInfo[node.m_iClade].score(heights[node.getParent().getNr()], height);
+		}
+		return score;
+	}
+
+	CladeBranchInfo getCladeBranchInfo(Node node) {
+		return m_cladeBranchInfo[node.m_iClade];
+	}
+
 	float [] heights;
 	
 //	@Override
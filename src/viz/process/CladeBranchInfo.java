@@ -1,112 +1,70 @@
 package viz.process;
 
-import java.util.ArrayList;
-import java.util.Collections;
-import java.util.List;
+import java.util.Arrays;
 
+/**
+ * Branch lengths of a clade over all trees containing it, for scoring a branch
+ * of the clade in the summary tree. The score of a branch of length l is 
+ * l * (nr of trees not containing the clade) + sum_i |l - length_i|,
+ * which is answered by a binary search in the sorted lengths and prefix sums
+ * of the lengths, in O(log n) for n lengths.
+ * 
+ * Instances do not change after initialisation, so they can be used concurrently.
+ */
 public class CladeBranchInfo {
 	int count = 0;
 	int totalNrOfTrees = 0;
-	//int [] overlapcount;
-	float [] cumscore;
-	List<Float> height= new ArrayList<Float>();
-	
-	private float score, oldLength = -1;
-	private float dScore, dOldLength = -1;
+	/** branch lengths in increasing order **/
+	float [] lengths = new float[0];
+	/** prefixsum[i] = lengths[0] + ... + lengths[i-1] **/
+	double [] prefixsum = new double[1];
 
-	void initialise(List<Double> cladeHeightSetBottom, List<Double> cladeHeightSetTop, int totalNrOfTrees) {
+	void initialise(float [] branchLengths, int totalNrOfTrees) {
 		this.totalNrOfTrees = totalNrOfTrees;
-		for (int i = 0; i < cladeHeightSetBottom.size(); i++) {
-			height.add((float)(cladeHeightSetBottom.get(i)-cladeHeightSetTop.get(i)));
-		}
-		Collections.sort(height);
-		
-		count = height.size();
-		float [] revcumscore = new float[count];
-		cumscore = new float[count];
-		cumscore[0] = 0;
-		for (int i = 1; i < count; i++) {
-			cumscore[i] = cumscore[i-1] + (height.get(i) - height.get(i-1)) * i;
-		}
-		revcumscore[count-1] = 0;
-		for (int i = count - 2; i >= 0; i--) {
-			revcumscore[i] = revcumscore[i+1] + (height.get(i+1) - height.get(i)) * (count - i - 1);
-		}
+		count = branchLengths.length;
+		lengths = branchLengths.clone();
+		Arrays.sort(lengths);
+		prefixsum = new double[count + 1];
 		for (int i = 0; i < count; i++) {
-			cumscore[i] += revcumscore[i];
+			prefixsum[i + 1] = prefixsum[i] + lengths[i];
 		}
-		
 	}
 	
-//	float score(float bottom, float top) {
-//		float score = score2(bottom, top);
-//		if (score < 0) {
-//			int h = 3;
-//			h++;
-//			score = score2(bottom, top);
-//		}
-//		return score;
-//	}
 	float score(float bottom, float top) {
 		if (count == 0) {
 			return 0;
 		}
 		float length = top - bottom;
-		if (length == oldLength) {
-			return score;
-		}
-		oldLength = length;
 		if (length < -1e-8) {
 			return Float.POSITIVE_INFINITY;
 		}
 		// contribution due to trees not containing this clade
-		score = length * (totalNrOfTrees - count);
-		int i = Collections.binarySearch(height, length);
-		if (i >= 0) {
-			score += cumscore[i]; 
-			return score;
-		}
-		i = -1-i;
-		if (i >= count) { 
-			// length is larger than largest branch length
-			score += cumscore[count - 1];
-			score += (length - height.get(count - 1)) * count;
-			return score;
-		}
-		if (i == 0) {
-			score += cumscore[0];
-			score += (height.get(0) - length) * count;
-			return score;
-		}
-		score += cumscore[i-1];
-		score += (length - height.get(i-1))/(height.get(i) - height.get(i-1)) * (cumscore[i] - cumscore[i-1]);
-		return score;
+		double score = (double) length * (totalNrOfTrees - count);
+		// contribution of trees containing the clade, with i lengths below length
+		int i = nrOfLengthsBelow(length);
+		score += (double) length * i - prefixsum[i];
+		score += (prefixsum[count] - prefixsum[i]) - (double) length * (count - i);
+		return (float) score;
 	}
 
+	/** derivative of score with respect to branch length **/
 	float dScore(float bottom, float top) {
-		float length = top - bottom;
-		if (length == dOldLength) {
-			return dScore;
-		}
-		dOldLength = length;
-		int i = Collections.binarySearch(height, length);
-		if (i < 0) {
-			i = -1-i;
-		}		
-		if (i >= count) {
-			dScore = count;
-			return dScore;
-		}
-		if (i == 0) {
-			dScore = -count;
-			return dScore;
+		if (count == 0) {
+			return 0;
 		}
-		dScore += (cumscore[i] - cumscore[i-1])/(height.get(i) - height.get(i-1));
-		return dScore;
+		float length = top - bottom;
+		int i = nrOfLengthsBelow(length);
+		return (totalNrOfTrees - count) + i - (count - i);
+	}
+
+	/** nr of lengths smaller than x; lengths equal to x contribute nothing to the score, so ties do not matter **/
+	private int nrOfLengthsBelow(float x) {
+		int i = Arrays.binarySearch(lengths, x);
+		return i >= 0 ? i : -1-i;
 	}
 	
 	public float getMaxLength() {
-		return height.get(count - 1);
+		return lengths[count - 1];
 	}
 	
 //	void initialise(List<Double> cladeHeightSetBottom, List<Double> cladeHeightSetTop) {
@@ -1,5 +1,6 @@
 package viz.process.spq;
 
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.BitSet;
 import java.util.Collections;
@@ -7,6 +8,7 @@ import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
 
 import viz.Node;
 import viz.process.spq.PQVertex.VertexType;
@@ -23,6 +25,11 @@ public class CladeConstrainor extends Constrainor {
 	//private String[] taxa;
 	private int numberOfLeaves;
 
+	// budget for constraining, in milliseconds and number of clades
+	private long maxTime = Long.MAX_VALUE;
+	private int maxClades = Integer.MAX_VALUE;
+	private Consumer<String> progress = null;
+
 	public CladeConstrainor(Node [] trees) {
 		super();
 		this.trees = trees;
@@ -37,6 +44,63 @@ public class CladeConstrainor extends Constrainor {
 		this.numberOfLeaves = clades[0].bits.length();
 	}
 
+	/**
+	 * Constrainor for the clades of a clade table, like the one of
+	 * {@link viz.TreeData}, so clades do not have to be extracted from the
+	 * trees again. Clades of single taxa and of all taxa are left out, since
+	 * every sequence complies to them.
+	 * 
+	 * @param cladeTaxa
+	 *            taxa of each clade
+	 * @param cladeWeights
+	 *            support of each clade, which determines the order in which
+	 *            clades are fitted in
+	 * @param numberOfLeaves
+	 *            number of taxa
+	 */
+	public CladeConstrainor(List<int[]> cladeTaxa, List<Double> cladeWeights, int numberOfLeaves) {
+		super();
+		this.numberOfLeaves = numberOfLeaves;
+		List<Clade> cladeList = new ArrayList<Clade>();
+		for (int i = 0; i < cladeTaxa.size(); i++) {
+			int[] taxa = cladeTaxa.get(i);
+			if (taxa.length > 1 && taxa.length < numberOfLeaves) {
+				BitSet bits = new BitSet(numberOfLeaves);
+				for (int taxon : taxa) {
+					bits.set(taxon);
+				}
+				Clade clade = new Clade(bits, null);
+				clade.setCredibility(cladeWeights.get(i));
+				cladeList.add(clade);
+			}
+		}
+		this.clades = cladeList.toArray(new Clade[] {});
+		sortClades();
+	}
+
+	/**
+	 * Limits the time and number of clades used to constrain the sequences.
+	 * Clades are used in order of support, so the clades left out are the
+	 * least supported ones.
+	 * 
+	 * @param maxTime
+	 *            maximum time in milliseconds spent on constraining
+	 * @param maxClades
+	 *            maximum number of clades to constrain by
+	 */
+	public void setBudget(long maxTime, int maxClades) {
+		this.maxTime = maxTime;
+		this.maxClades = maxClades;
+	}
+
+	/**
+	 * @param progress
+	 *            receives progress messages, or null for no reporting
+	 */
+	public void setProgress(Consumer<String> progress) {
+		this.progress = progress;
+	}
+
 	public void run() {
 		// 1. extract clades
 		initClades();
@@ -59,8 +123,9 @@ public class CladeConstrainor extends Constrainor {
 		List<PQVertex> nodes = node.getChildren();
 		
 		if (node.getVertexType().equals(VertexType.P)) {
+			// largest first; the comparator has to be consistent for equal sizes
 			Collections.sort(nodes, (x,y) -> {
-				return x.clade.cardinality() < y.clade.cardinality() ? 1 : -1;
+				return Integer.compare(y.leafCount, x.leafCount);
 			});
 		}
 		
@@ -203,6 +268,12 @@ public class CladeConstrainor extends Constrainor {
 			if (o1.getCount() > o2.getCount()) {
 				return -1;
 			}
+			if (o1.getCredibility() < o2.getCredibility()) {
+				return 1;
+			}
+			if (o1.getCredibility() > o2.getCredibility()) {
+				return -1;
+			}
 			if (o1.getSize() < o2.getSize()) {
 				return -1;
 			}
@@ -238,13 +309,29 @@ public class CladeConstrainor extends Constrainor {
 	}
 	
 	private void constrainWithClades() {
-		//int fitted = 0;
+		int fitted = 0;
 		fittedClade = new boolean[clades.length];
 
-		for (int i = 0; i < clades.length; i++) {
+		long start = System.currentTimeMillis();
+		int numClades = Math.min(clades.length, maxClades);
+		int progressed = 0;
+		int i = 0;
+		for (; i < numClades; i++) {
+			if (i % 64 == 0 && System.currentTimeMillis() - start > maxTime) {
+				break;
+			}
 			boolean fittedIn = tree.constrainByClade(clades[i].bits);
 			fittedClade[i] = fittedIn;
-			//fitted += fittedIn ? 1 : 0;
+			fitted += fittedIn ? 1 : 0;
+			if (progress != null && progressed < i * 100 / numClades) {
+				progressed = i * 100 / numClades;
+				progress.accept("Constraining node order by clades (" + progressed + "%)");
+			}
+		}
+
+		if (progress != null) {
+			progress.accept(fitted + " of " + i + " clades fitted"
+					+ (i < clades.length ? ", " + (clades.length - i) + " clades left out to stay within budget." : "."));
 		}
 
 //		System.out.println(fitted + " of " + clades.length + " clades fitted.");
@@ -18,10 +18,23 @@ public class PQTree {
 	private List<PQVertex> vertices;
 	private PQVertex root;
 
+	/**
+	 * Leaves by ID; leaves are moved, but never replaced by constraining.
+	 */
+	private PQVertex[] leaves;
+
+	/**
+	 * Number of the current reduction, which stamps the pertinent leaf
+	 * counts of vertices, and the size of the clade reduced.
+	 */
+	private int reduction = 0;
+	private int cladeSize;
+
 	// # constructor and creators
 	public PQTree(final int numberOfLeaves) {
 		this.numberOfLeaves = numberOfLeaves;
 		this.vertices = new ArrayList<PQVertex>(2 * numberOfLeaves);
+		this.leaves = new PQVertex[numberOfLeaves];
 	}
 
 	public static PQTree createStarTree(final int numberOfLeaves) {
@@ -35,6 +48,7 @@ public class PQTree {
 			leaf.initClade(numberOfLeaves);
 			// leaf.initDescendants(tree.getMaxNumberOfVertices());
 			tree.vertices.add(leaf);
+			tree.leaves[i] = leaf;
 		}
 
 		root.initClade(numberOfLeaves);
@@ -63,6 +77,7 @@ public class PQTree {
 			leaf.initClade(numberOfLeaves);
 			// leaf.initDescendants(numberOfVertices);
 			tree.vertices.add(leaf);
+			tree.leaves[i] = leaf;
 		}
 
 		// map from leaves to leaves of beast tree
@@ -118,12 +133,13 @@ public class PQTree {
 			PQVertex current = queue.poll();
 			if (current.isLeaf()) {
 				clone.vertices.add(current);
+				clone.leaves[current.getID()] = current;
 			} else {
 				clonedVertices.add(current);
 			}
 			queue.addAll(current.getChildren());
 		}
-		vertices.addAll(clonedVertices);
+		clone.vertices.addAll(clonedVertices);
 
 		return clone;
 	}
@@ -164,8 +180,92 @@ public class PQTree {
 	}
 
 	// # constraining
+	/**
+	 * Constrains the tree such that the leaves of the given clade are
+	 * consecutive in all sequences it represents. As in the reduction of
+	 * Booth and Lueker, the numbers of pertinent leaves, i.e. leaves in the
+	 * clade, are bubbled up from the leaves first, so that the reduction
+	 * starts at the lowest vertex containing the clade and classifies children
+	 * by these counts instead of comparing bitsets. The tree is only changed
+	 * once it is known that the clade fits in at a vertex, so nothing needs to
+	 * be cloned for clades that do not fit.
+	 * 
+	 * @param clade
+	 *            to constrain by
+	 * @return whether the tree could be constrained by the clade
+	 */
 	public boolean constrainByClade(BitSet clade) {
-		return constrainByClade(this.getRoot(), clade, Side.NONE);
+		cladeSize = clade.cardinality();
+		if (cladeSize == 0) {
+			return true;
+		}
+		return constrainByClade(findPertinentRoot(clade), clade, Side.NONE);
+	}
+
+	/**
+	 * Counts pertinent leaves below vertices in a bottom-up pass.
+	 * 
+	 * @return lowest vertex with all leaves of the clade below it
+	 */
+	private PQVertex findPertinentRoot(BitSet clade) {
+		reduction++;
+
+		// mark vertices on paths from pertinent leaves up, counting marked children
+		List<PQVertex> queue = new ArrayList<PQVertex>(cladeSize);
+		for (int i = clade.nextSetBit(0); i >= 0; i = clade.nextSetBit(i + 1)) {
+			PQVertex vertex = leaves[i];
+			vertex.pertinentStamp = reduction;
+			vertex.pertinentCount = 1;
+			vertex.pendingChildren = 0;
+			queue.add(vertex);
+			while (vertex != root) {
+				PQVertex parent = vertex.parent;
+				boolean marked = (parent.pertinentStamp == reduction);
+				if (!marked) {
+					parent.pertinentStamp = reduction;
+					parent.pertinentCount = 0;
+					parent.pendingChildren = 0;
+				}
+				parent.pendingChildren++;
+				if (marked) {
+					break;
+				}
+				vertex = parent;
+			}
+		}
+
+		// add up counts once all marked children of a vertex are counted
+		for (int i = 0; i < queue.size(); i++) {
+			PQVertex vertex = queue.get(i);
+			if (vertex.pertinentCount == cladeSize) {
+				return vertex;
+			}
+			PQVertex parent = vertex.parent;
+			parent.pertinentCount += vertex.pertinentCount;
+			if (--parent.pendingChildren == 0) {
+				queue.add(parent);
+			}
+		}
+		throw new AssertionError("Clade has leaves outside tree.");
+	}
+
+	private int getPertinentCount(PQVertex vertex) {
+		return vertex.pertinentStamp == reduction ? vertex.pertinentCount : 0;
+	}
+
+	/* whether the clade of the vertex equals the clade reduced */
+	private boolean hasClade(PQVertex vertex) {
+		return vertex.leafCount == cladeSize && getPertinentCount(vertex) == cladeSize;
+	}
+
+	/* whether all leaves below the vertex are in the clade reduced */
+	private boolean isFull(PQVertex vertex) {
+		return getPertinentCount(vertex) == vertex.leafCount;
+	}
+
+	/* whether some leaves below the vertex are in the clade reduced */
+	private boolean isPertinent(PQVertex vertex) {
+		return getPertinentCount(vertex) > 0;
 	}
 
 	final static boolean debug = false;
@@ -180,23 +280,16 @@ public class PQTree {
 		}
 		// makeValid(vertex);
 
-		if (vertex.isLeaf() || vertex.hasClade(clade)) {
+		if (vertex.isLeaf() || hasClade(vertex)) {
 			return true;
 		}
 
-		// check if can go down to a child
-		if (side == Side.NONE) {
-			for (PQVertex child : vertex.getChildren()) {
-				if (child.hasSupersetCladeOf(clade)) {
-					return constrainByClade(child, clade, side);
-				}
-			}
-		}
+		// without a side, vertex is the pertinent root, so no child contains the clade
 
 		// classify children
-		List<PQVertex> intersectedChildren = new LinkedList<PQVertex>();
-		List<PQVertex> coveredChildren = new LinkedList<PQVertex>();
-		List<PQVertex> disjointChildren = new LinkedList<PQVertex>();
+		List<PQVertex> intersectedChildren = new ArrayList<PQVertex>(2);
+		List<PQVertex> coveredChildren = new ArrayList<PQVertex>();
+		List<PQVertex> disjointChildren = new ArrayList<PQVertex>();
 		if (!classifyChildren(vertex, clade, intersectedChildren, coveredChildren,
 				disjointChildren)) {
 			return false;
@@ -413,7 +506,7 @@ public class PQTree {
 		// finds out who to constrain intersected kids
 		for (int i = 0; i < vertex.getChildCount(); i++) {
 			PQVertex child = vertex.getChild(i);
-			if (child.hasSubsetCladeOf(clade)) {
+			if (isFull(child)) {
 				if (coveringEnded) {
 					return false;
 				} else if (coveringStarted) {
@@ -425,7 +518,7 @@ public class PQTree {
 					coveringStarted = true;
 
 				}
-			} else if (child.hasIntersectingCladeWith(clade)) {
+			} else if (isPertinent(child)) {
 				if (coveringEnded) {
 					// can't start new cover
 					return false;
@@ -496,14 +589,14 @@ public class PQTree {
 	 * @return whether children can be sorted such that intersection is on side
 	 */
 	private boolean canMoveIntersectionToSide(PQVertex vertex, BitSet clade) {
-		if (vertex.isLeaf() || vertex.hasClade(clade)) {
+		if (vertex.isLeaf() || hasClade(vertex)) {
 			return true;
 		}
 
 		// classify children
-		List<PQVertex> intersectedChildren = new LinkedList<PQVertex>();
-		List<PQVertex> coveredChildren = new LinkedList<PQVertex>();
-		List<PQVertex> disjointChildren = new LinkedList<PQVertex>();
+		List<PQVertex> intersectedChildren = new ArrayList<PQVertex>(2);
+		List<PQVertex> coveredChildren = new ArrayList<PQVertex>();
+		List<PQVertex> disjointChildren = new ArrayList<PQVertex>();
 		if (!classifyChildren(vertex, clade, intersectedChildren, coveredChildren,
 				disjointChildren)) {
 			return false;
@@ -525,10 +618,10 @@ public class PQTree {
 
 				// check if possible start
 				PQVertex child = vertex.getChild(0);
-				if (child.hasSubsetCladeOf(clade)) {
+				if (isFull(child)) {
 					leftSideUsed = true;
 					coveringStarted = true;
-				} else if (child.hasIntersectingCladeWith(clade)) {
+				} else if (isPertinent(child)) {
 					// either start cover from here to right
 					// or from left only till here
 					if (!(coveredChildren.size() == 0) || (disjointChildren.size() == 0)) {
@@ -542,7 +635,7 @@ public class PQTree {
 				for (int i = 1; i < vertex.getChildCount(); i++) {
 					child = vertex.getChild(i);
 
-					if (child.hasSubsetCladeOf(clade)) {
+					if (isFull(child)) {
 						if (coveringEnded) {
 							return false;
 						} else if (coveringStarted) {
@@ -555,7 +648,7 @@ public class PQTree {
 								coveringStarted = true;
 							}
 						}
-					} else if (child.hasIntersectingCladeWith(clade)) {
+					} else if (isPertinent(child)) {
 						if (coveringEnded) {
 							return false;
 						} else if (coveringStarted) {
@@ -648,9 +741,9 @@ public class PQTree {
 			List<PQVertex> intersectedChildren, List<PQVertex> coveredChildren,
 			List<PQVertex> disjointChildren) {
 		for (PQVertex child : parent.getChildren()) {
-			if (child.hasSubsetCladeOf(clade)) {
+			if (isFull(child)) {
 				coveredChildren.add(child);
-			} else if (child.hasIntersectingCladeWith(clade)) {
+			} else if (isPertinent(child)) {
 				if (intersectedChildren.size() == 2) {
 					// can't have 3 intersected (but not fully covered) children
 					return false;
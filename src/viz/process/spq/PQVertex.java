@@ -29,6 +29,18 @@ public class PQVertex {
 	 */
 	protected BitSet clade;
 
+	/* number of leaves below this vertex, i.e. cardinality of clade */
+	int leafCount;
+
+	/*
+	 * Pertinent leaves, i.e. leaves in the clade currently reduced, below this
+	 * vertex. Only valid if pertinentStamp equals the number of the reduction.
+	 */
+	int pertinentStamp;
+	int pertinentCount;
+	/* number of children with pertinent leaves not counted yet */
+	int pendingChildren;
+
 	public PQVertex(VertexType vertexType) {
 		this.vertexType = vertexType;
 	}
@@ -175,10 +187,23 @@ public class PQVertex {
 		clade = new BitSet(numberOfLeaves);
 		if (isLeaf()) {
 			clade.set(ID);
+			leafCount = 1;
 		} else {
+			// children of the most recent reduction determine the pertinent leaves
+			int stamp = 0;
+			int count = 0;
 			for (PQVertex child : children) {
 				clade.or(child.clade);
+				if (child.pertinentStamp > stamp) {
+					stamp = child.pertinentStamp;
+					count = child.pertinentCount;
+				} else if (child.pertinentStamp == stamp) {
+					count += child.pertinentCount;
+				}
 			}
+			leafCount = clade.cardinality();
+			pertinentStamp = stamp;
+			pertinentCount = count;
 		}
 	}
 